@@ -0,0 +1,295 @@
+/* A B+-tree from cell values to the primary keys of the rows holding them. Keys 
+are kept in the order given by a comparator (see TypeComparator), and all keys 
+are stored in the leaves, which are linked left to right so that ranges can be 
+read without going back up the tree. Each key holds a set of primary keys (in the 
+order they were added), as many rows may share a value, so adding and removing one 
+costs the same however many rows share it. Inner nodes split when they grow past 
+ORDER keys. Removing keys does not merge nodes - a leaf may be left empty, which 
+lookups and range scans simply pass over. */
+import java.util.*;
+import java.util.function.BiConsumer;
+
+class BPlusTree {
+
+    public static final int ORDER = 64;
+
+    private Comparator<String> comparator;
+    private Node root = new Leaf();
+    //number of (key, primary key) pairs
+    private int size = 0;
+    //separator key for the node returned by the last split
+    private String splitKey;
+
+    private abstract static class Node {
+        ArrayList<String> keys = new ArrayList<>();
+    }
+
+    private static class Leaf extends Node {
+        ArrayList<LinkedHashSet<String>> values = new ArrayList<>();
+        Leaf next = null;
+    }
+
+    private static class Inner extends Node {
+        ArrayList<Node> children = new ArrayList<>();
+    }
+
+    BPlusTree(Comparator<String> comparator){
+        this.comparator = comparator;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public void clear(){
+        root = new Leaf();
+        size = 0;
+    }
+
+    //add primaryKey under key - does nothing if it is already there
+    public void insert(String key, String primaryKey){
+        Node right = insert(root, key, primaryKey);
+        if (right != null){
+            Inner newRoot = new Inner();
+            newRoot.keys.add(splitKey);
+            newRoot.children.add(root);
+            newRoot.children.add(right);
+            root = newRoot;
+        }
+    }
+
+    //returns the new right-hand node if node was split
+    private Node insert(Node node, String key, String primaryKey){
+        if (node instanceof Leaf){
+            Leaf leaf = (Leaf)node;
+            int i = Collections.binarySearch(leaf.keys, key, comparator);
+            if (i >= 0){
+                if (leaf.values.get(i).add(primaryKey)){
+                    size++;
+                }
+                return null;
+            }
+            i = -(i + 1);
+            LinkedHashSet<String> pks = new LinkedHashSet<>(2);
+            pks.add(primaryKey);
+            leaf.keys.add(i, key);
+            leaf.values.add(i, pks);
+            size++;
+            if (leaf.keys.size() <= ORDER){
+                return null;
+            }
+            //split leaf in half
+            Leaf right = new Leaf();
+            int mid = leaf.keys.size() / 2;
+            right.keys.addAll(leaf.keys.subList(mid, leaf.keys.size()));
+            right.values.addAll(leaf.values.subList(mid, leaf.values.size()));
+            leaf.keys.subList(mid, leaf.keys.size()).clear();
+            leaf.values.subList(mid, leaf.values.size()).clear();
+            right.next = leaf.next;
+            leaf.next = right;
+            splitKey = right.keys.get(0);
+            return right;
+        }
+
+        Inner inner = (Inner)node;
+        int child = childIndex(inner, key);
+        Node right = insert(inner.children.get(child), key, primaryKey);
+        if (right == null){
+            return null;
+        }
+        inner.keys.add(child, splitKey);
+        inner.children.add(child + 1, right);
+        if (inner.keys.size() <= ORDER){
+            return null;
+        }
+        //split inner node - the middle key moves up
+        Inner newInner = new Inner();
+        int mid = inner.keys.size() / 2;
+        String middleKey = inner.keys.get(mid);
+        newInner.keys.addAll(inner.keys.subList(mid + 1, inner.keys.size()));
+        newInner.children.addAll(inner.children.subList(mid + 1, inner.children.size()));
+        inner.keys.subList(mid, inner.keys.size()).clear();
+        inner.children.subList(mid + 1, inner.children.size()).clear();
+        splitKey = middleKey;
+        return newInner;
+    }
+
+    //children to the left of key i hold keys less than key i
+    private int childIndex(Inner inner, String key){
+        int i = Collections.binarySearch(inner.keys, key, comparator);
+        return (i >= 0) ? i + 1 : -(i + 1);
+    }
+
+    private Leaf findLeaf(String key){
+        Node node = root;
+        while (node instanceof Inner){
+            node = ((Inner)node).children.get(childIndex((Inner)node, key));
+        }
+        return (Leaf)node;
+    }
+
+    private Leaf firstLeaf(){
+        Node node = root;
+        while (node instanceof Inner){
+            node = ((Inner)node).children.get(0);
+        }
+        return (Leaf)node;
+    }
+
+    public boolean remove(String key, String primaryKey){
+        Leaf leaf = findLeaf(key);
+        int i = Collections.binarySearch(leaf.keys, key, comparator);
+        if (i < 0 || !leaf.values.get(i).remove(primaryKey)){
+            return false;
+        }
+        size--;
+        if (leaf.values.get(i).isEmpty()){
+            leaf.keys.remove(i);
+            leaf.values.remove(i);
+        }
+        return true;
+    }
+
+    //primary keys of rows with value equal to key
+    public List<String> get(String key){
+        Leaf leaf = findLeaf(key);
+        int i = Collections.binarySearch(leaf.keys, key, comparator);
+        if (i < 0){
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(leaf.values.get(i));
+    }
+
+    //primary keys of rows with from <= value <= to, in key order
+    //a null from or to leaves that end of the range open
+    public List<String> range(String from, String to){
+        List<String> results = new ArrayList<>();
+        Leaf leaf;
+        int i;
+        if (from == null){
+            leaf = firstLeaf();
+            i = 0;
+        } else {
+            leaf = findLeaf(from);
+            i = Collections.binarySearch(leaf.keys, from, comparator);
+            if (i < 0){
+                i = -(i + 1);
+            }
+        }
+        while (leaf != null){
+            for (; i < leaf.keys.size(); i++){
+                if (to != null && comparator.compare(leaf.keys.get(i), to) > 0){
+                    return results;
+                }
+                results.addAll(leaf.values.get(i));
+            }
+            leaf = leaf.next;
+            i = 0;
+        }
+        return results;
+    }
+
+    //visit every key and its primary keys, in key order
+    public void forEach(BiConsumer<String, Collection<String>> action){
+        for (Leaf leaf = firstLeaf(); leaf != null; leaf = leaf.next){
+            for (int i = 0; i < leaf.keys.size(); i++){
+                action.accept(leaf.keys.get(i), leaf.values.get(i));
+            }
+        }
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        BPlusTree program = new BPlusTree(new TypeComparator(Type.INT));
+        program.run();
+        program.test();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea BPlusTree");
+    }
+
+    private void test(){
+        testInsertGet();
+        testRange();
+        testRemove();
+        testDuplicates();
+        System.out.println("BPlusTree: all tests passed");
+    }
+
+    private void testInsertGet(){
+        BPlusTree tree = new BPlusTree(new TypeComparator(Type.INT));
+        //enough keys to split leaves and inner nodes
+        for (int i = 9999; i >= 0; i--){
+            tree.insert(Integer.toString(i), "pk" + i);
+        }
+        tree.insert("5", "other");
+        tree.insert("5", "other");
+        assert(tree.size() == 10001);
+        assert(tree.get("5").size() == 2);
+        assert(tree.get("5").contains("other"));
+        assert(tree.get("9999").get(0).equals("pk9999"));
+        assert(tree.get("10000").isEmpty());
+
+        tree.insert(null, "nullValue");
+        assert(tree.get(null).get(0).equals("nullValue"));
+    }
+
+    private void testRange(){
+        BPlusTree tree = new BPlusTree(new TypeComparator(Type.INT));
+        for (int i = 0; i < 1000; i++){
+            tree.insert(Integer.toString(i), "pk" + i);
+        }
+        //numeric, not string, order
+        List<String> range = tree.range("98", "102");
+        assert(range.size() == 5);
+        assert(range.get(0).equals("pk98"));
+        assert(range.get(4).equals("pk102"));
+        assert(tree.range(null, "9").size() == 10);
+        assert(tree.range("995", null).size() == 5);
+        assert(tree.range(null, null).size() == 1000);
+        assert(tree.range("2000", null).isEmpty());
+    }
+
+    private void testRemove(){
+        BPlusTree tree = new BPlusTree(new TypeComparator(Type.STRING));
+        for (int i = 0; i < 500; i++){
+            tree.insert("k" + i, "pk" + i);
+        }
+        for (int i = 0; i < 400; i++){
+            assert(tree.remove("k" + i, "pk" + i));
+        }
+        assert(tree.remove("k0", "pk0") == false);
+        assert(tree.size() == 100);
+        assert(tree.get("k10").isEmpty());
+        assert(tree.get("k450").get(0).equals("pk450"));
+        assert(tree.range(null, null).size() == 100);
+    }
+
+    //rows per second added to and removed from one value shared by more and more rows 
+    //- the same at each size, as a value's primary keys are a set (printed, as it depends on the machine)
+    private void testDuplicates(){
+        StringBuilder report = new StringBuilder("BPlusTree: duplicate inserts+removes/sec");
+        for (int n = 20000; n <= 80000; n *= 2){
+            BPlusTree tree = new BPlusTree(new TypeComparator(Type.STRING));
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++){
+                tree.insert("same", "pk" + i);
+            }
+            tree.insert("same", "pk0");
+            assert(tree.size() == n);
+            assert(tree.get("same").get(n - 1).equals("pk" + (n - 1)));
+            for (int i = 0; i < n; i += 2){
+                assert(tree.remove("same", "pk" + i));
+            }
+            long nanos = Math.max(1, System.nanoTime() - start);
+            assert(tree.size() == n / 2);
+            assert(tree.get("same").get(0).equals("pk1"));
+            report.append(" - " + n + " rows: " + (long) (n + n / 2) * 1000000000L / nanos);
+        }
+        System.out.println(report);
+    }
+}
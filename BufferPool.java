@@ -0,0 +1,589 @@
+/* A fixed-size cache of file pages, shared by the tables of one or more databases.
+The memory budget is divided into frames of one page each, and frames are only
+allocated as they are needed. A page is pinned while it is being read or changed
+and unpinned afterwards; pinned pages are never evicted. When every frame is in
+use, the CLOCK policy picks the page to evict: the hand sweeps the frames, giving
+each page that has been used since it last passed a second chance, and evicting
+the first unpinned page that has not. Pages unpinned as dirty are written back to
+their file when they are evicted, flushed or their file is closed. Frames freed by
+closing a file are kept on a free list, so a miss takes one without looking through
+every frame. A missing page is read from its file outside the pool's lock, so hits and
+reads of other pages go ahead meanwhile; its frame is marked loading until the read is
+done, and others pinning that page wait for it. Hits, misses, evictions and
+write-backs are counted. A table opened from a binary table file
+with a buffer pool reads its rows a page at a time through the pool, so the rows
+of tables that are only read never need to fit in memory at once. */
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+class BufferPool {
+
+    //a file whose pages are cached, with the frames holding them
+    static class PageFile {
+        final String path;
+        private final FileChannel channel;
+        private final boolean writable;
+        private HashMap<Long, Frame> pages = new HashMap<>();
+
+        private PageFile(String path, FileChannel channel, boolean writable){
+            this.path = path;
+            this.channel = channel;
+            this.writable = writable;
+        }
+
+        public long size(){
+            try {
+                return channel.size();
+            } catch (IOException ex){
+                return 0;
+            }
+        }
+    }
+
+    private static class Frame {
+        PageFile file;
+        long pageNo;
+        ByteBuffer data;
+        int pins = 0;
+        boolean dirty = false;
+        //used since the clock hand last passed
+        boolean referenced = false;
+        //being read from file - pinned, but its data isn't there yet
+        boolean loading = false;
+
+        Frame(int pageSize){
+            data = ByteBuffer.allocate(pageSize);
+        }
+    }
+
+    private final int pageSize;
+    private final int capacity;
+    private List<Frame> frames = new ArrayList<>();
+    //allocated frames holding no page
+    private ArrayDeque<Frame> free = new ArrayDeque<>();
+    private int hand = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long writes = 0;
+
+    //budgetBytes of pages of pageSize bytes (at least one page)
+    BufferPool(long budgetBytes, int pageSize){
+        this.pageSize = pageSize;
+        this.capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / pageSize));
+    }
+
+    BufferPool(long budgetBytes){
+        this(budgetBytes, TableFile.PAGE_SIZE);
+    }
+
+    public int getPageSize(){
+        return pageSize;
+    }
+
+    //the most pages held at once
+    public int getCapacity(){
+        return capacity;
+    }
+
+    //open a file to read its pages through the pool - returns null if it can't be opened
+    public PageFile open(String path, boolean writable){
+        try {
+            RandomAccessFile file = new RandomAccessFile(path, writable ? "rw" : "r");
+            return new PageFile(path, file.getChannel(), writable);
+        } catch (IOException ex){
+            System.out.println("ERROR: could not open " + path);
+            return null;
+        }
+    }
+
+    //the page, read from file if it is not held already - it stays in the pool until unpinned.
+    //the buffer returned covers the whole page (bytes past the end of the file are 0).
+    //returns null if every frame is pinned or the page can't be read
+    public ByteBuffer pin(PageFile file, long pageNo){
+        Frame frame;
+        synchronized (this){
+            frame = file.pages.get(pageNo);
+            while (frame != null && frame.loading){
+                if (!awaitLoad()){
+                    return null;
+                }
+                frame = file.pages.get(pageNo);
+            }
+            if (frame != null){
+                hits++;
+                frame.pins++;
+                frame.referenced = true;
+                return view(frame);
+            }
+            misses++;
+            frame = freeFrame();
+            if (frame == null){
+                System.out.println("ERROR: every page in the buffer pool is pinned");
+                return null;
+            }
+            frame.file = file;
+            frame.pageNo = pageNo;
+            frame.dirty = false;
+            frame.pins = 1;
+            frame.referenced = true;
+            frame.loading = true;
+            file.pages.put(pageNo, frame);
+        }
+        boolean read = readPage(file, pageNo, frame.data);
+        synchronized (this){
+            frame.loading = false;
+            notifyAll();
+            if (!read){
+                if (frame.file == file){
+                    file.pages.remove(pageNo);
+                    frame.file = null;
+                    frame.pins = 0;
+                    free.push(frame);
+                }
+                return null;
+            }
+            return view(frame);
+        }
+    }
+
+    private static ByteBuffer view(Frame frame){
+        ByteBuffer page = frame.data.duplicate();
+        page.clear();
+        return page;
+    }
+
+    //wait (holding the lock) for a page being read to be read - false if interrupted
+    private boolean awaitLoad(){
+        try {
+            wait();
+            return true;
+        } catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    //let the page be evicted again - dirty if it was changed while pinned
+    public synchronized boolean unpin(PageFile file, long pageNo, boolean dirty){
+        Frame frame = file.pages.get(pageNo);
+        if (frame == null || frame.pins == 0){
+            System.out.println("ERROR: page " + pageNo + " of " + file.path + " is not pinned");
+            return false;
+        }
+        frame.pins--;
+        frame.dirty |= dirty;
+        return true;
+    }
+
+    //count pages starting at firstPage, copied into one buffer (for rows larger than a page)
+    public ByteBuffer read(PageFile file, long firstPage, int count){
+        ByteBuffer run = ByteBuffer.allocate(count * pageSize);
+        for (long pageNo = firstPage; pageNo < firstPage + count; pageNo++){
+            ByteBuffer page = pin(file, pageNo);
+            if (page == null){
+                return null;
+            }
+            run.put(page);
+            unpin(file, pageNo, false);
+        }
+        run.flip();
+        return run;
+    }
+
+    //write back every dirty page of file
+    public synchronized boolean flush(PageFile file){
+        boolean flushed = true;
+        for (Frame frame : file.pages.values()){
+            if (frame.dirty){
+                flushed &= writeBack(frame);
+            }
+        }
+        return flushed;
+    }
+
+    public synchronized boolean flush(){
+        boolean flushed = true;
+        for (Frame frame : frames){
+            if (frame.file != null && frame.dirty){
+                flushed &= writeBack(frame);
+            }
+        }
+        return flushed;
+    }
+
+    //write back the file's dirty pages, free its frames and close it
+    public synchronized boolean close(PageFile file){
+        //pages being read are read first
+        while (loading(file)){
+            if (!awaitLoad()){
+                break;
+            }
+        }
+        boolean closed = flush(file);
+        for (Frame frame : file.pages.values()){
+            if (frame.pins > 0){
+                System.out.println("ERROR: page " + frame.pageNo + " of " + file.path + " closed while pinned");
+            }
+            frame.file = null;
+            frame.pins = 0;
+            frame.dirty = false;
+            frame.referenced = false;
+            free.push(frame);
+        }
+        file.pages.clear();
+        try {
+            file.channel.close();
+        } catch (IOException ex){
+            closed = false;
+        }
+        return closed;
+    }
+
+    private static boolean loading(PageFile file){
+        for (Frame frame : file.pages.values()){
+            if (frame.loading){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //an unused frame, a new one while under budget, or the frame of the page the clock evicts
+    private Frame freeFrame(){
+        if (!free.isEmpty()){
+            return free.pop();
+        }
+        if (frames.size() < capacity){
+            Frame frame = new Frame(pageSize);
+            frames.add(frame);
+            return frame;
+        }
+        //two sweeps clear every second chance, so an unpinned page is found if there is one
+        for (int step = 0; step < 2 * frames.size(); step++){
+            Frame frame = frames.get(hand);
+            hand = (hand + 1) % frames.size();
+            if (frame.pins > 0){
+                continue;
+            }
+            if (frame.referenced){
+                frame.referenced = false;
+                continue;
+            }
+            if (frame.dirty && !writeBack(frame)){
+                continue;
+            }
+            frame.file.pages.remove(frame.pageNo);
+            frame.file = null;
+            evictions++;
+            return frame;
+        }
+        return null;
+    }
+
+    private boolean readPage(PageFile file, long pageNo, ByteBuffer data){
+        data.clear();
+        try {
+            long position = pageNo * pageSize;
+            while (data.hasRemaining()){
+                int read = file.channel.read(data, position + data.position());
+                if (read < 0){
+                    break;
+                }
+            }
+        } catch (IOException ex){
+            System.out.println("ERROR: could not read page " + pageNo + " of " + file.path);
+            return false;
+        }
+        while (data.hasRemaining()){
+            data.put((byte) 0);
+        }
+        return true;
+    }
+
+    private boolean writeBack(Frame frame){
+        if (!frame.file.writable){
+            System.out.println("ERROR: page " + frame.pageNo + " of " + frame.file.path + " changed in a read-only file");
+            return false;
+        }
+        ByteBuffer data = frame.data.duplicate();
+        data.clear();
+        try {
+            long position = frame.pageNo * pageSize;
+            while (data.hasRemaining()){
+                frame.file.channel.write(data, position + data.position());
+            }
+        } catch (IOException ex){
+            System.out.println("ERROR: could not write page " + frame.pageNo + " of " + frame.file.path);
+            return false;
+        }
+        frame.dirty = false;
+        writes++;
+        return true;
+    }
+
+    public synchronized long getHits(){
+        return hits;
+    }
+
+    public synchronized long getMisses(){
+        return misses;
+    }
+
+    public synchronized long getEvictions(){
+        return evictions;
+    }
+
+    //dirty pages written back to their files
+    public synchronized long getWrites(){
+        return writes;
+    }
+
+    //pages held at the moment
+    public synchronized int residentPages(){
+        return frames.size() - free.size();
+    }
+
+    public synchronized String stats(){
+        long requests = hits + misses;
+        long hitRate = (requests == 0) ? 0 : hits * 100 / requests;
+        return "buffer pool: " + residentPages() + "/" + capacity + " pages, " + hits + " hits, "
+            + misses + " misses (" + hitRate + "% hit rate), " + evictions + " evictions, " + writes + " writes";
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        BufferPool program = new BufferPool(4 * 16, 16);
+        program.run();
+        program.test();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea BufferPool");
+    }
+
+    private void test(){
+        testPinAndEvict();
+        testWriteBack();
+        testAllPinned();
+        testPagedTable();
+        testConcurrentPins();
+        testTiming();
+        System.out.println("BufferPool: all tests passed");
+    }
+
+    private void makeFile(String path, int pages) {
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")){
+            file.setLength(0);
+            for (int i = 0; i < pages; i++){
+                byte[] page = new byte[pageSize];
+                Arrays.fill(page, (byte) i);
+                file.write(page);
+            }
+        } catch (IOException ex){
+            throw new Error(ex);
+        }
+    }
+
+    private void testPinAndEvict(){
+        makeFile("tests/pool.bin", 10);
+        BufferPool pool = new BufferPool(4 * 16, 16);
+        assert(pool.getCapacity() == 4);
+        PageFile file = pool.open("tests/pool.bin", false);
+        for (long i = 0; i < 4; i++){
+            ByteBuffer page = pool.pin(file, i);
+            assert(page.remaining() == 16);
+            assert(page.get(5) == i);
+            pool.unpin(file, i, false);
+        }
+        assert(pool.getMisses() == 4 && pool.getHits() == 0);
+        assert(pool.pin(file, 2).get(0) == 2);
+        pool.unpin(file, 2, false);
+        assert(pool.getHits() == 1);
+        assert(pool.residentPages() == 4);
+
+        //a pinned page stays while others are evicted
+        pool.pin(file, 1);
+        for (long i = 4; i < 10; i++){
+            assert(pool.pin(file, i).get(0) == i);
+            pool.unpin(file, i, false);
+        }
+        assert(pool.getEvictions() == 6);
+        assert(pool.residentPages() == 4);
+        long misses = pool.getMisses();
+        assert(pool.pin(file, 1).get(15) == 1);
+        assert(pool.getMisses() == misses);
+        pool.unpin(file, 1, false);
+        pool.unpin(file, 1, false);
+        assert(!pool.unpin(file, 1, false));
+
+        //past the end of the file reads as 0
+        assert(pool.pin(file, 20).get(0) == 0);
+        pool.unpin(file, 20, false);
+
+        //a run of pages is copied into one buffer
+        ByteBuffer run = pool.read(file, 3, 3);
+        assert(run.remaining() == 48);
+        assert(run.get(0) == 3 && run.get(47) == 5);
+        pool.close(file);
+        assert(pool.residentPages() == 0);
+        new java.io.File("tests/pool.bin").delete();
+    }
+
+    private void testWriteBack(){
+        makeFile("tests/pool.bin", 6);
+        BufferPool pool = new BufferPool(2 * 16, 16);
+        PageFile file = pool.open("tests/pool.bin", true);
+        ByteBuffer page = pool.pin(file, 0);
+        page.put(0, (byte) 42);
+        pool.unpin(file, 0, true);
+        //evicting the dirty page writes it back
+        for (long i = 1; i < 6; i++){
+            pool.pin(file, i);
+            pool.unpin(file, i, false);
+        }
+        assert(pool.getWrites() == 1);
+        assert(pool.pin(file, 0).get(0) == 42);
+        pool.unpin(file, 0, false);
+
+        page = pool.pin(file, 5);
+        page.put(1, (byte) 7);
+        pool.unpin(file, 5, true);
+        assert(pool.flush());
+        assert(pool.getWrites() == 2);
+        pool.close(file);
+
+        BufferPool pool2 = new BufferPool(2 * 16, 16);
+        PageFile file2 = pool2.open("tests/pool.bin", false);
+        assert(pool2.pin(file2, 0).get(0) == 42);
+        pool2.unpin(file2, 0, false);
+        assert(pool2.pin(file2, 5).get(1) == 7);
+        //a page changed in a read-only file is not written
+        pool2.unpin(file2, 5, true);
+        assert(!pool2.flush(file2));
+        pool2.close(file2);
+        new java.io.File("tests/pool.bin").delete();
+    }
+
+    private void testAllPinned(){
+        makeFile("tests/pool.bin", 3);
+        BufferPool pool = new BufferPool(2 * 16, 16);
+        PageFile file = pool.open("tests/pool.bin", false);
+        assert(pool.pin(file, 0) != null);
+        assert(pool.pin(file, 1) != null);
+        assert(pool.pin(file, 2) == null);
+        pool.unpin(file, 0, false);
+        assert(pool.pin(file, 2) != null);
+        assert(pool.getEvictions() == 1);
+        pool.unpin(file, 1, false);
+        pool.unpin(file, 2, false);
+        pool.close(file);
+        assert(pool.open("tests/missing/pool.bin", false) == null);
+        new java.io.File("tests/pool.bin").delete();
+    }
+
+    //readers of the same and of different pages all see the page's bytes
+    private void testConcurrentPins(){
+        makeFile("tests/pool.bin", 64);
+        BufferPool pool = new BufferPool(16 * 16, 16);
+        PageFile file = pool.open("tests/pool.bin", false);
+        Thread[] readers = new Thread[8];
+        boolean[] failed = new boolean[1];
+        for (int r = 0; r < readers.length; r++){
+            int reader = r;
+            readers[r] = new Thread(() -> {
+                for (int i = 0; i < 2000; i++){
+                    long pageNo = (i * (reader + 1)) % 64;
+                    ByteBuffer page = pool.pin(file, pageNo);
+                    if (page == null || page.get(7) != pageNo){
+                        failed[0] = true;
+                    }
+                    if (page != null){
+                        pool.unpin(file, pageNo, false);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        for (Thread reader : readers){
+            try {
+                reader.join();
+            } catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+        }
+        assert(!failed[0]);
+        assert(pool.getHits() + pool.getMisses() == 8 * 2000);
+        assert(pool.residentPages() == 16);
+        pool.close(file);
+        assert(pool.residentPages() == 0);
+        new java.io.File("tests/pool.bin").delete();
+    }
+
+    //misses take a free frame or the clock's without looking through every frame
+    private void testTiming(){
+        int frames = 1 << 16;
+        makeFile("tests/pool.bin", 2 * frames);
+        BufferPool pool = new BufferPool(frames * 16L, 16);
+        PageFile file = pool.open("tests/pool.bin", false);
+        long start = System.nanoTime();
+        for (long i = 0; i < 2 * frames; i++){
+            pool.pin(file, i);
+            pool.unpin(file, i, false);
+        }
+        long evicting = System.nanoTime() - start;
+        assert(pool.getEvictions() == frames);
+        pool.close(file);
+        file = pool.open("tests/pool.bin", false);
+        start = System.nanoTime();
+        for (long i = 0; i < frames; i++){
+            pool.pin(file, i);
+            pool.unpin(file, i, false);
+        }
+        long freed = System.nanoTime() - start;
+        assert(pool.getEvictions() == frames);
+        System.out.println("buffer pool: " + (2 * frames) + " misses with " + frames + " frames in " + evicting / 1000000
+                           + " ms, " + frames + " misses into freed frames in " + freed / 1000000 + " ms");
+        pool.close(file);
+        new java.io.File("tests/pool.bin").delete();
+    }
+
+    private void testPagedTable(){
+        Table t1 = new Table("paged", "s%id", "s%num");
+        for (int i = 0; i < 3000; i++){
+            t1.addRow("s%key" + i, "i%" + i);
+        }
+        t1.addRow("s%big", "i%" + String.join("", Collections.nCopies(3 * TableFile.PAGE_SIZE, "9")));
+        assert(TableFile.write(t1, "tests/paged.tbl"));
+
+        //a pool far smaller than the table
+        BufferPool pool = new BufferPool(4 * TableFile.PAGE_SIZE);
+        Table t2 = TableFile.open("tests/paged.tbl", new ArrayList<String>(), pool);
+        assert(t2.isMapped());
+        assert(t2.rowSize() == 3002);
+        assert(t2.getRow("key2999").getValueAt(1).equals("2999"));
+        assert(t2.getRow("big").getValueAt(1).length() == 3 * TableFile.PAGE_SIZE);
+        assert(t2.getCol("num").size() == 3002);
+        assert(pool.residentPages() <= 4);
+        assert(pool.getEvictions() > 0);
+        //a page read again while it is held is a hit
+        t2.getRow("key2999");
+        long misses = pool.getMisses();
+        t2.getRow("key2998");
+        assert(pool.getMisses() == misses);
+
+        //the first change loads the rows and gives the file back to the pool
+        assert(t2.updateItem("key1", "num", "i%100"));
+        assert(!t2.isMapped());
+        assert(pool.residentPages() == 0);
+        assert(t2.getRow("key2998").getValueAt(1).equals("2998"));
+        new java.io.File("tests/paged.tbl").delete();
+    }
+}
@@ -0,0 +1,426 @@
+/* Loads large files of rows into a table: CSV (with a header line of column names),
+TSV (the same, separated by tabs) and legacy text table files (table name, then typed
+column names, then rows of typed items separated by whitespace). The file is streamed
+in chunks of lines - each chunk is split and type checked on a pool of threads while
+the next is read, and chunks are added to the table in file order, each as one change
+(Table.addRecords) written to the write-ahead log as one frame with one fsync. Only 
+a few chunks are held at a time, so memory used stays the same however large the 
+file is. CSV and TSV values are checked against the table's column types (taken from 
+its rows, or given), and rows that don't fit are left out and counted. The row map 
+is sized once from the length of the first lines and the size of the file, and each 
+distinct foreign key value is looked up in the referenced table only once for the 
+whole file. A CSV value may be quoted ("a, ""b""") but can't span lines. */
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class BulkLoader {
+
+    enum Format { CSV, TSV, LEGACY }
+
+    public static final int CHUNK_LINES = 4096;
+
+    private int threads;
+    private boolean showProgress = false;
+
+    BulkLoader(int threads){
+        this.threads = Math.max(1, threads);
+    }
+
+    //print how loading is going every million rows
+    public void setShowProgress(boolean showProgress){
+        this.showProgress = showProgress;
+    }
+
+    //what a load did
+    static class Result {
+        long added = 0, rejected = 0, millis = 0;
+
+        public long getAdded(){
+            return added;
+        }
+
+        public long getRejected(){
+            return rejected;
+        }
+
+        public long getMillis(){
+            return millis;
+        }
+
+        public long rowsPerSecond(){
+            return added * 1000 / Math.max(1, millis);
+        }
+
+        public String toString(){
+            return added + " rows loaded (" + rejected + " left out) in " + millis + " ms, " + rowsPerSecond() + " rows/sec";
+        }
+    }
+
+    //rows split from a chunk of lines, and how many lines could not be made into rows
+    private static class Chunk {
+        List<Record> rows = new ArrayList<>();
+        int rejected = 0;
+    }
+
+    //load a file into a table, with column types taken from the table's rows
+    public Result load(Table table, String path, Format format){
+        return load(table, path, format, null);
+    }
+
+    //load a file into a table - types (one per column) are used to check CSV and TSV values,
+    //or if null each column's type in the table. Returns null if the file can't be read,
+    //or its columns are not the table's
+    public Result load(Table table, String path, Format format, Type[] types){
+        File file = new File(path);
+        try (BufferedReader in = new BufferedReader(new FileReader(file), 1 << 16)){
+            int colCount = table.getColumnNames().size();
+            List<String> colNames = new ArrayList<>();
+            for (Item item : table.getColumnNames()){
+                colNames.add(item.getValue());
+            }
+            String header;
+            if (format == Format.LEGACY){
+                //table name, then typed column names
+                in.readLine();
+                header = in.readLine();
+            } else {
+                header = in.readLine();
+            }
+            List<String> fileCols = new ArrayList<>();
+            if (header != null){
+                for (String col : split(header, format)){
+                    fileCols.add((format == Format.LEGACY) ? Record.makeNewItem(col).getValue() : col);
+                }
+            }
+            if (!fileCols.equals(colNames)){
+                System.out.println("ERROR: columns in " + path + " are not the columns of " + table.getName());
+                return null;
+            }
+            if (types == null){
+                types = new Type[colCount];
+                for (int i = 0; i < colCount; i++){
+                    types[i] = table.getColType(colNames.get(i));
+                }
+            }
+            return loadRows(table, in, format, types, file.length());
+        } catch (IOException ex){
+            System.out.println("ERROR: could not read " + path);
+            return null;
+        }
+    }
+
+    //add the rows left in a reader to a table (the header has been read)
+    Result loadRows(Table table, BufferedReader in, Format format, Type[] types, long fileBytes) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        Set<String> checked = new HashSet<>();
+        ExecutorService pool = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+        Deque<Future<Chunk>> parsing = new ArrayDeque<>();
+        boolean sized = false;
+        try {
+            List<String> lines;
+            while (!(lines = readChunk(in)).isEmpty()){
+                if (!sized){
+                    table.ensureCapacity(table.rowSize() + estimateRows(lines, fileBytes));
+                    sized = true;
+                }
+                if (pool == null){
+                    add(table, parse(lines, format, types), checked, result, start);
+                    continue;
+                }
+                List<String> chunk = lines;
+                parsing.add(pool.submit(() -> parse(chunk, format, types)));
+                //keep a few chunks ahead of the table, no more
+                if (parsing.size() >= threads * 2){
+                    add(table, parsing.poll().get(), checked, result, start);
+                }
+            }
+            while (!parsing.isEmpty()){
+                add(table, parsing.poll().get(), checked, result, start);
+            }
+        } catch (ExecutionException ex){
+            System.out.println("ERROR: could not load rows into " + table.getName());
+            return null;
+        } catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            if (pool != null){
+                pool.shutdownNow();
+            }
+        }
+        result.millis = (System.nanoTime() - start) / 1000000;
+        return result;
+    }
+
+    private void add(Table table, Chunk chunk, Set<String> checked, Result result, long start){
+        int added = table.addRecords(chunk.rows, checked);
+        long before = result.added;
+        result.added += added;
+        result.rejected += chunk.rejected + chunk.rows.size() - added;
+        if (showProgress && result.added / 1000000 != before / 1000000){
+            result.millis = (System.nanoTime() - start) / 1000000;
+            System.out.println("Loading " + table.getName() + ": " + result);
+        }
+    }
+
+    private static List<String> readChunk(BufferedReader in) throws IOException {
+        List<String> lines = new ArrayList<>(CHUNK_LINES);
+        String line;
+        while (lines.size() < CHUNK_LINES && (line = in.readLine()) != null){
+            if (!line.isEmpty()){
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    //rows in the file, going by the length of its first lines
+    private static int estimateRows(List<String> lines, long fileBytes){
+        long chars = 0;
+        for (String line : lines){
+            chars += line.length() + 1;
+        }
+        long rows = fileBytes * lines.size() / Math.max(1, chars);
+        return (int) Math.min(rows, Integer.MAX_VALUE / 2);
+    }
+
+    //make rows from lines, leaving out lines with the wrong number of values or a value of the wrong type
+    static Chunk parse(List<String> lines, Format format, Type[] types){
+        Chunk chunk = new Chunk();
+        for (String line : lines){
+            List<String> values = split(line, format);
+            if (values == null || values.size() != types.length){
+                chunk.rejected++;
+                continue;
+            }
+            Record row = new Record();
+            boolean valid = true;
+            for (int i = 0; i < types.length && valid; i++){
+                String value = values.get(i);
+                if (format == Format.LEGACY){
+                    row.addItem(Record.makeNewItem(value));
+                } else if (Item.isValid(value, types[i])){
+                    row.addItem(new Item(value, types[i]));
+                } else {
+                    valid = false;
+                }
+            }
+            if (valid){
+                chunk.rows.add(row);
+            } else {
+                chunk.rejected++;
+            }
+        }
+        return chunk;
+    }
+
+    //values in a line, or null if a quoted CSV value is not closed
+    static List<String> split(String line, Format format){
+        List<String> values = new ArrayList<>();
+        if (format == Format.LEGACY){
+            //split on single whitespace characters, as the legacy reader did
+            int from = 0;
+            for (int i = 0; i < line.length(); i++){
+                if (Character.isWhitespace(line.charAt(i))){
+                    values.add(line.substring(from, i));
+                    from = i + 1;
+                }
+            }
+            values.add(line.substring(from));
+            //trailing empty values are dropped, as String.split drops them
+            while (values.size() > 1 && values.get(values.size() - 1).isEmpty()){
+                values.remove(values.size() - 1);
+            }
+            return values;
+        }
+        char separator = (format == Format.TSV) ? '\t' : ',';
+        if (format == Format.TSV || line.indexOf('"') < 0){
+            int from = 0, at;
+            while ((at = line.indexOf(separator, from)) >= 0){
+                values.add(line.substring(from, at));
+                from = at + 1;
+            }
+            values.add(line.substring(from));
+            return values;
+        }
+        //quoted values - a quote inside one is written twice
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++){
+            char c = line.charAt(i);
+            if (quoted){
+                if (c != '"'){
+                    value.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"'){
+                    value.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"'){
+                quoted = true;
+            } else if (c == separator){
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        if (quoted){
+            return null;
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        BulkLoader program = new BulkLoader(1);
+        program.run();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea BulkLoader");
+        test();
+    }
+
+    private void test(){
+        testSplit();
+        testCsv();
+        testTsvAndLegacy();
+        testForeignKeys();
+        testThroughput();
+        System.out.println("BulkLoader: all tests passed");
+    }
+
+    private static void writeFile(String path, Iterable<String> lines){
+        try (PrintWriter out = new PrintWriter(new FileWriter(path))){
+            for (String line : lines){
+                out.println(line);
+            }
+        } catch (IOException ex){
+            throw new Error(ex);
+        }
+    }
+
+    private void testSplit(){
+        assert(split("a,b,,c", Format.CSV).equals(Arrays.asList("a", "b", "", "c")));
+        assert(split("\"a, b\",\"say \"\"hi\"\"\",c", Format.CSV).equals(Arrays.asList("a, b", "say \"hi\"", "c")));
+        assert(split("\"open,b", Format.CSV) == null);
+        assert(split("a\tb, c\t", Format.TSV).equals(Arrays.asList("a", "b, c", "")));
+        assert(split("s%a i%1 ", Format.LEGACY).equals(Arrays.asList("s%a", "i%1")));
+    }
+
+    private void testCsv(){
+        String path = "tests/testBulk.csv";
+        writeFile(path, Arrays.asList("id,crew,active", "a,10,1", "b,-3,0", "", "c,many,1", "d,4", "a,5,1", "\"e,f\",6,1"));
+        Table t1 = new Table("ship", "s%id", "s%crew", "s%active");
+        Result result = new BulkLoader(2).load(t1, path, Format.CSV, new Type[] {Type.STRING, Type.INT, Type.BOOL});
+        //c's crew is not a number, d is short a value, a is already there
+        assert(result.getAdded() == 3);
+        assert(result.getRejected() == 3);
+        assert(t1.getItem("b", "crew").getType() == Type.INT);
+        assert(t1.getItem("b", "crew").getValue().equals("-3"));
+        assert(t1.getItem("e,f", "active").getType() == Type.BOOL);
+        assert(t1.getCol("crew").size() == 4);
+        //types are taken from the rows already in the table
+        writeFile(path, Arrays.asList("id,crew,active", "g,7,1", "h,x,1"));
+        result = new BulkLoader(1).load(t1, path, Format.CSV);
+        assert(result.getAdded() == 1);
+        assert(t1.getItem("g", "crew").getType() == Type.INT);
+        //the header must match the table
+        writeFile(path, Arrays.asList("id,crew", "i,7"));
+        assert(new BulkLoader(1).load(t1, path, Format.CSV) == null);
+        assert(new BulkLoader(1).load(t1, "tests/noSuchFile.csv", Format.CSV) == null);
+        new File(path).delete();
+    }
+
+    private void testTsvAndLegacy(){
+        String path = "tests/testBulk.tsv";
+        writeFile(path, Arrays.asList("id\tname", "r1\tRobbie the robot", "r2\tMarvin"));
+        Table t1 = new Table("robot", "s%id", "s%name");
+        assert(new BulkLoader(1).load(t1, path, Format.TSV).getAdded() == 2);
+        assert(t1.getItem("r1", "name").getValue().equals("Robbie the robot"));
+        new File(path).delete();
+
+        Table t2 = new Table("testTable", "s%col1", "s%col2", "s%col3", "s%col4");
+        Result result = new BulkLoader(2).load(t2, "tests/test.txt", Format.LEGACY);
+        Table read = new ReadWrite().readTable("tests/", "test.txt");
+        assert(result.getAdded() == read.rowSize() - 1);
+        for (String key : read.getPrimaryKeys()){
+            assert(Arrays.equals(t2.getRow(key).getItemStrings(), read.getRow(key).getItemStrings()));
+        }
+    }
+
+    //rows whose foreign key value is not in the referenced table are left out
+    private void testForeignKeys(){
+        Database db = new Database("testBulkLoader");
+        db.addTable("Fleet", "id", "shipType");
+        db.addTable("Captains", "Fleet", "id", "ship", true, "id", "ship");
+        db.addTableRow("Fleet", "s1", "Cargo");
+        db.addTableRow("Fleet", "s2", "Cruiser");
+        List<String> lines = new ArrayList<>(Arrays.asList("id,ship"));
+        for (int i = 0; i < 10000; i++){
+            lines.add("c" + i + "," + ((i % 100 == 0) ? "s9" : "s" + (1 + i % 2)));
+        }
+        String path = "tests/testBulk.csv";
+        writeFile(path, lines);
+        long forces = db.getLog().forces();
+        Result result = db.importFile("Captains", path, Format.CSV);
+        //each chunk is logged as one frame, with one fsync
+        assert(db.getLog().forces() - forces == (10000 + CHUNK_LINES - 1) / CHUNK_LINES);
+        assert(result.getAdded() == 9900);
+        assert(result.getRejected() == 100);
+        assert(db.getTable("Captains").findOrphans().isEmpty());
+        assert(db.importFile("NotATable", path, Format.CSV) == null);
+        //loaded rows are logged like any others
+        db.close();
+        Database reopened = new Database("testBulkLoader");
+        assert(reopened.getTable("Captains").rowSize() == 9901);
+        reopened.deleteDatabase();
+        new File(path).delete();
+    }
+
+    //rows loaded per second with more threads - printed, as it depends on the machine
+    private void testThroughput(){
+        String path = "tests/testBulk.csv";
+        List<String> lines = new ArrayList<>(Arrays.asList("id,n,name,flag"));
+        for (int i = 0; i < 200000; i++){
+            lines.add("k" + i + "," + i + ",name number " + i + "," + (i % 2));
+        }
+        writeFile(path, lines);
+        Type[] types = {Type.STRING, Type.INT, Type.STRING, Type.BOOL};
+        StringBuilder report = new StringBuilder("BulkLoader: rows/sec");
+        for (int threads = 1; threads <= 4; threads *= 2){
+            Table t1 = new Table("bulk", "s%id", "s%n", "s%name", "s%flag");
+            Result result = new BulkLoader(threads).load(t1, path, Format.CSV, types);
+            assert(result.getAdded() == 200000);
+            assert(t1.rowSize() == 200001);
+            report.append(" - " + threads + " threads: " + result.rowsPerSecond());
+        }
+        //the same rows added one at a time
+        Table t2 = new Table("bulk", "s%id", "s%n", "s%name", "s%flag");
+        long start = System.nanoTime();
+        for (int i = 1; i < lines.size(); i++){
+            String[] values = lines.get(i).split(",");
+            t2.addRow("s%" + values[0], "i%" + values[1], "s%" + values[2], "b%" + values[3]);
+        }
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        report.append(" - addRow: " + 200000L * 1000 / millis);
+        System.out.println(report);
+        new File(path).delete();
+    }
+}
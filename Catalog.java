@@ -0,0 +1,531 @@
+/* The system catalog of a database. It maps each table name to its table, each
+(table, column) to the column's metadata - its position, whether it is the primary
+key, whether it is a foreign key and whether it is indexed - and keeps the foreign
+key graph both ways: the foreign key of each table (with what deleting a row it
+refers to does), and the tables whose foreign keys refer to each table. All lookups 
+are hash lookups. Column metadata is rebuilt for a table when the table's schema 
+version shows its columns or indexes have changed. The catalog is saved in the 
+database folder as catalog.bin, with the tables, their columns and the foreign keys, 
+and is written again only when it has changed. A table may be in the catalog without 
+being in memory: its columns come from the catalog file, and it is read (by the 
+database's loader) the first time get() asks for it. Tables that have not been asked 
+for recently can be unloaded again. The catalog may be used by many threads at 
+once. */
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Function;
+
+class Catalog {
+
+    public static final String FILE_NAME = "catalog.bin";
+    public static final int MAGIC = 0x4A434341; //"JCCA"
+    public static final short VERSION = 2;
+
+    static class ColumnInfo {
+        String table;
+        String name;
+        int position;
+        boolean primaryKey;
+        boolean foreignKey;
+        boolean indexed;
+
+        ColumnInfo(String table, String name, int position){
+            this.table = table;
+            this.name = name;
+            this.position = position;
+        }
+    }
+
+    //fkTable.fkCol refers to primaryTable.primaryCol
+    static class ForeignKey {
+        String primaryTable;
+        String primaryCol;
+        String fkTable;
+        String fkCol;
+        ForeignKeyAction onDelete = ForeignKeyAction.RESTRICT;
+
+        ForeignKey(String primaryTable, String primaryCol, String fkTable, String fkCol){
+            this.primaryTable = primaryTable;
+            this.primaryCol = primaryCol;
+            this.fkTable = fkTable;
+            this.fkCol = fkCol;
+        }
+
+        @Override
+        public boolean equals(Object other){
+            if (!(other instanceof ForeignKey)){
+                return false;
+            }
+            ForeignKey fk = (ForeignKey)other;
+            return primaryTable.equals(fk.primaryTable) && primaryCol.equals(fk.primaryCol)
+                && fkTable.equals(fk.fkTable) && fkCol.equals(fk.fkCol);
+        }
+
+        @Override
+        public int hashCode(){
+            return Objects.hash(primaryTable, primaryCol, fkTable, fkCol);
+        }
+    }
+
+    //tables in the order they were added - null for a table that is not in memory
+    private LinkedHashMap<String, Table> tables = new LinkedHashMap<>();
+    //reads a table that is not in memory (set by the database)
+    private Function<String, Table> loader = null;
+    //when each table in memory was last asked for
+    private HashMap<String, Long> lastUsed = new HashMap<>();
+    //table -> column name -> metadata
+    private HashMap<String, LinkedHashMap<String, ColumnInfo>> columns = new HashMap<>();
+    //table schema version the column metadata was built from
+    private HashMap<String, Integer> versions = new HashMap<>();
+    //foreign key of each table that has one
+    private HashMap<String, ForeignKey> foreignKeys = new HashMap<>();
+    //primary table -> tables with foreign keys referring to it
+    private HashMap<String, Set<String>> referencedBy = new HashMap<>();
+    //tables, columns or foreign keys have changed since the catalog was written
+    private boolean changed = false;
+
+    //returns false if there is already a table with this name
+    public synchronized boolean add(Table table){
+        if (tables.containsKey(table.getName())){
+            return false;
+        }
+        tables.put(table.getName(), table);
+        if (table.hasForeignKey()){
+            addForeignKey(new ForeignKey(table.getPrimaryTable(), table.getPrimaryCol(), table.getName(), table.getForeignKeyCol()));
+        }
+        refresh(table);
+        changed = true;
+        return true;
+    }
+
+    //add a table that will be read when it is first asked for, with its columns as saved
+    public synchronized boolean addUnloaded(String tableName, List<String> colNames, Set<String> indexed){
+        if (tables.containsKey(tableName)){
+            return false;
+        }
+        tables.put(tableName, null);
+        LinkedHashMap<String, ColumnInfo> cols = new LinkedHashMap<>();
+        for (int i = 0; i < colNames.size(); i++){
+            ColumnInfo info = new ColumnInfo(tableName, colNames.get(i), i);
+            info.primaryKey = (i == 0);
+            info.indexed = indexed.contains(info.name);
+            cols.put(info.name, info);
+        }
+        columns.put(tableName, cols);
+        markForeignKeyColumn(tableName);
+        return true;
+    }
+
+    synchronized void setLoader(Function<String, Table> loader){
+        this.loader = loader;
+    }
+
+    //put a table read by the loader in place (before it links its foreign keys)
+    synchronized void attach(Table table){
+        tables.put(table.getName(), table);
+        lastUsed.put(table.getName(), System.currentTimeMillis());
+        refresh(table);
+    }
+
+    //drop a table from memory - it is read again when next asked for
+    synchronized void unload(String tableName){
+        if (tables.get(tableName) != null){
+            getColumns(tableName);
+            tables.put(tableName, null);
+            lastUsed.remove(tableName);
+        }
+    }
+
+    //the table if it is in memory, without reading it or counting it as used
+    synchronized Table getLoaded(String tableName){
+        return tables.get(tableName);
+    }
+
+    public synchronized boolean isLoaded(String tableName){
+        return tables.get(tableName) != null;
+    }
+
+    //names of tables in memory that have not been asked for in idleMillis
+    public synchronized List<String> getIdleTables(long idleMillis){
+        long now = System.currentTimeMillis();
+        List<String> idle = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : lastUsed.entrySet()){
+            if (now - entry.getValue() >= idleMillis){
+                idle.add(entry.getKey());
+            }
+        }
+        return idle;
+    }
+
+    //returns the table removed (null if it was not in memory)
+    public synchronized Table remove(String tableName){
+        if (!tables.containsKey(tableName)){
+            return null;
+        }
+        Table table = tables.remove(tableName);
+        lastUsed.remove(tableName);
+        columns.remove(tableName);
+        versions.remove(tableName);
+        ForeignKey fk = foreignKeys.remove(tableName);
+        if (fk != null){
+            Set<String> refs = referencedBy.get(fk.primaryTable);
+            if (refs != null){
+                refs.remove(tableName);
+                if (refs.isEmpty()){
+                    referencedBy.remove(fk.primaryTable);
+                }
+            }
+        }
+        changed = true;
+        return table;
+    }
+
+    //reads the table if it is not in memory yet
+    public synchronized Table get(String tableName){
+        Table table = tables.get(tableName);
+        if (table == null && tables.containsKey(tableName) && loader != null){
+            table = loader.apply(tableName);
+        }
+        if (table != null){
+            lastUsed.put(tableName, System.currentTimeMillis());
+        }
+        return table;
+    }
+
+    public synchronized boolean contains(String tableName){
+        return tables.containsKey(tableName);
+    }
+
+    public synchronized int size(){
+        return tables.size();
+    }
+
+    //tables that are in memory
+    public synchronized List<Table> getTables(){
+        List<Table> loaded = new ArrayList<>();
+        for (Table table : tables.values()){
+            if (table != null){
+                loaded.add(table);
+            }
+        }
+        return loaded;
+    }
+
+    public synchronized List<String> getTableNames(){
+        return new ArrayList<>(tables.keySet());
+    }
+
+    //metadata for a column, or null if there is no such table or column
+    public synchronized ColumnInfo getColumn(String tableName, String colName){
+        Map<String, ColumnInfo> cols = getColumns(tableName);
+        return (cols == null) ? null : cols.get(colName);
+    }
+
+    public synchronized boolean hasColumn(String tableName, String colName){
+        return getColumn(tableName, colName) != null;
+    }
+
+    //metadata for every column of a table in column order, or null if there is no such table
+    public synchronized Map<String, ColumnInfo> getColumns(String tableName){
+        if (!tables.containsKey(tableName)){
+            return null;
+        }
+        Table table = tables.get(tableName);
+        if (table != null && versions.get(tableName) != table.getSchemaVersion()){
+            refresh(table);
+            changed = true;
+        }
+        return Collections.unmodifiableMap(columns.get(tableName));
+    }
+
+    //rebuild a table's column metadata
+    private void refresh(Table table){
+        LinkedHashMap<String, ColumnInfo> cols = new LinkedHashMap<>();
+        List<Item> names = table.getColumnNames();
+        for (int i = 0; i < names.size(); i++){
+            ColumnInfo info = new ColumnInfo(table.getName(), names.get(i).getValue(), i);
+            info.primaryKey = (i == 0);
+            info.foreignKey = table.hasForeignKey() && info.name.equals(table.getForeignKeyCol());
+            info.indexed = table.hasIndex(info.name);
+            cols.put(info.name, info);
+        }
+        columns.put(table.getName(), cols);
+        versions.put(table.getName(), table.getSchemaVersion());
+    }
+
+    public synchronized void addForeignKey(ForeignKey fk){
+        foreignKeys.put(fk.fkTable, fk);
+        referencedBy.computeIfAbsent(fk.primaryTable, k -> new LinkedHashSet<>()).add(fk.fkTable);
+        markForeignKeyColumn(fk.fkTable);
+        changed = true;
+    }
+
+    //tables that are not in memory learn their foreign key column from the foreign key
+    private void markForeignKeyColumn(String tableName){
+        ForeignKey fk = foreignKeys.get(tableName);
+        if (fk != null && tables.containsKey(tableName) && tables.get(tableName) == null){
+            ColumnInfo info = columns.get(tableName).get(fk.fkCol);
+            if (info != null){
+                info.foreignKey = true;
+            }
+        }
+    }
+
+    public synchronized boolean setOnDelete(String fkTable, ForeignKeyAction onDelete){
+        ForeignKey fk = foreignKeys.get(fkTable);
+        if (fk == null){
+            return false;
+        }
+        if (fk.onDelete != onDelete){
+            fk.onDelete = onDelete;
+            changed = true;
+        }
+        return true;
+    }
+
+    //the foreign key of a table, or null
+    public synchronized ForeignKey getForeignKey(String tableName){
+        return foreignKeys.get(tableName);
+    }
+
+    public synchronized List<ForeignKey> getForeignKeys(){
+        return new ArrayList<>(foreignKeys.values());
+    }
+
+    //names of tables with foreign keys referring to a table
+    public synchronized Set<String> getReferencingTables(String tableName){
+        Set<String> refs = referencedBy.get(tableName);
+        return (refs == null) ? Collections.emptySet() : new LinkedHashSet<>(refs);
+    }
+
+    //true if a table or column has been added, removed or changed since the catalog was written
+    public synchronized boolean isChanged(){
+        for (Table table : tables.values()){
+            if (table != null && versions.get(table.getName()) != table.getSchemaVersion()){
+                return true;
+            }
+        }
+        return changed;
+    }
+
+    //the catalog matches the one in the catalog file
+    synchronized void markClean(){
+        changed = false;
+    }
+
+    //tables (with their columns) and foreign keys as last written, read back by read()
+    static class Saved {
+        LinkedHashMap<String, List<String>> tables = new LinkedHashMap<>();
+        //table -> names of its indexed columns
+        HashMap<String, Set<String>> indexed = new HashMap<>();
+        List<ForeignKey> foreignKeys = new ArrayList<>();
+    }
+
+    public synchronized boolean write(String path){
+        File temp = new File(path + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))){
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(tables.size());
+            for (String tableName : tables.keySet()){
+                Map<String, ColumnInfo> cols = getColumns(tableName);
+                out.writeUTF(tableName);
+                out.writeInt(cols.size());
+                for (ColumnInfo info : cols.values()){
+                    out.writeUTF(info.name);
+                    out.writeBoolean(info.indexed);
+                }
+            }
+            out.writeInt(foreignKeys.size());
+            for (ForeignKey fk : foreignKeys.values()){
+                out.writeUTF(fk.primaryTable);
+                out.writeUTF(fk.primaryCol);
+                out.writeUTF(fk.fkTable);
+                out.writeUTF(fk.fkCol);
+                out.writeByte(fk.onDelete.ordinal());
+            }
+        } catch (IOException ex){
+            System.out.println("ERROR: failed to write catalog " + path);
+            temp.delete();
+            return false;
+        }
+        if (!TableFile.replace(temp.toPath(), Paths.get(path))){
+            return false;
+        }
+        changed = false;
+        return true;
+    }
+
+    //returns null if the file is missing or not a catalog
+    public static Saved read(String path){
+        if (!new File(path).exists()){
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))){
+            short version = 0;
+            if (in.readInt() != MAGIC || (version = in.readShort()) < 1 || version > VERSION){
+                System.out.println("ERROR: not a catalog file " + path);
+                return null;
+            }
+            Saved saved = new Saved();
+            int tableCount = in.readInt();
+            for (int i = 0; i < tableCount; i++){
+                String tableName = in.readUTF();
+                int colCount = in.readInt();
+                List<String> cols = new ArrayList<>();
+                Set<String> indexed = new HashSet<>();
+                for (int j = 0; j < colCount; j++){
+                    cols.add(in.readUTF());
+                    if (in.readBoolean()){
+                        indexed.add(cols.get(j));
+                    }
+                }
+                saved.tables.put(tableName, cols);
+                saved.indexed.put(tableName, indexed);
+            }
+            int fkCount = in.readInt();
+            for (int i = 0; i < fkCount; i++){
+                ForeignKey fk = new ForeignKey(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+                //version 1 catalogs have no delete actions
+                if (version >= 2){
+                    fk.onDelete = ForeignKeyAction.values()[in.readByte()];
+                }
+                saved.foreignKeys.add(fk);
+            }
+            return saved;
+        } catch (IOException ex){
+            System.out.println("ERROR: failed to read catalog " + path);
+            return null;
+        }
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        Catalog program = new Catalog();
+        program.run();
+        program.test();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea Catalog");
+    }
+
+    private void test(){
+        testLookups();
+        testSchemaChanges();
+        testWriteRead();
+        testUnloaded();
+        System.out.println("Catalog: all tests passed");
+    }
+
+    private void testLookups(){
+        Catalog catalog = new Catalog();
+        Table robot = new Table("Robot", "s%id", "s%year");
+        Table seller = new Table("Seller", "Robot", "id", "product", true, "s%id", "s%product");
+        //a name that is part of another name is not mistaken for it
+        Table rob = new Table("Rob", "s%x");
+        assert(catalog.add(robot));
+        assert(catalog.add(seller));
+        assert(catalog.add(rob));
+        assert(!catalog.add(new Table("Robot", "s%id")));
+        assert(catalog.size() == 3);
+        assert(catalog.get("Robot") == robot);
+        assert(catalog.get("Robo") == null);
+        assert(catalog.hasColumn("Robot", "year"));
+        assert(!catalog.hasColumn("Rob", "year"));
+        assert(!catalog.hasColumn("Robot", "yea"));
+        assert(catalog.getColumn("Robot", "id").primaryKey);
+        assert(catalog.getColumn("Seller", "product").foreignKey);
+        assert(catalog.getColumn("Seller", "product").position == 1);
+        assert(catalog.getForeignKey("Seller").primaryTable.equals("Robot"));
+        assert(catalog.getForeignKey("Robot") == null);
+        assert(catalog.getReferencingTables("Robot").contains("Seller"));
+        assert(catalog.getTableNames().equals(Arrays.asList("Robot", "Seller", "Rob")));
+
+        assert(catalog.remove("Seller") == seller);
+        assert(catalog.remove("Seller") == null);
+        assert(catalog.getReferencingTables("Robot").isEmpty());
+        assert(catalog.getColumn("Seller", "id") == null);
+    }
+
+    private void testSchemaChanges(){
+        Catalog catalog = new Catalog();
+        Table t = new Table("Crew", "s%id", "s%name");
+        t.addRow("s%1", "s%Buzz");
+        catalog.add(t);
+        catalog.markClean();
+        assert(!catalog.isChanged());
+        t.addCol("rank");
+        assert(catalog.isChanged());
+        assert(catalog.getColumn("Crew", "rank").position == 2);
+        t.createIndex("name");
+        assert(catalog.getColumn("Crew", "name").indexed);
+        t.removeCol("name");
+        assert(catalog.getColumn("Crew", "name") == null);
+        assert(catalog.getColumn("Crew", "rank").position == 1);
+    }
+
+    private void testWriteRead(){
+        Catalog catalog = new Catalog();
+        catalog.add(new Table("Robot", "s%id", "s%year"));
+        catalog.add(new Table("Seller", "Robot", "id", "product", true, "s%id", "s%product"));
+        assert(catalog.setOnDelete("Seller", ForeignKeyAction.CASCADE));
+        assert(!catalog.setOnDelete("Robot", ForeignKeyAction.CASCADE));
+        String path = "tests/" + FILE_NAME;
+        assert(catalog.write(path));
+        assert(!catalog.isChanged());
+        Saved saved = Catalog.read(path);
+        assert(saved.tables.keySet().equals(new HashSet<>(Arrays.asList("Robot", "Seller"))));
+        assert(saved.tables.get("Seller").equals(Arrays.asList("id", "product")));
+        assert(saved.foreignKeys.size() == 1);
+        assert(saved.foreignKeys.get(0).equals(catalog.getForeignKey("Seller")));
+        assert(saved.foreignKeys.get(0).onDelete == ForeignKeyAction.CASCADE);
+        new File(path).delete();
+        assert(Catalog.read(path) == null);
+    }
+
+    private void testUnloaded(){
+        Catalog catalog = new Catalog();
+        Table robot = new Table("Robot", "s%id", "s%year");
+        assert(catalog.addUnloaded("Robot", Arrays.asList("id", "year"), new HashSet<>(Arrays.asList("year"))));
+        assert(catalog.addUnloaded("Seller", Arrays.asList("id", "product"), new HashSet<>()));
+        catalog.addForeignKey(new ForeignKey("Robot", "id", "Seller", "product"));
+        assert(catalog.size() == 2);
+        assert(catalog.contains("Robot"));
+        assert(!catalog.isLoaded("Robot"));
+        assert(catalog.getTables().isEmpty());
+        //columns are known without reading the table
+        assert(catalog.getColumn("Robot", "year").indexed);
+        assert(catalog.getColumn("Seller", "product").foreignKey);
+        //no loader - the table can't be read
+        assert(catalog.get("Robot") == null);
+
+        int[] loads = {0};
+        catalog.setLoader(name -> {
+            loads[0]++;
+            catalog.attach(robot);
+            return robot;
+        });
+        assert(catalog.get("Robot") == robot);
+        assert(catalog.get("Robot") == robot);
+        assert(loads[0] == 1);
+        assert(catalog.isLoaded("Robot"));
+        assert(catalog.getTables().size() == 1);
+        assert(catalog.getIdleTables(0).contains("Robot"));
+        assert(catalog.getIdleTables(60000).isEmpty());
+
+        catalog.unload("Robot");
+        assert(!catalog.isLoaded("Robot"));
+        assert(catalog.hasColumn("Robot", "id"));
+        assert(catalog.get("Robot") == robot);
+        assert(loads[0] == 2);
+
+        assert(catalog.remove("Seller") == null);
+        assert(!catalog.contains("Seller"));
+        assert(catalog.getReferencingTables("Robot").isEmpty());
+    }
+}
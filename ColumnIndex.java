@@ -0,0 +1,284 @@
+/* A secondary index on one column of a table. It keeps a BPlusTree from the 
+column's values to the primary keys of the rows holding them, ordered by the 
+column type (numerically for INT columns), and supports equality and range 
+lookups. The Table keeps its indexes up to date as rows change. An index is saved 
+next to its table file as tableName.colName.idx, together with the number of rows 
+the table had when it was written and a stamp of the table file it was written with 
+(its length and modification time), so it can be checked and reused when the 
+database is opened instead of being rebuilt. Values are written as length-prefixed 
+UTF-8 bytes, so they may be of any length. */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+class ColumnIndex {
+
+    public static final String EXTENSION = ".idx";
+    public static final int MAGIC = 0x4A434458; //"JCDX"
+    public static final short VERSION = 2;
+
+    private String tableName;
+    private String colName;
+    private Type type;
+    private BPlusTree tree;
+    //number of table rows (including column names) when the index was read from file
+    private int rowCount = -1;
+    //stamp of the table file the index read from file was written with
+    private long fileLength = -1, fileModified = -1;
+
+    ColumnIndex(String tableName, String colName, Type type){
+        this.tableName = tableName;
+        this.colName = colName;
+        this.type = type;
+        tree = new BPlusTree(new TypeComparator(type));
+    }
+
+    public String getTableName(){
+        return tableName;
+    }
+
+    public String getColName(){
+        return colName;
+    }
+
+    public Type getType(){
+        return type;
+    }
+
+    public int getRowCount(){
+        return rowCount;
+    }
+
+    //true if the index was read from a file written with the table file at tableFile, as it is now
+    public boolean matchesTableFile(String tableFile){
+        long[] stamp = stamp(tableFile);
+        return stamp != null && stamp[0] == fileLength && stamp[1] == fileModified;
+    }
+
+    //length and modification time of a file, or null if it can't be read
+    private static long[] stamp(String path){
+        try {
+            Path file = Paths.get(path);
+            return new long[] {Files.size(file), Files.getLastModifiedTime(file).to(TimeUnit.NANOSECONDS)};
+        } catch (IOException ex){
+            return null;
+        }
+    }
+
+    public String getFileName(){
+        return tableName + "." + colName + EXTENSION;
+    }
+
+    //number of indexed rows
+    public int size(){
+        return tree.size();
+    }
+
+    public void insert(String value, String primaryKey){
+        tree.insert(value, primaryKey);
+    }
+
+    public boolean remove(String value, String primaryKey){
+        return tree.remove(value, primaryKey);
+    }
+
+    public void clear(){
+        tree.clear();
+    }
+
+    //primary keys of rows where the column equals value
+    public List<String> lookup(String value){
+        return tree.get(value);
+    }
+
+    //primary keys of rows where from <= column <= to, in column order (null for an open end)
+    public List<String> range(String from, String to){
+        return tree.range(from, to);
+    }
+
+    //write every (value, primary key) pair in order, then replace the old file - tableFile 
+    //is the table file the index matches, already written
+    public boolean write(String path, int tableRowCount, String tableFile){
+        long[] stamp = stamp(tableFile);
+        if (stamp == null){
+            stamp = new long[] {-1, -1};
+        }
+        File temp = new File(path + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))){
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeUTF(tableName);
+            out.writeUTF(colName);
+            out.writeUTF(type.name());
+            out.writeInt(tableRowCount);
+            out.writeLong(stamp[0]);
+            out.writeLong(stamp[1]);
+            out.writeInt(tree.size());
+            IOException[] failed = new IOException[1];
+            tree.forEach((value, primaryKeys) -> {
+                for (String primaryKey : primaryKeys){
+                    try {
+                        writeString(out, value);
+                        writeString(out, primaryKey);
+                    } catch (IOException ex){
+                        failed[0] = ex;
+                    }
+                }
+            });
+            if (failed[0] != null){
+                throw failed[0];
+            }
+        } catch (IOException ex){
+            System.out.println("ERROR: failed to write index " + path);
+            temp.delete();
+            return false;
+        }
+        return TableFile.replace(temp.toPath(), Paths.get(path));
+    }
+
+    //returns null if the file is missing or not an index
+    public static ColumnIndex read(String path){
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))){
+            if (in.readInt() != MAGIC || in.readShort() != VERSION){
+                System.out.println("ERROR: not an index file " + path);
+                return null;
+            }
+            String tableName = in.readUTF();
+            String colName = in.readUTF();
+            Type type = Type.valueOf(in.readUTF());
+            ColumnIndex index = new ColumnIndex(tableName, colName, type);
+            index.rowCount = in.readInt();
+            index.fileLength = in.readLong();
+            index.fileModified = in.readLong();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++){
+                String value = readString(in);
+                index.insert(value, readString(in));
+            }
+            return index;
+        } catch (IOException | IllegalArgumentException ex){
+            System.out.println("ERROR: failed to read index " + path);
+            return null;
+        }
+    }
+
+    //length (-1 for null) then UTF-8 bytes
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null){
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0){
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        ColumnIndex program = new ColumnIndex("test", "test", Type.STRING);
+        program.run();
+        program.test();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea ColumnIndex");
+    }
+
+    private void test(){
+        testLookup();
+        testWriteRead();
+        testTableIndex();
+        System.out.println("ColumnIndex: all tests passed");
+    }
+
+    private void testLookup(){
+        ColumnIndex index = new ColumnIndex("Crew", "yearsExperience", Type.INT);
+        index.insert("25", "455");
+        index.insert("1", "001");
+        index.insert("10", "255");
+        index.insert("10", "243");
+
+        assert(index.size() == 4);
+        assert(index.lookup("10").size() == 2);
+        assert(index.range("2", "25").size() == 3);
+        assert(index.range(null, "9").get(0).equals("001"));
+        assert(index.remove("10", "255"));
+        assert(index.lookup("10").size() == 1);
+        assert(index.getFileName().equals("Crew.yearsExperience.idx"));
+    }
+
+    private void testWriteRead(){
+        ColumnIndex index = new ColumnIndex("t1", "col", Type.INT);
+        for (int i = 0; i < 300; i++){
+            index.insert(Integer.toString(i % 50), "pk" + i);
+        }
+        index.insert(null, "nullRow");
+        //longer than writeUTF allows
+        String large = String.join("", Collections.nCopies(70000, "x"));
+        index.insert(large, "largeRow");
+        assert(index.write("tests/t1.col.idx", 303, "tests/test.txt"));
+
+        ColumnIndex read = ColumnIndex.read("tests/t1.col.idx");
+        assert(read.getTableName().equals("t1"));
+        assert(read.getColName().equals("col"));
+        assert(read.getType() == Type.INT);
+        assert(read.getRowCount() == 303);
+        assert(read.size() == 302);
+        assert(read.lookup("7").size() == 6);
+        assert(read.lookup(null).get(0).equals("nullRow"));
+        assert(read.lookup(large).get(0).equals("largeRow"));
+        assert(read.matchesTableFile("tests/test.txt"));
+        assert(read.matchesTableFile("tests/testType.txt") == false);
+        assert(read.matchesTableFile("tests/notAFile") == false);
+        new File("tests/t1.col.idx").delete();
+
+        assert(ColumnIndex.read("tests/test.txt") == null);
+    }
+
+    private void testTableIndex(){
+        Table t1 = new Table("Crew", "s%crew-id", "s%name", "s%years");
+        t1.addRow("s%455", "s%Sally", "i%25");
+        t1.addRow("s%001", "s%Laika", "i%1");
+        assert(t1.createIndex("years"));
+        assert(t1.createIndex("notACol") == false);
+        assert(t1.hasIndex("years"));
+
+        //kept up to date as rows change
+        t1.addRow("s%255", "s%Buzz", "i%10");
+        assert(t1.lookup("years", "10").get(0).equals("255"));
+        assert(t1.lookupRange("years", "2", "30").size() == 2);
+        t1.updateItem("255", "years", "11");
+        assert(t1.lookup("years", "10").isEmpty());
+        assert(t1.lookup("years", "11").get(0).equals("255"));
+        t1.updateRow("001", "001", "Laika", "3");
+        assert(t1.lookup("years", "3").get(0).equals("001"));
+        t1.deleteRow("455");
+        assert(t1.lookup("years", "25").isEmpty());
+        assert(t1.lookupRange("years", null, null).size() == 2);
+
+        //columns without an index are scanned
+        assert(t1.lookup("name", "Buzz").get(0).equals("255"));
+        assert(t1.lookupRange("name", "A", "C").get(0).equals("255"));
+
+        t1.removeCol("years");
+        assert(t1.hasIndex("years") == false);
+        assert(t1.dropIndex("years") == false);
+    }
+}
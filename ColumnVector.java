@@ -0,0 +1,273 @@
+/* A compact, column-oriented copy of a single table column. Values are stored 
+by type: INT columns in a long array, BOOL columns in a bit set, and STRING 
+columns as dictionary codes (each distinct string is stored once). Null cells 
+are tracked in a separate bit set. Item objects are only created when asked 
+for with getItem, so scanning a column does not touch the row structure. 
+ColumnVector depends on the Item and Type classes, and is built by Table. A
+ColumnVector is a read-side view, not a way of storing a table: Table builds a new
+one from its rows each time one is asked for, and the rows stay as Records of Items,
+so it makes repeated scans of a column cheaper but does not make a table smaller in
+memory. Table's own one-off scans read the rows directly, using typeOf to compare
+values as a vector of the column would. */
+import java.util.*;
+
+class ColumnVector {
+
+    private String name;
+    private Type type;
+    private int size = 0;
+    private BitSet nulls = new BitSet();
+    //INT storage
+    private long[] ints;
+    //BOOL storage
+    private BitSet bools;
+    //STRING storage - codes index into the dictionary
+    private int[] codes;
+    private ArrayList<String> dictionary;
+    private HashMap<String, Integer> dictionaryCodes;
+
+    ColumnVector(String name, Type type, int capacity){
+        this.name = name;
+        this.type = type;
+        if (capacity < 1){
+            capacity = 1;
+        }
+        switch(type){
+            case INT: 
+                ints = new long[capacity];
+                break;
+            case BOOL: 
+                bools = new BitSet(capacity);
+                break;
+            default:
+                codes = new int[capacity];
+                dictionary = new ArrayList<String>();
+                dictionaryCodes = new HashMap<String, Integer>();
+                break;
+        }
+    }
+
+    //the type a vector of the items is stored as: the type every value has (STRING if 
+    //they differ, or there are none), with INT values too large for a long kept as strings
+    static Type typeOf(Iterator<Item> items){
+        TypeOf type = new TypeOf();
+        while (items.hasNext()){
+            type.add(items.next());
+        }
+        return type.get();
+    }
+
+    //works out typeOf an Item at a time, for callers going through the Items anyway
+    static class TypeOf {
+        private Type type = null;
+        private boolean mixed = false;
+        private boolean fits = true;
+
+        void add(Item item){
+            if (mixed || item == null || item.getValue() == null){
+                return;
+            }
+            if (type == null){
+                type = item.getType();
+            } else if (type != item.getType()){
+                mixed = true;
+                return;
+            }
+            if (type == Type.INT && fits && !fitsLong(item.getValue())){
+                fits = false;
+            }
+        }
+
+        Type get(){
+            return (type == null || mixed || !fits) ? Type.STRING : type;
+        }
+    }
+
+    //builds a vector from column Items (not including the column name)
+    //the vector takes the type shared by every non-null Item, or STRING if they differ
+    public static ColumnVector fromItems(String name, List<Item> items){
+        Type type = typeOf(items.iterator());
+        ColumnVector vector = new ColumnVector(name, type, items.size());
+        for (Item item : items){
+            vector.add(item == null ? null : item.getValue());
+        }
+        return vector;
+    }
+
+    private static boolean fitsLong(String value){
+        try {
+            Long.parseLong(value);
+            return true;
+        } catch (NumberFormatException ex){
+            return false;
+        }
+    }
+
+    //appends a value, which must already be valid for the vector type
+    public void add(String value){
+        grow();
+        if (value == null){
+            nulls.set(size++);
+            return;
+        }
+        switch(type){
+            case INT: 
+                ints[size] = Long.parseLong(value);
+                break;
+            case BOOL: 
+                bools.set(size, value.equals("1"));
+                break;
+            default:
+                Integer code = dictionaryCodes.get(value);
+                if (code == null){
+                    code = dictionary.size();
+                    dictionary.add(value);
+                    dictionaryCodes.put(value, code);
+                }
+                codes[size] = code;
+                break;
+        }
+        size++;
+    }
+
+    private void grow(){
+        if (type == Type.INT && size == ints.length){
+            ints = Arrays.copyOf(ints, size * 2);
+        } else if (type == Type.STRING && size == codes.length){
+            codes = Arrays.copyOf(codes, size * 2);
+        }
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public Type getType(){
+        return type;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public boolean isNull(int index){
+        return nulls.get(index);
+    }
+
+    public long getLong(int index){
+        return ints[index];
+    }
+
+    public boolean getBool(int index){
+        return bools.get(index);
+    }
+
+    //dictionary code of a STRING value - equal strings share a code
+    public int getCode(int index){
+        return codes[index];
+    }
+
+    public int dictionarySize(){
+        if (dictionary == null){
+            return 0;
+        }
+        return dictionary.size();
+    }
+
+    public String getValue(int index){
+        if (index < 0 || index >= size || nulls.get(index)){
+            return null;
+        }
+        switch(type){
+            case INT: 
+                return Long.toString(ints[index]);
+            case BOOL: 
+                return bools.get(index) ? "1" : "0";
+            default:
+                return dictionary.get(codes[index]);
+        }
+    }
+
+    //materialise a single cell as an Item, only when it is needed
+    public Item getItem(int index){
+        if (index < 0 || index >= size){
+            return null;
+        }
+        return new Item(getValue(index), type);
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        ColumnVector program = new ColumnVector("test", Type.STRING, 1);
+        program.run();
+        program.test();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea ColumnVector");
+    }
+
+    private void test(){
+        testInt();
+        testBool();
+        testString();
+        testMixedTypes();
+        System.out.println("ColumnVector: all tests passed");
+    }
+
+    private void testInt(){
+        List<Item> items = new ArrayList<>();
+        items.add(new Item("12", Type.INT));
+        items.add(new Item("-512", Type.INT));
+        items.add(new Item(null));
+        ColumnVector v = ColumnVector.fromItems("num", items);
+
+        assert(v.getType() == Type.INT);
+        assert(v.size() == 3);
+        assert(v.getLong(0) == 12);
+        assert(v.getLong(1) == -512);
+        assert(v.isNull(2));
+        assert(v.getValue(2) == null);
+        assert(v.getItem(1).getValue().equals("-512"));
+        assert(v.getItem(1).getType() == Type.INT);
+    }
+
+    private void testBool(){
+        ColumnVector v = new ColumnVector("bool", Type.BOOL, 1);
+        v.add("1");
+        v.add("0");
+        v.add("1");
+
+        assert(v.size() == 3);
+        assert(v.getBool(0));
+        assert(v.getBool(1) == false);
+        assert(v.getValue(2).equals("1"));
+    }
+
+    private void testString(){
+        ColumnVector v = new ColumnVector("str", Type.STRING, 2);
+        v.add("Pilot");
+        v.add("Engineer");
+        v.add("Pilot");
+
+        //repeated strings are only stored once
+        assert(v.size() == 3);
+        assert(v.dictionarySize() == 2);
+        assert(v.getCode(0) == v.getCode(2));
+        assert(v.getValue(1).equals("Engineer"));
+        assert(v.getValue(3) == null);
+    }
+
+    private void testMixedTypes(){
+        List<Item> items = new ArrayList<>();
+        items.add(new Item("12", Type.INT));
+        items.add(new Item("words", Type.STRING));
+        ColumnVector v = ColumnVector.fromItems("mixed", items);
+
+        assert(v.getType() == Type.STRING);
+        assert(v.getValue(0).equals("12"));
+    }
+}
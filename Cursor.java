@@ -0,0 +1,317 @@
+/* A place in a run of rows (or of column values) that is read forward, one at a time
+(next) or a batch at a time (fetch), without the whole run being put in a list first.
+Tables open cursors over their rows in table order (Table.cursor), over a range of
+primary keys in or against key order (Table.rangeCursor) and over a column's Items
+(Table.columnCursor). A filter leaves out what it does not keep, and map makes a
+cursor over something taken from each row. A cursor holds no lock between reads, so
+it may be left open while the table changes, but should be closed once it is no
+longer needed: close lets go of what it is reading from, and a closed cursor has
+nothing more to read. */
+import java.io.File;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+class Cursor<T> implements Iterator<T>, AutoCloseable {
+
+    private Iterator<T> rows;
+    private Predicate<? super T> filter = null;
+    //read ahead by hasNext, and not yet returned
+    private T ahead = null;
+    private boolean closed = false;
+    //closes what a mapped cursor reads from
+    private Runnable onClose = null;
+
+    Cursor(Iterator<T> rows){
+        this.rows = rows;
+    }
+
+    private Cursor(Iterator<T> rows, Runnable onClose){
+        this.rows = rows;
+        this.onClose = onClose;
+    }
+
+    //leave out what keep does not keep (as well as anything left out already)
+    public Cursor<T> filter(Predicate<? super T> keep){
+        Predicate<? super T> before = filter;
+        if (before == null){
+            filter = keep;
+        } else {
+            filter = value -> before.test(value) && keep.test(value);
+        }
+        return this;
+    }
+
+    //a cursor over what f makes from each value of this one - closing it closes this one
+    public <R> Cursor<R> map(Function<? super T, ? extends R> f){
+        Cursor<T> from = this;
+        return new Cursor<R>(new Iterator<R>(){
+            public boolean hasNext(){
+                return from.hasNext();
+            }
+            public R next(){
+                return f.apply(from.next());
+            }
+        }, from::close);
+    }
+
+    public boolean hasNext(){
+        while (ahead == null && !closed && rows.hasNext()){
+            T value = rows.next();
+            if (filter == null || filter.test(value)){
+                ahead = value;
+            }
+        }
+        return ahead != null;
+    }
+
+    public T next(){
+        if (!hasNext()){
+            throw new NoSuchElementException();
+        }
+        T value = ahead;
+        ahead = null;
+        return value;
+    }
+
+    //up to n more values - fewer only when there are no more
+    public List<T> fetch(int n){
+        List<T> batch = new ArrayList<>(Math.min(n, 1024));
+        while (batch.size() < n && hasNext()){
+            batch.add(next());
+        }
+        return batch;
+    }
+
+    public boolean isClosed(){
+        return closed;
+    }
+
+    public void close(){
+        if (closed){
+            return;
+        }
+        closed = true;
+        ahead = null;
+        rows = Collections.emptyIterator();
+        if (onClose != null){
+            onClose.run();
+        }
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        Cursor<Record> program = new Cursor<>(Collections.emptyIterator());
+        program.run();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea Cursor");
+        test();
+    }
+
+    private void test(){
+        testForward();
+        testFilterAndMap();
+        testRange();
+        testClose();
+        testChangesDuringScan();
+        testChangesDuringScanTiming();
+        testMappedTable();
+        testOffHeap();
+        testDatabase();
+        System.out.println("Cursor: all tests passed");
+    }
+
+    private static Table numbers(int count){
+        Table t1 = new Table("numbers", "s%id", "s%n");
+        for (int i = 0; i < count; i++){
+            t1.addRow("s%k" + i, "i%" + i);
+        }
+        return t1;
+    }
+
+    private static List<String> keys(Cursor<Record> cursor){
+        List<String> keys = new ArrayList<>();
+        while (cursor.hasNext()){
+            keys.add(cursor.next().getPrimaryKey());
+        }
+        return keys;
+    }
+
+    private void testForward(){
+        Table t1 = numbers(1000);
+        try (Cursor<Record> cursor = t1.cursor()){
+            List<Record> first = cursor.fetch(300);
+            assert(first.size() == 300);
+            assert(first.get(0).getPrimaryKey().equals("k0"));
+            assert(first.get(299).getPrimaryKey().equals("k299"));
+            assert(cursor.next().getPrimaryKey().equals("k300"));
+            assert(cursor.fetch(1000).size() == 699);
+            assert(cursor.fetch(10).isEmpty());
+            assert(!cursor.hasNext());
+        }
+        //the column names are not a row, and an empty table has none
+        try (Cursor<Record> cursor = new Table("empty", "s%id").cursor()){
+            assert(!cursor.hasNext());
+        }
+    }
+
+    private void testFilterAndMap(){
+        Table t1 = numbers(100);
+        try (Cursor<Record> cursor = t1.cursor().filter(row -> row.getValueAt(1).endsWith("7"))){
+            assert(keys(cursor).size() == 10);
+        }
+        try (Cursor<Item> column = t1.columnCursor("n")){
+            List<Item> items = column.fetch(3);
+            assert(items.get(2).getValue().equals("2"));
+            assert(items.get(2).getType() == Type.INT);
+        }
+        assert(t1.columnCursor("noSuchColumn") == null);
+        //map and filter together
+        Cursor<String> values = t1.cursor().map(row -> row.getValueAt(1)).filter(n -> n.length() == 1);
+        assert(values.fetch(100).size() == 10);
+        values.close();
+    }
+
+    private void testRange(){
+        Table t1 = numbers(100);
+        t1.orderKeys(Type.STRING);
+        try (Cursor<Record> cursor = t1.rangeCursor("k10", "k19", false)){
+            List<String> found = keys(cursor);
+            assert(found.size() == 10);
+            assert(found.get(0).equals("k10"));
+            assert(found.get(1).equals("k11"));
+        }
+        try (Cursor<Record> cursor = t1.rangeCursor(null, null, true)){
+            assert(cursor.next().getPrimaryKey().equals("k99"));
+        }
+        //reverse key order, for a table that doesn't order its keys
+        Table t2 = numbers(5);
+        try (Cursor<Record> cursor = t2.rangeCursor(null, "k3", true)){
+            assert(keys(cursor).equals(Arrays.asList("k3", "k2", "k1", "k0")));
+        }
+    }
+
+    private void testClose(){
+        Table t1 = numbers(10);
+        Cursor<Record> cursor = t1.cursor();
+        assert(cursor.hasNext());
+        cursor.close();
+        assert(cursor.isClosed());
+        assert(!cursor.hasNext());
+        assert(cursor.fetch(5).isEmpty());
+        try {
+            cursor.next();
+            assert(false);
+        } catch (NoSuchElementException ex){
+        }
+        cursor.close();
+        //closing a mapped cursor closes the one it reads from
+        Cursor<Record> rows = t1.cursor();
+        Cursor<Item> column = rows.map(row -> row.getItemAt(0));
+        column.close();
+        assert(rows.isClosed());
+    }
+
+    //every row there all along is returned once, while rows are deleted and added between batches
+    private void testChangesDuringScan(){
+        Table t1 = numbers(1000);
+        List<String> seen = new ArrayList<>();
+        try (Cursor<Record> cursor = t1.cursor()){
+            int round = 0;
+            while (cursor.hasNext()){
+                for (Record row : cursor.fetch(100)){
+                    seen.add(row.getPrimaryKey());
+                }
+                //delete rows behind and ahead, and add some
+                t1.deleteRow("k" + (round * 100));
+                t1.deleteRow("k" + (round * 100 + 150));
+                t1.deleteRow("k" + (999 - round));
+                t1.addRow("s%new" + round, "i%0");
+                round++;
+            }
+        }
+        for (int i = 0; i < 990; i++){
+            if (i % 100 != 0 && i % 100 != 50){
+                assert(seen.contains("k" + i));
+            }
+        }
+        assert(new HashSet<>(seen).size() == seen.size());
+        //a row deleted long before it was reached was not returned, and rows added at the end were
+        assert(!seen.contains("k999"));
+        assert(seen.contains("new0"));
+    }
+
+    //a cursor changed under every batch carries on from its place, rather than going 
+    //through the rows before it again
+    private void testChangesDuringScanTiming(){
+        int count = 200000;
+        Table t1 = numbers(count);
+        int seen = 0;
+        long start = System.nanoTime();
+        try (Cursor<Record> cursor = t1.cursor()){
+            int round = 0;
+            while (cursor.hasNext()){
+                seen += cursor.fetch(256).size();
+                t1.addRow("s%new" + round, "i%0");
+                t1.deleteRow("k" + (count - 1 - round));
+                round++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        assert(seen >= count / 2);
+        System.out.println("Cursor: " + seen + " rows read with a change after every batch in " + elapsed / 1000000 + " ms");
+    }
+
+    //a table read from its file is scanned a page at a time, and may be loaded part way through
+    private void testMappedTable(){
+        Table t1 = numbers(2000);
+        assert(TableFile.write(t1, "tests/cursor.tbl"));
+        Table t2 = TableFile.open("tests/cursor.tbl", new ArrayList<String>(), null);
+        assert(t2.isMapped());
+        try (Cursor<Record> cursor = t2.cursor()){
+            List<Record> first = cursor.fetch(500);
+            assert(first.get(499).getPrimaryKey().equals("k499"));
+            //the table is loaded into memory by a change
+            assert(t2.deleteRow("k1999"));
+            assert(!t2.isMapped());
+            List<String> rest = keys(cursor);
+            assert(rest.size() == 1499);
+            assert(rest.get(0).equals("k500"));
+        }
+        new File("tests/cursor.tbl").delete();
+    }
+
+    private void testOffHeap(){
+        Table t1 = numbers(1000);
+        RowStore store = new RowStore(1 << 20);
+        try (Cursor<Record> cursor = t1.cursor()){
+            assert(cursor.fetch(300).size() == 300);
+            t1.moveOffHeap(store);
+            assert(t1.isOffHeap());
+            List<String> rest = keys(cursor);
+            assert(rest.size() == 700);
+            assert(rest.get(0).equals("k300"));
+        }
+        store.clear();
+    }
+
+    private void testDatabase(){
+        Database db = new Database("testCursor");
+        db.addTable("Fleet", "id", "shipType");
+        db.addTableRow("Fleet", "s1", "Cargo");
+        db.addTableRow("Fleet", "s2", "Cruiser");
+        try (Cursor<Record> cursor = db.cursor("Fleet")){
+            assert(keys(cursor).equals(Arrays.asList("s1", "s2")));
+        }
+        try (Cursor<Record> cursor = db.rangeCursor("Fleet", "s2", null, false)){
+            assert(keys(cursor).equals(Arrays.asList("s2")));
+        }
+        assert(db.cursor("NotATable") == null);
+        db.deleteDatabase();
+    }
+}
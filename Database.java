@@ -1,96 +1,498 @@
 /* A class to wrap up the other classes into a working database The database 
-class has an Array List of all of its tables. These tables have all the 
-functionality of the tables. Added to this, the database performs foreign 
-key constraint checking, and assures all tables added with foreign keys are 
-legal (the other tables, values and columns exist). The database pulls in 
-several other classes and uses them as components. Thus is has a display object
-to show its tables, a Read Write object to access tables stored as files and 
-to write out its tables and store the data (as well as type and foreign key 
-information) between sessions. */
+keeps its tables in a Catalog, which finds tables and columns by name and keeps 
+the foreign key graph. These tables have all the functionality of the tables. 
+Added to this, the database performs foreign key constraint checking, and assures 
+all tables added with foreign keys are legal (the other tables, values and columns 
+exist). The database pulls in several other classes and uses them as components. 
+Thus is has a display object to show its tables, a Read Write object to access 
+tables stored as files and to write out its tables and store the data (as well as 
+type and foreign key information) between sessions. Changes made between writes are 
+recorded in a write-ahead log in the database folder, which is replayed when the 
+database is opened, and emptied each time the database is written. Only tables that 
+have changed since they were last written are written again, and a background 
+checkpointer can be started to write the database when the log grows too large 
+or too much time has passed. When a database is opened its table files are read 
+in parallel, on a pool of threads, and foreign keys are linked once every table 
+has been read. The catalog is saved as catalog.bin in the database 
+folder whenever tables, columns or foreign keys change. Once a database has a 
+catalog, opening it reads only the catalog: each table is read the first time 
+it is asked for, together with the tables its foreign keys connect it to, and 
+tables that have not been used for a while can be unloaded again. A database may 
+be given a buffer pool (which several databases can share), in which case table 
+files are read a page at a time through the pool instead of being mapped. Idle 
+tables that cannot be unloaded yet may have their rows moved off the heap into a 
+RowStore. A snapshot of the database sees every table as it was when the snapshot 
+was opened (see Snapshot), however the tables change after that. The database is 
+written from a snapshot, so tables may go on changing while it is written: the log 
+keeps the changes made after the snapshot was opened, and a table changed since 
+then stays dirty. Several changes can be made together in a Transaction, begun 
+with begin(): they are all made, or none are, when it is committed. A table may be 
+split on its primary key into partitions (see PartitionedTable), each a table of 
+the database with its own file, lock and indexes; the partitioned tables are listed 
+in partitions.txt, and rows and queries given their name go to their partitions. */
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class Database {
 
     private Display display = new Display(20);
     private ReadWrite rw = new ReadWrite();
-    private ArrayList<Table> tables = new ArrayList<Table>();
+    private Catalog catalog = new Catalog();
     //adds outer database folder to store all databases
     private String filePath = "databases/";
     private String name; 
-    //foreign key fields
-    private ArrayList<String> foreignKeyIndex; 
-    //for help with checking foreign key constraints
-    private ArrayList<String> tableInfo = new ArrayList<>(); 
+    //changes made since the tables were last written
+    private WriteAheadLog log = null;
+    //tables with foreign keys have been added or removed since FKIndex was written
+    private boolean foreignKeysChanged = false;
+    //writes the database in the background
+    private ScheduledExecutorService checkpointer = null;
+    private long lastWrite = System.currentTimeMillis();
+    //time taken to read the tables when the database was opened
+    private long loadMillis = 0;
+    //pages of table files are read through this, if it is set
+    private BufferPool pool = null;
+    //idle tables keep their rows here, if it is set
+    private RowStore rowStore = null;
+    //tables split into partitions, by name
+    private Map<String, PartitionedTable> partitioned = new ConcurrentHashMap<>();
 
-    //the name of the database is used as the name of the folder containing all table txt files
+    //the name of the database is used as the name of the folder containing all table files
     Database(String databaseName){
+        this(databaseName, SyncPolicy.PER_COMMIT);
+    }
+
+    Database(String databaseName, SyncPolicy syncPolicy){
+        this(databaseName, syncPolicy, Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    //loadThreads tables are read at once, and showProgress prints how loading is going
+    Database(String databaseName, SyncPolicy syncPolicy, int loadThreads, boolean showProgress){
+        this(databaseName, syncPolicy, loadThreads, showProgress, null);
+    }
+
+    //table files are read through pool (mapped if it is null)
+    Database(String databaseName, SyncPolicy syncPolicy, int loadThreads, boolean showProgress, BufferPool pool){
         this.name = databaseName;
-        String[] line; 
+        this.pool = pool;
+        rw.setBufferPool(pool);
 
         //add database name to index of db
         if (!rw.setIndex(name)){
             display.phrase("Db is not in index but did not write to index");
         }
 
+        catalog.setLoader(this::loadTable);
+
         //access folder - if folder doesn't exist already, create it
         if (!rw.mkdirs(filePath + databaseName)){
-            //if dir already exists, load all tables from files inside folder
+            long start = System.nanoTime();
             ArrayList<String> files = rw.getDirFiles(filePath + databaseName);
+            Catalog.Saved saved = Catalog.read(filePath + databaseName + "/" + Catalog.FILE_NAME);
 
-            //make new table for each table file in directory
-            //ReadWrite checks FKIndex file, and automatically adds foreign key data to table Items
-            for (String file : files){
-                Table t = rw.readTable(filePath + databaseName + "/", file);
-                if (t != null){
-                    tables.add(t);
+            //with a catalog to describe them, tables are read when they are first used
+            if (saved != null && matchesTableFiles(saved, files)){
+                openLazily(saved);
+                loadMillis = (System.nanoTime() - start) / 1000000;
+                if (showProgress){
+                    display.phrase("Opened " + name + " (" + catalog.size() + " tables) in " + loadMillis + " ms");
                 }
+                openLog(syncPolicy);
+                openPartitioned();
+                return;
             }
 
-            //build list of table names and columns names as an array
-            //to be used later to to check foreign key constraints
-            buildTableInfo();
-
-            //access foreignKeyIndex.txt file, and compile list of tables that contain foreign keys
-            foreignKeyIndex = rw.getForeignKeyIndex(filePath + databaseName);
-            //check all tables/columns in foreing key index exist, otherwise throw an error 
-            if (foreignKeyIndex.size()!=0){
-                for(int i = 0; i < foreignKeyIndex.size(); i++){
-                    line = foreignKeyIndex.get(i).split("\\s");
-                    
-                    //check against each table - so every table name and column name must exist
-                    Integer primaryTableCount = 0;
-                    for(int j = 0; j < tableInfo.size(); j++){
-                        if (tableInfo.get(j).contains(line[i])){
-                            primaryTableCount++;
-                        }
-                    }
+            //otherwise load all tables from files inside folder
 
-                    if (primaryTableCount != foreignKeyIndex.size()){
-                        display.phrase("ERROR: table must exist to link to a foreign key");
-                    }
+            //make new table for each table file in directory
+            //ReadWrite uses the FKIndex file (read once here) to add foreign key data to tables
+            for (Table t : loadTables(files, loadThreads, showProgress)){
+                catalog.add(t);
+            }
 
-                    //point each foreign key to the correct row
-                    if (!linkForeignKeys(line[0], line[1], line[2], line[3])){
-                        display.phrase("ERROR: foreign keys failed to link");
+            //foreign keys are read from the catalog, or from FKIndex.txt for databases saved without one
+            List<Catalog.ForeignKey> foreignKeys = new ArrayList<>();
+            if (saved != null){
+                foreignKeys = saved.foreignKeys;
+                for (String tableName : saved.tables.keySet()){
+                    if (!catalog.contains(tableName)){
+                        display.phrase("ERROR: table " + tableName + " is in the catalog but has no table file");
+                    }
+                }
+            } else {
+                for (String entry : rw.getForeignKeyIndex(filePath + databaseName)){
+                    String[] line = entry.split("\\s");
+                    if (line.length == 4){
+                        foreignKeys.add(new Catalog.ForeignKey(line[0], line[1], line[2], line[3]));
                     }
                 }
             }
+            for (Catalog.ForeignKey fk : foreignKeys){
+                //every table and column in the foreign key must exist
+                if (!catalog.hasColumn(fk.primaryTable, fk.primaryCol) || !catalog.hasColumn(fk.fkTable, fk.fkCol)){
+                    display.phrase("ERROR: table must exist to link to a foreign key");
+                    continue;
+                }
+                catalog.addForeignKey(fk);
+                //point each foreign key to the correct row
+                if (!linkForeignKeys(fk.primaryTable, fk.primaryCol, fk.fkTable, fk.fkCol)){
+                    display.phrase("ERROR: foreign keys failed to link");
+                }
+            }
+            if (saved != null && saved.tables.keySet().equals(new HashSet<>(catalog.getTableNames()))){
+                catalog.markClean();
+            }
+            loadMillis = (System.nanoTime() - start) / 1000000;
+            if (showProgress){
+                display.phrase("Loaded " + catalog.size() + " tables of " + name + " in " + loadMillis + " ms");
+            }
           
         } else {
             display.newDbCreated(name);
         }
+
+        openLog(syncPolicy);
+        openPartitioned();
+    }
+
+    //true if every table in the catalog has a table file, and every table file is in the catalog
+    private boolean matchesTableFiles(Catalog.Saved saved, List<String> files){
+        Set<String> fileTables = new HashSet<>();
+        for (String file : files){
+            if (isTableFileName(file)){
+                fileTables.add(file.substring(0, file.lastIndexOf('.')));
+            }
+        }
+        return fileTables.equals(saved.tables.keySet());
+    }
+
+    //register the saved tables without reading them
+    private void openLazily(Catalog.Saved saved){
+        for (Map.Entry<String, List<String>> entry : saved.tables.entrySet()){
+            Set<String> indexed = saved.indexed.getOrDefault(entry.getKey(), Collections.emptySet());
+            catalog.addUnloaded(entry.getKey(), entry.getValue(), indexed);
+        }
+        for (Catalog.ForeignKey fk : saved.foreignKeys){
+            if (!catalog.hasColumn(fk.primaryTable, fk.primaryCol) || !catalog.hasColumn(fk.fkTable, fk.fkCol)){
+                display.phrase("ERROR: table must exist to link to a foreign key");
+                continue;
+            }
+            catalog.addForeignKey(fk);
+        }
+        catalog.markClean();
+    }
+
+    //read a table the catalog knows of but has not loaded, and link it to the tables 
+    //its foreign keys connect it to (reading those too, so the keys can be enforced)
+    private Table loadTable(String tableName){
+        String path = filePath + name + "/";
+        ArrayList<String> files = rw.getDirFiles(filePath + name);
+        String file = tableName + TableFile.EXTENSION;
+        if (!files.contains(file)){
+            file = tableName + ".txt";
+        }
+        if (!files.contains(file)){
+            display.phrase("ERROR: table " + tableName + " is in the catalog but has no table file");
+            return null;
+        }
+        ArrayList<String> foreignKeyIndex = new ArrayList<>();
+        for (Catalog.ForeignKey fk : catalog.getForeignKeys()){
+            foreignKeyIndex.add(fk.primaryTable + " " + fk.primaryCol + " " + fk.fkTable + " " + fk.fkCol);
+        }
+        Table table = rw.readTable(path, file, foreignKeyIndex);
+        if (table == null){
+            display.phrase("ERROR: could not load table file " + file);
+            return null;
+        }
+        for (String colName : rw.readIndexes(path, table, files)){
+            table.createIndex(colName);
+        }
+        table.setLog(log);
+        //(loaded holding the catalog) an open snapshot may read the table later, as it is now
+        if (Snapshot.anyOpen()){
+            table.startVersioning();
+        }
+        //in the catalog before linking, so the tables it links to find it loaded
+        catalog.attach(table);
+
+        Catalog.ForeignKey fk = catalog.getForeignKey(tableName);
+        if (fk != null && table.getReferencedTable() == null && catalog.get(fk.primaryTable) != null){
+            if (!linkForeignKeys(fk.primaryTable, fk.primaryCol, fk.fkTable, fk.fkCol)){
+                display.phrase("ERROR: foreign keys failed to link");
+            }
+        }
+        for (String child : catalog.getReferencingTables(tableName)){
+            Table childTable = catalog.get(child);
+            if (childTable != null && childTable.getReferencedTable() != table){
+                Catalog.ForeignKey childFk = catalog.getForeignKey(child);
+                if (!linkForeignKeys(childFk.primaryTable, childFk.primaryCol, childFk.fkTable, childFk.fkCol)){
+                    display.phrase("ERROR: foreign keys failed to link");
+                }
+            }
+        }
+        return table;
+    }
+
+    //drop tables that have not been used in idleMillis from memory, returning how many were dropped.
+    //tables linked by foreign keys are dropped together, and only once all of them are idle 
+    //and have been written
+    public synchronized int unloadIdleTables(long idleMillis){
+        //a table read again from its file may have changed since an open snapshot was opened
+        if (Snapshot.anyOpen()){
+            return 0;
+        }
+        Set<String> idle = new HashSet<>(catalog.getIdleTables(idleMillis));
+        int unloaded = 0;
+        for (String tableName : idle){
+            if (catalog.getLoaded(tableName) == null){
+                continue;
+            }
+            List<Table> group = new ArrayList<>();
+            boolean canUnload = true;
+            for (String member : connectedTables(tableName)){
+                Table table = catalog.getLoaded(member);
+                if (table == null){
+                    continue;
+                }
+                if (!idle.contains(member) || table.isDirty()){
+                    canUnload = false;
+                    break;
+                }
+                group.add(table);
+            }
+            if (!canUnload){
+                continue;
+            }
+            for (Table table : group){
+                table.unlink();
+                table.setLog(null);
+                table.release();
+                catalog.unload(table.getName());
+                unloaded++;
+            }
+        }
+        return unloaded;
     }
 
-    //to make all table and column names easily checked for foreign key constraint
-    private void buildTableInfo(){
-        String tableString; 
-        for (int i = 0; i < tables.size(); i++){
-            //add name
-            tableString = tables.get(i).getName();
-            //add column names
-            tableString = tableString + " " + tables.get(i).getColNamesString();
-            //add to tableInfo array
-            tableInfo.add(tableString);
+    //move the rows of tables in memory that have not been used in idleMillis off the heap, 
+    //returning how many were moved (none if there is no row store)
+    public synchronized int moveIdleTablesOffHeap(long idleMillis){
+        if (rowStore == null){
+            return 0;
+        }
+        int moved = 0;
+        for (String tableName : catalog.getIdleTables(idleMillis)){
+            Table table = catalog.getLoaded(tableName);
+            if (table != null && !table.isMapped()){
+                table.moveOffHeap(rowStore);
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    //a table and every table connected to it through foreign keys
+    private Set<String> connectedTables(String tableName){
+        Set<String> found = new LinkedHashSet<>();
+        Deque<String> todo = new ArrayDeque<>();
+        todo.add(tableName);
+        while (!todo.isEmpty()){
+            String next = todo.poll();
+            if (!found.add(next)){
+                continue;
+            }
+            Catalog.ForeignKey fk = catalog.getForeignKey(next);
+            if (fk != null){
+                todo.add(fk.primaryTable);
+            }
+            todo.addAll(catalog.getReferencingTables(next));
+        }
+        return found;
+    }
+
+    //read every table file in the folder, with its saved indexes, loadThreads files at a time
+    //tables are returned in the order of their files
+    private List<Table> loadTables(List<String> files, int loadThreads, boolean showProgress){
+        String path = filePath + name + "/";
+        List<String> tableFiles = new ArrayList<>();
+        for (String file : files){
+            if (isTableFileName(file)){
+                tableFiles.add(file);
+            }
+        }
+        List<Table> loaded = new ArrayList<>();
+        if (tableFiles.isEmpty()){
+            return loaded;
+        }
+        ArrayList<String> foreignKeyIndex = rw.getForeignKeyIndex(filePath + name);
+        int total = tableFiles.size();
+        AtomicInteger done = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(loadThreads, total)), r -> {
+            Thread t = new Thread(r, "load-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+        List<Future<Table>> futures = new ArrayList<>();
+        for (String file : tableFiles){
+            futures.add(pool.submit(() -> {
+                Table t = rw.readTable(path, file, foreignKeyIndex);
+                if (t != null){
+                    //saved indexes are reused, out of date ones are rebuilt
+                    for (String colName : rw.readIndexes(path, t, files)){
+                        t.createIndex(colName);
+                    }
+                }
+                int count = done.incrementAndGet();
+                //report every tenth of the way for larger databases
+                if (showProgress && total >= 10 && count * 10 / total != (count - 1) * 10 / total){
+                    display.phrase("Loading " + name + ": " + count + "/" + total + " tables");
+                }
+                return t;
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++){
+            try {
+                Table t = futures.get(i).get();
+                if (t != null){
+                    loaded.add(t);
+                }
+            } catch (ExecutionException ex){
+                display.phrase("ERROR: could not load table file " + tableFiles.get(i));
+            } catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        pool.shutdownNow();
+        return loaded;
+    }
+
+    public BufferPool getBufferPool(){
+        return pool;
+    }
+
+    void setRowStore(RowStore rowStore){
+        this.rowStore = rowStore;
+    }
+
+    //milliseconds taken to read the tables when the database was opened
+    public long getLoadMillis(){
+        return loadMillis;
+    }
+
+    //table files are tableName.tbl, or tableName.txt for legacy text tables - the database's 
+    //own files aren't tables, or a folder with a partitions file would never match its catalog
+    private boolean isTableFileName(String file){
+        if (file.equals("FKIndex.txt") || file.equals(PartitionedTable.FILE_NAME) 
+            || file.equals(Catalog.FILE_NAME) || file.equals(WriteAheadLog.FILE_NAME)){
+            return false;
+        }
+        return file.endsWith(TableFile.EXTENSION) || file.endsWith(".txt");
+    }
+
+    //open the write-ahead log and replay any changes made since the last writeDb
+    private void openLog(SyncPolicy syncPolicy){
+        WriteAheadLog wal;
+        try {
+            wal = new WriteAheadLog(filePath + name + "/" + WriteAheadLog.FILE_NAME, syncPolicy);
+            for (WriteAheadLog.Entry entry : wal.replay()){
+                if (!replay(entry)){
+                    display.phrase("ERROR: could not replay change to table " + entry.table);
+                }
+            }
+        } catch (IOException ex){
+            display.phrase("ERROR: could not open write-ahead log");
+            return;
+        }
+        //changes made during replay are already in the log
+        log = wal;
+        for (Table table : catalog.getTables()){
+            table.setLog(log);
+        }
+    }
+
+    //the partitioned tables listed in the database folder - their partitions are read when first used
+    private void openPartitioned(){
+        for (PartitionedTable t : PartitionedTable.read(filePath + name + "/" + PartitionedTable.FILE_NAME, this::getTable)){
+            boolean complete = true;
+            for (int i = 0; i < t.partitionCount(); i++){
+                complete &= catalog.contains(PartitionedTable.partitionName(t.getName(), i));
+            }
+            if (!complete){
+                display.phrase("ERROR: partitioned table " + t.getName() + " is missing partitions");
+                continue;
+            }
+            partitioned.put(t.getName(), t);
+        }
+    }
+
+    private boolean replay(WriteAheadLog.Entry entry){
+        String[] args = entry.args;
+        if (entry.op == WriteAheadLog.ADD_TABLE){
+            return addTable(entry.table, args);
+        }
+        if (entry.op == WriteAheadLog.ADD_FK_TABLE){
+            return addTable(entry.table, args[0], args[1], args[2], true, Arrays.copyOfRange(args, 3, args.length));
+        }
+        if (entry.op == WriteAheadLog.REMOVE_TABLE){
+            return removeTable(entry.table);
+        }
+        if (entry.op == WriteAheadLog.TRANSACTION){
+            boolean replayed = true;
+            for (WriteAheadLog.Entry change : WriteAheadLog.unpack(entry)){
+                replayed &= replay(change);
+            }
+            return replayed;
+        }
+
+        Table table = getTable(entry.table);
+        if (table == null){
+            return false;
+        }
+        switch(entry.op){
+            case WriteAheadLog.ADD_ROW:
+                //a row may already be in the table file, if the last writeDb stopped before the log was emptied
+                table.addRow(args);
+                return true;
+            case WriteAheadLog.DELETE_ROW:
+                table.deleteRow(args[0]);
+                return true;
+            case WriteAheadLog.UPDATE_ROW:
+                return table.updateRow(args[0], Arrays.copyOfRange(args, 1, args.length));
+            case WriteAheadLog.UPDATE_ITEM:
+                return table.updateItem(args[0], args[1], args[2]);
+            //a column change may already be in the table file too
+            case WriteAheadLog.ADD_COL:
+                table.addCol(args[0]);
+                return true;
+            case WriteAheadLog.ADD_COL_BEFORE:
+                table.addColBefore(args[0], args[1]);
+                return true;
+            case WriteAheadLog.REMOVE_COL:
+                table.removeCol(args[0]);
+                return true;
+            case WriteAheadLog.UPDATE_COL:
+                return table.updateCol(args[0], Arrays.copyOfRange(args, 1, args.length));
+            case WriteAheadLog.CLEAR_TABLE:
+                table.clearTable();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void logChange(byte op, String tableName, String...args){
+        if (log != null){
+            log.write(op, tableName, args);
         }
     }
 
@@ -99,64 +501,131 @@ class Database {
     }
 
     public int numTables(){
-        return tables.size();
+        return catalog.size();
     }
 
     public Table getTable(String tableName){
-        for (Table table : tables){
-            if (table.getName().equals(tableName)){
-                return table; 
-            }
-        }
-        return null;
+        return catalog.get(tableName);
+    }
+
+    Catalog getCatalog(){
+        return catalog;
     }
 
     //generate a printout (using display) of all tables in db
     public void displayTables(){
         ArrayList<String> tableNames = new ArrayList<String>();
         display.drawName(name);
-        for (Table table : tables){
-            tableNames.add(table.getName());
-        }
+        tableNames.addAll(catalog.getTableNames());
         display.drawTableNames(tableNames);
     }
 
     //update specific table
     public boolean addTableRow(String tableName, String...row){
-        for (Table table : tables){
-            if (table.getName().equals(tableName)){
-                if (table.addRow(row)){
-                    return true;
-                }
-            }
+        PartitionedTable split = partitioned.get(tableName);
+        if (split != null){
+            return split.addRow(row);
         }
-        return false;
+        Table table = catalog.get(tableName);
+        return table != null && table.addRow(row);
+    }
+
+    //add many rows to a table, checking its foreign key once for each distinct value
+    public boolean addTableRows(String tableName, List<String[]> rows){
+        PartitionedTable split = partitioned.get(tableName);
+        if (split != null){
+            return split.addRows(rows);
+        }
+        Table table = catalog.get(tableName);
+        return table != null && table.addRows(rows);
     }
 
     //add table
+    //load a large CSV, TSV or legacy text file into a table (see BulkLoader), 
+    //returning how many rows were loaded, or null if the file could not be
+    public BulkLoader.Result importFile(String tableName, String path, BulkLoader.Format format){
+        Table table = getTable(tableName);
+        if (table == null){
+            display.phrase("ERROR: no table " + tableName);
+            return null;
+        }
+        return new BulkLoader(Runtime.getRuntime().availableProcessors()).load(table, path, format);
+    }
+
+    //a cursor over a table's rows in table order (see Table.cursor), or null if there is no such table
+    public Cursor<Record> cursor(String tableName){
+        PartitionedTable split = partitioned.get(tableName);
+        if (split != null){
+            return split.cursor();
+        }
+        Table table = getTable(tableName);
+        return (table == null) ? null : table.cursor();
+    }
+
+    //a cursor over the rows with from <= primary key <= to, in or against key order
+    public Cursor<Record> rangeCursor(String tableName, String from, String to, boolean descending){
+        PartitionedTable split = partitioned.get(tableName);
+        if (split != null){
+            return split.rangeCursor(from, to, descending);
+        }
+        Table table = getTable(tableName);
+        return (table == null) ? null : table.rangeCursor(from, to, descending);
+    }
+
+    //write a table to a file as CSV, JSON lines or a table file (gzipped if compress, see 
+    //Exporter) - returns the number of rows written, or -1 if they could not be
+    public long exportTable(String tableName, String path, Exporter.Format format, boolean compress){
+        Table table = getTable(tableName);
+        if (table == null){
+            display.phrase("ERROR: no table " + tableName);
+            return -1;
+        }
+        try (WritableByteChannel out = Exporter.create(path)){
+            return new Exporter(format, compress).export(table, out);
+        } catch (IOException ex){
+            display.phrase("ERROR: could not write " + path);
+            return -1;
+        }
+    }
+
+    //write the rows a query finds to a file as CSV or JSON lines
+    public long exportQuery(String sql, String path, Exporter.Format format, boolean compress){
+        Operator rows;
+        try {
+            rows = Query.parse(sql).plan(this);
+        } catch (IllegalArgumentException ex){
+            display.phrase("ERROR: " + ex.getMessage());
+            return -1;
+        }
+        try (WritableByteChannel out = Exporter.create(path)){
+            return new Exporter(format, compress).export(rows, out);
+        } catch (IOException ex){
+            display.phrase("ERROR: could not write " + path);
+            return -1;
+        }
+    }
+
     public boolean addTable(String tableName, String...colNames){
         //keep table names unique
-        for(Table t : tables){
-            if (t.getName().equals(tableName)){
-                return false;
-            }
+        if (catalog.contains(tableName) || partitioned.containsKey(tableName)){
+            return false;
         }
         newTable(tableName, colNames);
+        logChange(WriteAheadLog.ADD_TABLE, tableName, colNames);
         return true;
     }
 
     private void newTable(String tableName, String...colNames){
         Table newTable = new Table(tableName, colNames);
-        tables.add(newTable);
+        newTable.setLog(log);
+        catalog.add(newTable);
     }
 
     //for adding tables with foreign keys
     public boolean addTable(String tableName, String primaryTable, String primaryCol, String foreignKeyCol, Boolean hasForeignKey, String...colNames){
         //keep table names unique
-        for(Table t : tables){
-            if (t.getName().equals(tableName)){
-                return false;
-            }
+        if (catalog.contains(tableName) || partitioned.containsKey(tableName)){
+            return false;
         }
 
         //foreign key constraint - if not table exists, abort
@@ -168,99 +637,296 @@ class Database {
                 display.phrase("ERROR: add table failed to link foreign keys");
                 return false;
             }
+            String[] args = new String[colNames.length + 3];
+            args[0] = primaryTable;
+            args[1] = primaryCol;
+            args[2] = foreignKeyCol;
+            System.arraycopy(colNames, 0, args, 3, colNames.length);
+            logChange(WriteAheadLog.ADD_FK_TABLE, tableName, args);
+            foreignKeysChanged = true;
             return true;
         }
         return false;
     }
 
-    private boolean foreignKeyCheck(String primaryTable, String primaryCol){
-        Boolean isValid = false;
-        buildTableInfo(); //make sure this is up-to-date
-        //confirm table and column exist
-        for(int j = 0; j < tableInfo.size(); j++){
-            if (tableInfo.get(j).contains(primaryTable) && tableInfo.get(j).contains(primaryCol)){
-                isValid = true;
+    //add a table hash partitioned on its primary key into count partitions, each a table 
+    //named tableName~i, with keys compared as keyType
+    public boolean addPartitionedTable(String tableName, int count, Type keyType, String...colNames){
+        return addPartitioned(tableName, PartitionedTable.Scheme.HASH, keyType, count, null, colNames);
+    }
+
+    //add a table range partitioned on its primary key at bounds (in increasing key order),
+    //into bounds.length + 1 partitions
+    public boolean addRangePartitionedTable(String tableName, Type keyType, String[] bounds, String...colNames){
+        if (!PartitionedTable.validBounds(keyType, bounds)){
+            display.phrase("ERROR: partition bounds must be in increasing order");
+            return false;
+        }
+        return addPartitioned(tableName, PartitionedTable.Scheme.RANGE, keyType, bounds.length + 1, bounds, colNames);
+    }
+
+    private synchronized boolean addPartitioned(String tableName, PartitionedTable.Scheme scheme, Type keyType, 
+                                                int count, String[] bounds, String...colNames){
+        if (count < 1 || catalog.contains(tableName) || partitioned.containsKey(tableName)){
+            return false;
+        }
+        for (int i = 0; i < count; i++){
+            if (catalog.contains(PartitionedTable.partitionName(tableName, i))){
+                return false;
+            }
+        }
+        for (int i = 0; i < count; i++){
+            addTable(PartitionedTable.partitionName(tableName, i), colNames);
+        }
+        //the partitions are written before the partitions file names them
+        if (!writeDb()){
+            display.phrase("ERROR: could not write the partitions of " + tableName);
+            for (int i = 0; i < count; i++){
+                removeTable(PartitionedTable.partitionName(tableName, i));
             }
+            return false;
+        }
+        partitioned.put(tableName, new PartitionedTable(tableName, scheme, keyType, count, bounds, this::getTable));
+        return PartitionedTable.save(filePath + name + "/" + PartitionedTable.FILE_NAME, partitioned.values());
+    }
+
+    //null if there is no such partitioned table
+    public PartitionedTable getPartitionedTable(String tableName){
+        return partitioned.get(tableName);
+    }
+
+    //remove a partitioned table and every partition
+    public synchronized boolean removePartitionedTable(String tableName){
+        PartitionedTable split = partitioned.remove(tableName);
+        if (split == null){
+            return false;
+        }
+        PartitionedTable.save(filePath + name + "/" + PartitionedTable.FILE_NAME, partitioned.values());
+        for (int i = 0; i < split.partitionCount(); i++){
+            removeTable(PartitionedTable.partitionName(tableName, i));
         }
-        return isValid;
+        return true;
+    }
+
+    //confirm table and column exist
+    private boolean foreignKeyCheck(String primaryTable, String primaryCol){
+        return catalog.hasColumn(primaryTable, primaryCol);
     }
 
     //for tables with foreign keys
     private void newTable(String tableName, String primaryTable, String primaryCol, String foreignKeyCol, Boolean hasForeignKey, String...colNames){
         Table newTable = new Table(tableName, primaryTable, primaryCol, foreignKeyCol, true, colNames);
-        tables.add(newTable);
+        newTable.setLog(log);
+        catalog.add(newTable);
     }
 
     private boolean linkForeignKeys(String primaryTable, String primaryCol, String FKTable, String FKCol){
         Table fkTable = getTable(FKTable);
         Table pTable = getTable(primaryTable);
         List<Item> fkcolList = fkTable.getColumnNames();
-        List<Item> pCol = pTable.getColumnNames();
-        int linkCount = 0;
+        HashMap<String, Item> pCols = new HashMap<>();
+        for (Item item : pTable.getColumnNames()){
+            pCols.put(item.getValue(), item);
+        }
+
+        //link each column to the primary table column of the same name, 
+        //and the foreign key column to the primary column
+        for (Item item : fkcolList){
+            String linkTo = item.getValue().equals(FKCol) ? primaryCol : item.getValue();
+            Item pItem = pCols.get(linkTo);
+            //confirm all links successful
+            if (pItem == null){
+                return false;
+            }
+            item.setForeignKey(pItem);
+        }
 
-        //link row items by value (should match)
-        for (int i = 0; i < fkcolList.size(); i++){
-            for (int j = 0; j < pCol.size(); j++){
+        //enforce the foreign key on every change to either table
+        fkTable.setReferencedTable(pTable);
+        Catalog.ForeignKey fk = catalog.getForeignKey(FKTable);
+        fkTable.setOnDelete((fk == null) ? ForeignKeyAction.RESTRICT : fk.onDelete);
+        return true;
+    }
 
-                //if values match: link 
-                if (fkcolList.get(i).getValue().equals(pCol.get(j).getValue())){
-                    fkcolList.get(i).setForeignKey(pCol.get(j));
-                    linkCount++;
-                }
+    //what deleting a row in the table a foreign key table refers to does to its rows
+    public boolean setOnDelete(String FKTable, ForeignKeyAction onDelete){
+        Table table = getTable(FKTable);
+        if (table == null || !catalog.setOnDelete(FKTable, onDelete)){
+            return false;
+        }
+        table.setOnDelete(onDelete);
+        return true;
+    }
+
+    //removes table from the catalog and file associated with table (if it exists)
+    public boolean removeTable(String tableName){
+        if (!catalog.contains(tableName)){
+            return false;
+        }
+        if (catalog.getForeignKey(tableName) != null){
+            foreignKeysChanged = true;
+        }
+        //a table that was never read has nothing to unlink
+        Table table = catalog.remove(tableName);
+        if (table != null){
+            table.unlink();
+            table.release();
+        }
+        logChange(WriteAheadLog.REMOVE_TABLE, tableName);
+        //if file exists, delete it, along with any index files
+        ArrayList<String> files = rw.getDirFiles(filePath + name);
+        for (String file : files){
+            if (file.equals(tableName + ".txt") || file.equals(tableName + TableFile.EXTENSION)){
+                rw.removeFile(filePath + name + "/", file);
+            }
+        }
+        for (String file : rw.getIndexFiles(filePath + name + "/", tableName)){
+            rw.removeFile(filePath + name + "/", file);
+        }
+        return true;
+    }
+
+    //a view of every table as it is now, which later changes do not affect - tables not 
+    //yet read are read (as they are in their files) when first used through it. 
+    //The snapshot must be closed
+    public Snapshot snapshot(){
+        Snapshot snapshot;
+        List<Table> tables;
+        //tables are read holding the catalog, so each one read is either versioned as it is 
+        //read or among the tables the snapshot versions
+        synchronized (catalog){
+            snapshot = Snapshot.begin(catalog.getTableNames(), this::getTable);
+            tables = catalog.getTables();
+        }
+        return snapshot.start(tables);
+    }
 
-                //if values are column names: link
-                if (fkcolList.get(i).getValue().equals(FKCol) &&
-                    pCol.get(j).getValue().equals(primaryCol) ){
-                        fkcolList.get(i).setForeignKey(pCol.get(j));
-                        linkCount++;
+    //drop row versions no open snapshot can see, returning how many were dropped
+    public int collectVersions(){
+        int dropped = 0;
+        for (Table table : catalog.getTables()){
+            dropped += table.collectVersions();
+        }
+        return dropped;
+    }
+
+    //start a transaction - its changes are made, all or none, when it is committed
+    public Transaction begin(){
+        return new Transaction(this);
+    }
+
+    public boolean commit(Transaction transaction){
+        return transaction.commit();
+    }
+
+    public void rollback(Transaction transaction){
+        transaction.rollback();
+    }
+
+    WriteAheadLog getLog(){
+        return log;
+    }
+
+    //save tables that have changed since they were last written, as a snapshot sees them
+    //convention - all file names are tableName.tbl, and each is replaced in one step
+    public synchronized boolean writeDb(){
+        //changes logged after this may not be in the snapshot, so they stay in the log
+        long logged = (log == null) ? 0 : log.size();
+        boolean allWritten = true;
+        try (Snapshot snapshot = snapshot()){
+            for (Table table : catalog.getTables()){
+                if (!table.isDirty()){
+                    continue;
+                }
+                Table.View view = snapshot.getTable(table.getName());
+                //added since the snapshot was opened
+                if (view == null){
+                    allWritten = false;
+                    continue;
+                }
+                if (!rw.writeTableFile(table, view, filePath + name + "/")){
+                    return false;
                 }
+                allWritten &= table.markClean(snapshot.getTimestamp());
             }
         }
-        //confirm all links successful
-        if (linkCount != fkcolList.size()){
+        if (foreignKeysChanged){
+            writeForeignKeyIndex();
+            foreignKeysChanged = false;
+        }
+        //the catalog is only written along with every table file it describes
+        if (allWritten && catalog.isChanged() && !catalog.write(filePath + name + "/" + Catalog.FILE_NAME)){
             return false;
         }
+        if (log != null){
+            log.checkpoint(logged);
+        }
+        collectVersions();
+        lastWrite = System.currentTimeMillis();
         return true;
     }
 
-    //removes table from table list and file associated with table (if it exists)
-    public boolean removeTable(String tableName){
-        for (int i = 0; i < tables.size(); i++){
-            if (tables.get(i).getName().equals(tableName)){
-                tables.remove(i);
-                //if file exists, delete it
-                ArrayList<String> files = rw.getDirFiles(filePath + name);
-                for (String file : files){
-                    if ((file).equals(tableName + ".txt")){
-                        if (rw.removeFile(filePath + name + "/", file)){
-                        }
-                    }
-                }
+    //true if writeDb has anything to write
+    public synchronized boolean hasChanges(){
+        if (foreignKeysChanged || catalog.isChanged()){
+            return true;
+        }
+        for (Table table : catalog.getTables()){
+            if (table.isDirty()){
                 return true;
             }
         }
         return false;
     }
 
-    //save all tables to files
-    //convention - all file names are tableName.txt 
-    public boolean writeDb(){
-        if (tables.size() == 0){return true;}
-        //write or overwrite all tables to file
-        for (Table table : tables){
-            rw.writeTable(table, filePath + name + "/", table.getName() + ".txt");
+    //write the database on a background thread whenever the log has grown to logBytes, 
+    //or intervalMillis have passed since the last write and there are changes to write.
+    //tables may go on being changed by other threads while a write is running
+    public void startCheckpointer(long logBytes, long intervalMillis){
+        stopCheckpointer();
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpointer-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+        long poll = Math.max(1, Math.min(intervalMillis, 100));
+        checkpointer.scheduleWithFixedDelay(() -> checkpointIfDue(logBytes, intervalMillis), 
+                                            poll, poll, TimeUnit.MILLISECONDS);
+    }
+
+    public void stopCheckpointer(){
+        if (checkpointer != null){
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+            checkpointer = null;
         }
-        //confirm table has been written 
-        ArrayList<String> files = rw.getDirFiles(filePath + name);
+    }
 
-        //loop over table names, and show that files contains each table name
-        for (Table table : tables){
-            if (!files.contains(table.getName() + ".txt")){
-                return false;
+    private synchronized void checkpointIfDue(long logBytes, long intervalMillis){
+        boolean logFull = log != null && log.size() >= logBytes;
+        boolean timeUp = System.currentTimeMillis() - lastWrite >= intervalMillis;
+        if ((logFull || timeUp) && hasChanges()){
+            if (!writeDb()){
+                display.phrase("ERROR: background checkpoint of " + name + " failed");
             }
         }
-        writeForeignKeyIndex();
-        return true;
+    }
+
+    //sync and close the write-ahead log
+    public void close(){
+        stopCheckpointer();
+        if (log != null){
+            log.close();
+            log = null;
+        }
+        for (Table table : catalog.getTables()){
+            table.setLog(null);
+            table.release();
+        }
     }
 
     private void writeForeignKeyIndex(){
@@ -269,14 +935,12 @@ class Database {
         String primaryTable, primaryCol, FKTable, FKCol; 
         //generate FKIndex:
         //loop over tables, and if it is a foreign key, 
-        for (Table t : tables){
-            if (t.hasForeignKey()){
-                FKTable = t.getName();
-                FKCol = t.getForeignKeyCol();
-                primaryTable = t.getPrimaryTable();
-                primaryCol = t.getPrimaryCol();
-                FKIndex.add(primaryTable + " " + primaryCol + " " + FKTable + " " + FKCol);
-            }
+        for (Catalog.ForeignKey fk : catalog.getForeignKeys()){
+            FKTable = fk.fkTable;
+            FKCol = fk.fkCol;
+            primaryTable = fk.primaryTable;
+            primaryCol = fk.primaryCol;
+            FKIndex.add(primaryTable + " " + primaryCol + " " + FKTable + " " + FKCol);
         }
         rw.setForeignKeyIndex(filePath + name, FKIndex);
     }
@@ -284,17 +948,20 @@ class Database {
     //remove all tables and folders associated with database
     public boolean deleteDatabase(){
 
-        if (tables.size() > 0){
-            for (int i = tables.size()-1; i >= 0; i--){
-                removeTable(tables.get(i).getName());
-            }
+        List<String> tableNames = catalog.getTableNames();
+        for (int i = tableNames.size()-1; i >= 0; i--){
+            removeTable(tableNames.get(i));
         }
 
         //remove db from index
         rw.deleteIndex(name);
 
-        //remove FKIndex file
+        //remove FKIndex file and write-ahead log
         rw.removeFile(filePath+name, "/FKIndex.txt");
+        rw.removeFile(filePath+name, "/" + Catalog.FILE_NAME);
+        rw.removeFile(filePath+name, "/" + PartitionedTable.FILE_NAME);
+        close();
+        rw.removeFile(filePath+name, "/" + WriteAheadLog.FILE_NAME);
 
         //remove folder for db
         if (rw.deleteDirs(filePath + name)){
@@ -330,6 +997,19 @@ class Database {
         testWriteDb();
         testAddDB();
         testForeignKeys();
+        testRecovery();
+        testSchemaRecovery();
+        testIncrementalWrite();
+        testCheckpointer();
+        testIndexes();
+        testCatalog();
+        testForeignKeyEnforcement();
+        testParallelLoad();
+        testLazyLoad();
+        testBufferPool();
+        testOffHeap();
+        testSnapshot();
+        testWriteWhileChanging();
     }
 
     private void testConstruct(){
@@ -457,4 +1137,430 @@ class Database {
 
         db.writeDb();
     }
+
+    private void testRecovery(){
+        Database db = new Database("testRecovery");
+        db.addTable("Fleet", "ship-id", "shipType", "year");
+        db.addTableRow("Fleet", "121", "ColonyShip", "2050");
+        db.writeDb();
+
+        //changes after the write are only in the log
+        db.addTableRow("Fleet", "234", "Cargo", "2015");
+        db.getTable("Fleet").updateItem("121", "year", "2051");
+        db.getTable("Fleet").deleteRow("234");
+        db.getTable("Fleet").addRow("513", "Cruiser", "2070");
+        db.addTable("Sectors", "sector-id", "name");
+        db.addTableRow("Sectors", "2314", "Omega");
+        //simulate a crash - the tables are not written
+        db.close();
+
+        Database recovered = new Database("testRecovery");
+        Table fleet = recovered.getTable("Fleet");
+        assert(fleet.rowSize() == 3);
+        assert(fleet.getItem("121", "year").getValue().equals("2051"));
+        assert(fleet.containsKey("234") == false);
+        assert(fleet.containsKey("513"));
+        assert(recovered.getTable("Sectors").containsKey("2314"));
+
+        //writing the database empties the log
+        assert(recovered.writeDb());
+        recovered.close();
+        Database reopened = new Database("testRecovery");
+        assert(reopened.getTable("Fleet").rowSize() == 3);
+
+        //a change the log can't take is reported as failed, though it is made in memory
+        reopened.getLog().close();
+        assert(!reopened.getTable("Fleet").addRow("600", "Tug", "2080"));
+        assert(reopened.getTable("Fleet").containsKey("600"));
+        reopened.deleteDatabase();
+    }
+
+    private void testSchemaRecovery(){
+        Database db = new Database("testSchemaRecovery");
+        db.addTable("Ship", "s%id", "s%name");
+        db.addTableRow("Ship", "s%1", "s%A");
+        assert(db.writeDb());
+
+        //rows added after a column change are replayed after it
+        Table ship = db.getTable("Ship");
+        assert(ship.addCol("s%crew"));
+        assert(db.addTableRow("Ship", "s%2", "s%B", "s%5"));
+        assert(ship.updateItem("1", "s%crew", "7"));
+        assert(ship.addColBefore("name", "class"));
+        //simulate a crash - the tables are not written
+        db.close();
+
+        Database recovered = new Database("testSchemaRecovery");
+        Table table = recovered.getTable("Ship");
+        assert(table.colSize() == 4);
+        assert(table.getRow("2") != null);
+        assert(table.getItem("1", "s%crew").getValue().equals("7"));
+        assert(table.getItem("2", "name").getValue().equals("B"));
+
+        assert(table.removeCol("s%crew"));
+        table.clearTable();
+        recovered.close();
+        Database cleared = new Database("testSchemaRecovery");
+        assert(cleared.getTable("Ship").colSize() == 3);
+        assert(cleared.getTable("Ship").rowSize() == 1);
+        cleared.deleteDatabase();
+    }
+
+    private void testIncrementalWrite(){
+        Database db = new Database("testIncremental");
+        db.addTable("t1", "col1", "col2");
+        db.addTable("t2", "col1", "col2");
+        assert(db.hasChanges());
+        assert(db.writeDb());
+        assert(db.hasChanges() == false);
+        db.close();
+
+        Database db2 = new Database("testIncremental");
+        assert(db2.hasChanges() == false);
+        java.io.File t1File = new java.io.File("databases/testIncremental/t1" + TableFile.EXTENSION);
+        java.io.File t2File = new java.io.File("databases/testIncremental/t2" + TableFile.EXTENSION);
+        t1File.setLastModified(1000);
+        t2File.setLastModified(1000);
+
+        //only the changed table is rewritten
+        assert(db2.addTableRow("t2", "a", "b"));
+        assert(db2.getTable("t1").isDirty() == false);
+        assert(db2.writeDb());
+        assert(t1File.lastModified() == 1000);
+        assert(t2File.lastModified() != 1000);
+        assert(new ReadWrite().getDirFiles("databases/testIncremental").contains("t2" + TableFile.EXTENSION + ".tmp") == false);
+        db2.deleteDatabase();
+    }
+
+    private void testCheckpointer(){
+        Database db = new Database("testCheckpointer");
+        db.addTable("t1", "col1", "col2");
+        db.writeDb();
+        db.startCheckpointer(1 << 20, 20);
+        db.addTableRow("t1", "a", "b");
+
+        //wait for the checkpointer to write the change
+        long start = System.currentTimeMillis();
+        while (db.hasChanges() && System.currentTimeMillis() - start < 5000){
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+        }
+        assert(db.hasChanges() == false);
+        db.close();
+
+        Database db2 = new Database("testCheckpointer");
+        assert(db2.getTable("t1").containsKey("a"));
+        db2.deleteDatabase();
+    }
+
+    private void testIndexes(){
+        Database db = new Database("testIndexes");
+        db.addTable("Crew", "s%crew-id", "s%name", "s%years");
+        db.addTableRow("Crew", "s%455", "s%Sally", "i%25");
+        db.addTableRow("Crew", "s%255", "s%Buzz", "i%10");
+        assert(db.getTable("Crew").createIndex("years"));
+        db.writeDb();
+        assert(new ReadWrite().getDirFiles("databases/testIndexes").contains("Crew.years" + ColumnIndex.EXTENSION));
+        db.close();
+
+        //index is read back from file, and replayed changes keep it up to date
+        Database db2 = new Database("testIndexes");
+        db2.addTableRow("Crew", "s%001", "s%Laika", "i%1");
+        db2.close();
+        Database db3 = new Database("testIndexes");
+        Table crew = db3.getTable("Crew");
+        assert(crew.hasIndex("years"));
+        assert(crew.lookupRange("years", "1", "10").size() == 2);
+
+        //an index file left from before the table file was last written is rebuilt, 
+        //even when the table has as many rows as it had then
+        db3.writeDb();
+        java.nio.file.Path indexFile = java.nio.file.Paths.get("databases/testIndexes/Crew.years" + ColumnIndex.EXTENSION);
+        byte[] oldIndex;
+        try {
+            oldIndex = java.nio.file.Files.readAllBytes(indexFile);
+            assert(crew.updateItem("455", "years", "30"));
+            db3.writeDb();
+            db3.close();
+            java.nio.file.Files.write(indexFile, oldIndex);
+        } catch (java.io.IOException ex){
+            throw new Error(ex);
+        }
+        Database db4 = new Database("testIndexes");
+        crew = db4.getTable("Crew");
+        assert(crew.hasIndex("years"));
+        assert(crew.lookup("years", "30").get(0).equals("455"));
+        assert(crew.lookup("years", "25").isEmpty());
+
+        //dropped indexes are removed from file on the next write
+        assert(crew.dropIndex("years"));
+        db4.writeDb();
+        assert(new ReadWrite().getDirFiles("databases/testIndexes").contains("Crew.years" + ColumnIndex.EXTENSION) == false);
+        db4.deleteDatabase();
+    }
+
+    private void testCatalog(){
+        Database db = new Database("testCatalog");
+        db.addTable("Robot", "s%id", "s%year");
+        db.addTableRow("Robot", "s%1", "i%2016");
+        //Robo is part of the name Robot, but is not a table
+        assert(db.addTable("Seller", "Robo", "id", "product", true, "s%id", "s%product") == false);
+        assert(db.addTable("Seller", "Robot", "yea", "product", true, "s%id", "s%product") == false);
+        assert(db.addTable("Seller", "Robot", "id", "product", true, "s%id", "s%product"));
+        assert(db.getCatalog().getReferencingTables("Robot").contains("Seller"));
+        assert(db.writeDb());
+        assert(new ReadWrite().getDirFiles("databases/testCatalog").contains(Catalog.FILE_NAME));
+        assert(!db.hasChanges());
+        db.getTable("Robot").addCol("function");
+        assert(db.hasChanges());
+        db.writeDb();
+        db.close();
+
+        Database db2 = new Database("testCatalog");
+        assert(db2.numTables() == 2);
+        assert(db2.getCatalog().hasColumn("Robot", "function"));
+        assert(db2.getCatalog().getForeignKey("Seller").primaryCol.equals("id"));
+        assert(!db2.hasChanges());
+        assert(db2.removeTable("Seller"));
+        assert(db2.getCatalog().getReferencingTables("Robot").isEmpty());
+        assert(db2.getTable("Seller") == null);
+        db2.deleteDatabase();
+    }
+
+    private void testForeignKeyEnforcement(){
+        Database db = new Database("testFKEnforce");
+        db.addTable("Robot", "s%id", "s%year");
+        db.addTableRow("Robot", "s%1", "i%2016");
+        db.addTableRow("Robot", "s%2", "i%2019");
+        assert(db.addTable("Seller", "Robot", "id", "product", true, "s%id", "s%product"));
+        assert(db.addTableRow("Seller", "s%34", "s%1"));
+        assert(!db.addTableRow("Seller", "s%35", "s%3"));
+        List<String[]> batch = new ArrayList<>();
+        batch.add(new String[] {"s%55", "s%2"});
+        batch.add(new String[] {"s%56", "s%2"});
+        assert(db.addTableRows("Seller", batch));
+        //a batch is checked once and logged as one frame, with one fsync
+        assert(db.addTable("Part", "Robot", "id", "robot", true, "s%id", "s%robot"));
+        batch.clear();
+        for (int i = 0; i < 1000; i++){
+            batch.add(new String[] {"s%p" + i, "s%1"});
+        }
+        long forces = db.getLog().forces();
+        assert(db.addTableRows("Part", batch));
+        assert(db.getLog().forces() - forces == 1);
+        assert(!db.getTable("Robot").deleteRow("2"));
+        assert(db.setOnDelete("Seller", ForeignKeyAction.CASCADE));
+        assert(!db.setOnDelete("Robot", ForeignKeyAction.CASCADE));
+        db.writeDb();
+        db.close();
+
+        //the delete action is saved in the catalog, and enforcement is set up again on open
+        Database db2 = new Database("testFKEnforce");
+        assert(db2.getTable("Seller").getOnDelete() == ForeignKeyAction.CASCADE);
+        assert(db2.getTable("Part").rowSize() == 1001);
+        assert(!db2.addTableRow("Seller", "s%35", "s%3"));
+        assert(db2.getTable("Robot").deleteRow("2"));
+        assert(db2.getTable("Seller").rowSize() == 2);
+        //once the primary table is gone the foreign key is no longer enforced
+        assert(db2.removeTable("Robot"));
+        assert(db2.addTableRow("Seller", "s%35", "s%3"));
+        db2.deleteDatabase();
+    }
+
+    private void testParallelLoad(){
+        Database db = new Database("testParallelLoad");
+        db.addTable("Ship", "s%id", "s%name");
+        db.addTableRow("Ship", "s%1", "s%Endeavour");
+        for (int i = 0; i < 30; i++){
+            db.addTable("Crew" + i, "Ship", "id", "ship", true, "s%ship", "s%name");
+            db.addTableRow("Crew" + i, "s%1", "s%crew" + i);
+        }
+        db.getTable("Crew7").createIndex("name");
+        db.writeDb();
+        db.close();
+        //without a catalog every table is read when the database is opened
+        rw.removeFile(filePath + "testParallelLoad", "/" + Catalog.FILE_NAME);
+
+        for (int threads : new int[] {1, 4}){
+            Database db2 = new Database("testParallelLoad", SyncPolicy.PER_COMMIT, threads, false);
+            assert(db2.numTables() == 31);
+            assert(db2.getLoadMillis() >= 0);
+            assert(db2.getTable("Crew29").getRow("1").getValueAt(1).equals("crew29"));
+            assert(db2.getTable("Crew7").hasIndex("name"));
+            //foreign keys are linked after every table is loaded
+            assert(db2.getCatalog().getReferencingTables("Ship").size() == 30);
+            assert(!db2.getTable("Ship").deleteRow("1"));
+            db2.close();
+        }
+        new Database("testParallelLoad").deleteDatabase();
+    }
+
+    private void testLazyLoad(){
+        Database db = new Database("testLazyLoad");
+        db.addTable("Ship", "s%id", "s%name");
+        db.addTableRow("Ship", "s%1", "s%Endeavour");
+        db.addTable("Crew", "Ship", "id", "ship", true, "s%ship", "s%name");
+        db.addTableRow("Crew", "s%1", "s%Cook");
+        db.addTable("Planet", "s%name", "s%moons");
+        db.addTableRow("Planet", "s%Mars", "i%2");
+        db.getTable("Planet").createIndex("moons");
+        db.writeDb();
+        db.close();
+
+        //only the catalog is read when the database is opened
+        Database db2 = new Database("testLazyLoad");
+        Catalog catalog = db2.getCatalog();
+        assert(db2.numTables() == 3);
+        assert(!catalog.isLoaded("Ship") && !catalog.isLoaded("Crew") && !catalog.isLoaded("Planet"));
+        assert(catalog.getColumn("Planet", "moons").indexed);
+        assert(catalog.getColumn("Crew", "ship").foreignKey);
+
+        //reading a table reads the tables its foreign key connects it to
+        assert(db2.getTable("Crew").getRow("Cook") == null);
+        assert(db2.getTable("Crew").getRow("1").getValueAt(1).equals("Cook"));
+        assert(catalog.isLoaded("Ship"));
+        assert(!catalog.isLoaded("Planet"));
+        assert(!db2.getTable("Ship").deleteRow("1"));
+        assert(!db2.addTableRow("Crew", "s%2", "s%Banks"));
+        assert(db2.getTable("Planet").hasIndex("moons"));
+
+        //changed tables stay in memory until they are written
+        assert(db2.addTableRow("Ship", "s%2", "s%Resolution"));
+        assert(db2.unloadIdleTables(0) == 1);
+        assert(catalog.isLoaded("Ship") && catalog.isLoaded("Crew"));
+        assert(!catalog.isLoaded("Planet"));
+        assert(db2.writeDb());
+        assert(db2.unloadIdleTables(60000) == 0);
+        assert(db2.unloadIdleTables(0) == 2);
+        assert(catalog.getTables().isEmpty());
+
+        //unloaded tables are read again, with their changes
+        assert(db2.addTableRow("Crew", "s%2", "s%Banks"));
+        assert(db2.getTable("Ship").getRow("2") != null);
+        //and can be removed without being read
+        assert(db2.removeTable("Planet"));
+        assert(db2.numTables() == 2);
+        assert(db2.writeDb());
+        db2.close();
+
+        Database db3 = new Database("testLazyLoad");
+        assert(db3.numTables() == 2);
+        assert(db3.getTable("Crew").getRow("2").getValueAt(1).equals("Banks"));
+        db3.deleteDatabase();
+    }
+
+    private void testBufferPool(){
+        Database db = new Database("testBufferPool");
+        db.addTable("Star", "s%name", "i%distance");
+        for (int i = 0; i < 2000; i++){
+            db.addTableRow("Star", "s%star" + i, "i%" + i);
+        }
+        db.writeDb();
+        db.close();
+
+        BufferPool pool = new BufferPool(2 * TableFile.PAGE_SIZE);
+        Database db2 = new Database("testBufferPool", SyncPolicy.PER_COMMIT, 1, false, pool);
+        assert(db2.getBufferPool() == pool);
+        assert(db2.getTable("Star").getRow("star1999").getValueAt(1).equals("1999"));
+        assert(db2.getTable("Star").isMapped());
+        assert(pool.getMisses() > 0);
+        assert(pool.residentPages() <= 2);
+        assert(db2.unloadIdleTables(0) == 1);
+        //unloaded tables give their pages back
+        assert(pool.residentPages() == 0);
+        assert(db2.getTable("Star").getRow("star5").getValueAt(1).equals("5"));
+        db2.deleteDatabase();
+    }
+
+    private void testOffHeap(){
+        Database db = new Database("testOffHeap");
+        RowStore store = new RowStore(4096);
+        assert(db.moveIdleTablesOffHeap(0) == 0);
+        db.setRowStore(store);
+        db.addTable("Ship", "s%id", "s%name");
+        db.addTableRow("Ship", "s%1", "s%Endeavour");
+        db.addTable("Crew", "Ship", "id", "ship", true, "s%ship", "s%name");
+        db.addTableRow("Crew", "s%1", "s%Cook");
+        db.getTable("Ship");
+        db.getTable("Crew");
+
+        assert(db.moveIdleTablesOffHeap(60000) == 0);
+        assert(db.moveIdleTablesOffHeap(0) == 2);
+        assert(db.getTable("Ship").isOffHeap());
+        assert(store.size() == 2);
+        //foreign keys are still enforced
+        assert(!db.addTableRow("Crew", "s%2", "s%Banks"));
+        assert(!db.getTable("Ship").deleteRow("1"));
+        //and unwritten changes are written from the store
+        assert(db.hasChanges());
+        assert(db.writeDb());
+        Database db2 = new Database("testOffHeap");
+        assert(db2.getTable("Crew").getRow("1").getValueAt(1).equals("Cook"));
+        db2.close();
+        db.deleteDatabase();
+    }
+
+    private void testSnapshot(){
+        Database db = new Database("testSnapshot");
+        db.addTable("Fleet", "ship-id", "shipType");
+        db.addTableRow("Fleet", "1", "Cargo");
+        assert(db.writeDb());
+        db.close();
+
+        //Fleet is not read until the snapshot first needs it
+        Database db2 = new Database("testSnapshot");
+        try (Snapshot snapshot = db2.snapshot()){
+            db2.addTable("Sectors", "sector-id", "name");
+            assert(snapshot.getTable("Sectors") == null);
+            db2.addTableRow("Fleet", "2", "Cruiser");
+            Table.View fleet = snapshot.getTable("Fleet");
+            assert(fleet.rowCount() == 1);
+            db2.getTable("Fleet").updateItem("1", "shipType", "Tanker");
+            assert(fleet.getValues("1")[1].equals("Cargo"));
+            //tables are kept in memory while a snapshot is open
+            assert(db2.unloadIdleTables(0) == 0);
+        }
+        assert(db2.getTable("Fleet").rowSize() == 3);
+        db2.collectVersions();
+        db2.deleteDatabase();
+    }
+
+    //rows added while the database is being written are in the table file or the log
+    private void testWriteWhileChanging(){
+        Database db = new Database("testWriteWhileChanging");
+        db.addTable("Fleet", "ship-id", "shipType");
+        db.addTable("Crew", "Fleet", "ship-id", "ship", true, "crew-id", "ship");
+        db.addTableRow("Fleet", "s0", "Cargo");
+        assert(db.writeDb());
+        int rows = 2000;
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < rows; i++){
+                assert(db.addTableRow("Crew", "c" + i, "s0"));
+                if (i % 10 == 0){
+                    assert(db.getTable("Crew").updateItem("c" + i, "ship", "s0"));
+                }
+            }
+        });
+        writer.start();
+        int writes = 0;
+        while (writer.isAlive() || writes == 0){
+            assert(db.writeDb());
+            writes++;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException ex){
+            throw new Error(ex);
+        }
+        //simulate a crash - anything not written is only in the log
+        db.close();
+
+        Database reopened = new Database("testWriteWhileChanging");
+        assert(reopened.getTable("Crew").rowSize() == rows + 1);
+        assert(reopened.getTable("Crew").findOrphans().isEmpty());
+        reopened.deleteDatabase();
+    }
 }
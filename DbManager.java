@@ -1,10 +1,13 @@
 /* Wrapper for whole Db structure - handles program loop and user interface 
 It deals with the main program loop, and prompts / deals with user queries. 
 On command, it will show the databases in the system, allow users to add new 
-databases or select an existing database loaded from file.*/
+databases or select an existing database loaded from file. A database is only 
+opened when it is first chosen, and tables left unused for a while are dropped 
+from memory between commands.*/
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.UncheckedIOException;
 import java.util.*;
 
 class DbManager {
@@ -15,6 +18,12 @@ class DbManager {
     Display display = new Display(30);
     ReadWrite rw = new ReadWrite();
     Table currentT; 
+    //tables not used for this long are unloaded between commands
+    static final long IDLE_MILLIS = 5 * 60 * 1000;
+    //table file pages of every open database share a quarter of the heap
+    BufferPool pool = new BufferPool(Runtime.getRuntime().maxMemory() / 4);
+    //idle tables with unwritten changes keep their rows off the heap
+    RowStore rowStore = new RowStore();
     public static void main(String[] args) {
         DbManager program = new DbManager();
         program.run(args);
@@ -35,13 +44,6 @@ class DbManager {
         ArrayList<String> databaseNames = rw.getIndex();
         display.showDatabases(databaseNames);
 
-        //load all databases to dbs
-        for (String dbName : databaseNames){
-            System.out.println(dbName + " is added to dbs");
-            Database newDb = new Database(dbName);
-            dbs.add(newDb);
-        }
-
         startChoice choice = input.getChoice();
         switch(choice){
             case useDatabase:
@@ -66,12 +68,18 @@ class DbManager {
         display.showDatabases(databaseNames);
         String dbName = input.chooseDatabase(databaseNames);
 
-        //set currentDB to dbName
+        //set currentDB to dbName, opening it if it has not been used yet
+        currentDb = null;
         for (Database db : dbs){
             if (db.getName().equals(dbName)){
                 currentDb = db; 
             } 
         }
+        if (currentDb == null){
+            currentDb = new Database(dbName, SyncPolicy.PER_COMMIT, Runtime.getRuntime().availableProcessors(), true, pool);
+            currentDb.setRowStore(rowStore);
+            dbs.add(currentDb);
+        }
 
         //have options: updateDatabse() - add tables, add rows, view tables...
         display.phrase("WORKING WITH DATABASE: " + currentDb.getName());
@@ -81,6 +89,9 @@ class DbManager {
         //all operations that may be done on databases
         //split action string up by blanks, to get first command, and names of columns
         String[] actionArr= action.split("\\s");
+        currentDb.unloadIdleTables(IDLE_MILLIS);
+        currentDb.moveIdleTablesOffHeap(IDLE_MILLIS);
+        currentDb.collectVersions();
 
         //list tables
         if (actionArr[0].equals("list") || actionArr[0].equals("LIST")){
@@ -99,22 +110,20 @@ class DbManager {
             }
             dbAction(input.dbOptions());
         }
-        //SELECT colName, colName... FROM tableName WHERE colName ><= x
-        else if (actionArr[0].equals("select") || actionArr[0].equals("SELECT")){
-            if (actionArr.length == 4){
-                String colName = actionArr[1];
-                String tableName = actionArr[3];
-                Table t = currentDb.getTable(tableName);
-                Record r = null;
-                if (t != null){
-                    r = t.getCol(colName);
-                }
-                System.out.println();
-                display.drawRow(r);
-                System.out.println();
+        //SELECT colName, colName... FROM tableName WHERE colName ><= x ...
+        else if (actionArr[0].equalsIgnoreCase("select")){
+            try {
+                Operator result = Query.parse(action).plan(currentDb);
+                display.drawResult(result.columns(), result.toList());
+            } catch (IllegalArgumentException | UncheckedIOException ex){
+                display.phrase("ERROR: " + ex.getMessage());
             }
             dbAction(input.dbOptions());
         }
+        else if (actionArr[0].equals("pool")){
+            display.phrase(pool.stats());
+            dbAction(input.dbOptions());
+        }
         else if (actionArr[0].equals("type")){
             String tableName = input.getWord("Type table name exactly as it appears: ");
             Table t = currentDb.getTable(tableName);
@@ -126,8 +135,10 @@ class DbManager {
 
     private void newDatabase(){
         String name = input.getWord("Enter the name of the new database: ");
-        Database db = new Database(name);
+        Database db = new Database(name, SyncPolicy.PER_COMMIT, Runtime.getRuntime().availableProcessors(), true, pool);
+        db.setRowStore(rowStore);
         dbs.add(db);
+        currentDb = db;
         dbAction(input.dbOptions());
     }
 
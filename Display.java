@@ -59,6 +59,11 @@ class Display {
     }
 
     public void drawTable(Table table){
+        drawTable(table, Parallel.defaultParallelism());
+    }
+
+    //rows are formatted a morsel at a time by up to parallelism threads, and printed in table order
+    public void drawTable(Table table, int parallelism){
 
         drawTableTop(table, "_");
 
@@ -68,13 +73,14 @@ class Display {
         System.out.println();
         drawLine(table, "-");
 
-        //get primarykeys
-        List<String> keys = table.getPrimaryKeys();
-        for(int i = 1; i < keys.size(); i++){
-            drawRow(table.getRow(keys.get(i)));
-            System.out.print("|");
-            System.out.println();
-        }
+        table.parallelForEach(parallelism, (rows, from, to) -> {
+            StringBuilder text = new StringBuilder();
+            for (int i = from; i < to; i++){
+                formatRow(text, rows[i]);
+                text.append("|").append(System.lineSeparator());
+            }
+            return text;
+        }, System.out::print);
         drawLine(table, "_");
     }
 
@@ -84,6 +90,34 @@ class Display {
         }
     }
 
+    private static void formatRow(StringBuilder text, Record row){
+        for (int i = 0; i < row.size(); i ++){
+            text.append(String.format("%-15.14s", "| " + row.getItemAt(i).getValue()));
+        }
+    }
+
+    //rows produced by a query, under their column names
+    public void drawResult(String[] colNames, List<String[]> rows){
+        System.out.println();
+        drawValues(colNames);
+        System.out.print("|");
+        for (int i = 0; i < (colNames.length * length.length()-1); i++){
+            System.out.print("-");
+        }
+        System.out.println("|");
+        for (String[] row : rows){
+            drawValues(row);
+        }
+        System.out.println("(" + rows.size() + " rows)");
+    }
+
+    private void drawValues(String[] values){
+        for (String value : values){
+            System.out.format("%-15.14s", "| " + value);
+        }
+        System.out.println("|");
+    }
+
     public void drawRowType(Record row){
         for (int i = 0; i < row.size(); i ++){
             System.out.format("%-15.14s", "| " + row.getItemAt(i).getType());
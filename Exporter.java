@@ -0,0 +1,512 @@
+/* Writes tables, snapshots of tables and query results to a channel as CSV (a header
+line of column names, then one line per row, values quoted where they need to be),
+JSON lines (one object per row, INT values as numbers and BOOL values as true/false)
+or the binary table file format (tables and snapshots only, see TableFile), gzipped
+if asked. Rows are encoded one at a time straight into a fixed buffer as UTF-8, which
+is written to the channel whenever it fills, so the memory used is the same however
+many rows there are. A table is exported holding its read lock, so changes wait until
+it is done - export a snapshot of it to let them go on. */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+class Exporter {
+
+    enum Format { CSV, JSONL, NATIVE }
+
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    private Format format;
+    private boolean compress;
+
+    Exporter(Format format, boolean compress){
+        this.format = format;
+        this.compress = compress;
+    }
+
+    //a new (or emptied) file to export to
+    static WritableByteChannel create(String path) throws IOException {
+        return FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+                                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    //write every row of a table - returns the number of rows written, or -1 if they could not be
+    public long export(Table table, WritableByteChannel out){
+        return table.read(() -> {
+            byte keyOrder = table.hasOrderedKeys() ? TableFile.typeByte(table.getKeyType()) : TableFile.UNORDERED;
+            return export(out, table.getName(), table.getColNames(), keyOrder, table.rowSize() - 1, table::forEachRow);
+        });
+    }
+
+    //write every row of a table as a snapshot sees it
+    public long export(Table.View view, WritableByteChannel out){
+        byte keyOrder = view.hasOrderedKeys() ? TableFile.typeByte(view.getKeyType()) : TableFile.UNORDERED;
+        return export(out, view.getName(), view.getColNames(), keyOrder, view.rowCount(), view::forEachRecord);
+    }
+
+    //write the rows of a query result (as CSV or JSON lines, all values as strings), then close it
+    public long export(Operator rows, WritableByteChannel out){
+        if (format == Format.NATIVE){
+            System.out.println("ERROR: query results can't be exported as a table file");
+            return -1;
+        }
+        try {
+            return write(out, encoder -> {
+                encoder.header(rows.columns());
+                String[] row;
+                while ((row = rows.next()) != null){
+                    encoder.row(row, null);
+                }
+            });
+        } finally {
+            rows.close();
+        }
+    }
+
+    private long export(WritableByteChannel out, String name, Record colNames, byte keyOrder, int rowCount,
+                        Consumer<Consumer<Record>> forEachRow){
+        if (format == Format.NATIVE){
+            return write(out, encoder -> {
+                try {
+                    TableFile.Writer writer = new TableFile.Writer(encoder.channel, name, colNames, keyOrder, rowCount);
+                    forEachRow.accept(row -> {
+                        try {
+                            writer.add(row);
+                            encoder.rows++;
+                        } catch (IOException ex){
+                            throw new UncheckedIOException(ex);
+                        }
+                    });
+                    writer.finish();
+                } catch (IOException ex){
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
+        String[] cols = new String[colNames.size()];
+        for (int i = 0; i < cols.length; i++){
+            cols[i] = colNames.getValueAt(i);
+        }
+        return write(out, encoder -> {
+            encoder.header(cols);
+            forEachRow.accept(encoder::row);
+        });
+    }
+
+    //run rows on an encoder writing to out (through gzip if compressing) - returns the number of rows
+    private long write(WritableByteChannel out, Consumer<Encoder> rows){
+        try {
+            GZIPOutputStream gzip = null;
+            WritableByteChannel channel = out;
+            if (compress){
+                //the stream is finished, but not closed - out belongs to the caller
+                gzip = new GZIPOutputStream(Channels.newOutputStream(out), BUFFER_SIZE);
+                channel = Channels.newChannel(gzip);
+            }
+            Encoder encoder = new Encoder(channel, format);
+            rows.accept(encoder);
+            encoder.flush();
+            if (gzip != null){
+                gzip.finish();
+                gzip.flush();
+            }
+            return encoder.rows;
+        } catch (IOException | UncheckedIOException ex){
+            System.out.println("ERROR: export failed");
+            return -1;
+        }
+    }
+
+    //encodes rows as UTF-8 text into a buffer, writing it to the channel whenever it fills
+    private static class Encoder {
+        private WritableByteChannel channel;
+        private Format format;
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        //"name": for each column, encoded once
+        private byte[][] keys;
+        private long rows = 0;
+
+        Encoder(WritableByteChannel channel, Format format){
+            this.channel = channel;
+            this.format = format;
+        }
+
+        void header(String[] cols){
+            if (format == Format.JSONL){
+                keys = new byte[cols.length][];
+                for (int i = 0; i < cols.length; i++){
+                    StringBuilder key = new StringBuilder();
+                    key.append(i == 0 ? '{' : ',');
+                    appendJson(key, cols[i]);
+                    key.append(':');
+                    keys[i] = key.toString().getBytes(StandardCharsets.UTF_8);
+                }
+                return;
+            }
+            for (int i = 0; i < cols.length; i++){
+                if (i > 0){
+                    put(',');
+                }
+                csv(cols[i]);
+            }
+            put('\n');
+        }
+
+        void row(Record row){
+            for (int i = 0; i < row.size(); i++){
+                Item item = row.getItemAt(i);
+                cell(i, item.getValue(), item.getType());
+            }
+            endRow();
+        }
+
+        //types null for values with no type (written as strings)
+        void row(String[] values, Type[] types){
+            for (int i = 0; i < values.length; i++){
+                cell(i, values[i], (types == null) ? Type.STRING : types[i]);
+            }
+            endRow();
+        }
+
+        private void cell(int i, String value, Type type){
+            if (format == Format.CSV){
+                if (i > 0){
+                    put(',');
+                }
+                if (value != null){
+                    csv(value);
+                }
+                return;
+            }
+            putBytes(keys[i]);
+            if (value == null){
+                putAscii("null");
+            } else if (type == Type.INT){
+                putAscii(value);
+            } else if (type == Type.BOOL){
+                putAscii(value.equals("1") ? "true" : "false");
+            } else {
+                json(value);
+            }
+        }
+
+        private void endRow(){
+            if (format == Format.JSONL){
+                put('}');
+            }
+            put('\n');
+            rows++;
+        }
+
+        //quoted if it holds a separator, quote or line break - quotes inside are doubled
+        private void csv(String value){
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++){
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote){
+                put(value);
+                return;
+            }
+            put('"');
+            for (int i = 0; i < value.length(); i++){
+                if (value.charAt(i) == '"'){
+                    put('"');
+                }
+                i = put(value, i);
+            }
+            put('"');
+        }
+
+        private void json(String value){
+            put('"');
+            for (int i = 0; i < value.length(); i++){
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\'){
+                    put('\\');
+                    put(c);
+                } else if (c < 0x20){
+                    putAscii(escape(c));
+                } else {
+                    i = put(value, i);
+                }
+            }
+            put('"');
+        }
+
+        private void put(String value){
+            for (int i = 0; i < value.length(); i++){
+                i = put(value, i);
+            }
+        }
+
+        //the char at i, or the pair of chars starting there - returns the index of the last one written
+        private int put(String value, int i){
+            char c = value.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))){
+                putCodePoint(Character.toCodePoint(c, value.charAt(i + 1)));
+                return i + 1;
+            }
+            put(c);
+            return i;
+        }
+
+        //a single char as UTF-8 (an unpaired surrogate is written as ?)
+        private void put(char c){
+            room(3);
+            if (c < 0x80){
+                buffer.put((byte) c);
+            } else if (c < 0x800){
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)){
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+
+        private void putCodePoint(int codePoint){
+            room(4);
+            buffer.put((byte) (0xF0 | (codePoint >> 18)));
+            buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+            buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+        }
+
+        private void putAscii(String value){
+            for (int i = 0; i < value.length(); i++){
+                room(1);
+                buffer.put((byte) value.charAt(i));
+            }
+        }
+
+        private void putBytes(byte[] bytes){
+            if (buffer.remaining() < bytes.length){
+                flush();
+            }
+            if (bytes.length > buffer.capacity()){
+                writeFully(ByteBuffer.wrap(bytes));
+                return;
+            }
+            buffer.put(bytes);
+        }
+
+        private void room(int bytes){
+            if (buffer.remaining() < bytes){
+                flush();
+            }
+        }
+
+        void flush(){
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer bytes){
+            try {
+                while (bytes.hasRemaining()){
+                    channel.write(bytes);
+                }
+            } catch (IOException ex){
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    private static String escape(char c){
+        switch(c){
+            case '\n': return "\\n";
+            case '\r': return "\\r";
+            case '\t': return "\\t";
+            default: return String.format("\\u%04x", (int) c);
+        }
+    }
+
+    private static void appendJson(StringBuilder out, String value){
+        out.append('"');
+        for (int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\'){
+                out.append('\\').append(c);
+            } else if (c < 0x20){
+                out.append(escape(c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        Exporter program = new Exporter(Format.CSV, false);
+        program.run();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea Exporter");
+        test();
+    }
+
+    private void test(){
+        testCsv();
+        testJson();
+        testNative();
+        testCompressed();
+        testQuery();
+        testLargeExport();
+        System.out.println("Exporter: all tests passed");
+    }
+
+    private static String exportString(Exporter exporter, Table table){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assert(exporter.export(table, Channels.newChannel(bytes)) == table.rowSize() - 1);
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static Table shipTable(){
+        Table t1 = new Table("ship", "s%id", "s%name", "s%crew", "s%active");
+        t1.addRow("s%a", "s%Nostromo", "i%7", "b%1");
+        t1.addRow("s%b", "s%say \"hi\", then go", "i%-2", "b%0");
+        t1.addRow("s%c", "s%caf\u00e9 \ud83d\ude80\nline", "i%0", "b%1");
+        return t1;
+    }
+
+    private void testCsv(){
+        Table t1 = shipTable();
+        String csv = exportString(new Exporter(Format.CSV, false), t1);
+        assert(csv.equals("id,name,crew,active\na,Nostromo,7,1\nb,\"say \"\"hi\"\", then go\",-2,0\nc,\"caf\u00e9 \ud83d\ude80\nline\",0,1\n"));
+
+        //what is exported can be loaded again (values without line breaks)
+        t1.deleteRow("c");
+        try (WritableByteChannel out = create("tests/export.csv")){
+            assert(new Exporter(Format.CSV, false).export(t1, out) == 2);
+        } catch (IOException ex){
+            throw new Error(ex);
+        }
+        Table t2 = new Table("ship", "s%id", "s%name", "s%crew", "s%active");
+        BulkLoader.Result loaded = new BulkLoader(1).load(t2, "tests/export.csv", BulkLoader.Format.CSV,
+                                                          new Type[] {Type.STRING, Type.STRING, Type.INT, Type.BOOL});
+        assert(loaded.getAdded() == 2);
+        assert(t2.getItem("b", "name").getValue().equals("say \"hi\", then go"));
+        assert(t2.getItem("b", "crew").getType() == Type.INT);
+        new File("tests/export.csv").delete();
+    }
+
+    private void testJson(){
+        Table t1 = shipTable();
+        String json = exportString(new Exporter(Format.JSONL, false), t1);
+        String[] lines = json.split("\n");
+        assert(lines.length == 3);
+        assert(lines[0].equals("{\"id\":\"a\",\"name\":\"Nostromo\",\"crew\":7,\"active\":true}"));
+        assert(lines[1].equals("{\"id\":\"b\",\"name\":\"say \\\"hi\\\", then go\",\"crew\":-2,\"active\":false}"));
+        assert(lines[2].equals("{\"id\":\"c\",\"name\":\"caf\u00e9 \ud83d\ude80\\nline\",\"crew\":0,\"active\":true}"));
+    }
+
+    //a table file exported to a channel reads back as the table
+    private void testNative(){
+        Table t1 = shipTable();
+        String path = "tests/export.tbl";
+        try (WritableByteChannel out = create(path)){
+            assert(new Exporter(Format.NATIVE, false).export(t1, out) == 3);
+        } catch (IOException ex){
+            throw new Error(ex);
+        }
+        Table t2 = TableFile.read(path, new ArrayList<String>());
+        assert(t2.getPrimaryKeys().equals(t1.getPrimaryKeys()));
+        for (String key : t1.getPrimaryKeys()){
+            assert(Arrays.equals(t2.getRow(key).getItemStrings(), t1.getRow(key).getItemStrings()));
+        }
+        new File(path).delete();
+    }
+
+    private void testCompressed(){
+        Table t1 = shipTable();
+        for (Format format : Format.values()){
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+            assert(new Exporter(format, false).export(t1, Channels.newChannel(plain)) == 3);
+            assert(new Exporter(format, true).export(t1, Channels.newChannel(zipped)) == 3);
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(zipped.toByteArray()))){
+                assert(Arrays.equals(in.readAllBytes(), plain.toByteArray()));
+            } catch (IOException ex){
+                throw new Error(ex);
+            }
+        }
+    }
+
+    private void testQuery(){
+        Database db = new Database("testExporter");
+        db.addTable("Fleet", "id", "shipType", "crew");
+        db.addTableRow("Fleet", "s1", "Cargo", "i%7");
+        db.addTableRow("Fleet", "s2", "Cruiser", "i%300");
+        db.addTableRow("Fleet", "s3", "Cargo", "i%5");
+        String path = "tests/export.jsonl";
+        assert(db.exportQuery("SELECT id, crew FROM Fleet WHERE shipType = Cargo", path, Format.JSONL, false) == 2);
+        assert(db.exportQuery("SELECT id FROM NotATable", path, Format.JSONL, false) == -1);
+        assert(db.exportQuery("SELECT id FROM Fleet", path, Format.NATIVE, false) == -1);
+        assert(db.exportTable("Fleet", path, Format.JSONL, false) == 3);
+        assert(db.exportTable("NotATable", path, Format.JSONL, false) == -1);
+        try (Snapshot snapshot = db.snapshot()){
+            db.addTableRow("Fleet", "s4", "Scout", "i%1");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            assert(new Exporter(Format.CSV, false).export(snapshot.getTable("Fleet"), Channels.newChannel(bytes)) == 3);
+            assert(!bytes.toString().contains("s4"));
+        }
+        new File(path).delete();
+        db.deleteDatabase();
+    }
+
+    //exporting many rows does not need memory for all of them - printed, as it depends on the machine
+    private void testLargeExport(){
+        Table t1 = new Table("big", "s%id", "s%n", "s%name");
+        int count = 300000;
+        for (int i = 0; i < count; i++){
+            t1.addRow("s%k" + i, "i%" + i, "s%name number " + i);
+        }
+        long[] written = {0};
+        WritableByteChannel discard = new WritableByteChannel(){
+            public int write(ByteBuffer src){
+                int n = src.remaining();
+                written[0] += n;
+                src.position(src.limit());
+                return n;
+            }
+            public boolean isOpen(){
+                return true;
+            }
+            public void close(){
+            }
+        };
+        StringBuilder report = new StringBuilder("Exporter: rows/sec");
+        for (Format format : Format.values()){
+            long start = System.nanoTime();
+            assert(new Exporter(format, false).export(t1, discard) == count);
+            long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+            report.append(" - " + format + ": " + count * 1000L / millis);
+        }
+        assert(written[0] > 0);
+        System.out.println(report);
+    }
+}
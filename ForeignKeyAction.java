@@ -0,0 +1,4 @@
+//what deleting a row does to the rows in other tables whose foreign keys refer to it
+enum ForeignKeyAction {
+    RESTRICT, CASCADE; 
+}
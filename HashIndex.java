@@ -0,0 +1,87 @@
+/* A hash index on one column of a table, from each value in the column to the 
+primary keys of the rows holding it. Tables use these for foreign keys: on a column 
+that other tables' foreign keys refer to, so a new foreign key value can be checked 
+in O(1), and on a foreign key column, so the rows referring to a deleted row can be 
+found in O(1). Unlike ColumnIndex it is not ordered and not saved to file - it is 
+built the first time it is needed. */
+import java.util.*;
+
+class HashIndex {
+
+    private String colName;
+    private HashMap<String, Set<String>> keys = new HashMap<>();
+
+    HashIndex(String colName){
+        this.colName = colName;
+    }
+
+    public String getColName(){
+        return colName;
+    }
+
+    //null values are not indexed
+    public void insert(String value, String primaryKey){
+        if (value == null){
+            return;
+        }
+        Set<String> set = keys.get(value);
+        if (set == null){
+            set = new LinkedHashSet<>(2);
+            keys.put(value, set);
+        }
+        set.add(primaryKey);
+    }
+
+    public void remove(String value, String primaryKey){
+        Set<String> set = (value == null) ? null : keys.get(value);
+        if (set != null){
+            set.remove(primaryKey);
+            if (set.isEmpty()){
+                keys.remove(value);
+            }
+        }
+    }
+
+    public boolean contains(String value){
+        return value != null && keys.containsKey(value);
+    }
+
+    //primary keys of rows holding value (empty if there are none)
+    public Set<String> get(String value){
+        Set<String> set = (value == null) ? null : keys.get(value);
+        return (set == null) ? Collections.emptySet() : Collections.unmodifiableSet(set);
+    }
+
+    //number of distinct values
+    public int size(){
+        return keys.size();
+    }
+
+    public void clear(){
+        keys.clear();
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea HashIndex");
+        HashIndex index = new HashIndex("ship-id");
+        index.insert("513", "455");
+        index.insert("513", "255");
+        index.insert("121", "001");
+        index.insert(null, "300");
+        assert(index.size() == 2);
+        assert(index.contains("513"));
+        assert(!index.contains(null));
+        assert(index.get("513").size() == 2);
+        index.remove("513", "455");
+        assert(index.get("513").contains("255"));
+        index.remove("513", "255");
+        assert(!index.contains("513"));
+        assert(index.get("513").isEmpty());
+        index.clear();
+        assert(index.size() == 0);
+        System.out.println("HashIndex: all tests passed");
+    }
+}
@@ -42,7 +42,7 @@ class Input {
     }
 
     public String dbOptions(){
-        String choose = "\nInput command...:\nlist\nview <tableName>\ntype\nSELECT <column> FROM <tableName>";
+        String choose = "\nInput command...:\nlist\nview <tableName>\ntype\npool\nSELECT <columns> FROM <tableName> [JOIN <tableName> [ON <column> = <column>]]\n    [WHERE <column> <op> <value> [AND ...]]\n    [GROUP BY <column>] [ORDER BY <column> [DESC]] [LIMIT <n>]\n    [USING VECTORIZED | PARALLEL <threads>]";
         String choice = "";
         
         choice = getWord(choose);
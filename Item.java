@@ -89,23 +89,20 @@ class Item {
         return false; 
     }  
 
+    //checked a character at a time, as values are checked for every item read or loaded
     public static boolean isValid(String value, Type type){
         boolean valid = false;
         switch(type){
             case INT: 
-                if (isNum(value)){
-                valid = true;
-                }
                 //negative nums
-                else if ( value.charAt(0) == '-' ){
-                    String rest = value.substring(1, value.length()-1);
-                    if (isNum(rest)){
-                        valid = true;
-                    }
+                if (value.startsWith("-")){
+                    valid = isNum(value, 1);
+                } else {
+                    valid = isNum(value, 0);
                 }
                 break;
             case BOOL: 
-                if (value.matches("^[0-1]")){
+                if (value.length() == 1 && (value.charAt(0) == '0' || value.charAt(0) == '1')){
                 valid = true;
                 }
                 break;
@@ -120,11 +117,14 @@ class Item {
         return valid; 
     }
 
-    private static boolean isNum(String value){
-        String temp; 
-        for(int i = 1; i < value.length(); i++){
-            temp = value.substring(i-1, i);
-            if (!temp.matches("^[0-9]")){
+    //at least one digit from start to the end of the value, and nothing else
+    private static boolean isNum(String value, int start){
+        if (start >= value.length()){
+            return false;
+        }
+        for(int i = start; i < value.length(); i++){
+            char c = value.charAt(i);
+            if (c < '0' || c > '9'){
                 return false;
             }
         }
@@ -222,6 +222,9 @@ class Item {
         assert(i.setValue("a213") == false);
         assert(i.setValue("apple") == false);
         assert(i.setValue("99wrong") == false);
+        assert(i.setValue("99x") == false);
+        assert(i.setValue("") == false);
+        assert(i.setValue("-") == false);
         assert(i.getValue().equals("7"));
 
         //check negative numbers 
@@ -0,0 +1,625 @@
+/* Join operators. Each joins the rows of a left and a right input where the value
+in the left join column equals the value in the right join column (an inner join -
+null values never match), and returns the left row's values followed by the right
+row's. Columns are named table.col so that the same column name may appear on both
+sides. There are three ways of joining:
+    Hash  - reads the right input into a hash table on its join column, then looks
+            up each left row in it. If the right input has more rows than the memory
+            budget, both inputs are split by the hash of their join values into
+            partition files on disk, and each pair of partitions is joined in turn. 
+            The files are deleted once they are read, or when the join is closed. 
+            A right partition still over the budget is held a budget of rows at a 
+            time, with its left partition read once for each. An I/O error on the 
+            partition files fails the join with an UncheckedIOException.
+    Merge - for inputs already sorted on their join columns (such as tables with
+            ordered keys joined on their primary keys), walks both in step.
+    Index - looks up each left row in the right table, by its primary key or by a
+            secondary index on the right join column. Only matching rows are read.
+Query picks between these when a SELECT joins tables. */
+import java.io.*;
+import java.util.*;
+
+abstract class Join extends Operator {
+
+    //right rows held in memory by a hash join before it spills to disk
+    static final int DEFAULT_BUDGET = 100000;
+    static final int PARTITIONS = 16;
+
+    protected Operator left;
+    protected String[] cols;
+    protected int leftPos;
+
+    protected Join(Operator left, String leftName, String leftCol, String[] rightCols, String rightName){
+        this.left = left;
+        leftPos = left.indexOf(leftCol);
+        if (leftPos < 0){
+            throw new IllegalArgumentException("no column " + leftCol);
+        }
+        String[] leftCols = left.columns();
+        cols = new String[leftCols.length + rightCols.length];
+        for (int i = 0; i < leftCols.length; i++){
+            cols[i] = qualify(leftName, leftCols[i]);
+        }
+        for (int i = 0; i < rightCols.length; i++){
+            cols[leftCols.length + i] = qualify(rightName, rightCols[i]);
+        }
+    }
+
+    //columns from an earlier join are already named table.col
+    private static String qualify(String tableName, String colName){
+        if (tableName == null || colName.indexOf('.') >= 0){
+            return colName;
+        }
+        return tableName + "." + colName;
+    }
+
+    public String[] columns(){
+        return cols;
+    }
+
+    public void close(){
+        left.close();
+    }
+
+    protected static String[] concat(String[] leftRow, String[] rightRow){
+        String[] joined = Arrays.copyOf(leftRow, leftRow.length + rightRow.length);
+        System.arraycopy(rightRow, 0, joined, leftRow.length, rightRow.length);
+        return joined;
+    }
+
+    protected static int position(Operator op, String colName){
+        int pos = op.indexOf(colName);
+        if (pos < 0){
+            throw new IllegalArgumentException("no column " + colName);
+        }
+        return pos;
+    }
+
+    static class Hash extends Join {
+        private Operator right;
+        private int rightPos;
+        private int budget;
+        //join value -> right rows with that value
+        private Map<String, List<String[]>> built = null;
+        private String[] leftRow;
+        private Iterator<String[]> matches = null;
+        //set when the inputs have been spilled to partition files
+        private File[] leftParts = null;
+        private File[] rightParts = null;
+        private int part = -1;
+        private DataInputStream partIn = null;
+        //the current right partition, while it has rows left that weren't in memory
+        private DataInputStream rightIn = null;
+        private String[] nextRight = null;
+        private boolean chunked = false;
+
+        Hash(Operator left, String leftName, String leftCol, Operator right, String rightName, String rightCol, int budget){
+            super(left, leftName, leftCol, right.columns(), rightName);
+            this.right = right;
+            this.budget = budget;
+            rightPos = position(right, rightCol);
+        }
+
+        public String[] next(){
+            try {
+                if (built == null){
+                    build();
+                }
+                while (true){
+                    if (matches != null && matches.hasNext()){
+                        return concat(leftRow, matches.next());
+                    }
+                    leftRow = nextLeft();
+                    if (leftRow == null){
+                        return null;
+                    }
+                    List<String[]> found = (leftRow[leftPos] == null) ? null : built.get(leftRow[leftPos]);
+                    matches = (found == null) ? null : found.iterator();
+                }
+            } catch (IOException ex){
+                //a partial result would look like a complete one, so the query fails instead
+                closeParts();
+                deleteParts();
+                throw new UncheckedIOException("join could not use its spill files: " + ex.getMessage(), ex);
+            }
+        }
+
+        boolean spilled(){
+            return leftParts != null;
+        }
+
+        boolean chunked(){
+            return chunked;
+        }
+
+        //a join stopped early (by a LIMIT, or an error above it) still deletes its partition files
+        public void close(){
+            super.close();
+            right.close();
+            closeParts();
+            deleteParts();
+        }
+
+        private void build() throws IOException {
+            built = new HashMap<>();
+            int count = 0;
+            String[] row;
+            while ((row = right.next()) != null){
+                if (row[rightPos] == null){
+                    continue;
+                }
+                if (count >= budget){
+                    spill(row);
+                    return;
+                }
+                add(built, row, rightPos);
+                count++;
+            }
+        }
+
+        private static void add(Map<String, List<String[]>> table, String[] row, int pos){
+            List<String[]> rows = table.get(row[pos]);
+            if (rows == null){
+                rows = new ArrayList<>(1);
+                table.put(row[pos], rows);
+            }
+            rows.add(row);
+        }
+
+        //too many right rows - partition both inputs to disk and join partition by partition
+        private void spill(String[] row) throws IOException {
+            rightParts = tempFiles();
+            leftParts = tempFiles();
+            DataOutputStream[] out = open(rightParts);
+            try {
+                for (List<String[]> rows : built.values()){
+                    for (String[] r : rows){
+                        writeRow(out[partition(r[rightPos])], r);
+                    }
+                }
+                do {
+                    if (row[rightPos] != null){
+                        writeRow(out[partition(row[rightPos])], row);
+                    }
+                } while ((row = right.next()) != null);
+            } finally {
+                close(out);
+            }
+            out = open(leftParts);
+            try {
+                while ((row = left.next()) != null){
+                    if (row[leftPos] != null){
+                        writeRow(out[partition(row[leftPos])], row);
+                    }
+                }
+            } finally {
+                close(out);
+            }
+            built = new HashMap<>();
+        }
+
+        //left rows come from the current partition file once spilled - a right partition 
+        //over the budget (such as one holding a much repeated value) is loaded a budget of 
+        //rows at a time, and the left partition is read again for each of them
+        private String[] nextLeft() throws IOException {
+            if (!spilled()){
+                return left.next();
+            }
+            while (true){
+                if (partIn != null){
+                    String[] row = readRow(partIn);
+                    if (row != null){
+                        return row;
+                    }
+                    partIn.close();
+                    partIn = null;
+                    if (rightIn != null){
+                        chunked = true;
+                        loadRight();
+                        partIn = openIn(leftParts[part]);
+                        continue;
+                    }
+                    leftParts[part].delete();
+                }
+                part++;
+                if (part >= PARTITIONS){
+                    built = new HashMap<>();
+                    return null;
+                }
+                rightIn = openIn(rightParts[part]);
+                nextRight = readRow(rightIn);
+                loadRight();
+                partIn = openIn(leftParts[part]);
+            }
+        }
+
+        //the next budget of rows of the current right partition
+        private void loadRight() throws IOException {
+            built = new HashMap<>();
+            int count = 0;
+            while (nextRight != null && count < budget){
+                add(built, nextRight, rightPos);
+                count++;
+                nextRight = readRow(rightIn);
+            }
+            if (nextRight == null){
+                rightIn.close();
+                rightIn = null;
+                rightParts[part].delete();
+            }
+        }
+
+        private static int partition(String value){
+            return (value.hashCode() & 0x7fffffff) % PARTITIONS;
+        }
+
+        private static File[] tempFiles() throws IOException {
+            File[] files = new File[PARTITIONS];
+            for (int i = 0; i < PARTITIONS; i++){
+                files[i] = File.createTempFile("join", ".part");
+            }
+            return files;
+        }
+
+        private static DataOutputStream[] open(File[] files) throws IOException {
+            DataOutputStream[] out = new DataOutputStream[files.length];
+            for (int i = 0; i < files.length; i++){
+                out[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[i])));
+            }
+            return out;
+        }
+
+        private static DataInputStream openIn(File file) throws IOException {
+            return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        private static void close(DataOutputStream[] out) throws IOException {
+            for (DataOutputStream o : out){
+                o.close();
+            }
+        }
+
+        private void closeParts(){
+            for (DataInputStream in : new DataInputStream[] {partIn, rightIn}){
+                if (in != null){
+                    try {
+                        in.close();
+                    } catch (IOException ex){
+                        //being deleted anyway
+                    }
+                }
+            }
+            partIn = null;
+            rightIn = null;
+        }
+
+        private void deleteParts(){
+            for (File[] files : new File[][] {leftParts, rightParts}){
+                if (files != null){
+                    for (File f : files){
+                        f.delete();
+                    }
+                }
+            }
+        }
+
+        //a row is its number of cells, then each cell as a length (-1 for null) and UTF-8 bytes
+        static void writeRow(DataOutputStream out, String[] row) throws IOException {
+            out.writeInt(row.length);
+            for (String cell : row){
+                if (cell == null){
+                    out.writeInt(-1);
+                } else {
+                    byte[] bytes = cell.getBytes("UTF-8");
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+        }
+
+        //null at the end of the file
+        static String[] readRow(DataInputStream in) throws IOException {
+            int size;
+            try {
+                size = in.readInt();
+            } catch (EOFException ex){
+                return null;
+            }
+            String[] row = new String[size];
+            for (int i = 0; i < size; i++){
+                int length = in.readInt();
+                if (length >= 0){
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    row[i] = new String(bytes, "UTF-8");
+                }
+            }
+            return row;
+        }
+    }
+
+    //both inputs must be in ascending order of their join columns by the given comparator
+    static class Merge extends Join {
+        private Operator right;
+        private int rightPos;
+        private Comparator<String> order;
+        private boolean started = false;
+        private String[] leftRow;
+        private String[] rightRow;
+        //right rows equal to the current left row's join value
+        private List<String[]> group = null;
+        private int groupPos = 0;
+
+        Merge(Operator left, String leftName, String leftCol, Operator right, String rightName, String rightCol, Comparator<String> order){
+            super(left, leftName, leftCol, right.columns(), rightName);
+            this.right = right;
+            this.order = order;
+            rightPos = position(right, rightCol);
+        }
+
+        public void close(){
+            super.close();
+            right.close();
+        }
+
+        public String[] next(){
+            if (!started){
+                leftRow = left.next();
+                rightRow = right.next();
+                started = true;
+            }
+            while (true){
+                if (group != null){
+                    if (groupPos < group.size()){
+                        return concat(leftRow, group.get(groupPos++));
+                    }
+                    //the next left row may have the same value
+                    String value = group.get(0)[rightPos];
+                    leftRow = left.next();
+                    if (leftRow != null && leftRow[leftPos] != null && order.compare(leftRow[leftPos], value) == 0){
+                        groupPos = 0;
+                        continue;
+                    }
+                    group = null;
+                }
+                if (leftRow == null || rightRow == null){
+                    return null;
+                }
+                if (leftRow[leftPos] == null){
+                    leftRow = left.next();
+                    continue;
+                }
+                if (rightRow[rightPos] == null){
+                    rightRow = right.next();
+                    continue;
+                }
+                int c = order.compare(leftRow[leftPos], rightRow[rightPos]);
+                if (c < 0){
+                    leftRow = left.next();
+                } else if (c > 0){
+                    rightRow = right.next();
+                } else {
+                    group = new ArrayList<>();
+                    String value = rightRow[rightPos];
+                    while (rightRow != null && rightRow[rightPos] != null && order.compare(rightRow[rightPos], value) == 0){
+                        group.add(rightRow);
+                        rightRow = right.next();
+                    }
+                    groupPos = 0;
+                }
+            }
+        }
+    }
+
+    //the right join column must be the right table's primary key or have an index
+    static class Index extends Join {
+        private Table right;
+        private String rightCol;
+        private boolean byKey;
+        private String[] leftRow;
+        private Iterator<String> keys = null;
+
+        Index(Operator left, String leftName, String leftCol, Table right, String rightName, String rightCol){
+            super(left, leftName, leftCol, colNames(right), rightName);
+            this.right = right;
+            this.rightCol = rightCol;
+            byKey = right.getColNames().getValueAt(0).equals(rightCol);
+            if (!byKey && !right.hasIndex(rightCol)){
+                throw new IllegalArgumentException("no index on " + rightCol);
+            }
+        }
+
+        public String[] next(){
+            while (true){
+                while (keys != null && keys.hasNext()){
+                    String key = keys.next();
+                    //the column names row is never a result
+                    if (key.equals(right.getColNames().getPrimaryKey())){
+                        continue;
+                    }
+                    Record row = right.getRow(key);
+                    if (row != null){
+                        return concat(leftRow, Scan.values(row));
+                    }
+                }
+                leftRow = left.next();
+                if (leftRow == null){
+                    return null;
+                }
+                String value = leftRow[leftPos];
+                if (value == null){
+                    keys = null;
+                } else if (byKey){
+                    keys = Collections.singletonList(value).iterator();
+                } else {
+                    keys = right.lookup(rightCol, value).iterator();
+                }
+            }
+        }
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea Join");
+        Table fleet = new Table("Fleet", "s%ship-id", "s%name");
+        fleet.addRow("s%513", "s%Endeavour");
+        fleet.addRow("s%121", "s%Sputnik");
+        fleet.addRow("s%234", "s%Vostok");
+        fleet.addRow("s%999", "s%Empty");
+        Table crew = new Table("Crew", "s%crew-id", "s%name", "s%ship-id");
+        crew.addRow("s%455", "s%Sally-Ride", "s%513");
+        crew.addRow("s%001", "s%Laika", "s%121");
+        crew.addRow("s%255", "s%Buzz", "s%513");
+        crew.addRow("s%243", "s%Ona", "s%234");
+        crew.addRow("s%300", "s%Nobody", "s%000");
+        testHash(crew, fleet);
+        testSpill(crew, fleet);
+        testMerge();
+        testIndex(crew, fleet);
+        testRowFormat();
+        System.out.println("Join: all tests passed");
+    }
+
+    private static void testHash(Table crew, Table fleet){
+        Join join = new Hash(new Scan(crew), "Crew", "ship-id", new Scan(fleet), "Fleet", "ship-id", DEFAULT_BUDGET);
+        assert(join.columns().length == 5);
+        assert(join.columns()[1].equals("Crew.name"));
+        assert(join.indexOf("Fleet.name") == 4);
+        assert(join.indexOf("name") == -1);
+        assert(join.indexOf("crew-id") == 0);
+        List<String[]> rows = join.toList();
+        assert(rows.size() == 4);
+        for (String[] row : rows){
+            assert(row[2].equals(row[3]));
+            if (row[1].equals("Buzz")){
+                assert(row[4].equals("Endeavour"));
+            }
+        }
+    }
+
+    private static void testSpill(Table crew, Table fleet){
+        //a budget of one row makes the right side spill
+        Hash join = new Hash(new Scan(crew), "Crew", "ship-id", new Scan(fleet), "Fleet", "ship-id", 1);
+        List<String[]> rows = join.toList();
+        assert(join.spilled());
+        assert(rows.size() == 4);
+        Set<String> names = new HashSet<>();
+        for (String[] row : rows){
+            assert(row[2].equals(row[3]));
+            names.add(row[1]);
+        }
+        assert(names.equals(new HashSet<>(Arrays.asList("Sally-Ride", "Laika", "Buzz", "Ona"))));
+
+        //a value repeated past the budget is joined a budget of right rows at a time
+        Table many = new Table("Many", "s%id", "s%ship-id");
+        for (int i = 0; i < 50; i++){
+            many.addRow("s%m" + i, "s%513");
+        }
+        many.addRow("s%other", "s%121");
+        join = new Hash(new Scan(fleet), "Fleet", "ship-id", new Scan(many), "Many", "ship-id", 8);
+        rows = join.toList();
+        assert(join.chunked());
+        assert(rows.size() == 51);
+        Set<String> ids = new HashSet<>();
+        for (String[] row : rows){
+            ids.add(row[2]);
+        }
+        assert(ids.size() == 51);
+
+        //a join stopped early deletes its partition files when it is closed
+        join = new Hash(new Scan(crew), "Crew", "ship-id", new Scan(fleet), "Fleet", "ship-id", 1);
+        assert(new Limit(join, 1).toList().size() == 1);
+        assert(join.spilled());
+        for (File[] files : new File[][] {join.leftParts, join.rightParts}){
+            for (File f : files){
+                assert(!f.exists());
+            }
+        }
+
+        //losing a partition file fails the join rather than cutting its result short
+        join = new Hash(new Scan(crew), "Crew", "ship-id", new Scan(fleet), "Fleet", "ship-id", 1);
+        join.next();
+        for (File f : join.leftParts){
+            f.delete();
+        }
+        boolean failed = false;
+        try {
+            while (join.next() != null){
+            }
+        } catch (UncheckedIOException ex){
+            failed = true;
+        }
+        assert(failed);
+    }
+
+    private static void testMerge(){
+        Table a = new Table("A", "s%id", "s%x");
+        Table b = new Table("B", "s%id", "s%y");
+        a.orderKeys(Type.INT);
+        b.orderKeys(Type.INT);
+        for (int i = 1; i <= 20; i++){
+            a.addRow("i%" + i, "s%a" + i);
+            if (i % 3 == 0){
+                b.addRow("i%" + i, "s%b" + i);
+            }
+        }
+        Join join = new Merge(new OrderedScan(a), "A", "id", new OrderedScan(b), "B", "id", new TypeComparator(Type.INT));
+        List<String[]> rows = join.toList();
+        assert(rows.size() == 6);
+        assert(rows.get(0)[0].equals("3"));
+        assert(rows.get(5)[3].equals("b18"));
+
+        //duplicate values on both sides give every pairing
+        Table l = new Table("L", "s%k", "s%v");
+        l.addRow("s%1", "s%x");
+        l.addRow("s%2", "s%x");
+        l.addRow("s%3", "s%y");
+        Table r = new Table("R", "s%k", "s%v");
+        r.addRow("s%1", "s%x");
+        r.addRow("s%2", "s%x");
+        r.addRow("s%3", "s%z");
+        TypeComparator strings = new TypeComparator(Type.STRING);
+        join = new Merge(new Sort(new Scan(l), "v", false, strings), "L", "v", new Sort(new Scan(r), "v", false, strings), "R", "v", strings);
+        assert(join.toList().size() == 4);
+    }
+
+    private static void testIndex(Table crew, Table fleet){
+        //by the right table's primary key
+        List<String[]> rows = new Index(new Scan(crew), "Crew", "ship-id", fleet, "Fleet", "ship-id").toList();
+        assert(rows.size() == 4);
+        assert(rows.get(0)[4].equals("Endeavour"));
+
+        //by an index on the right table
+        crew.createIndex("ship-id");
+        rows = new Index(new Scan(fleet), "Fleet", "ship-id", crew, "Crew", "ship-id").toList();
+        assert(rows.size() == 4);
+        assert(rows.get(0)[1].equals("Endeavour"));
+
+        boolean failed = false;
+        try {
+            new Index(new Scan(crew), "Crew", "ship-id", fleet, "Fleet", "name");
+        } catch (IllegalArgumentException ex){
+            failed = true;
+        }
+        assert(failed);
+    }
+
+    private static void testRowFormat(){
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            Hash.writeRow(out, new String[] {"a", null, "\u00fcn\u00ef"});
+            out.close();
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            String[] row = Hash.readRow(in);
+            assert(row.length == 3);
+            assert(row[1] == null);
+            assert(row[2].equals("\u00fcn\u00ef"));
+            assert(Hash.readRow(in) == null);
+        } catch (IOException ex){
+            assert(false);
+        }
+    }
+}
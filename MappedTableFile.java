@@ -0,0 +1,446 @@
+/* A read-only view of a binary table file (see TableFile) that has been mapped 
+into memory with a FileChannel. Only the header is decoded when the file is 
+opened. Rows are decoded from the mapped region when they are asked for, and the 
+offset of each row is found the first time a row is looked up by primary key, by 
+reading just the key of each row. The operating system's page cache holds the 
+file, rather than the Java heap. A Table opened from a file uses this class to 
+answer reads until the table is first changed (mapped files are limited to 2GB). 
+The file may instead be read a page at a time through a BufferPool, which bounds 
+the memory used by its pages and has no size limit. */
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+class MappedTableFile implements RowSource {
+
+    //the whole file when it is mapped, or null when it is read through a pool
+    private ByteBuffer buffer;
+    private BufferPool pool = null;
+    private BufferPool.PageFile file = null;
+    private long fileSize;
+    private String name;
+    private Record colNames;
+    private int rowCount;
+    private int pageSize;
+    private long dataStart;
+    //primary key order, or null if keys are kept in insertion order
+    private Type keyType = null;
+    //primary key -> offset of row in file, built on first lookup
+    private volatile LinkedHashMap<String, Long> offsets = null;
+
+    //reads a row at offset in page, which starts at pageStart in the file
+    private interface RowVisitor {
+        void visit(ByteBuffer page, long pageStart, int offset);
+    }
+
+    MappedTableFile(ByteBuffer buffer){
+        this.buffer = buffer;
+        this.fileSize = buffer.limit();
+    }
+
+    private MappedTableFile(BufferPool pool, BufferPool.PageFile file){
+        this.pool = pool;
+        this.file = file;
+        this.fileSize = file.size();
+        this.pageSize = pool.getPageSize();
+    }
+
+    //map a table file - returns null if it can't be mapped or is not a table file
+    public static MappedTableFile open(String path){
+        ByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")){
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE){
+                System.out.println("ERROR: table file too large to map " + path);
+                return null;
+            }
+            //the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException ex){
+            System.out.println("ERROR: file not found");
+            return null;
+        }
+        MappedTableFile source = new MappedTableFile(buffer);
+        if (!source.readHeader(buffer.duplicate())){
+            return null;
+        }
+        return source;
+    }
+
+    //read a table file through pool - returns null if it can't be read or is not a table file
+    public static MappedTableFile open(String path, BufferPool pool){
+        BufferPool.PageFile file = pool.open(path, false);
+        if (file == null){
+            return null;
+        }
+        MappedTableFile source = new MappedTableFile(pool, file);
+        //the header takes a whole number of pages, but how many is only known once it is read
+        for (int pages = 1; ; pages *= 2){
+            ByteBuffer header = pool.read(file, 0, pages);
+            if (header == null){
+                break;
+            }
+            header.limit((int) Math.min(header.limit(), source.fileSize));
+            try {
+                if (source.readHeader(header)){
+                    return source;
+                }
+                break;
+            } catch (BufferUnderflowException ex){
+                if ((long) pages * pool.getPageSize() >= source.fileSize){
+                    System.out.println("ERROR: not a table file");
+                    break;
+                }
+            }
+        }
+        pool.close(file);
+        return null;
+    }
+
+    private boolean readHeader(ByteBuffer b){
+        if (b.remaining() < 14 || b.getInt() != TableFile.MAGIC){
+            System.out.println("ERROR: not a table file");
+            return false;
+        }
+        short version = b.getShort();
+        if (version < 1 || version > TableFile.VERSION){
+            System.out.println("ERROR: unsupported table file version " + version);
+            return false;
+        }
+        int filePageSize = b.getInt();
+        if (pool != null && filePageSize != pageSize){
+            System.out.println("ERROR: table file pages are not the size of the buffer pool's");
+            return false;
+        }
+        pageSize = filePageSize;
+        rowCount = b.getInt();
+        if (version >= 2){
+            byte keyOrder = b.get();
+            if (keyOrder != TableFile.UNORDERED){
+                keyType = TableFile.byteType(keyOrder);
+            }
+        }
+        name = TableFile.getString(b);
+        colNames = TableFile.getRecord(b);
+        dataStart = pages(b.position()) * pageSize;
+        return true;
+    }
+
+    //give the file back to the buffer pool (nothing to do for a mapped file)
+    public void close(){
+        if (pool != null && file != null){
+            pool.close(file);
+            file = null;
+        }
+    }
+
+    public boolean isPooled(){
+        return pool != null;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    //column names, with their types, as stored in the file
+    public Record getColNames(){
+        return colNames;
+    }
+
+    public Type getKeyType(){
+        return keyType;
+    }
+
+    //number of rows, not including the column names
+    public int rowCount(){
+        return rowCount;
+    }
+
+    public boolean containsKey(String primaryKey){
+        return getOffsets().containsKey(primaryKey);
+    }
+
+    //primary keys of all rows in file order, not including the column names
+    public List<String> getPrimaryKeys(){
+        return new ArrayList<>(getOffsets().keySet());
+    }
+
+    //decode a single row, or null if there is no row with that key
+    public Record getRow(String primaryKey){
+        Long offset = getOffsets().get(primaryKey);
+        if (offset == null){
+            return null;
+        }
+        long pageStart = offset - offset % pageSize;
+        ByteBuffer page = pinPage(pageStart);
+        if (page == null){
+            return null;
+        }
+        page.position((int) (offset - pageStart));
+        Record row = TableFile.getRecord(page);
+        unpinPage(pageStart, page);
+        return row;
+    }
+
+    //decode only the Items at colIndex, in file order
+    public List<Item> getCol(int colIndex){
+        List<Item> column = new ArrayList<>(rowCount);
+        forEachRow((page, pageStart, offset) -> {
+            int cells = page.getInt();
+            for (int j = 0; j < cells; j++){
+                if (j == colIndex){
+                    column.add(TableFile.getItem(page));
+                } else {
+                    TableFile.skipItem(page);
+                }
+            }
+        });
+        return column;
+    }
+
+    //rows in file order, decoded a page at a time as they are reached - the key offsets 
+    //are not needed
+    public Iterator<Record> iterator(){
+        return new Iterator<Record>(){
+            private long pageStart = dataStart;
+            private int read = 0;
+            private ArrayDeque<Record> page = new ArrayDeque<>();
+
+            public boolean hasNext(){
+                while (page.isEmpty() && read < rowCount && pageStart + TableFile.PAGE_HEADER <= fileSize){
+                    ByteBuffer b = pinPage(pageStart);
+                    if (b == null){
+                        break;
+                    }
+                    int rowsInPage = b.getInt(0);
+                    int used = b.getInt(4);
+                    b.position(TableFile.PAGE_HEADER);
+                    for (int i = 0; i < rowsInPage; i++){
+                        page.add(TableFile.getRecord(b));
+                        read++;
+                    }
+                    unpinPage(pageStart, b);
+                    pageStart += pages(TableFile.PAGE_HEADER + used) * pageSize;
+                }
+                return !page.isEmpty();
+            }
+
+            public Record next(){
+                if (!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                return page.poll();
+            }
+        };
+    }
+
+    //decode every row in file order, a page at a time, without finding the key offsets
+    public void forEachRecord(Consumer<Record> action){
+        forEachRow((page, pageStart, offset) -> action.accept(TableFile.getRecord(page)));
+    }
+
+    //decode every row in file order and add it to table
+    public int loadInto(Table table){
+        int loaded = forEachRow((page, pageStart, offset) -> table.loadRow(TableFile.getRecord(page)));
+        if (loaded != rowCount){
+            System.out.println("ERROR: table file " + name + " is missing rows");
+        }
+        return loaded;
+    }
+
+    //the rows in runs of whole pages holding at least size rows (the last may hold fewer), 
+    //found by reading only the page headers - each run is decoded when it is asked for, 
+    //so threads decode their own runs
+    public List<Supplier<Record[]>> runs(int size){
+        List<Supplier<Record[]>> runs = new ArrayList<>();
+        long pageStart = dataStart;
+        long runStart = dataStart;
+        int read = 0;
+        int inRun = 0;
+        while (read < rowCount && pageStart + TableFile.PAGE_HEADER <= fileSize){
+            ByteBuffer page = pinPage(pageStart);
+            if (page == null){
+                break;
+            }
+            int rowsInPage = page.getInt(0);
+            int used = page.getInt(4);
+            unpinPage(pageStart, page);
+            pageStart += pages(TableFile.PAGE_HEADER + used) * pageSize;
+            read += rowsInPage;
+            inRun += rowsInPage;
+            if (inRun >= size){
+                runs.add(run(runStart, inRun));
+                runStart = pageStart;
+                inRun = 0;
+            }
+        }
+        if (inRun > 0){
+            runs.add(run(runStart, inRun));
+        }
+        return runs;
+    }
+
+    private Supplier<Record[]> run(long from, int count){
+        return () -> {
+            Record[] rows = new Record[count];
+            int[] decoded = {0};
+            forEachRow(from, count, (page, pageStart, offset) -> rows[decoded[0]++] = TableFile.getRecord(page));
+            return (decoded[0] == count) ? rows : Arrays.copyOf(rows, decoded[0]);
+        };
+    }
+
+    //walk the pages once, reading only the primary key of each row
+    private LinkedHashMap<String, Long> getOffsets(){
+        if (offsets != null){
+            return offsets;
+        }
+        LinkedHashMap<String, Long> found = new LinkedHashMap<String, Long>(rowCount * 4 / 3 + 1);
+        forEachRow((page, pageStart, offset) -> {
+            int cells = page.getInt();
+            if (cells > 0){
+                found.put(TableFile.getItem(page).getValue(), pageStart + offset);
+            }
+            for (int j = 1; j < cells; j++){
+                TableFile.skipItem(page);
+            }
+        });
+        offsets = found;
+        return offsets;
+    }
+
+    //visit every row in file order, one page at a time - returns the number of rows visited
+    private int forEachRow(RowVisitor visitor){
+        return forEachRow(dataStart, rowCount, visitor);
+    }
+
+    //visit count rows in file order, starting with the page at from
+    private int forEachRow(long from, int count, RowVisitor visitor){
+        long pageStart = from;
+        int read = 0;
+        while (read < count && pageStart + TableFile.PAGE_HEADER <= fileSize){
+            ByteBuffer page = pinPage(pageStart);
+            if (page == null){
+                break;
+            }
+            int rowsInPage = page.getInt(0);
+            int used = page.getInt(4);
+            page.position(TableFile.PAGE_HEADER);
+            for (int i = 0; i < rowsInPage; i++){
+                visitor.visit(page, pageStart, page.position());
+                read++;
+            }
+            unpinPage(pageStart, page);
+            pageStart += pages(TableFile.PAGE_HEADER + used) * pageSize;
+        }
+        return read;
+    }
+
+    //the data page starting at pageStart, with the pages after it if it holds a row too 
+    //large for one page - position 0 is the start of the page
+    private ByteBuffer pinPage(long pageStart){
+        if (pool == null){
+            ByteBuffer b = buffer.duplicate();
+            b.position((int) pageStart);
+            return b.slice();
+        }
+        long pageNo = pageStart / pageSize;
+        ByteBuffer page = pool.pin(file, pageNo);
+        if (page == null){
+            return null;
+        }
+        int run = (int) pages(TableFile.PAGE_HEADER + page.getInt(4));
+        if (run > 1){
+            pool.unpin(file, pageNo, false);
+            //copied, so not pinned
+            return pool.read(file, pageNo, run);
+        }
+        return page;
+    }
+
+    private void unpinPage(long pageStart, ByteBuffer page){
+        if (pool != null && page.capacity() == pageSize){
+            pool.unpin(file, pageStart / pageSize, false);
+        }
+    }
+
+    private long pages(long bytes){
+        return (bytes + pageSize - 1) / pageSize;
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        MappedTableFile program = new MappedTableFile(ByteBuffer.allocate(0));
+        program.run();
+        program.test();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea MappedTableFile");
+    }
+
+    private void test(){
+        testOpen();
+        testLazyTable();
+        System.out.println("MappedTableFile: all tests passed");
+    }
+
+    private void testOpen(){
+        Table t1 = new Table("mapped", "s%id", "s%num");
+        for (int i = 0; i < 1500; i++){
+            t1.addRow("s%key" + i, "i%" + i);
+        }
+        assert(TableFile.write(t1, "tests/mapped.tbl"));
+
+        MappedTableFile source = MappedTableFile.open("tests/mapped.tbl");
+        assert(source.getName().equals("mapped"));
+        assert(source.rowCount() == 1500);
+        assert(source.getColNames().getValueAt(1).equals("num"));
+        assert(source.containsKey("key1499"));
+        assert(source.containsKey("key1500") == false);
+        assert(source.getRow("key700").getValueAt(1).equals("700"));
+        assert(source.getRow("key700").getItemAt(1).getType() == Type.INT);
+        assert(source.getRow("missing") == null);
+        assert(source.getPrimaryKeys().get(0).equals("key0"));
+
+        List<Item> col = source.getCol(1);
+        assert(col.size() == 1500);
+        assert(col.get(1499).getValue().equals("1499"));
+
+        assert(MappedTableFile.open("tests/test.txt") == null);
+        new java.io.File("tests/mapped.tbl").delete();
+    }
+
+    private void testLazyTable(){
+        Table t1 = new Table("lazy", "id", "name");
+        t1.addRow("1", "one");
+        t1.addRow("2", "two");
+        assert(TableFile.write(t1, "tests/lazy.tbl"));
+
+        Table t2 = TableFile.open("tests/lazy.tbl", new ArrayList<String>());
+        //reads are answered from the mapped file
+        assert(t2.isMapped());
+        assert(t2.rowSize() == 3);
+        assert(t2.containsKey("2"));
+        assert(t2.getItem("2", "name").getValue().equals("two"));
+        assert(t2.getRow("1").getValueAt(1).equals("one"));
+        assert(t2.getCol("name").size() == 3);
+        assert(t2.getPrimaryKeys().equals(t1.getPrimaryKeys()));
+        assert(t2.isMapped());
+
+        //the first change loads all rows into memory
+        assert(t2.updateItem("2", "name", "deux"));
+        assert(t2.isMapped() == false);
+        assert(t2.getItem("2", "name").getValue().equals("deux"));
+        assert(t2.rowSize() == 3);
+        assert(t2.getCol("name").contains("one"));
+        new java.io.File("tests/lazy.tbl").delete();
+    }
+}
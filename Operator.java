@@ -0,0 +1,597 @@
+/* Physical query operators. Each operator produces rows (arrays of cell values, 
+named by columns()) one at a time from next(), which returns null when there are 
+no more rows, pulling rows from the operator below it as it needs them. Query plans 
+are built from these by Query, and joins are in Join. Scan reads every row of a 
+table (or of a snapshot of it), OrderedScan reads them in key order, KeyScan reads 
+only the rows with the given primary keys (found with an index or the primary key), 
+Filter keeps rows matching every condition, Project picks out columns, Sort orders 
+rows by a column, Limit stops after n rows, and Aggregate groups rows and computes 
+COUNT, SUM, MIN, MAX and AVG for each group. Sort, MIN and MAX order values by the 
+comparator the planner gives them for the column's type (see TypeComparator). An 
+operator is closed once its rows are no longer wanted, whether or not they were all 
+read, and closing one closes the operators below it, so cursors and spill files are 
+let go of when a query stops early. */
+import java.util.*;
+
+abstract class Operator {
+
+    //names of the values in each row
+    public abstract String[] columns();
+
+    //next row, or null when there are no more
+    public abstract String[] next();
+
+    //let go of what the rows are read from - no more rows are read after this
+    public void close(){
+    }
+
+    //read all remaining rows, then close
+    public List<String[]> toList(){
+        List<String[]> rows = new ArrayList<>();
+        try {
+            String[] row;
+            while ((row = next()) != null){
+                rows.add(row);
+            }
+        } finally {
+            close();
+        }
+        return rows;
+    }
+
+    //position of a column in columns(), or -1 (also when a name is ambiguous)
+    //joins name their columns table.col - a plain name finds the only column 
+    //with that name, and table.col finds a plain column of that name
+    public int indexOf(String colName){
+        String[] cols = columns();
+        for (int i = 0; i < cols.length; i++){
+            if (cols[i].equals(colName)){
+                return i;
+            }
+        }
+        boolean qualified = colName.indexOf('.') >= 0;
+        int found = -1;
+        for (int i = 0; i < cols.length; i++){
+            boolean match = qualified ? cols[i].equals(plainName(colName)) 
+                                      : plainName(cols[i]).equals(colName);
+            if (match){
+                if (found >= 0){
+                    return -1;
+                }
+                found = i;
+            }
+        }
+        return found;
+    }
+
+    //column name without any table. in front
+    static String plainName(String colName){
+        return colName.substring(colName.indexOf('.') + 1);
+    }
+
+    static String[] colNames(Table table){
+        List<Item> items = table.getColumnNames();
+        String[] names = new String[items.size()];
+        for (int i = 0; i < names.length; i++){
+            names[i] = items.get(i).getValue();
+        }
+        return names;
+    }
+
+    //every data row of a table, in table order
+    static class Scan extends Operator {
+        private String[] cols;
+        private Cursor<String[]> rows;
+
+        //read through a cursor, a batch of rows at a time, without listing the keys first
+        Scan(Table table){
+            cols = colNames(table);
+            rows = table.cursor().map(Scan::values);
+        }
+
+        //every data row of a table as a snapshot sees it - the rows don't change while it is read
+        Scan(Table.View view){
+            cols = values(view.getColNames());
+            rows = new Cursor<String>(view.getPrimaryKeys().iterator()).map(view::getValues).filter(Objects::nonNull);
+        }
+
+        public String[] columns(){
+            return cols;
+        }
+
+        public String[] next(){
+            return rows.hasNext() ? rows.next() : null;
+        }
+
+        public void close(){
+            rows.close();
+        }
+
+        static String[] values(Record row){
+            String[] values = new String[row.size()];
+            for (int i = 0; i < values.length; i++){
+                values[i] = row.getValueAt(i);
+            }
+            return values;
+        }
+    }
+
+    //the rows of a table with the given primary keys, in the order given
+    static class KeyScan extends Operator {
+        private Table table;
+        private String[] cols;
+        private Iterator<String> keys;
+
+        KeyScan(Table table, List<String> primaryKeys){
+            this.table = table;
+            cols = colNames(table);
+            keys = primaryKeys.iterator();
+        }
+
+        public String[] columns(){
+            return cols;
+        }
+
+        public String[] next(){
+            while (keys.hasNext()){
+                String key = keys.next();
+                //the column names row is never a result
+                if (key == null || key.equals(table.getColNames().getPrimaryKey())){
+                    continue;
+                }
+                Record row = table.getRow(key);
+                if (row != null){
+                    return Scan.values(row);
+                }
+            }
+            return null;
+        }
+    }
+
+    //every data row of a table in primary key order
+    static class OrderedScan extends Operator {
+        private String[] cols;
+        private Iterator<Record> rows;
+
+        OrderedScan(Table table){
+            cols = colNames(table);
+            rows = table.keyCursor(null, null, false);
+        }
+
+        public String[] columns(){
+            return cols;
+        }
+
+        public String[] next(){
+            return rows.hasNext() ? Scan.values(rows.next()) : null;
+        }
+    }
+
+    static class Filter extends Operator {
+        private Operator child;
+        private List<Query.Condition> conditions;
+        private int[] positions;
+
+        Filter(Operator child, List<Query.Condition> conditions){
+            this.child = child;
+            this.conditions = conditions;
+            positions = new int[conditions.size()];
+            for (int i = 0; i < positions.length; i++){
+                positions[i] = child.indexOf(conditions.get(i).colName);
+                if (positions[i] < 0){
+                    throw new IllegalArgumentException("no column " + conditions.get(i).colName);
+                }
+            }
+        }
+
+        public String[] columns(){
+            return child.columns();
+        }
+
+        public String[] next(){
+            String[] row;
+            while ((row = child.next()) != null){
+                if (matches(row)){
+                    return row;
+                }
+            }
+            return null;
+        }
+
+        public void close(){
+            child.close();
+        }
+
+        private boolean matches(String[] row){
+            for (int i = 0; i < positions.length; i++){
+                if (!conditions.get(i).matches(row[positions[i]])){
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static class Project extends Operator {
+        private Operator child;
+        private String[] cols;
+        private int[] positions;
+
+        Project(Operator child, List<String> colNames){
+            this.child = child;
+            cols = colNames.toArray(new String[0]);
+            positions = new int[cols.length];
+            for (int i = 0; i < cols.length; i++){
+                positions[i] = child.indexOf(cols[i]);
+                if (positions[i] < 0){
+                    throw new IllegalArgumentException("no column " + cols[i]);
+                }
+            }
+        }
+
+        public String[] columns(){
+            return cols;
+        }
+
+        public String[] next(){
+            String[] row = child.next();
+            if (row == null){
+                return null;
+            }
+            String[] projected = new String[positions.length];
+            for (int i = 0; i < positions.length; i++){
+                projected[i] = row[positions[i]];
+            }
+            return projected;
+        }
+
+        public void close(){
+            child.close();
+        }
+    }
+
+    //reads all rows from below, then returns them in order of a column's values
+    static class Sort extends Operator {
+        private Operator child;
+        private int position;
+        private boolean descending;
+        private Comparator<String> order;
+        private Iterator<String[]> sorted = null;
+
+        Sort(Operator child, String colName, boolean descending, Comparator<String> order){
+            this.child = child;
+            this.descending = descending;
+            this.order = order;
+            position = child.indexOf(colName);
+            if (position < 0){
+                throw new IllegalArgumentException("no column " + colName);
+            }
+        }
+
+        public String[] columns(){
+            return child.columns();
+        }
+
+        public String[] next(){
+            if (sorted == null){
+                List<String[]> rows = child.toList();
+                Comparator<String[]> rowOrder = (a, b) -> order.compare(a[position], b[position]);
+                rows.sort(descending ? rowOrder.reversed() : rowOrder);
+                sorted = rows.iterator();
+            }
+            return sorted.hasNext() ? sorted.next() : null;
+        }
+
+        public void close(){
+            child.close();
+        }
+    }
+
+    static class Limit extends Operator {
+        private Operator child;
+        private int remaining;
+
+        Limit(Operator child, int limit){
+            this.child = child;
+            this.remaining = limit;
+        }
+
+        public String[] columns(){
+            return child.columns();
+        }
+
+        public String[] next(){
+            if (remaining <= 0){
+                //the rest of the child's rows are not wanted
+                child.close();
+                return null;
+            }
+            remaining--;
+            return child.next();
+        }
+
+        public void close(){
+            child.close();
+        }
+    }
+
+    //groups rows by one column (or all rows into one group) and computes aggregates
+    static class Aggregate extends Operator {
+        private Operator child;
+        private String groupBy;
+        private List<Query.Aggregate> aggregates;
+        private String[] cols;
+        private Iterator<String[]> results = null;
+
+        Aggregate(Operator child, String groupBy, List<Query.Aggregate> aggregates){
+            this.child = child;
+            this.groupBy = groupBy;
+            this.aggregates = aggregates;
+            int offset = (groupBy == null) ? 0 : 1;
+            cols = new String[aggregates.size() + offset];
+            if (groupBy != null){
+                if (child.indexOf(groupBy) < 0){
+                    throw new IllegalArgumentException("no column " + groupBy);
+                }
+                cols[0] = groupBy;
+            }
+            for (int i = 0; i < aggregates.size(); i++){
+                Query.Aggregate agg = aggregates.get(i);
+                if (agg.colName != null && child.indexOf(agg.colName) < 0){
+                    throw new IllegalArgumentException("no column " + agg.colName);
+                }
+                cols[i + offset] = agg.toString();
+            }
+        }
+
+        public String[] columns(){
+            return cols;
+        }
+
+        public String[] next(){
+            if (results == null){
+                results = results(accumulate(), groupBy, aggregates).iterator();
+            }
+            return results.hasNext() ? results.next() : null;
+        }
+
+        public void close(){
+            child.close();
+        }
+
+        //group value -> running state for each aggregate, over every row of the child
+        LinkedHashMap<String, Accumulator[]> accumulate(){
+            int groupPos = (groupBy == null) ? -1 : child.indexOf(groupBy);
+            int[] positions = new int[aggregates.size()];
+            for (int i = 0; i < positions.length; i++){
+                String colName = aggregates.get(i).colName;
+                positions[i] = (colName == null) ? -1 : child.indexOf(colName);
+            }
+
+            LinkedHashMap<String, Accumulator[]> groups = new LinkedHashMap<>();
+            if (groupBy == null){
+                groups.put(null, newAccumulators());
+            }
+            String[] row;
+            while ((row = child.next()) != null){
+                String group = (groupPos < 0) ? null : row[groupPos];
+                Accumulator[] accs = groups.get(group);
+                if (accs == null){
+                    accs = newAccumulators();
+                    groups.put(group, accs);
+                }
+                for (int i = 0; i < accs.length; i++){
+                    accs[i].add((positions[i] < 0) ? "*" : row[positions[i]]);
+                }
+            }
+
+            return groups;
+        }
+
+        //a row for each group: its value (if grouped by a column), then each aggregate's result
+        static List<String[]> results(LinkedHashMap<String, Accumulator[]> groups, String groupBy, List<Query.Aggregate> aggregates){
+            List<String[]> out = new ArrayList<>();
+            int offset = (groupBy == null) ? 0 : 1;
+            for (Map.Entry<String, Accumulator[]> entry : groups.entrySet()){
+                String[] result = new String[aggregates.size() + offset];
+                if (groupBy != null){
+                    result[0] = entry.getKey();
+                }
+                for (int i = 0; i < aggregates.size(); i++){
+                    result[i + offset] = entry.getValue()[i].result(aggregates.get(i).function);
+                }
+                out.add(result);
+            }
+            return out;
+        }
+
+        private Accumulator[] newAccumulators(){
+            Accumulator[] accs = new Accumulator[aggregates.size()];
+            for (int i = 0; i < accs.length; i++){
+                accs[i] = new Accumulator(aggregates.get(i).order);
+            }
+            return accs;
+        }
+    }
+
+    //running count, sum, min and max of the values in a group (nulls are not counted)
+    //min and max are found with the order of the column's values - in an INT column, 
+    //plainly written numbers are compared as numbers without going through it
+    static class Accumulator {
+        long count = 0;
+        long numbers = 0;
+        long sum = 0;
+        String min = null, max = null;
+        //min and max as numbers, when they are compared as numbers
+        boolean minIsNumber = false, maxIsNumber = false;
+        long minNumber = 0, maxNumber = 0;
+        private final Comparator<String> order;
+        private final boolean byNumber;
+
+        Accumulator(Comparator<String> order){
+            this.order = order;
+            byNumber = (order instanceof TypeComparator) && ((TypeComparator)order).getType() == Type.INT;
+        }
+
+        void add(String value){
+            if (value == null){
+                return;
+            }
+            if (TypeComparator.isPlainLong(value)){
+                addNumber(Long.parseLong(value), value);
+                return;
+            }
+            if (TypeComparator.isLong(value)){
+                sum += Long.parseLong(value);
+                numbers++;
+            }
+            count++;
+            if (min == null || order.compare(value, min) < 0){
+                min = value;
+                minIsNumber = false;
+            }
+            if (max == null || order.compare(value, max) > 0){
+                max = value;
+                maxIsNumber = false;
+            }
+        }
+
+        //add a plainly written number (see TypeComparator.isPlainLong), already parsed
+        void addNumber(long number, String value){
+            count++;
+            sum += number;
+            numbers++;
+            if (min == null || (minIsNumber ? number < minNumber : order.compare(value, min) < 0)){
+                min = value;
+                minNumber = number;
+                minIsNumber = byNumber;
+            }
+            if (max == null || (maxIsNumber ? number > maxNumber : order.compare(value, max) > 0)){
+                max = value;
+                maxNumber = number;
+                maxIsNumber = byNumber;
+            }
+        }
+
+        //add what another accumulator has counted, over rows that came after this one's
+        void merge(Accumulator other){
+            count += other.count;
+            sum += other.sum;
+            numbers += other.numbers;
+            if (other.min != null && (min == null || order.compare(other.min, min) < 0)){
+                min = other.min;
+                minNumber = other.minNumber;
+                minIsNumber = other.minIsNumber;
+            }
+            if (other.max != null && (max == null || order.compare(other.max, max) > 0)){
+                max = other.max;
+                maxNumber = other.maxNumber;
+                maxIsNumber = other.maxIsNumber;
+            }
+        }
+
+        //whether numbers may be added by comparing them with min and max as numbers
+        boolean numbersOnly(){
+            return byNumber && (min == null || minIsNumber) && (max == null || maxIsNumber);
+        }
+
+        String result(String function){
+            switch(function){
+                case "COUNT": 
+                    return Long.toString(count);
+                case "SUM": 
+                    return Long.toString(sum);
+                case "AVG": 
+                    return (numbers == 0) ? null : Double.toString((double)sum / numbers);
+                case "MIN": 
+                    return min;
+                default:
+                    return max;
+            }
+        }
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea Operator");
+        testOrder();
+        testPipeline();
+        System.out.println("Operator: all tests passed");
+    }
+
+    //values are ordered by their column's type, whatever other values they are with
+    private static void testOrder(){
+        Table t = new Table("Mixed", "s%id", "s%code", "i%size");
+        t.addRow("s%1", "s%2", "i%2");
+        t.addRow("s%2", "s%10", "i%10");
+        t.addRow("s%3", "s%1a", "i%1a");
+        t.addRow("s%4", "s%1a", "i%1a");
+        TypeComparator strings = new TypeComparator(Type.STRING);
+        TypeComparator ints = new TypeComparator(Type.INT);
+
+        //a STRING column sorts as strings, an INT column numbers first
+        List<String[]> rows = new Sort(new Scan(t), "code", false, strings).toList();
+        assert(rows.get(0)[1].equals("10"));
+        assert(rows.get(3)[1].equals("2"));
+        rows = new Sort(new Scan(t), "size", false, ints).toList();
+        assert(rows.get(0)[2].equals("2"));
+        assert(rows.get(1)[2].equals("10"));
+
+        //MIN and MAX don't depend on the order values come in
+        for (String[] values : new String[][] {{"2", "10", "1a"}, {"1a", "10", "2"}, {"10", "1a", "2"}}){
+            Accumulator s = new Accumulator(strings);
+            Accumulator i = new Accumulator(ints);
+            for (String v : values){
+                s.add(v);
+                i.add(v);
+            }
+            assert(s.result("MIN").equals("10") && s.result("MAX").equals("2"));
+            assert(i.result("MIN").equals("2") && i.result("MAX").equals("1a"));
+            assert(i.result("SUM").equals("12"));
+        }
+    }
+
+    private static void testPipeline(){
+        Table t = new Table("Things", "s%id", "s%name", "i%weight");
+        t.addRow("s%1", "s%rock", "i%40");
+        t.addRow("s%2", "s%feather", "i%1");
+        t.addRow("s%3", "s%brick", "i%30");
+        t.addRow("s%4", "s%sand", "i%40");
+
+        assert(new Scan(t).toList().size() == 4);
+        try (Snapshot snapshot = Snapshot.of(t)){
+            Operator scan = new Scan(snapshot.getTable("Things"));
+            t.deleteRow("2");
+            assert(scan.toList().size() == 4);
+            t.addRow("s%2", "s%feather", "i%1");
+        }
+        assert(new KeyScan(t, Arrays.asList("3", "9", "id")).toList().size() == 1);
+
+        TypeComparator ints = new TypeComparator(Type.INT);
+        Operator op = new Project(new Limit(new Sort(new Scan(t), "weight", true, ints), 2), Arrays.asList("name"));
+        assert(op.columns().length == 1);
+        List<String[]> rows = op.toList();
+        assert(rows.size() == 2);
+        assert(rows.get(0)[0].equals("rock") || rows.get(0)[0].equals("sand"));
+        assert(op.next() == null);
+
+        List<Query.Aggregate> aggs = Arrays.asList(new Query.Aggregate("COUNT", null), new Query.Aggregate("SUM", "weight"));
+        op = new Aggregate(new Scan(t), "weight", aggs);
+        assert(op.indexOf("SUM(weight)") == 2);
+        rows = new Sort(op, "weight", false, ints).toList();
+        assert(rows.size() == 3);
+        assert(rows.get(2)[0].equals("40"));
+        assert(rows.get(2)[1].equals("2"));
+        assert(rows.get(2)[2].equals("80"));
+
+        boolean failed = false;
+        try {
+            new Project(new Scan(t), Arrays.asList("colour"));
+        } catch (IllegalArgumentException ex){
+            failed = true;
+        }
+        assert(failed);
+    }
+}
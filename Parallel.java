@@ -0,0 +1,500 @@
+/* Parallel scans of a table's rows on a ForkJoinPool. The rows are split into morsels
+(runs of MORSEL rows), each morsel is worked on by one task, and the results are
+merged in table order: scan splits the rows in halves until they are a morsel long,
+so idle threads steal the halves not yet started, and merges each pair of halves as
+they finish; forEachOrdered works on a window of morsels at a time and hands their
+results on in order, so a long table is never held in memory as results. There is a
+pool for each parallelism asked for, and a parallelism of 1 (or rows that fit in one
+morsel) runs in the calling thread. Rows a table reads from a file or off the heap
+come as runs (see RowSource.runs), and each task decodes the run it works on, so they
+are decoded in parallel too. Table holds its read lock while its rows are worked on,
+so the work must not call the table's own methods. Scan and Aggregate are
+query operators that filter and aggregate a table's morsels (each a batch at a time,
+see Vectorized) on parallelism threads; Query uses them for a query USING PARALLEL n
+with n above 1. */
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+class Parallel {
+
+    public static final int MORSEL = 16384;
+
+    private static final ConcurrentHashMap<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
+
+    //work on rows[from] to rows[to - 1]
+    interface Morsel<R> {
+        R apply(Record[] rows, int from, int to);
+    }
+
+    //threads used when a caller doesn't say
+    static int defaultParallelism(){
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    static ForkJoinPool pool(int parallelism){
+        return pools.computeIfAbsent(parallelism, ForkJoinPool::new);
+    }
+
+    //work on every morsel of rows, merging the results of neighbouring morsels in order
+    static <R> R scan(Record[] rows, int parallelism, Morsel<R> work, BinaryOperator<R> merge){
+        if (parallelism <= 1 || rows.length <= MORSEL){
+            return work.apply(rows, 0, rows.length);
+        }
+        return pool(parallelism).invoke(new Split<R>(rows, 0, rows.length, work, merge));
+    }
+
+    private static class Split<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+        private Record[] rows;
+        private int from, to;
+        private Morsel<R> work;
+        private BinaryOperator<R> merge;
+
+        Split(Record[] rows, int from, int to, Morsel<R> work, BinaryOperator<R> merge){
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.work = work;
+            this.merge = merge;
+        }
+
+        protected R compute(){
+            if (to - from <= MORSEL){
+                return work.apply(rows, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            Split<R> right = new Split<R>(rows, middle, to, work, merge);
+            right.fork();
+            R left = new Split<R>(rows, from, middle, work, merge).compute();
+            return merge.apply(left, right.join());
+        }
+    }
+
+    //the same for rows in runs, each decoded by the task that works on it
+    static <R> R scan(List<Supplier<Record[]>> runs, int parallelism, Morsel<R> work, BinaryOperator<R> merge){
+        if (runs.isEmpty()){
+            return work.apply(new Record[0], 0, 0);
+        }
+        if (parallelism <= 1 || runs.size() == 1){
+            R result = null;
+            for (Supplier<Record[]> run : runs){
+                R part = apply(run, work);
+                result = (result == null) ? part : merge.apply(result, part);
+            }
+            return result;
+        }
+        return pool(parallelism).invoke(new SplitRuns<R>(runs, 0, runs.size(), work, merge));
+    }
+
+    private static <R> R apply(Supplier<Record[]> run, Morsel<R> work){
+        Record[] rows = run.get();
+        return work.apply(rows, 0, rows.length);
+    }
+
+    private static class SplitRuns<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+        private List<Supplier<Record[]>> runs;
+        private int from, to;
+        private Morsel<R> work;
+        private BinaryOperator<R> merge;
+
+        SplitRuns(List<Supplier<Record[]>> runs, int from, int to, Morsel<R> work, BinaryOperator<R> merge){
+            this.runs = runs;
+            this.from = from;
+            this.to = to;
+            this.work = work;
+            this.merge = merge;
+        }
+
+        protected R compute(){
+            if (to - from == 1){
+                return apply(runs.get(from), work);
+            }
+            int middle = (from + to) >>> 1;
+            SplitRuns<R> right = new SplitRuns<R>(runs, middle, to, work, merge);
+            right.fork();
+            R left = new SplitRuns<R>(runs, from, middle, work, merge).compute();
+            return merge.apply(left, right.join());
+        }
+    }
+
+    //work on every morsel of rows, giving each result to consume in table order (in the
+    //calling thread) - no more than two morsels a thread are worked on ahead of consume
+    static <R> void forEachOrdered(Record[] rows, int parallelism, Morsel<R> work, Consumer<R> consume){
+        if (parallelism <= 1 || rows.length <= MORSEL){
+            consume.accept(work.apply(rows, 0, rows.length));
+            return;
+        }
+        ForkJoinPool pool = pool(parallelism);
+        ArrayDeque<ForkJoinTask<R>> pending = new ArrayDeque<>();
+        for (int from = 0; from < rows.length; from += MORSEL){
+            int start = from;
+            int end = Math.min(rows.length, from + MORSEL);
+            pending.add(pool.submit(() -> work.apply(rows, start, end)));
+            if (pending.size() >= parallelism * 2){
+                consume.accept(pending.poll().join());
+            }
+        }
+        while (!pending.isEmpty()){
+            consume.accept(pending.poll().join());
+        }
+    }
+
+    //the same for rows in runs, each decoded by the task that works on it
+    static <R> void forEachOrdered(List<Supplier<Record[]>> runs, int parallelism, Morsel<R> work, Consumer<R> consume){
+        if (runs.isEmpty()){
+            consume.accept(work.apply(new Record[0], 0, 0));
+            return;
+        }
+        if (parallelism <= 1 || runs.size() <= 1){
+            for (Supplier<Record[]> run : runs){
+                consume.accept(apply(run, work));
+            }
+            return;
+        }
+        ForkJoinPool pool = pool(parallelism);
+        ArrayDeque<ForkJoinTask<R>> pending = new ArrayDeque<>();
+        for (Supplier<Record[]> run : runs){
+            pending.add(pool.submit(() -> apply(run, work)));
+            if (pending.size() >= parallelism * 2){
+                consume.accept(pending.poll().join());
+            }
+        }
+        while (!pending.isEmpty()){
+            consume.accept(pending.poll().join());
+        }
+    }
+
+    //the rows of a table matching every condition, in table order, filtered in parallel
+    static class Scan extends Operator {
+        private Table table;
+        private String[] cols;
+        private List<Query.Condition> conditions;
+        private int parallelism;
+        private Iterator<String[]> results = null;
+
+        Scan(Table table, List<Query.Condition> conditions, int parallelism){
+            this.table = table;
+            this.conditions = conditions;
+            this.parallelism = parallelism;
+            cols = colNames(table);
+            for (Query.Condition c : conditions){
+                if (indexOf(c.colName) < 0){
+                    throw new IllegalArgumentException("no column " + c.colName);
+                }
+            }
+        }
+
+        public String[] columns(){
+            return cols;
+        }
+
+        public String[] next(){
+            if (results == null){
+                results = table.parallelScan(parallelism, (rows, from, to) -> {
+                    return morsel(rows, from, to).toList();
+                }, (a, b) -> {
+                    a.addAll(b);
+                    return a;
+                }).iterator();
+            }
+            return results.hasNext() ? results.next() : null;
+        }
+
+        //the matching rows of a morsel, a batch at a time
+        private Vectorized.Scan morsel(Record[] rows, int from, int to){
+            Iterator<Record> morsel = Arrays.asList(rows).subList(from, to).iterator();
+            return new Vectorized.Scan(cols, conditions, new Cursor<Record>(morsel));
+        }
+    }
+
+    //groups the rows of a scan by one column (or all rows into one group) and computes
+    //aggregates for each morsel in parallel, then merges them
+    static class Aggregate extends Operator {
+        private Parallel.Scan scan;
+        private String groupBy;
+        private List<Query.Aggregate> aggregates;
+        private String[] cols;
+        private Iterator<String[]> results = null;
+
+        Aggregate(Parallel.Scan scan, String groupBy, List<Query.Aggregate> aggregates){
+            this.scan = scan;
+            this.groupBy = groupBy;
+            this.aggregates = aggregates;
+            int offset = (groupBy == null) ? 0 : 1;
+            cols = new String[aggregates.size() + offset];
+            if (groupBy != null){
+                if (scan.indexOf(groupBy) < 0){
+                    throw new IllegalArgumentException("no column " + groupBy);
+                }
+                cols[0] = groupBy;
+            }
+            for (int i = 0; i < aggregates.size(); i++){
+                Query.Aggregate agg = aggregates.get(i);
+                if (agg.colName != null && scan.indexOf(agg.colName) < 0){
+                    throw new IllegalArgumentException("no column " + agg.colName);
+                }
+                cols[i + offset] = agg.toString();
+            }
+        }
+
+        public String[] columns(){
+            return cols;
+        }
+
+        public String[] next(){
+            if (results == null){
+                LinkedHashMap<String, Operator.Accumulator[]> groups = scan.table.parallelScan(scan.parallelism, (rows, from, to) -> {
+                    return new Vectorized.Aggregate(scan.morsel(rows, from, to), groupBy, aggregates).accumulate();
+                }, Parallel::merge);
+                results = Operator.Aggregate.results(groups, groupBy, aggregates).iterator();
+            }
+            return results.hasNext() ? results.next() : null;
+        }
+    }
+
+    //add the groups of a later run of rows to those of an earlier one - groups first
+    //seen in the later run come after the earlier run's
+    static LinkedHashMap<String, Operator.Accumulator[]> merge(LinkedHashMap<String, Operator.Accumulator[]> a,
+                                                               LinkedHashMap<String, Operator.Accumulator[]> b){
+        for (Map.Entry<String, Operator.Accumulator[]> entry : b.entrySet()){
+            Operator.Accumulator[] accs = a.get(entry.getKey());
+            if (accs == null){
+                a.put(entry.getKey(), entry.getValue());
+                continue;
+            }
+            for (int i = 0; i < accs.length; i++){
+                accs[i].merge(entry.getValue()[i]);
+            }
+        }
+        return a;
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea Parallel");
+        testScan();
+        testForEachOrdered();
+        testTable();
+        testQueries();
+        benchmark();
+        System.out.println("Parallel: all tests passed");
+    }
+
+    private static Record[] records(int count){
+        Record[] rows = new Record[count];
+        for (int i = 0; i < count; i++){
+            rows[i] = new Record("s%k" + i, "i%" + i);
+        }
+        return rows;
+    }
+
+    private static void testScan(){
+        Record[] rows = records(100000);
+        Morsel<Long> sum = (r, from, to) -> {
+            long total = 0;
+            for (int i = from; i < to; i++){
+                total += Long.parseLong(r[i].getValueAt(1));
+            }
+            return total;
+        };
+        long expected = 99999L * 100000 / 2;
+        for (int parallelism : new int[] {1, 2, 4}){
+            assert(scan(rows, parallelism, sum, Long::sum) == expected);
+        }
+        //results are merged in order
+        Morsel<List<String>> keys = (r, from, to) -> {
+            List<String> found = new ArrayList<>();
+            for (int i = from; i < to; i++){
+                found.add(r[i].getPrimaryKey());
+            }
+            return found;
+        };
+        List<String> all = scan(rows, 3, keys, (a, b) -> {
+            a.addAll(b);
+            return a;
+        });
+        assert(all.size() == 100000);
+        assert(all.get(MORSEL).equals("k" + MORSEL));
+        assert(all.get(99999).equals("k99999"));
+        assert(scan(new Record[0], 4, sum, Long::sum) == 0);
+    }
+
+    private static void testForEachOrdered(){
+        Record[] rows = records(70000);
+        List<Integer> from = new ArrayList<>();
+        forEachOrdered(rows, 2, (r, start, end) -> start, from::add);
+        assert(from.equals(Arrays.asList(0, MORSEL, 2 * MORSEL, 3 * MORSEL, 4 * MORSEL)));
+        boolean failed = false;
+        try {
+            forEachOrdered(rows, 2, (r, start, end) -> {
+                throw new IllegalStateException("bad morsel");
+            }, value -> {});
+        } catch (RuntimeException ex){
+            failed = true;
+        }
+        assert(failed);
+    }
+
+    private static Table numbers(int count){
+        Table t1 = new Table("numbers", "s%id", "s%n", "s%kind");
+        for (int i = 0; i < count; i++){
+            t1.addRow("s%k" + i, "i%" + i, "s%kind" + (i % 5));
+        }
+        return t1;
+    }
+
+    private static void testTable(){
+        Table t1 = numbers(50000);
+        assert(t1.contains("k49999", 4));
+        assert(t1.contains("kind3", 4));
+        assert(!t1.contains("k50000", 4));
+        //column names count too
+        assert(t1.contains("kind", 4));
+        assert(t1.contains("k17", 1));
+
+        Record col = t1.getCol("n", 4);
+        assert(col.size() == 50001);
+        assert(col.getValueAt(0).equals("n"));
+        assert(col.getValueAt(1).equals("0"));
+        assert(col.getValueAt(MORSEL + 1).equals(Integer.toString(MORSEL)));
+        assert(col.getValueAt(50000).equals("49999"));
+        assert(t1.getCol("nothing", 4) == null);
+        //the same items as walking down the column
+        Record walked = t1.getCol("n", 1);
+        for (int i = 0; i < col.size(); i++){
+            assert(col.getItemAt(i) == walked.getItemAt(i));
+        }
+
+        //a table read from its file, or off the heap, is scanned without being loaded - 
+        //its rows split by page or by block, each morsel decoded on its own thread, in order
+        assert(TableFile.write(t1, "tests/parallel.tbl"));
+        Table t2 = TableFile.open("tests/parallel.tbl", new ArrayList<String>(), null);
+        Table t3 = TableFile.open("tests/parallel.tbl", new ArrayList<String>(), new BufferPool(64 * TableFile.PAGE_SIZE));
+        Table t4 = numbers(50000);
+        t4.moveOffHeap(new RowStore());
+        for (Table t : new Table[] {t2, t3, t4}){
+            for (int parallelism : new int[] {1, 4}){
+                long rows = t.parallelScan(parallelism, (r, from, to) -> (long)(to - from), Long::sum);
+                assert(rows == 50000);
+                List<String> keys = new ArrayList<>();
+                t.parallelForEach(parallelism, (r, from, to) -> {
+                    List<String> found = new ArrayList<>();
+                    for (int i = from; i < to; i++){
+                        found.add(r[i].getPrimaryKey());
+                    }
+                    return found;
+                }, keys::addAll);
+                assert(keys.size() == 50000);
+                for (int i = 0; i < keys.size(); i += 997){
+                    assert(keys.get(i).equals("k" + i));
+                }
+            }
+        }
+        assert(t2.isMapped() && t3.isMapped() && t4.isOffHeap());
+        Morsel<Long> sum = (r, from, to) -> {
+            long total = 0;
+            for (int i = from; i < to; i++){
+                total += Long.parseLong(r[i].getValueAt(1));
+            }
+            return total;
+        };
+        for (int parallelism : new int[] {1, 4}){
+            long start = System.nanoTime();
+            assert(t2.parallelScan(parallelism, sum, Long::sum) == 49999L * 50000 / 2);
+            System.out.println("parallelism " + parallelism + ": 50000 mapped rows decoded and summed in "
+                               + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+        t2.release();
+        t3.release();
+        new java.io.File("tests/parallel.tbl").delete();
+    }
+
+    private static boolean same(List<String[]> a, List<String[]> b){
+        if (a.size() != b.size()){
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++){
+            if (!Arrays.equals(a.get(i), b.get(i))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String[]> run(Database db, String sql, int parallelism){
+        Query q = Query.parse(sql);
+        q.parallelism = parallelism;
+        return q.plan(db).toList();
+    }
+
+    private static void testQueries(){
+        Database db = new Database("testParallel");
+        db.addTable("Parts", "s%id", "s%kind", "i%weight");
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < 60000; i++){
+            String weight = (i == 40000) ? "s%heavy" : "i%" + ((i * 37) % 1000);
+            rows.add(new String[] {"s%p" + i, "s%k" + (i % 7), weight});
+        }
+        assert(db.addTableRows("Parts", rows));
+        String[] queries = {
+            "SELECT COUNT(*), COUNT(weight), SUM(weight), MIN(weight), MAX(weight), AVG(weight) FROM Parts",
+            "SELECT kind, COUNT(*), SUM(weight), MIN(weight) FROM Parts WHERE weight < 500 GROUP BY kind",
+            "SELECT id, weight FROM Parts WHERE weight >= 990 AND kind != k3",
+            "SELECT id FROM Parts WHERE weight = 7 ORDER BY id LIMIT 3",
+            "SELECT MAX(weight) FROM Parts WHERE kind = none",
+            "SELECT name FROM Parts WHERE id = p5"
+        };
+        for (String sql : queries){
+            List<String[]> expected = null;
+            try {
+                expected = run(db, sql, 1);
+            } catch (IllegalArgumentException ex){
+            }
+            for (int parallelism : new int[] {2, 4}){
+                List<String[]> found = null;
+                try {
+                    found = run(db, sql, parallelism);
+                } catch (IllegalArgumentException ex){
+                }
+                assert((expected == null) ? found == null : same(expected, found)) : sql;
+            }
+        }
+        db.deleteDatabase();
+    }
+
+    //a full-table aggregate at each parallelism up to the number of processors (at least 4)
+    private static void benchmark(){
+        Database db = new Database("testParallel");
+        db.addTable("Ships", "s%id", "s%class", "i%crew", "i%tonnage");
+        Random random = new Random(11);
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < 100000; i++){
+            rows.add(new String[] {"s%ship" + i, "s%c" + random.nextInt(8),
+                                   "i%" + random.nextInt(1000), "i%" + random.nextInt(100000)});
+            if (rows.size() == 10000){
+                assert(db.addTableRows("Ships", rows));
+                rows.clear();
+            }
+        }
+        String sql = "SELECT class, COUNT(*), SUM(tonnage), MAX(crew) FROM Ships WHERE crew > 100 GROUP BY class";
+        List<String[]> expected = run(db, sql, 1);
+        for (int parallelism = 1; parallelism <= Math.max(4, defaultParallelism()); parallelism *= 2){
+            assert(same(expected, run(db, sql, parallelism)));
+            long start = System.nanoTime();
+            for (int round = 0; round < 5; round++){
+                run(db, sql, parallelism);
+            }
+            System.out.println("parallelism " + parallelism + ": " + (System.nanoTime() - start) / 5000000 + " ms");
+        }
+        db.deleteDatabase();
+    }
+}
@@ -0,0 +1,802 @@
+/* A table split on its primary key into partitions, each an ordinary Table (named
+name~0, name~1, ...) with its own rows, lock and indexes, and, in a database, its own
+table file. A key belongs to a partition by its hash (HASH), or by where it falls
+among bounds in key order (RANGE: partition i holds the keys below bounds[i] that are
+not below bounds[i - 1], and the last partition holds the rest). Rows are added,
+changed and read in the one partition their key belongs to, so changes to different
+partitions take different locks and go ahead at the same time, and many rows are
+added a partition's share per thread. Reads of a range of keys only read the
+partitions the range can be in - for HASH that is every partition unless the range is
+one key, and their rows are merged into key order. Each partition orders its keys by
+the key type. Partitions are found by name each time they are used, so a database may
+unload and read them again like any other table. Scan and Aggregate are query
+operators over the partitions a query's key conditions leave: Scan reads them one after
+another in partition order, and Aggregate reads each on its own thread and merges their
+groups in partition order; Query plans them for a partitioned table, which can't be
+joined. Many rows are added all or none: every partition's share is checked before any
+is added. A database lists its partitioned tables in FILE_NAME, written whenever one is
+added (once its partitions are written) or removed. */
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+class PartitionedTable {
+
+    public static final String FILE_NAME = "partitions.txt";
+
+    enum Scheme {
+        HASH, RANGE;
+    }
+
+    private String name;
+    private Scheme scheme;
+    private Type keyType;
+    private TypeComparator keyOrder;
+    //RANGE only - the least key of each partition after the first
+    private String[] bounds;
+    private int count;
+    //finds a partition by its name
+    private Function<String, Table> tables;
+
+    PartitionedTable(String name, Scheme scheme, Type keyType, int count, String[] bounds, Function<String, Table> tables){
+        this.name = name;
+        this.scheme = scheme;
+        this.keyType = keyType;
+        this.keyOrder = new TypeComparator(keyType);
+        this.count = count;
+        this.bounds = (bounds == null) ? new String[0] : bounds.clone();
+        this.tables = tables;
+    }
+
+    //a table hash partitioned into count new partitions, outside any database
+    static PartitionedTable hash(String name, int count, Type keyType, String...colNames){
+        return standalone(name, Scheme.HASH, keyType, count, null, colNames);
+    }
+
+    //a table range partitioned at bounds into bounds.length + 1 new partitions, outside any database
+    static PartitionedTable range(String name, Type keyType, String[] bounds, String...colNames){
+        return standalone(name, Scheme.RANGE, keyType, bounds.length + 1, bounds, colNames);
+    }
+
+    private static PartitionedTable standalone(String name, Scheme scheme, Type keyType, int count, String[] bounds, String...colNames){
+        Map<String, Table> partitions = new HashMap<>();
+        for (int i = 0; i < count; i++){
+            partitions.put(partitionName(name, i), new Table(partitionName(name, i), colNames));
+        }
+        return new PartitionedTable(name, scheme, keyType, count, bounds, partitions::get);
+    }
+
+    static String partitionName(String name, int i){
+        return name + "~" + i;
+    }
+
+    //bounds must be in strictly increasing key order
+    static boolean validBounds(Type keyType, String[] bounds){
+        TypeComparator order = new TypeComparator(keyType);
+        for (int i = 1; i < bounds.length; i++){
+            if (order.compare(bounds[i - 1], bounds[i]) >= 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public Scheme getScheme(){
+        return scheme;
+    }
+
+    public Type getKeyType(){
+        return keyType;
+    }
+
+    public int partitionCount(){
+        return count;
+    }
+
+    //partition i, with its keys ordered by the key type
+    public Table getPartition(int i){
+        Table t = tables.apply(partitionName(name, i));
+        if (t != null && t.getKeyType() != keyType){
+            t.orderKeys(keyType);
+        }
+        return t;
+    }
+
+    //the partition a primary key belongs in
+    public int partitionOf(String key){
+        if (scheme == Scheme.HASH){
+            return Math.floorMod(key.hashCode(), count);
+        }
+        //the first bound above the key
+        int low = 0;
+        int high = bounds.length;
+        while (low < high){
+            int middle = (low + high) >>> 1;
+            if (keyOrder.compare(key, bounds[middle]) < 0){
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    //the partitions keys from <= key <= to may be in (null for an open end), in partition order
+    public int[] partitionsFor(String from, String to){
+        if (from != null && to != null){
+            if (keyOrder.compare(from, to) > 0){
+                return new int[0];
+            }
+            if (from.equals(to)){
+                return new int[] {partitionOf(from)};
+            }
+        }
+        int first = 0;
+        int last = count - 1;
+        if (scheme == Scheme.RANGE){
+            first = (from == null) ? 0 : partitionOf(from);
+            last = (to == null) ? count - 1 : partitionOf(to);
+        }
+        int[] parts = new int[last - first + 1];
+        for (int i = 0; i < parts.length; i++){
+            parts[i] = first + i;
+        }
+        return parts;
+    }
+
+    private Table partitionFor(String key){
+        return getPartition(partitionOf(key));
+    }
+
+    //the primary key of a row given as item strings (which may start with a type)
+    private static String key(String itemString){
+        return Record.makeNewItem(itemString).getValue();
+    }
+
+    public boolean addRow(String...itemStrings){
+        if (itemStrings.length == 0){
+            return false;
+        }
+        return partitionFor(key(itemStrings[0])).addRow(itemStrings);
+    }
+
+    //add many rows, each partition's share on its own thread, or none of them - false if
+    //any row could not be added
+    public boolean addRows(List<String[]> rows){
+        List<List<String[]>> shares = new ArrayList<>();
+        for (int i = 0; i < count; i++){
+            shares.add(new ArrayList<>());
+        }
+        for (String[] row : rows){
+            if (row.length == 0){
+                return false;
+            }
+            shares.get(partitionOf(key(row[0]))).add(row);
+        }
+        //every share is checked before any is added, so a bad row adds nothing
+        List<Boolean> valid = forPartitions(allPartitions(), Parallel.defaultParallelism(), i -> {
+            return shares.get(i).isEmpty() || getPartition(i).canAddRows(shares.get(i));
+        });
+        if (valid.contains(false)){
+            return false;
+        }
+        List<Boolean> added = forPartitions(allPartitions(), Parallel.defaultParallelism(), i -> {
+            return shares.get(i).isEmpty() || getPartition(i).addAllRows(shares.get(i));
+        });
+        if (!added.contains(false)){
+            return true;
+        }
+        //another writer added one of the keys since they were checked - a share is added 
+        //whole or not at all, so take out the shares that were added
+        for (int i = 0; i < count; i++){
+            if (added.get(i) && !shares.get(i).isEmpty()){
+                for (String[] row : shares.get(i)){
+                    getPartition(i).deleteRow(key(row[0]));
+                }
+            }
+        }
+        return false;
+    }
+
+    public boolean deleteRow(String primaryKey){
+        return partitionFor(primaryKey).deleteRow(primaryKey);
+    }
+
+    public boolean updateRow(String primaryKey, String...itemStrings){
+        if (itemStrings.length > 0 && !key(itemStrings[0]).equals(primaryKey)
+            && partitionOf(key(itemStrings[0])) != partitionOf(primaryKey)){
+            //the new key belongs in another partition
+            return false;
+        }
+        return partitionFor(primaryKey).updateRow(primaryKey, itemStrings);
+    }
+
+    public boolean updateItem(String primaryKey, String colName, String newItemString){
+        return partitionFor(primaryKey).updateItem(primaryKey, colName, newItemString);
+    }
+
+    public Record getRow(String primaryKey){
+        return partitionFor(primaryKey).getRow(primaryKey);
+    }
+
+    public boolean containsKey(String primaryKey){
+        return partitionFor(primaryKey).containsKey(primaryKey);
+    }
+
+    //data rows in every partition
+    public int rowCount(){
+        int rows = 0;
+        for (int i = 0; i < count; i++){
+            rows += getPartition(i).rowSize() - 1;
+        }
+        return rows;
+    }
+
+    public Record getColNames(){
+        return getPartition(0).getColNames();
+    }
+
+    //type of a column's values, from the first partition with rows
+    public Type getColType(String colName){
+        for (int i = 0; i < count; i++){
+            Table t = getPartition(i);
+            if (t.rowSize() > 1){
+                return t.getColType(colName);
+            }
+        }
+        return getPartition(0).getColType(colName);
+    }
+
+    //an index on the column in every partition
+    public boolean createIndex(String colName){
+        boolean created = true;
+        for (int i = 0; i < count; i++){
+            created &= getPartition(i).createIndex(colName);
+        }
+        return created;
+    }
+
+    //primary keys of the rows with the value, in partition order
+    public List<String> lookup(String colName, String value){
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++){
+            keys.addAll(getPartition(i).lookup(colName, value));
+        }
+        return keys;
+    }
+
+    //every row, a partition at a time in partition order (see Table.cursor)
+    public Cursor<Record> cursor(){
+        List<Iterator<Record>> parts = new ArrayList<>();
+        for (int i = 0; i < count; i++){
+            int part = i;
+            //each partition's cursor is opened when it is reached
+            parts.add(new Iterator<Record>(){
+                private Cursor<Record> rows = null;
+                public boolean hasNext(){
+                    if (rows == null){
+                        rows = getPartition(part).cursor();
+                    }
+                    return rows.hasNext();
+                }
+                public Record next(){
+                    hasNext();
+                    return rows.next();
+                }
+            });
+        }
+        return new Cursor<Record>(chain(parts));
+    }
+
+    //rows with from <= primary key <= to (null for an open end), in or against key order,
+    //reading only the partitions the range can be in
+    public Cursor<Record> rangeCursor(String from, String to, boolean descending){
+        int[] parts = partitionsFor(from, to);
+        List<Iterator<Record>> ranges = new ArrayList<>();
+        for (int part : parts){
+            ranges.add(getPartition(part).rangeCursor(from, to, descending));
+        }
+        if (scheme == Scheme.RANGE){
+            //partitions are in key order already
+            if (descending){
+                Collections.reverse(ranges);
+            }
+            return new Cursor<Record>(chain(ranges));
+        }
+        Comparator<Record> order = (a, b) -> keyOrder.compare(a.getPrimaryKey(), b.getPrimaryKey());
+        return new Cursor<Record>(merge(ranges, descending ? order.reversed() : order));
+    }
+
+    private static Iterator<Record> chain(List<Iterator<Record>> parts){
+        return new Iterator<Record>(){
+            private int at = 0;
+            public boolean hasNext(){
+                while (at < parts.size() && !parts.get(at).hasNext()){
+                    at++;
+                }
+                return at < parts.size();
+            }
+            public Record next(){
+                if (!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                return parts.get(at).next();
+            }
+        };
+    }
+
+    //rows of runs each in order, merged into one run in that order
+    private static Iterator<Record> merge(List<Iterator<Record>> runs, Comparator<Record> order){
+        //the next row of each run that has one, least first
+        PriorityQueue<Map.Entry<Record, Iterator<Record>>> heads = new PriorityQueue<>((a, b) -> order.compare(a.getKey(), b.getKey()));
+        for (Iterator<Record> run : runs){
+            if (run.hasNext()){
+                heads.add(new AbstractMap.SimpleEntry<>(run.next(), run));
+            }
+        }
+        return new Iterator<Record>(){
+            public boolean hasNext(){
+                return !heads.isEmpty();
+            }
+            public Record next(){
+                Map.Entry<Record, Iterator<Record>> head = heads.poll();
+                if (head == null){
+                    throw new NoSuchElementException();
+                }
+                if (head.getValue().hasNext()){
+                    heads.add(new AbstractMap.SimpleEntry<>(head.getValue().next(), head.getValue()));
+                }
+                return head.getKey();
+            }
+        };
+    }
+
+    int[] allPartitions(){
+        return partitionsFor(null, null);
+    }
+
+    //what work makes of each of the given partitions, each on its own thread (up to
+    //parallelism at once), in the order given
+    <R> List<R> forPartitions(int[] parts, int parallelism, Function<Integer, R> work){
+        List<R> results = new ArrayList<>();
+        if (parallelism <= 1 || parts.length <= 1){
+            for (int part : parts){
+                results.add(work.apply(part));
+            }
+            return results;
+        }
+        ForkJoinPool pool = Parallel.pool(parallelism);
+        List<ForkJoinTask<R>> tasks = new ArrayList<>();
+        for (int part : parts){
+            tasks.add(pool.submit(() -> work.apply(part)));
+        }
+        for (ForkJoinTask<R> task : tasks){
+            results.add(task.join());
+        }
+        return results;
+    }
+
+    //the rows of the given partitions matching every condition, in partition order - each
+    //partition is read as a table of its own would be (by key, index or batch scan, see
+    //Query) when the one before it has no more rows
+    static class Scan extends Operator {
+        private PartitionedTable table;
+        private int[] parts;
+        private List<Query.Condition> conditions;
+        //threads Aggregate reads partitions on
+        private int parallelism;
+        private String[] cols;
+        //the partition being read, parts[at]
+        private int at = -1;
+        private Operator current = null;
+
+        Scan(PartitionedTable table, int[] parts, List<Query.Condition> conditions, int parallelism){
+            this.table = table;
+            this.parts = parts;
+            this.conditions = conditions;
+            this.parallelism = parallelism;
+            cols = Operator.Scan.values(table.getColNames());
+            for (Query.Condition c : conditions){
+                if (indexOf(c.colName) < 0){
+                    throw new IllegalArgumentException("no column " + c.colName);
+                }
+            }
+        }
+
+        public String[] columns(){
+            return cols;
+        }
+
+        public String[] next(){
+            while (true){
+                if (current != null){
+                    String[] row = current.next();
+                    if (row != null){
+                        return row;
+                    }
+                    current.close();
+                    current = null;
+                }
+                if (at + 1 >= parts.length){
+                    return null;
+                }
+                at++;
+                current = access(parts[at]);
+            }
+        }
+
+        public void close(){
+            if (current != null){
+                current.close();
+                current = null;
+            }
+            at = parts.length;
+        }
+
+        private Operator access(int part){
+            return Query.access(table.getPartition(part), conditions, true, 1);
+        }
+    }
+
+    //groups the rows of a scan by one column (or all rows into one group) and computes
+    //aggregates for each partition on its own thread, then merges them
+    static class Aggregate extends Operator {
+        private PartitionedTable.Scan scan;
+        private String groupBy;
+        private List<Query.Aggregate> aggregates;
+        private String[] cols;
+        private Iterator<String[]> results = null;
+
+        Aggregate(PartitionedTable.Scan scan, String groupBy, List<Query.Aggregate> aggregates){
+            this.scan = scan;
+            this.groupBy = groupBy;
+            this.aggregates = aggregates;
+            int offset = (groupBy == null) ? 0 : 1;
+            cols = new String[aggregates.size() + offset];
+            if (groupBy != null){
+                if (scan.indexOf(groupBy) < 0){
+                    throw new IllegalArgumentException("no column " + groupBy);
+                }
+                cols[0] = groupBy;
+            }
+            for (int i = 0; i < aggregates.size(); i++){
+                Query.Aggregate agg = aggregates.get(i);
+                if (agg.colName != null && scan.indexOf(agg.colName) < 0){
+                    throw new IllegalArgumentException("no column " + agg.colName);
+                }
+                cols[i + offset] = agg.toString();
+            }
+        }
+
+        public String[] columns(){
+            return cols;
+        }
+
+        public String[] next(){
+            if (results == null){
+                LinkedHashMap<String, Operator.Accumulator[]> groups = new LinkedHashMap<>();
+                for (LinkedHashMap<String, Operator.Accumulator[]> part : scan.table.forPartitions(scan.parts, scan.parallelism, this::accumulate)){
+                    Parallel.merge(groups, part);
+                }
+                if (groupBy == null && groups.isEmpty()){
+                    //no partition was read - one group, with nothing counted
+                    Operator.Accumulator[] accs = new Operator.Accumulator[aggregates.size()];
+                    for (int i = 0; i < accs.length; i++){
+                        accs[i] = new Operator.Accumulator(aggregates.get(i).order);
+                    }
+                    groups.put(null, accs);
+                }
+                results = Operator.Aggregate.results(groups, groupBy, aggregates).iterator();
+            }
+            return results.hasNext() ? results.next() : null;
+        }
+
+        private LinkedHashMap<String, Operator.Accumulator[]> accumulate(int part){
+            Operator rows = scan.access(part);
+            if (rows instanceof Vectorized.Scan){
+                return new Vectorized.Aggregate((Vectorized.Scan)rows, groupBy, aggregates).accumulate();
+            }
+            return new Operator.Aggregate(rows, groupBy, aggregates).accumulate();
+        }
+    }
+
+    //write the description of each partitioned table to a file, replacing it
+    static boolean save(String path, Collection<PartitionedTable> partitioned){
+        File temp = new File(path + ".tmp");
+        try (FileWriter fw = new FileWriter(temp)){
+            for (PartitionedTable t : partitioned){
+                fw.write(t.name + "\t" + t.scheme + "\t" + t.keyType + "\t" + t.count);
+                for (String bound : t.bounds){
+                    fw.write("\t" + bound);
+                }
+                fw.write("\n");
+            }
+        } catch (IOException ex){
+            System.out.println("ERROR: failed to write " + path);
+            temp.delete();
+            return false;
+        }
+        TableFile.replace(temp.toPath(), new File(path).toPath());
+        return true;
+    }
+
+    //the partitioned tables described in a file (none if there is no file), finding their partitions with tables
+    static List<PartitionedTable> read(String path, Function<String, Table> tables){
+        List<PartitionedTable> partitioned = new ArrayList<>();
+        try (Scanner sc = new Scanner(new File(path))){
+            while (sc.hasNextLine()){
+                String line = sc.nextLine();
+                if (line.trim().isEmpty()){
+                    continue;
+                }
+                String[] fields = line.split("\t", -1);
+                try {
+                    String[] bounds = Arrays.copyOfRange(fields, 4, fields.length);
+                    partitioned.add(new PartitionedTable(fields[0], Scheme.valueOf(fields[1]), Type.valueOf(fields[2]),
+                                                         Integer.parseInt(fields[3]), bounds, tables));
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex){
+                    System.out.println("ERROR: bad partitioned table line in " + path);
+                }
+            }
+        } catch (FileNotFoundException ex){
+        }
+        return partitioned;
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea PartitionedTable");
+        testHash();
+        testRange();
+        testConcurrentWrites();
+        testDatabase();
+        testQueries();
+        System.out.println("PartitionedTable: all tests passed");
+    }
+
+    private static void testHash(){
+        PartitionedTable t = hash("Ships", 4, Type.INT, "s%id", "s%name");
+        for (int i = 0; i < 100; i++){
+            assert(t.addRow("i%" + i, "s%ship" + i));
+        }
+        assert(!t.addRow("i%7", "s%again"));
+        //keys that are equal as numbers but not as strings are different keys, as they are 
+        //in key order, so hashing the string puts each where it is looked for
+        assert(t.addRow("s%007", "s%padded"));
+        assert(t.getRow("007").getValueAt(1).equals("padded"));
+        assert(t.getRow("7").getValueAt(1).equals("ship7"));
+        assert(t.deleteRow("007"));
+        assert(t.rowCount() == 100);
+        //every partition has some rows, and each row is in the partition of its key
+        for (int i = 0; i < 4; i++){
+            assert(t.getPartition(i).rowSize() > 1);
+        }
+        assert(t.getPartition(t.partitionOf("42")).containsKey("42"));
+        assert(t.containsKey("42"));
+        assert(t.getRow("42").getValueAt(1).equals("ship42"));
+        assert(t.updateItem("42", "name", "renamed"));
+        assert(t.getRow("42").getValueAt(1).equals("renamed"));
+        assert(t.deleteRow("42"));
+        assert(!t.containsKey("42"));
+        assert(t.rowCount() == 99);
+
+        //a single key is looked for in one partition, a range in all of them, merged into key order
+        assert(t.partitionsFor("5", "5").length == 1);
+        assert(t.partitionsFor("5", "50").length == 4);
+        assert(t.partitionsFor("50", "5").length == 0);
+        List<String> keys = new ArrayList<>();
+        try (Cursor<Record> cursor = t.rangeCursor("8", "12", false)){
+            while (cursor.hasNext()){
+                keys.add(cursor.next().getPrimaryKey());
+            }
+        }
+        assert(keys.equals(Arrays.asList("8", "9", "10", "11", "12")));
+        try (Cursor<Record> cursor = t.rangeCursor(null, null, true)){
+            assert(cursor.next().getPrimaryKey().equals("99"));
+        }
+        int seen = 0;
+        try (Cursor<Record> cursor = t.cursor()){
+            while (cursor.hasNext()){
+                cursor.next();
+                seen++;
+            }
+        }
+        assert(seen == 99);
+
+        assert(t.createIndex("name"));
+        assert(t.lookup("name", "ship17").equals(Arrays.asList("17")));
+    }
+
+    private static void testRange(){
+        String[] bounds = {"100", "200", "300"};
+        assert(validBounds(Type.INT, bounds));
+        assert(!validBounds(Type.INT, new String[] {"20", "100", "100"}));
+        PartitionedTable t = range("Crew", Type.INT, bounds, "s%id", "s%years");
+        assert(t.partitionCount() == 4);
+        assert(t.partitionOf("99") == 0);
+        assert(t.partitionOf("100") == 1);
+        assert(t.partitionOf("250") == 2);
+        assert(t.partitionOf("1000") == 3);
+        assert(Arrays.equals(t.partitionsFor("150", "250"), new int[] {1, 2}));
+        assert(Arrays.equals(t.partitionsFor(null, "50"), new int[] {0}));
+        assert(Arrays.equals(t.partitionsFor("300", null), new int[] {3}));
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < 400; i += 5){
+            rows.add(new String[] {"i%" + i, "i%" + (i % 40)});
+        }
+        assert(t.addRows(rows));
+        assert(t.getPartition(0).rowSize() == 21);
+        //a row that can't be added in one partition adds no rows to the others
+        List<String[]> more = new ArrayList<>();
+        more.add(new String[] {"i%1", "i%1"});
+        more.add(new String[] {"i%101", "i%1"});
+        more.add(new String[] {"i%205", "i%1"});
+        assert(!t.addRows(more));
+        assert(t.rowCount() == 80);
+        assert(!t.containsKey("1") && !t.containsKey("101"));
+        more.set(2, new String[] {"i%301", "i%1"});
+        more.add(new String[] {"i%301", "i%2"});
+        assert(!t.addRows(more));
+        assert(t.rowCount() == 80);
+        more.remove(3);
+        assert(t.addRows(more));
+        assert(t.rowCount() == 83);
+        List<String> keys = new ArrayList<>();
+        try (Cursor<Record> cursor = t.rangeCursor("190", "210", true)){
+            while (cursor.hasNext()){
+                keys.add(cursor.next().getPrimaryKey());
+            }
+        }
+        assert(keys.equals(Arrays.asList("210", "205", "200", "195", "190")));
+        //a row's key can't be changed to one that belongs in another partition
+        assert(!t.updateRow("5", "i%205", "i%1"));
+        assert(t.updateRow("5", "i%5", "i%2"));
+    }
+
+    //writers to different partitions take different locks, so none waits for another
+    private static void testConcurrentWrites(){
+        PartitionedTable t = hash("Log", 8, Type.INT, "s%id", "s%entry");
+        int threads = 8;
+        Thread[] writers = new Thread[threads];
+        for (int w = 0; w < threads; w++){
+            int writer = w;
+            writers[w] = new Thread(() -> {
+                for (int i = 0; i < 2000; i++){
+                    t.addRow("i%" + (writer * 2000 + i), "s%e" + i);
+                }
+            });
+            writers[w].start();
+        }
+        for (Thread writer : writers){
+            try {
+                writer.join();
+            } catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+        }
+        assert(t.rowCount() == threads * 2000);
+        assert(t.containsKey("15999"));
+    }
+
+    //partitions are tables of the database, and the partitioned table is there when it is opened again
+    private static void testDatabase(){
+        Database db = new Database("testPartitioned");
+        assert(db.addPartitionedTable("Ships", 3, Type.INT, "s%id", "s%class", "i%crew"));
+        //the partitions have files before the partitions file names them
+        for (int i = 0; i < 3; i++){
+            assert(new File("databases/testPartitioned/" + partitionName("Ships", i) + TableFile.EXTENSION).exists());
+        }
+        assert(!db.addPartitionedTable("Ships", 2, Type.INT, "s%id"));
+        assert(db.addRangePartitionedTable("Crew", Type.STRING, new String[] {"m"}, "s%name", "i%years"));
+        assert(!db.addRangePartitionedTable("Bad", Type.INT, new String[] {"5", "1"}, "s%id"));
+        assert(db.getTable(partitionName("Ships", 2)) != null);
+        for (int i = 0; i < 30; i++){
+            assert(db.addTableRow("Ships", "i%" + i, "s%c" + (i % 3), "i%" + (i * 10)));
+        }
+        assert(db.addTableRow("Crew", "s%yuri", "i%3"));
+        assert(db.addTableRow("Crew", "s%buzz", "i%9"));
+        assert(db.getPartitionedTable("Crew").getPartition(1).containsKey("yuri"));
+        assert(db.writeDb());
+        assert(db.addTableRow("Ships", "i%30", "s%c0", "i%300"));
+        db.close();
+
+        Database again = new Database("testPartitioned");
+        PartitionedTable ships = again.getPartitionedTable("Ships");
+        assert(ships != null);
+        assert(ships.partitionCount() == 3);
+        assert(ships.rowCount() == 31);
+        assert(again.getPartitionedTable("Crew").getScheme() == Scheme.RANGE);
+        assert(again.getPartitionedTable("Crew").containsKey("buzz"));
+        try (Cursor<Record> cursor = again.rangeCursor("Ships", "28", null, false)){
+            assert(cursor.next().getPrimaryKey().equals("28"));
+        }
+        assert(again.removePartitionedTable("Crew"));
+        assert(again.getTable(partitionName("Crew", 0)) == null);
+        assert(again.writeDb());
+        again.close();
+        //the partitions file isn't taken for a table, so the folder matches its catalog 
+        //and is opened without reading the partitions
+        Database third = new Database("testPartitioned", SyncPolicy.PER_COMMIT, 1, true);
+        assert(!third.getCatalog().isLoaded(partitionName("Ships", 0)));
+        assert(third.getPartitionedTable("Crew") == null);
+        assert(third.getPartitionedTable("Ships") != null);
+        assert(third.getPartitionedTable("Ships").rowCount() == 31);
+        third.deleteDatabase();
+    }
+
+    private static List<String[]> run(Database db, String sql, int parallelism){
+        Query q = Query.parse(sql);
+        q.parallelism = parallelism;
+        return q.plan(db).toList();
+    }
+
+    //the same results as one table, with key conditions reading only some partitions
+    private static void testQueries(){
+        Database db = new Database("testPartitioned");
+        db.addTable("Whole", "s%id", "s%class", "i%crew");
+        assert(db.addRangePartitionedTable("Split", Type.INT, new String[] {"2500", "5000", "7500"}, "s%id", "s%class", "i%crew"));
+        assert(db.addPartitionedTable("Hashed", 4, Type.INT, "s%id", "s%class", "i%crew"));
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < 10000; i++){
+            rows.add(new String[] {"i%" + i, "s%c" + (i % 6), "i%" + ((i * 31) % 500)});
+        }
+        assert(db.addTableRows("Whole", rows));
+        assert(db.addTableRows("Split", rows));
+        assert(db.addTableRows("Hashed", rows));
+        db.getTable("Whole").orderKeys(Type.INT);
+        String[] queries = {
+            "SELECT COUNT(*), SUM(crew), MIN(crew), MAX(crew), AVG(crew) FROM %s",
+            "SELECT class, COUNT(*), SUM(crew) FROM %s WHERE crew > 250 GROUP BY class ORDER BY class",
+            "SELECT id, crew FROM %s WHERE id >= 4990 AND id < 5010 ORDER BY id",
+            "SELECT class FROM %s WHERE id = 7777",
+            "SELECT COUNT(*) FROM %s WHERE id > 20000",
+            "SELECT id FROM %s WHERE crew = 17 ORDER BY id LIMIT 4"
+        };
+        for (String sql : queries){
+            List<String[]> expected = run(db, String.format(sql, "Whole"), 1);
+            for (String table : new String[] {"Split", "Hashed"}){
+                for (int parallelism : new int[] {1, 4}){
+                    List<String[]> found = run(db, String.format(sql, table), parallelism);
+                    assert(found.size() == expected.size()) : sql;
+                    for (int i = 0; i < found.size(); i++){
+                        assert(Arrays.equals(found.get(i), expected.get(i))) : sql;
+                    }
+                }
+            }
+        }
+        //pruning - the key range is in one partition of Split, and a key is in one of Hashed
+        Query q = Query.parse("SELECT id FROM Split WHERE id >= 5000 AND id <= 5100");
+        assert(Arrays.equals(q.partitions(db.getPartitionedTable("Split")), new int[] {2}));
+        q = Query.parse("SELECT id FROM Hashed WHERE id = 12");
+        assert(q.partitions(db.getPartitionedTable("Hashed")).length == 1);
+        q = Query.parse("SELECT id FROM Hashed WHERE id > 12");
+        assert(q.partitions(db.getPartitionedTable("Hashed")).length == 4);
+
+        //partitions are read one after another, so a limit stops before the later ones are read
+        PartitionedTable.Scan scan = new PartitionedTable.Scan(db.getPartitionedTable("Split"), new int[] {0, 1, 2, 3}, new ArrayList<>(), 1);
+        List<String[]> first = new Operator.Limit(scan, 3).toList();
+        assert(first.size() == 3);
+        assert(first.get(0)[0].equals("0"));
+        assert(scan.next() == null);
+
+        boolean failed = false;
+        try {
+            run(db, "SELECT * FROM Split JOIN Whole ON Split.id = Whole.id", 1);
+        } catch (IllegalArgumentException ex){
+            failed = true;
+        }
+        assert(failed);
+        db.deleteDatabase();
+    }
+}
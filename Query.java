@@ -0,0 +1,874 @@
+/* Parses and plans the SELECT statements typed into DbManager. The supported 
+subset is: 
+    SELECT * | col, ... | COUNT(*), SUM(col), MIN(col), MAX(col), AVG(col), ... 
+    FROM table [[INNER] JOIN table [ON col = col] ...]
+    [WHERE col op value [AND col op value ...]]   (op is = != <> < <= > >=)
+    [GROUP BY col] [ORDER BY col | aggregate [ASC|DESC]] [LIMIT n]
+    [USING VECTORIZED | PARALLEL n [, ...]]
+Keywords may be in any case, and values may be quoted with ' or ". Columns may be 
+written table.col, and must be when joined tables share a column name. A JOIN 
+without ON joins on the foreign key between the tables. The parsed Query is the 
+logical plan; plan() turns it into a tree of Operators. Conditions, ORDER BY, MIN 
+and MAX compare values by the type of their column (see TypeComparator), so INT 
+columns compare as numbers, and conditions are applied to each table before it is 
+joined. An equality condition on the primary key, or a condition on an indexed 
+column, is answered by reading only the matching rows instead of scanning the 
+table. Joins onto a primary key or indexed column look up the matching rows, 
+tables with ordered keys joined on their keys are merged, and other joins are hash 
+joins. A query on one table that has to scan it is scanned, filtered and 
+aggregated a batch of rows at a time when it is USING VECTORIZED (see Vectorized), 
+and in morsels on n threads when it is USING PARALLEL n (see Parallel). A 
+partitioned table (see PartitionedTable) is only read in the partitions its 
+primary key conditions leave, each as a table of its own, and can't be joined. 
+Parse and plan errors are reported with IllegalArgumentException. */
+import java.util.*;
+import java.util.function.Function;
+
+class Query {
+
+    List<String> columns = new ArrayList<>();
+    List<Aggregate> aggregates = new ArrayList<>();
+    String table;
+    List<JoinClause> joins = new ArrayList<>();
+    List<Condition> conditions = new ArrayList<>();
+    String groupBy = null;
+    String orderBy = null;
+    boolean descending = false;
+    int limit = -1;
+    //rows a hash join may hold in memory
+    int joinBudget = Join.DEFAULT_BUDGET;
+    //scan, filter and aggregate a single table a batch of rows at a time (see Vectorized)
+    boolean vectorized = false;
+    //threads a single-table scan and its aggregates are split among (see Parallel)
+    int parallelism = 1;
+
+    private static final List<String> FUNCTIONS = Arrays.asList("COUNT", "SUM", "MIN", "MAX", "AVG");
+    private static final List<String> OPERATORS = Arrays.asList("=", "!=", "<>", "<", "<=", ">", ">=");
+
+    //JOIN table ON leftCol = rightCol - the columns are null to use the foreign key
+    static class JoinClause {
+        String table;
+        String leftCol = null;
+        String rightCol = null;
+
+        JoinClause(String table){
+            this.table = table;
+        }
+    }
+
+    //col op value
+    static class Condition {
+        String colName;
+        String op;
+        String value;
+        //set by the planner from the column's type
+        Comparator<String> comparator = new TypeComparator(Type.STRING);
+
+        Condition(String colName, String op, String value){
+            this.colName = colName;
+            this.op = op.equals("<>") ? "!=" : op;
+            this.value = value;
+        }
+
+        boolean matches(String cell){
+            if (cell == null){
+                return op.equals("!=");
+            }
+            int c = comparator.compare(cell, value);
+            switch(op){
+                case "=": return c == 0;
+                case "!=": return c != 0;
+                case "<": return c < 0;
+                case "<=": return c <= 0;
+                case ">": return c > 0;
+                default: return c >= 0;
+            }
+        }
+    }
+
+    //function(col) - colName is null for COUNT(*)
+    static class Aggregate {
+        String function;
+        String colName;
+        //orders the column's values for MIN and MAX - set by the planner from the column's type
+        Comparator<String> order = new TypeComparator(Type.STRING);
+
+        Aggregate(String function, String colName){
+            this.function = function;
+            this.colName = colName;
+        }
+
+        @Override
+        public String toString(){
+            return function + "(" + ((colName == null) ? "*" : colName) + ")";
+        }
+    }
+
+    public static Query parse(String sql){
+        return new Parser(tokenize(sql)).parse();
+    }
+
+    //split into words, quoted values (kept with their opening quote), operators and punctuation
+    static List<String> tokenize(String sql){
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < sql.length()){
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)){
+                i++;
+            } else if (c == ',' || c == '(' || c == ')' || c == '*'){
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if (c == '<' || c == '>' || c == '=' || c == '!'){
+                int end = i + 1;
+                if (end < sql.length() && (sql.charAt(end) == '=' || (c == '<' && sql.charAt(end) == '>'))){
+                    end++;
+                }
+                tokens.add(sql.substring(i, end));
+                i = end;
+            } else if (c == '\'' || c == '"'){
+                int end = sql.indexOf(c, i + 1);
+                if (end < 0){
+                    throw new IllegalArgumentException("missing closing quote");
+                }
+                tokens.add("'" + sql.substring(i + 1, end));
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < sql.length() && !Character.isWhitespace(sql.charAt(end)) && ",()<>=!'\"".indexOf(sql.charAt(end)) < 0){
+                    end++;
+                }
+                tokens.add(sql.substring(i, end));
+                i = end;
+            }
+        }
+        return tokens;
+    }
+
+    private static class Parser {
+        private List<String> tokens;
+        private int pos = 0;
+
+        Parser(List<String> tokens){
+            this.tokens = tokens;
+        }
+
+        Query parse(){
+            Query query = new Query();
+            expect("SELECT");
+            do {
+                selectItem(query);
+            } while (accept(","));
+            expect("FROM");
+            query.table = name();
+            while (true){
+                if (accept("INNER")){
+                    expect("JOIN");
+                } else if (!accept("JOIN")){
+                    break;
+                }
+                JoinClause join = new JoinClause(name());
+                if (accept("ON")){
+                    join.leftCol = name();
+                    expect("=");
+                    join.rightCol = name();
+                }
+                query.joins.add(join);
+            }
+            if (accept("WHERE")){
+                do {
+                    String colName = name();
+                    String op = next();
+                    if (!OPERATORS.contains(op)){
+                        throw new IllegalArgumentException("expected a comparison after " + colName);
+                    }
+                    query.conditions.add(new Condition(colName, op, value()));
+                } while (accept("AND"));
+            }
+            if (accept("GROUP")){
+                expect("BY");
+                query.groupBy = name();
+            }
+            if (accept("ORDER")){
+                expect("BY");
+                query.orderBy = orderName(query);
+                if (accept("DESC")){
+                    query.descending = true;
+                } else {
+                    accept("ASC");
+                }
+            }
+            if (accept("LIMIT")){
+                String n = next();
+                if (!TypeComparator.isLong(n) || n.startsWith("-")){
+                    throw new IllegalArgumentException("LIMIT must be a number");
+                }
+                query.limit = Integer.parseInt(n);
+            }
+            if (accept("USING")){
+                do {
+                    if (accept("VECTORIZED")){
+                        query.vectorized = true;
+                    } else if (accept("PARALLEL")){
+                        String n = next();
+                        if (!TypeComparator.isLong(n) || n.startsWith("-") || Long.parseLong(n) < 1){
+                            throw new IllegalArgumentException("PARALLEL must be a number of threads");
+                        }
+                        query.parallelism = Integer.parseInt(n);
+                    } else {
+                        throw new IllegalArgumentException("expected VECTORIZED or PARALLEL after USING");
+                    }
+                } while (accept(","));
+            }
+            if (pos < tokens.size()){
+                throw new IllegalArgumentException("unexpected " + tokens.get(pos));
+            }
+            query.check();
+            return query;
+        }
+
+        private void selectItem(Query query){
+            String word = next();
+            if (word.equals("*")){
+                return;
+            }
+            if (FUNCTIONS.contains(word.toUpperCase()) && accept("(")){
+                String colName = accept("*") ? null : name();
+                expect(")");
+                if (colName == null && !word.equalsIgnoreCase("COUNT")){
+                    throw new IllegalArgumentException(word + "(*) is not allowed");
+                }
+                Aggregate agg = new Aggregate(word.toUpperCase(), colName);
+                query.aggregates.add(agg);
+                query.columns.add(agg.toString());
+                return;
+            }
+            query.columns.add(checkName(word));
+        }
+
+        //a column, or one of the aggregates the query selects
+        private String orderName(Query query){
+            String word = next();
+            if (FUNCTIONS.contains(word.toUpperCase()) && accept("(")){
+                String colName = accept("*") ? "*" : name();
+                expect(")");
+                String agg = word.toUpperCase() + "(" + colName + ")";
+                if (!query.columns.contains(agg)){
+                    throw new IllegalArgumentException("can't order by " + agg + " unless it is selected");
+                }
+                return agg;
+            }
+            return checkName(word);
+        }
+
+        private String next(){
+            if (pos >= tokens.size()){
+                throw new IllegalArgumentException("query ends too soon");
+            }
+            return tokens.get(pos++);
+        }
+
+        private boolean accept(String word){
+            if (pos < tokens.size() && tokens.get(pos).equalsIgnoreCase(word)){
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String word){
+            if (!accept(word)){
+                throw new IllegalArgumentException("expected " + word);
+            }
+        }
+
+        private String name(){
+            return checkName(next());
+        }
+
+        private String checkName(String word){
+            if (word.startsWith("'") || ",()*".contains(word) || OPERATORS.contains(word)){
+                throw new IllegalArgumentException("expected a name but found " + word);
+            }
+            return word;
+        }
+
+        private String value(){
+            String word = next();
+            if (word.startsWith("'")){
+                return word.substring(1);
+            }
+            //BOOL values are stored as 1 and 0
+            if (word.equalsIgnoreCase("true")){
+                return "1";
+            }
+            if (word.equalsIgnoreCase("false")){
+                return "0";
+            }
+            return word;
+        }
+    }
+
+    //a select list with aggregates may only name the GROUP BY column besides them
+    private void check(){
+        if (aggregates.isEmpty() && groupBy == null){
+            return;
+        }
+        for (String col : columns){
+            boolean isAggregate = false;
+            for (Aggregate agg : aggregates){
+                if (agg.toString().equals(col)){
+                    isAggregate = true;
+                }
+            }
+            if (!isAggregate && !col.equals(groupBy)){
+                throw new IllegalArgumentException(col + " must be in GROUP BY or an aggregate");
+            }
+        }
+    }
+
+    //build the operator tree for this query
+    public Operator plan(Database db){
+        PartitionedTable partitioned = db.getPartitionedTable(table);
+        if (partitioned != null){
+            return finish(planPartitioned(partitioned), name -> partitioned.getColType(Operator.plainName(name)));
+        }
+        //tables in FROM order
+        LinkedHashMap<String, Table> tables = new LinkedHashMap<>();
+        addTable(db, tables, table);
+        for (JoinClause join : joins){
+            addTable(db, tables, join.table);
+        }
+
+        //each condition is applied to the table it is on
+        Map<String, List<Condition>> tableConditions = new HashMap<>();
+        for (String name : tables.keySet()){
+            tableConditions.put(name, new ArrayList<>());
+        }
+        for (Condition c : conditions){
+            String owner = owner(tables, tables.keySet(), c.colName);
+            c.comparator = new TypeComparator(tables.get(owner).getColType(Operator.plainName(c.colName)));
+            tableConditions.get(owner).add(c);
+        }
+        List<String> names = new ArrayList<>(columns);
+        names.add(groupBy);
+        names.add(orderBy);
+        for (String name : names){
+            if (name != null && name.indexOf('.') >= 0 && name.indexOf('(') < 0 
+                && !tables.containsKey(name.substring(0, name.indexOf('.')))){
+                throw new IllegalArgumentException("no table " + name.substring(0, name.indexOf('.')));
+            }
+        }
+
+        Table base = tables.get(table);
+        Operator op = null;
+        List<String> joined = new ArrayList<>();
+        joined.add(table);
+        try {
+            for (JoinClause join : joins){
+                Table right = tables.get(join.table);
+                String[] on = joinColumns(tables, joined, join);
+                List<Condition> rightConditions = tableConditions.get(join.table);
+                String leftName = (op == null) ? table : null;
+                String keyCol = right.getColNames().getValueAt(0);
+                if (op == null && canMerge(base, right, on)){
+                    //both tables come out of their ordered keys already sorted
+                    Operator left = filter(new Operator.OrderedScan(base), tableConditions.get(table));
+                    Operator r = filter(new Operator.OrderedScan(right), rightConditions);
+                    op = new Join.Merge(left, leftName, on[0], r, join.table, on[1], new TypeComparator(base.getKeyType()));
+                } else {
+                    if (op == null){
+                        op = access(base, tableConditions.get(table), false, 1);
+                    }
+                    if (on[1].equals(keyCol) || right.hasIndex(on[1])){
+                        op = filter(new Join.Index(op, leftName, on[0], right, join.table, on[1]), rightConditions);
+                    } else {
+                        op = new Join.Hash(op, leftName, on[0], access(right, rightConditions, false, 1), join.table, on[1], joinBudget);
+                    }
+                }
+                joined.add(join.table);
+            }
+        } catch (RuntimeException ex){
+            if (op != null){
+                op.close();
+            }
+            throw ex;
+        }
+        if (op == null){
+            op = access(base, tableConditions.get(table), vectorized, parallelism);
+        }
+        return finish(op, name -> tables.get(owner(tables, tables.keySet(), name)).getColType(Operator.plainName(name)));
+    }
+
+    //aggregate, order, limit and pick out the columns of the rows op reads - values are 
+    //ordered by the type colType gives their column
+    private Operator finish(Operator op, Function<String, Type> colType){
+        try {
+            for (Aggregate agg : aggregates){
+                if (agg.colName != null){
+                    agg.order = new TypeComparator(colType.apply(agg.colName));
+                }
+            }
+            if (!aggregates.isEmpty() || groupBy != null){
+                if (op instanceof Vectorized.Scan){
+                    op = new Vectorized.Aggregate((Vectorized.Scan)op, groupBy, aggregates);
+                } else if (op instanceof Parallel.Scan){
+                    op = new Parallel.Aggregate((Parallel.Scan)op, groupBy, aggregates);
+                } else if (op instanceof PartitionedTable.Scan){
+                    op = new PartitionedTable.Aggregate((PartitionedTable.Scan)op, groupBy, aggregates);
+                } else {
+                    op = new Operator.Aggregate(op, groupBy, aggregates);
+                }
+            }
+            if (orderBy != null){
+                op = new Operator.Sort(op, orderBy, descending, order(orderBy, colType));
+            }
+            if (limit >= 0){
+                op = new Operator.Limit(op, limit);
+            }
+            if (!columns.isEmpty()){
+                op = new Operator.Project(op, columns);
+            }
+            return op;
+        } catch (RuntimeException ex){
+            //a plan that can't be finished lets go of what it has opened
+            op.close();
+            throw ex;
+        }
+    }
+
+    //the order of the values of a result column - an aggregate's, or a column's by its type
+    private Comparator<String> order(String colName, Function<String, Type> colType){
+        for (Aggregate agg : aggregates){
+            if (agg.toString().equals(colName)){
+                switch(agg.function){
+                    case "MIN":
+                    case "MAX":
+                        return agg.order;
+                    case "AVG":
+                        return Comparator.nullsFirst(Comparator.comparingDouble(Double::parseDouble));
+                    default:
+                        return new TypeComparator(Type.INT);
+                }
+            }
+        }
+        return new TypeComparator(colType.apply(colName));
+    }
+
+    //a partitioned table (which can't be joined) is read only in the partitions its key 
+    //conditions leave, each on its own thread
+    private Operator planPartitioned(PartitionedTable t){
+        if (!joins.isEmpty()){
+            throw new IllegalArgumentException("partitioned table " + table + " can't be joined");
+        }
+        List<String> names = new ArrayList<>(columns);
+        names.add(groupBy);
+        names.add(orderBy);
+        for (Condition c : conditions){
+            names.add(c.colName);
+        }
+        for (String name : names){
+            if (name != null && name.indexOf('.') >= 0 && name.indexOf('(') < 0 
+                && !name.substring(0, name.indexOf('.')).equals(table)){
+                throw new IllegalArgumentException("no table " + name.substring(0, name.indexOf('.')));
+            }
+        }
+        for (Condition c : conditions){
+            c.comparator = new TypeComparator(t.getColType(Operator.plainName(c.colName)));
+        }
+        //partitions are read in parallel even when the query doesn't ask for it
+        int threads = (parallelism > 1) ? parallelism : Parallel.defaultParallelism();
+        return new PartitionedTable.Scan(t, partitions(t), conditions, threads);
+    }
+
+    //the partitions of t that this query's conditions on the primary key leave to be read
+    int[] partitions(PartitionedTable t){
+        String keyCol = t.getColNames().getValueAt(0);
+        TypeComparator order = new TypeComparator(t.getKeyType());
+        String from = null;
+        String to = null;
+        for (Condition c : conditions){
+            if (!Operator.plainName(c.colName).equals(keyCol) || c.op.equals("!=")){
+                continue;
+            }
+            if (!c.op.startsWith("<") && (from == null || order.compare(c.value, from) > 0)){
+                from = c.value;
+            }
+            if (!c.op.startsWith(">") && (to == null || order.compare(c.value, to) < 0)){
+                to = c.value;
+            }
+        }
+        return t.partitionsFor(from, to);
+    }
+
+    private static void addTable(Database db, Map<String, Table> tables, String name){
+        Table t = db.getTable(name);
+        if (t == null){
+            throw new IllegalArgumentException("no table " + name);
+        }
+        if (tables.containsKey(name)){
+            throw new IllegalArgumentException("table " + name + " is used twice");
+        }
+        tables.put(name, t);
+    }
+
+    private static boolean hasCol(Table t, String colName){
+        return Arrays.asList(Operator.colNames(t)).contains(colName);
+    }
+
+    //which of the given tables a column (col or table.col) belongs to
+    private static String owner(Map<String, Table> tables, Collection<String> names, String colName){
+        int dot = colName.indexOf('.');
+        if (dot >= 0){
+            String tableName = colName.substring(0, dot);
+            if (!names.contains(tableName) || !hasCol(tables.get(tableName), colName.substring(dot + 1))){
+                throw new IllegalArgumentException("no column " + colName);
+            }
+            return tableName;
+        }
+        String owner = null;
+        for (String name : names){
+            if (hasCol(tables.get(name), colName)){
+                if (owner != null){
+                    throw new IllegalArgumentException("column " + colName + " is in " + owner + " and " + name);
+                }
+                owner = name;
+            }
+        }
+        if (owner == null){
+            throw new IllegalArgumentException("no column " + colName);
+        }
+        return owner;
+    }
+
+    //{column of the tables joined so far, column of the joining table}
+    private static String[] joinColumns(Map<String, Table> tables, List<String> joined, JoinClause join){
+        Table right = tables.get(join.table);
+        if (join.leftCol == null){
+            //the foreign key may point either way
+            for (String name : joined){
+                Table t = tables.get(name);
+                if (t.hasForeignKey() && t.getPrimaryTable().equals(join.table)){
+                    return new String[] {name + "." + t.getForeignKeyCol(), t.getPrimaryCol()};
+                }
+                if (right.hasForeignKey() && right.getPrimaryTable().equals(name)){
+                    return new String[] {name + "." + right.getPrimaryCol(), right.getForeignKeyCol()};
+                }
+            }
+            throw new IllegalArgumentException("no foreign key joins " + join.table + ", use JOIN ... ON");
+        }
+        List<String> all = new ArrayList<>(joined);
+        all.add(join.table);
+        String a = join.leftCol;
+        String b = join.rightCol;
+        //either side of ON may be written first
+        if (owner(tables, all, a).equals(join.table)){
+            a = join.rightCol;
+            b = join.leftCol;
+        }
+        if (!owner(tables, all, b).equals(join.table)){
+            throw new IllegalArgumentException("ON must compare a column of " + join.table);
+        }
+        String leftTable = owner(tables, joined, a);
+        return new String[] {leftTable + "." + Operator.plainName(a), Operator.plainName(b)};
+    }
+
+    //tables with ordered keys of the same type, joined key to key
+    private boolean canMerge(Table base, Table right, String[] on){
+        return base.hasOrderedKeys() && right.hasOrderedKeys() 
+            && base.getKeyType() == right.getKeyType()
+            && on[0].equals(table + "." + base.getColNames().getValueAt(0))
+            && on[1].equals(right.getColNames().getValueAt(0));
+    }
+
+    private static Operator filter(Operator op, List<Condition> conditions){
+        return conditions.isEmpty() ? op : new Operator.Filter(op, conditions);
+    }
+
+    //rows of one table matching its conditions - one condition may be answered 
+    //by the primary key or an index - otherwise the table is scanned, in parallel if parallelism 
+    //is above 1, or a batch at a time if vectorized
+    static Operator access(Table t, List<Condition> conditions, boolean vectorized, int parallelism){
+        Operator op = null;
+        List<Condition> rest = new ArrayList<>(conditions);
+        String keyCol = t.getColNames().getValueAt(0);
+        for (Condition c : conditions){
+            String colName = Operator.plainName(c.colName);
+            if (c.op.equals("=") && colName.equals(keyCol)){
+                op = new Operator.KeyScan(t, Collections.singletonList(c.value));
+                rest.remove(c);
+                break;
+            }
+            if (t.hasIndex(colName) && !c.op.equals("!=")){
+                if (c.op.equals("=")){
+                    op = new Operator.KeyScan(t, t.lookup(colName, c.value));
+                    rest.remove(c);
+                } else if (c.op.startsWith("<")){
+                    //range is inclusive, the condition is kept to drop equal values for <
+                    op = new Operator.KeyScan(t, t.lookupRange(colName, null, c.value));
+                } else {
+                    op = new Operator.KeyScan(t, t.lookupRange(colName, c.value, null));
+                }
+                break;
+            }
+        }
+        if (op == null){
+            if (parallelism > 1){
+                return new Parallel.Scan(t, rest, parallelism);
+            }
+            if (vectorized){
+                return new Vectorized.Scan(t, rest);
+            }
+            op = new Operator.Scan(t);
+        }
+        return filter(op, rest);
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        Query program = new Query();
+        program.run();
+        program.test();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea Query");
+    }
+
+    private void test(){
+        testParse();
+        testParseErrors();
+        Database db = new Database("testQuery");
+        db.addTable("Crew", "s%crew-id", "s%name", "s%title", "s%years", "s%ship-id");
+        db.addTableRow("Crew", "s%455", "s%Sally-Ride", "s%Engineer", "i%25", "s%513");
+        db.addTableRow("Crew", "s%001", "s%Laika", "s%doggo", "i%1", "s%121");
+        db.addTableRow("Crew", "s%255", "s%Buzz", "s%Pilot", "i%10", "s%513");
+        db.addTableRow("Crew", "s%243", "s%Ona", "s%Mechanic", "i%5", "s%234");
+        db.addTableRow("Crew", "s%222", "s%Valentina", "s%Pilot", "i%8", "s%234");
+        testSelect(db);
+        testAggregate(db);
+        testIndexPlan(db);
+        testJoin(db);
+        db.deleteDatabase();
+        testMergeJoin();
+        System.out.println("Query: all tests passed");
+    }
+
+    private void testParse(){
+        Query q = Query.parse("select name, title FROM Crew where years >= 5 AND title != 'Pilot' order by years desc limit 2");
+        assert(q.columns.equals(Arrays.asList("name", "title")));
+        assert(q.table.equals("Crew"));
+        assert(q.conditions.size() == 2);
+        assert(q.conditions.get(0).op.equals(">="));
+        assert(q.conditions.get(1).value.equals("Pilot"));
+        assert(q.orderBy.equals("years"));
+        assert(q.descending);
+        assert(q.limit == 2);
+
+        q = Query.parse("SELECT title, COUNT(*), max(years) FROM Crew GROUP BY title");
+        assert(q.aggregates.size() == 2);
+        assert(q.columns.get(2).equals("MAX(years)"));
+        assert(q.groupBy.equals("title"));
+
+        q = Query.parse("SELECT Crew.name FROM Crew JOIN Fleet ON ship-id = Fleet.ship-id inner join Launch");
+        assert(q.joins.size() == 2);
+        assert(q.joins.get(0).rightCol.equals("Fleet.ship-id"));
+        assert(q.joins.get(1).leftCol == null);
+
+        //execution modes are chosen per query
+        q = Query.parse("SELECT name FROM Crew LIMIT 3 using vectorized, PARALLEL 4");
+        assert(q.vectorized);
+        assert(q.parallelism == 4);
+        assert(q.limit == 3);
+
+        q = Query.parse("SELECT * FROM Crew WHERE name = 'two words'");
+        assert(q.columns.isEmpty());
+        assert(q.conditions.get(0).value.equals("two words"));
+    }
+
+    private void testParseErrors(){
+        String[] bad = {"SELECT", "SELECT name", "SELECT name FROM", "FROM Crew", 
+                        "SELECT name FROM Crew WHERE years", "SELECT name FROM Crew LIMIT x",
+                        "SELECT name, COUNT(*) FROM Crew", "SELECT SUM(*) FROM Crew",
+                        "SELECT name FROM Crew extra", "SELECT name FROM Crew JOIN Fleet ON a",
+                        "SELECT name FROM Crew INNER Fleet",
+                        "SELECT title FROM Crew GROUP BY title ORDER BY MAX(years)",
+                        "SELECT name FROM Crew USING FAST", "SELECT name FROM Crew USING PARALLEL 0",
+                        "SELECT name FROM Crew USING PARALLEL x"};
+        for (String sql : bad){
+            boolean failed = false;
+            try {
+                Query.parse(sql);
+            } catch (IllegalArgumentException ex){
+                failed = true;
+            }
+            assert(failed);
+        }
+    }
+
+    private void testSelect(Database db){
+        //the old four word form still works
+        List<String[]> rows = Query.parse("SELECT name FROM Crew").plan(db).toList();
+        assert(rows.size() == 5);
+        assert(rows.get(0)[0].equals("Sally-Ride"));
+
+        //INT values compare as numbers
+        Operator op = Query.parse("SELECT name, years FROM Crew WHERE years > 8 ORDER BY years").plan(db);
+        assert(op.columns().length == 2);
+        rows = op.toList();
+        assert(rows.size() == 2);
+        assert(rows.get(0)[0].equals("Buzz"));
+        assert(rows.get(1)[1].equals("25"));
+
+        rows = Query.parse("SELECT * FROM Crew WHERE title = Pilot AND years < 10").plan(db).toList();
+        assert(rows.size() == 1);
+        assert(rows.get(0)[1].equals("Valentina"));
+
+        rows = Query.parse("SELECT name FROM Crew ORDER BY name DESC LIMIT 2").plan(db).toList();
+        assert(rows.size() == 2);
+        assert(rows.get(0)[0].equals("Valentina"));
+
+        //primary key lookup
+        rows = Query.parse("SELECT name FROM Crew WHERE crew-id = 255").plan(db).toList();
+        assert(rows.size() == 1);
+        assert(rows.get(0)[0].equals("Buzz"));
+        assert(Query.parse("SELECT name FROM Crew WHERE crew-id = crew-id").plan(db).toList().isEmpty());
+
+        boolean failed = false;
+        try {
+            Query.parse("SELECT nothing FROM Crew").plan(db);
+        } catch (IllegalArgumentException ex){
+            failed = true;
+        }
+        assert(failed);
+    }
+
+    private void testAggregate(Database db){
+        List<String[]> rows = Query.parse("SELECT COUNT(*), SUM(years), MIN(years), MAX(years) FROM Crew").plan(db).toList();
+        assert(rows.size() == 1);
+        assert(rows.get(0)[0].equals("5"));
+        assert(rows.get(0)[1].equals("49"));
+        assert(rows.get(0)[2].equals("1"));
+        assert(rows.get(0)[3].equals("25"));
+        //the same from a vectorized and a parallel plan
+        for (String mode : new String[] {"VECTORIZED", "PARALLEL 2"}){
+            Operator op = Query.parse("SELECT COUNT(*), SUM(years), MIN(years), MAX(years) FROM Crew USING " + mode).plan(db);
+            assert(op.toList().get(0)[1].equals("49"));
+        }
+
+        rows = Query.parse("SELECT ship-id, COUNT(*), AVG(years) FROM Crew GROUP BY ship-id ORDER BY ship-id").plan(db).toList();
+        assert(rows.size() == 3);
+        assert(rows.get(0)[0].equals("121"));
+        assert(rows.get(2)[1].equals("2"));
+        assert(rows.get(2)[2].equals("17.5"));
+
+        //averages order as numbers
+        rows = Query.parse("SELECT ship-id, AVG(years) FROM Crew GROUP BY ship-id ORDER BY AVG(years) DESC").plan(db).toList();
+        assert(rows.get(0)[1].equals("17.5"));
+        assert(rows.get(1)[1].equals("6.5"));
+
+        //a STRING column orders its values as strings, even when they are numbers
+        db.addTableRow("Crew", "s%999", "s%Yuri", "s%Pilot", "i%3", "s%99");
+        rows = Query.parse("SELECT MIN(ship-id), MAX(ship-id) FROM Crew").plan(db).toList();
+        assert(rows.get(0)[0].equals("121"));
+        assert(rows.get(0)[1].equals("99"));
+        rows = Query.parse("SELECT ship-id FROM Crew ORDER BY ship-id DESC").plan(db).toList();
+        assert(rows.get(0)[0].equals("99"));
+        assert(db.getTable("Crew").deleteRow("999"));
+    }
+
+    private void testIndexPlan(Database db){
+        Table crew = db.getTable("Crew");
+        crew.createIndex("years");
+        Operator op = Query.parse("SELECT name FROM Crew WHERE years < 10").plan(db);
+        List<String[]> rows = op.toList();
+        //index range, in years order, with the = 10 row filtered out
+        assert(rows.size() == 3);
+        assert(rows.get(0)[0].equals("Laika"));
+        assert(rows.get(2)[0].equals("Valentina"));
+
+        rows = Query.parse("SELECT name FROM Crew WHERE years = 25").plan(db).toList();
+        assert(rows.size() == 1);
+        assert(rows.get(0)[0].equals("Sally-Ride"));
+    }
+
+    private void testJoin(Database db){
+        db.addTable("Fleet", "s%ship-id", "s%name", "s%class");
+        db.addTableRow("Fleet", "s%513", "s%Endeavour", "s%shuttle");
+        db.addTableRow("Fleet", "s%121", "s%Sputnik", "s%satellite");
+        db.addTableRow("Fleet", "s%234", "s%Vostok", "s%capsule");
+        //every column of a foreign key table must match one in its primary table
+        assert(db.addTable("Launch", "Fleet", "ship-id", "ship", true, "s%ship", "s%name", "s%class"));
+        db.addTableRow("Launch", "s%121", "s%Sputnik-1", "s%satellite");
+        db.addTableRow("Launch", "s%234", "s%Vostok-1", "s%capsule");
+        db.addTableRow("Launch", "s%513", "s%STS-49", "s%shuttle");
+
+        //Fleet.ship-id is Fleet's primary key, so this looks up each crew member's ship
+        Operator op = Query.parse("SELECT Crew.name, Fleet.name FROM Crew JOIN Fleet ON Crew.ship-id = Fleet.ship-id WHERE years > 5 ORDER BY Crew.name").plan(db);
+        assert(op.columns()[1].equals("Fleet.name"));
+        List<String[]> rows = op.toList();
+        assert(rows.size() == 3);
+        assert(rows.get(1)[0].equals("Sally-Ride"));
+        assert(rows.get(1)[1].equals("Endeavour"));
+
+        //hash join on a column with no index, written the other way round, spilling to disk
+        Query q = Query.parse("SELECT Fleet.name, COUNT(*) FROM Fleet JOIN Crew ON Crew.ship-id = ship-id GROUP BY Fleet.name ORDER BY Fleet.name");
+        q.joinBudget = 1;
+        rows = q.plan(db).toList();
+        assert(rows.size() == 3);
+        assert(rows.get(0)[0].equals("Endeavour"));
+        assert(rows.get(0)[1].equals("2"));
+
+        //the foreign key gives the join columns, and conditions may be on either table
+        rows = Query.parse("SELECT Launch.name, Fleet.name FROM Launch JOIN Fleet WHERE Fleet.class = shuttle AND ship != 0").plan(db).toList();
+        assert(rows.size() == 1);
+        assert(rows.get(0)[0].equals("STS-49"));
+        assert(rows.get(0)[1].equals("Endeavour"));
+        rows = Query.parse("SELECT Launch.name FROM Fleet JOIN Launch WHERE Fleet.name = Vostok").plan(db).toList();
+        assert(rows.size() == 1);
+        assert(rows.get(0)[0].equals("Vostok-1"));
+
+        //three tables
+        rows = Query.parse("SELECT Crew.name, Launch.name FROM Crew JOIN Fleet ON Crew.ship-id = Fleet.ship-id JOIN Launch ORDER BY Crew.name").plan(db).toList();
+        assert(rows.size() == 5);
+        assert(rows.get(0)[0].equals("Buzz"));
+        assert(rows.get(0)[1].equals("STS-49"));
+
+        String[] bad = {"SELECT name FROM Crew JOIN Fleet ON ship-id = Fleet.ship-id",
+                        "SELECT * FROM Crew JOIN Launch",
+                        "SELECT * FROM Crew JOIN Crew ON crew-id = crew-id",
+                        "SELECT Other.name FROM Crew"};
+        for (String sql : bad){
+            boolean failed = false;
+            try {
+                Query.parse(sql).plan(db).toList();
+            } catch (IllegalArgumentException ex){
+                failed = true;
+            }
+            assert(failed);
+        }
+    }
+
+    private void testMergeJoin(){
+        Database db = new Database("testMergeJoin");
+        db.addTable("A", "s%id", "s%x");
+        db.addTable("B", "s%id", "s%y");
+        db.getTable("A").orderKeys(Type.INT);
+        db.getTable("B").orderKeys(Type.INT);
+        for (int i = 20; i > 0; i--){
+            db.addTableRow("A", "i%" + i, "s%a" + i);
+            if (i % 2 == 0){
+                db.addTableRow("B", "i%" + i, "s%b" + i);
+            }
+        }
+        List<String[]> rows = Query.parse("SELECT x, y FROM A JOIN B ON A.id = B.id WHERE y != b4").plan(db).toList();
+        assert(rows.size() == 9);
+        assert(rows.get(0)[0].equals("a2"));
+        assert(rows.get(1)[1].equals("b6"));
+        assert(rows.get(8)[1].equals("b20"));
+        db.deleteDatabase();
+    }
+}
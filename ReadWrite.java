@@ -1,12 +1,15 @@
 /* Deals with generating/updating tables from files and writing out a table to a file 
 Responsible for reading / writing tables and databases to file, writing the index, the 
 foreign key index, and creating the folder structure on command. Deals gracefully with
-missing files */
+missing files. Tables are written in the binary format handled by TableFile; 
+legacy text table files can still be read. */
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -15,6 +18,13 @@ import java.util.*;
 
 class ReadWrite {
 
+    //table files are read through this when it is set, rather than mapped
+    private BufferPool pool = null;
+
+    void setBufferPool(BufferPool pool){
+        this.pool = pool;
+    }
+
     public boolean mkdirs(String folderName){
         //if folder doesn't exist, create it
         //returns true IFF new dir. created
@@ -198,6 +208,10 @@ class ReadWrite {
     public ArrayList<String> getDirFiles(String filePath){
         ArrayList<String> results = new ArrayList<String>();
         File[] files = new File(filePath).listFiles();
+        //not a directory
+        if (files == null){
+            return results;
+        }
 
         for (File file : files){
             if (file.isFile()) {
@@ -210,10 +224,11 @@ class ReadWrite {
     //used by database to save foreign key information about its tables
     public void setForeignKeyIndex(String filepath, ArrayList<String> FKIndex){
         FileWriter fw;
+        File temp = new File(filepath + "/FKIndex.txt.tmp");
 
-        //create file
+        //write to a temporary file, then replace the index with it
         try {
-            fw = new FileWriter(filepath + "/FKIndex.txt");
+            fw = new FileWriter(temp);
             if (FKIndex.size() > 0){
                 //add each row of array to a new line
                 for (int i = 0; i < FKIndex.size(); i++){
@@ -224,8 +239,10 @@ class ReadWrite {
             fw.close();
         } catch (IOException ex){
             System.out.println("ERROR: failed to create foreign key index file");
+            temp.delete();
+            return;
         }
-        
+        TableFile.replace(temp.toPath(), new File(filepath + "/FKIndex.txt").toPath());
     }
 
     //used by database to construct tables with foreign keys
@@ -243,6 +260,10 @@ class ReadWrite {
             if (sc.hasNextLine()){
                 while(sc.hasNextLine()){
                     line = sc.nextLine();
+                    //skip blank lines
+                    if (line.trim().isEmpty()){
+                        continue;
+                    }
                     FKIndex.add(cnt++, line);
                 }        
             }
@@ -251,14 +272,36 @@ class ReadWrite {
         return FKIndex;
     }
 
-    //generate new table from file
+    //returns the FKIndex line [primaryTable, primaryCol, fkTable, fkCol] for a table, or null
+    public static String[] findForeignKey(ArrayList<String> FKIndex, String tableName){
+        String[] foreignKey = null;
+        String[] line;
+        for(int i = 0; i < FKIndex.size(); i++){
+            line = FKIndex.get(i).split("\\s"); 
+            if (line.length == 4 && line[2].equals(tableName)){
+                foreignKey = line;
+            }
+        }
+        return foreignKey;
+    }
+
+    //generate new table from file - binary table files and legacy text files are both accepted
     public Table readTable(String pathName, String filename){
+        return readTable(pathName, filename, getForeignKeyIndex(pathName));
+    }
+
+    //the same, with the foreign key index already read (when reading many tables)
+    public Table readTable(String pathName, String filename, ArrayList<String> FKIndex){
+        if (TableFile.isTableFile(pathName + filename)){
+            //rows are read from the mapped file (or the buffer pool) when first used
+            return TableFile.open(pathName + filename, FKIndex, pool);
+        }
+
         File file = new File(pathName + filename);
         Table newTable = null;
         Scanner sc; 
         //foreign key aspects
         Boolean hasForeignKey = false;
-        ArrayList<String> FKIndex; 
         String[] line; 
         String primaryTableName = "", primaryColName = "", colName = ""; 
         String name = "";
@@ -275,18 +318,13 @@ class ReadWrite {
             name = sc.nextLine();
         }
 
-        FKIndex = getForeignKeyIndex(pathName);
-        //loop over all rows in FKIndex, and check if table has a foreign key
-        if(!FKIndex.isEmpty()){
-            for(int i = 0; i < FKIndex.size(); i++){
-                line = FKIndex.get(i).split("\\s"); 
-                if (line[2].equals(name)){
-                    hasForeignKey = true;
-                    primaryTableName = line[0];
-                    primaryColName = line[1];
-                    colName = line[3];
-                }
-            }
+        //check if table has a foreign key
+        line = findForeignKey(FKIndex, name);
+        if (line != null){
+            hasForeignKey = true;
+            primaryTableName = line[0];
+            primaryColName = line[1];
+            colName = line[3];
         }
 
         //get col names - always second line
@@ -302,45 +340,150 @@ class ReadWrite {
                 newTable = new Table(name, colNames);
             }
 
-            //add rows from file (each line)
-            while(sc.hasNextLine()){
-                String newRowString = sc.nextLine();
-                String[] newRow = newRowString.split("\\s");
-                newTable.addRow(newRow);
-            }
         }
 
         sc.close();
+        //add rows from file (each line)
+        if (newTable != null && new BulkLoader(1).load(newTable, pathName + filename, BulkLoader.Format.LEGACY) == null){
+            return null;
+        }
         return newTable;
     }
 
-    //given a table, write it to a file
+    //write a table in the binary table file format, as pathName/tableName.tbl
+    //any legacy text file for the table is removed once the binary file is written
+    public boolean writeTableFile(Table table, String pathName){
+        if (!TableFile.write(table, pathName + table.getName() + TableFile.EXTENSION)){
+            return false;
+        }
+        return writeIndexFiles(table, pathName, table.rowSize());
+    }
+
+    //the same, for the table as a snapshot sees it - indexes are written as they are now 
+    //(holding the table's read lock), marked out of date if the table has changed since 
+    //the snapshot, so they are rebuilt when it is next read
+    public boolean writeTableFile(Table table, Table.View view, String pathName){
+        if (!TableFile.write(view, pathName + table.getName() + TableFile.EXTENSION)){
+            return false;
+        }
+        return table.read(() -> writeIndexFiles(table, pathName, 
+                          table.changedSince(view.getTimestamp()) ? -1 : view.rowCount() + 1));
+    }
+
+    //the table's indexes, for a table file holding rowCount rows (with the column names) - 
+    //also removes any legacy text file, and files of dropped indexes
+    private boolean writeIndexFiles(Table table, String pathName, int rowCount){
+        File legacy = new File(pathName + table.getName() + ".txt");
+        if (legacy.exists() && !TableFile.isTableFile(legacy.getPath())){
+            legacy.delete();
+        }
+
+        ArrayList<String> current = new ArrayList<>();
+        String tableFile = pathName + table.getName() + TableFile.EXTENSION;
+        for (ColumnIndex index : table.getIndexes()){
+            if (!index.write(pathName + index.getFileName(), rowCount, tableFile)){
+                return false;
+            }
+            current.add(index.getFileName());
+        }
+        for (String file : getIndexFiles(pathName, table.getName())){
+            if (!current.contains(file)){
+                removeFile(pathName, file);
+            }
+        }
+        return true;
+    }
+
+    //names of the index files in pathName belonging to a table (tableName.colName.idx)
+    public ArrayList<String> getIndexFiles(String pathName, String tableName){
+        return getIndexFiles(getDirFiles(pathName), tableName);
+    }
+
+    //the same, from a list of the folder's files
+    public ArrayList<String> getIndexFiles(List<String> dirFiles, String tableName){
+        ArrayList<String> indexFiles = new ArrayList<>();
+        for (String file : dirFiles){
+            if (file.startsWith(tableName + ".") && file.endsWith(ColumnIndex.EXTENSION)){
+                indexFiles.add(file);
+            }
+        }
+        return indexFiles;
+    }
+
+    //read the saved indexes of a table, and add the ones that still match it - written with 
+    //its table file as it is now, and for as many rows as it has
+    //returns the names of columns whose index was out of date (or could not be read)
+    public ArrayList<String> readIndexes(String pathName, Table table){
+        return readIndexes(pathName, table, getDirFiles(pathName));
+    }
+
+    //the same, from a list of the folder's files
+    public ArrayList<String> readIndexes(String pathName, Table table, List<String> dirFiles){
+        ArrayList<String> stale = new ArrayList<>();
+        String tableFile = pathName + table.getName() + TableFile.EXTENSION;
+        for (String file : getIndexFiles(dirFiles, table.getName())){
+            ColumnIndex index = ColumnIndex.read(pathName + file);
+            if (index == null){
+                //tableName.colName.idx
+                String colName = file.substring(table.getName().length() + 1, file.length() - ColumnIndex.EXTENSION.length());
+                if (table.getColNames().contains(colName)){
+                    stale.add(colName);
+                }
+                continue;
+            }
+            if (!index.getTableName().equals(table.getName())){
+                continue;
+            }
+            if (index.getRowCount() == table.rowSize() && index.matchesTableFile(tableFile)){
+                table.addIndex(index);
+            } else {
+                stale.add(index.getColName());
+            }
+        }
+        return stale;
+    }
+
+    //given a table, write it to a file in the legacy text format
+    //rows are written as they are reached, without listing the table's keys first
     public void writeTable(Table table, String pathName, String filename){
+        writeTable(table, pathName, filename, Parallel.defaultParallelism());
+    }
 
-        Record tempRow; 
-        String tempString;
-        FileWriter fw;
+    //the same, with the rows turned into text a morsel at a time by up to parallelism threads, 
+    //and written in table order
+    public void writeTable(Table table, String pathName, String filename, int parallelism){
 
         //create file
-        try {
-            fw = new FileWriter(pathName + filename);
+        try (BufferedWriter fw = new BufferedWriter(new FileWriter(pathName + filename))){
         
             //add table name
             fw.write(table.getName());
             fw.write("\n");
 
-            //add each row to a new line
-            //get primary keys and loop over to add rows
-            List<String> keys = table.getPrimaryKeys();
-            for (int i = 0; i < keys.size(); i++){
-                tempRow = table.getRow(keys.get(i));
-                tempString = tempRow.getAllItemString();
-                fw.write(tempString);
-                fw.write("\n");
-            }
-
-            fw.close();
-        } catch (IOException ex){
+            //add each row to a new line, the column names first
+            table.read(() -> {
+                try {
+                    fw.write(table.getColNames().getAllItemString());
+                    fw.write("\n");
+                    table.parallelForEach(parallelism, (rows, from, to) -> {
+                        StringBuilder text = new StringBuilder();
+                        for (int i = from; i < to; i++){
+                            text.append(rows[i].getAllItemString()).append("\n");
+                        }
+                        return text;
+                    }, text -> {
+                        try {
+                            fw.append(text);
+                        } catch (IOException ex){
+                            throw new UncheckedIOException(ex);
+                        }
+                    });
+                } catch (IOException ex){
+                    throw new UncheckedIOException(ex);
+                }
+                return null;
+            });
+        } catch (IOException | UncheckedIOException ex){
             System.out.println("ERROR: failed to create file " + filename);
         }
     }
@@ -365,6 +508,7 @@ class ReadWrite {
         testIndex();
         testType();
         testForeignKeyIndex();
+        testWriteTableFile();
         System.out.println("ReadWrite: all tests passed");
     }
 
@@ -469,4 +613,27 @@ class ReadWrite {
         assert(FKIndex.get(1).equals("primaryTable2 primaryCol2 fkTable2 fkCol2"));
         assert(FKIndex.get(2).equals("primaryTable3 primaryCol3 fkTable3 fkCol3"));
     }
+
+    private void testWriteTableFile(){
+        ReadWrite rw = new ReadWrite();
+        Table test = rw.readTable("tests/","test.txt");
+        mkdirs("tests/tableFile");
+        rw.writeTable(test, "tests/tableFile/", "testTable.txt");
+
+        //binary file replaces the legacy text file
+        assert(rw.writeTableFile(test, "tests/tableFile/"));
+        ArrayList<String> files = rw.getDirFiles("tests/tableFile");
+        assert(files.contains("testTable" + TableFile.EXTENSION));
+        assert(files.contains("testTable.txt") == false);
+
+        //readTable reads either format
+        Table test2 = rw.readTable("tests/tableFile/", "testTable" + TableFile.EXTENSION);
+        assert(test2.getName().equals(test.getName()));
+        assert(test2.getPrimaryKeys().equals(test.getPrimaryKeys()));
+        assert(test2.contains("item8"));
+
+        removeFile("tests/tableFile/", "testTable" + TableFile.EXTENSION);
+        deleteDirs("tests/tableFile");
+        assert(getDirFiles("tests/notADir").isEmpty());
+    }
 }
\ No newline at end of file
@@ -1,20 +1,24 @@
 /* a class to store individual records (ROWS) that contains fields (ITEMS) 
-Record class uses a Linked list to store Items. The first item value automatically 
-becomes the primary key. The record class only depends on the Item class. The Record 
-class can link two records together (to allow items to be accessed as columns), 
-return its primary key, return the type of its items, add items and check types, 
-remove items, and check if it contains a given value.
+Record class uses an array-backed list to store Items, so positional access is O(1). 
+The first item value automatically becomes the primary key. The record class only 
+depends on the Item class. The Record class can link two records together (to allow 
+items to be accessed as columns), return its primary key, return the type of its 
+items, add items and check types, remove items, and check if it contains a given 
+value. 
 */
 import java.util.*;
 
 class Record {
 
-    private LinkedList<Item> row  = new LinkedList<Item>();  
+    private ArrayList<Item> row  = new ArrayList<Item>();  
     private Item primaryKey = new Item("\\"); //points to first item
+    //place in its table's order, set by the table as the row is added
+    private long position = 0;
 
     //first item is automatically taken as primary key
     Record(String...itemString){
         if (itemString.length == 0){return;}
+        row.ensureCapacity(itemString.length);
         Item newItem; 
         for (String i : itemString){
             newItem = makeNewItem(i);
@@ -25,19 +29,18 @@ class Record {
 
     public static Item makeNewItem(String i){
         //to deal with dividing type indicator from value
-        String[] value; 
         Type type; 
         Item newItem; 
-        //split string to extract type information- limits split to 2 strings
-        //allows value to still contain regex % later on
-        value = i.split("%", 2);
+        //only the first % divides the type from the value, 
+        //allows value to still contain % later on
+        int split = i.indexOf('%');
 
         //if no type declared, default to type string (used for column names)
-        if (value[0].equals(i)){
+        if (split < 0){
             newItem = new Item(i, Type.STRING);
         } else {
-            type = getType(value[0]);
-            newItem = new Item(value[1], type);
+            type = getType(i.substring(0, split));
+            newItem = new Item(i.substring(split + 1), type);
         }
         return newItem;
     }
@@ -92,7 +95,7 @@ class Record {
     }
 
     public Item getItemAt(int index){
-        if (index < 0 || index > row.size()){
+        if (index < 0 || index >= row.size()){
             return null;
         } 
         return row.get(index);
@@ -100,13 +103,16 @@ class Record {
 
     public String getValueAt(int index){
         if (index >= 0 && index < row.size()){
-            return getItemAt(index).getValue(); 
+            return row.get(index).getValue(); 
         } 
         return null;
     }
 
     public Item getLast(){
-        return row.getLast();
+        if (row.size() == 0){
+            return null;
+        }
+        return row.get(row.size()-1);
     }
 
     public boolean updateItemAt(int index, String itemString){
@@ -167,23 +173,39 @@ class Record {
     }
 
     //get individual Items as a cloned list
-    public LinkedList<Item> getItems(){
-        LinkedList<Item> clone = new LinkedList<>(row);
+    public List<Item> getItems(){
+        List<Item> clone = new ArrayList<>(row);
         return clone;
     }
 
     //for use by ReadWrite
     public String getAllItemString(){
-        String tempString = "";
-        String type; 
+        StringBuilder tempString = new StringBuilder();
         //loop over items in row, and add item.getValue to String
         for(Item item : row)
             if (item == null){
             } else {
-                type = getType(item.getType());
-                tempString = tempString + type + "%" + item.getValue() + " ";
+                tempString.append(getType(item.getType())).append('%').append(item.getValue()).append(' ');
             }
-        return tempString;
+        return tempString.toString();
+    }
+
+    long getPosition(){
+        return position;
+    }
+
+    void setPosition(long position){
+        this.position = position;
+    }
+
+    //each item as a type-tagged string ("i%5"), as rows are given to Table.addRow
+    public String[] getItemStrings(){
+        String[] itemStrings = new String[row.size()];
+        for (int i = 0; i < itemStrings.length; i++){
+            Item item = row.get(i);
+            itemStrings[i] = getType(item.getType()) + "%" + item.getValue();
+        }
+        return itemStrings;
     }
 
     //add new item to the end of the row list
@@ -212,17 +234,17 @@ class Record {
 
     //returns a string with all values of the row separated by spaces
     public String getString(){
-        String rowString = "";
-        //loop over all items in row, and concat the item value to string
+        StringBuilder rowString = new StringBuilder();
+        //loop over all items in row, and add the item value to string
         for(int i = 0; i < row.size(); i++){
             if (i < row.size()-1){
-                rowString = rowString + row.get(i).getValue() + " "; 
+                rowString.append(row.get(i).getValue()).append(' '); 
             } else {
                 //prevent extra space being added 
-                rowString = rowString + row.get(i).getValue(); 
+                rowString.append(row.get(i).getValue()); 
             }
         }
-        return rowString; 
+        return rowString.toString(); 
     }
 
     // ---------- Testing -----------
@@ -249,6 +271,8 @@ class Record {
         testGetIndexOf();
         testType();
         testGetString();
+        testPositionalAccess();
+        testPositionalTiming();
         System.out.println("Record: All tests passed");
     }
 
@@ -334,4 +358,59 @@ class Record {
         String rowString = t1.getString();
         assert(rowString.equals("one 234 0 notype"));
     }
+
+    private void testPositionalAccess(){
+        Record t1 = new Record("zero", "one", "two");
+
+        //out of range indexes return null rather than throwing
+        assert(t1.getItemAt(3) == null);
+        assert(t1.getItemAt(-1) == null);
+        assert(t1.getValueAt(3) == null);
+        assert(t1.getLast().getValue().equals("two"));
+
+        //inserts shift later items along
+        t1.insertItemAt(1, "new");
+        assert(t1.size() == 4);
+        assert(t1.getValueAt(1).equals("new"));
+        assert(t1.getValueAt(2).equals("one"));
+
+        t1.remove(1);
+        assert(t1.getValueAt(1).equals("one"));
+        assert(t1.getPrimaryKey().equals("zero"));
+
+        assert(new Record().getLast() == null);
+    }
+
+    //reads per second of every cell of a wide row, by position, against the same
+    //walk over a linked list (the old layout) - printed, as it depends on the machine
+    private void testPositionalTiming(){
+        int width = 200;
+        String[] cells = new String[width];
+        for (int i = 0; i < width; i++){
+            cells[i] = "i%" + i;
+        }
+        Record wide = new Record(cells);
+        LinkedList<Item> linked = new LinkedList<>(wide.getItems());
+        int passes = 2000;
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int p = 0; p < passes; p++){
+            for (int i = 0; i < width; i++){
+                sum += wide.getValueAt(i).length();
+            }
+        }
+        long arrayNanos = Math.max(1, System.nanoTime() - start);
+        start = System.nanoTime();
+        for (int p = 0; p < passes; p++){
+            for (int i = 0; i < width; i++){
+                sum -= linked.get(i).getValue().length();
+            }
+        }
+        long linkedNanos = Math.max(1, System.nanoTime() - start);
+        assert(sum == 0);
+        long reads = (long) passes * width;
+        System.out.println("Record: positional reads/sec (" + width + " columns) - array: "
+                           + reads * 1000000000L / arrayNanos + " - linked list: "
+                           + reads * 1000000000L / linkedNanos);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+//rows a table reads from, rather than holding them itself, until it is first changed 
+//(a mapped table file, or rows kept off the heap) - rows returned are decoded copies
+interface RowSource {
+
+    //number of rows, not including the column names
+    int rowCount();
+
+    boolean containsKey(String primaryKey);
+
+    //primary keys of all rows in order, not including the column names
+    List<String> getPrimaryKeys();
+
+    //null if there is no row with that key
+    Record getRow(String primaryKey);
+
+    //the values of a row, without building its Items (null if there is no row with that key)
+    default String[] getValues(String primaryKey){
+        Record row = getRow(primaryKey);
+        if (row == null){
+            return null;
+        }
+        String[] values = new String[row.size()];
+        for (int i = 0; i < values.length; i++){
+            values[i] = row.getValueAt(i);
+        }
+        return values;
+    }
+
+    //the Items at colIndex, in order
+    List<Item> getCol(int colIndex);
+
+    //rows in order, each decoded when it is reached
+    default Iterator<Record> iterator(){
+        Iterator<String> keys = getPrimaryKeys().iterator();
+        return new Iterator<Record>(){
+            public boolean hasNext(){
+                return keys.hasNext();
+            }
+            public Record next(){
+                return getRow(keys.next());
+            }
+        };
+    }
+
+    //give every row to action in order, each decoded when it is reached
+    default void forEachRecord(Consumer<Record> action){
+        Iterator<Record> rows = iterator();
+        while (rows.hasNext()){
+            action.accept(rows.next());
+        }
+    }
+
+    //the rows in runs of about size rows, in order, each decoded when it is asked for - so 
+    //threads can decode runs at the same time (here every row is decoded first)
+    default List<Supplier<Record[]>> runs(int size){
+        List<Record> all = new ArrayList<>(rowCount());
+        forEachRecord(all::add);
+        Record[] rows = all.toArray(new Record[all.size()]);
+        List<Supplier<Record[]>> runs = new ArrayList<>();
+        for (int from = 0; from < rows.length; from += size){
+            Record[] run = Arrays.copyOfRange(rows, from, Math.min(rows.length, from + size));
+            runs.add(() -> run);
+        }
+        return runs;
+    }
+
+    //add every row to table - returns the number of rows added
+    int loadInto(Table table);
+
+    //let go of whatever holds the rows
+    void close();
+}
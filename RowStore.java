@@ -0,0 +1,502 @@
+/* Keeps rows off the Java heap, in slabs of direct memory, so that large tables
+do not leave the garbage collector millions of Records, Items and Strings to trace.
+Each row is encoded as in a table file (see TableFile) into a block whose size is
+the next power of two that fits it. Blocks are cut from the current slab, and a
+freed block goes on the free list for its size, to be reused by the next row of
+that size; the free lists are kept inside the free blocks themselves. A row too
+large for a slab is given a slab of its own, which is dropped when it is freed.
+Rows are found by a handle (slab and offset), and are decoded when they are read:
+as a Record, or as just their values, or one value at a time. A table moves its
+rows into a store with Table.moveOffHeap, and reads them back (through the
+TableRows view) until it is next changed. */
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.Supplier;
+
+class RowStore {
+
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+    //each block starts with the length of its row and its size class
+    private static final int BLOCK_HEADER = 8;
+    private static final int MIN_BLOCK = 32;
+    //size class of a row given a slab of its own
+    private static final int OWN_SLAB = -1;
+    private static final long NO_BLOCK = -1;
+
+    private final int slabSize;
+    private List<ByteBuffer> slabs = new ArrayList<>();
+    //slab blocks are being cut from, and where the next one starts
+    private int current = -1;
+    private int top = 0;
+    //first free block of each size class (blocks of 1 << (class + 5) bytes)
+    private long[] freeLists;
+
+    private long usedBytes = 0;
+    private long reservedBytes = 0;
+    private int rowCount = 0;
+
+    RowStore(int slabSize){
+        this.slabSize = Integer.highestOneBit(Math.max(MIN_BLOCK, slabSize));
+        freeLists = new long[sizeClass(this.slabSize) + 1];
+        Arrays.fill(freeLists, NO_BLOCK);
+    }
+
+    RowStore(){
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    //copy row into the store - returns its handle
+    public synchronized long put(Record row){
+        int length = TableFile.recordSize(row);
+        long handle = allocate(BLOCK_HEADER + length);
+        ByteBuffer block = block(handle);
+        block.putInt(length);
+        block.position(BLOCK_HEADER);
+        TableFile.putRecord(block, row);
+        rowCount++;
+        return handle;
+    }
+
+    public synchronized Record get(long handle){
+        ByteBuffer block = block(handle);
+        block.position(BLOCK_HEADER);
+        return TableFile.getRecord(block);
+    }
+
+    //the same, decoded outside the store's lock so threads decode rows at the same time - 
+    //only the block is found holding it, as a live row's block is not written to
+    public Record decode(long handle){
+        ByteBuffer block;
+        synchronized (this){
+            block = block(handle);
+        }
+        block.position(BLOCK_HEADER);
+        return TableFile.getRecord(block);
+    }
+
+    //the row's values, without building a Record or Items
+    public synchronized String[] getValues(long handle){
+        ByteBuffer block = block(handle);
+        block.position(BLOCK_HEADER);
+        String[] values = new String[block.getInt()];
+        for (int i = 0; i < values.length; i++){
+            block.get();
+            values[i] = TableFile.getString(block);
+        }
+        return values;
+    }
+
+    //one value of the row, skipping the cells before it
+    public synchronized String getValue(long handle, int colIndex){
+        ByteBuffer block = block(handle);
+        block.position(BLOCK_HEADER);
+        int cells = block.getInt();
+        if (colIndex < 0 || colIndex >= cells){
+            return null;
+        }
+        for (int i = 0; i < colIndex; i++){
+            TableFile.skipItem(block);
+        }
+        block.get();
+        return TableFile.getString(block);
+    }
+
+    //give the row's block back to be reused
+    public synchronized void free(long handle){
+        ByteBuffer block = block(handle);
+        int sizeClass = block.getInt(4);
+        usedBytes -= blockSize(block, sizeClass);
+        rowCount--;
+        if (sizeClass == OWN_SLAB){
+            reservedBytes -= block.capacity();
+            slabs.set(slab(handle), null);
+            return;
+        }
+        block.putLong(BLOCK_HEADER, freeLists[sizeClass]);
+        freeLists[sizeClass] = handle;
+    }
+
+    //live rows
+    public synchronized int size(){
+        return rowCount;
+    }
+
+    //bytes in blocks holding live rows
+    public synchronized long getUsedBytes(){
+        return usedBytes;
+    }
+
+    //direct memory taken by slabs
+    public synchronized long getReservedBytes(){
+        return reservedBytes;
+    }
+
+    //drop every row and slab
+    public synchronized void clear(){
+        slabs.clear();
+        current = -1;
+        top = 0;
+        Arrays.fill(freeLists, NO_BLOCK);
+        usedBytes = 0;
+        reservedBytes = 0;
+        rowCount = 0;
+    }
+
+    private long allocate(int bytes){
+        if (bytes > slabSize){
+            ByteBuffer own = ByteBuffer.allocateDirect(bytes);
+            slabs.add(own);
+            reservedBytes += bytes;
+            usedBytes += bytes;
+            own.putInt(4, OWN_SLAB);
+            return handle(slabs.size() - 1, 0);
+        }
+        int sizeClass = sizeClass(bytes);
+        int size = MIN_BLOCK << sizeClass;
+        long handle = freeLists[sizeClass];
+        if (handle != NO_BLOCK){
+            freeLists[sizeClass] = slabs.get(slab(handle)).getLong(offset(handle) + BLOCK_HEADER);
+        } else {
+            if (current < 0 || top + size > slabSize){
+                slabs.add(ByteBuffer.allocateDirect(slabSize));
+                reservedBytes += slabSize;
+                current = slabs.size() - 1;
+                top = 0;
+            }
+            handle = handle(current, top);
+            top += size;
+        }
+        slabs.get(slab(handle)).putInt(offset(handle) + 4, sizeClass);
+        usedBytes += size;
+        return handle;
+    }
+
+    //the block, as a buffer of its own starting at the block header
+    private ByteBuffer block(long handle){
+        ByteBuffer slab = slabs.get(slab(handle)).duplicate();
+        int offset = offset(handle);
+        int sizeClass = slab.getInt(offset + 4);
+        int size = (sizeClass == OWN_SLAB) ? slab.capacity() : MIN_BLOCK << sizeClass;
+        slab.position(offset);
+        slab.limit(offset + size);
+        return slab.slice();
+    }
+
+    private int blockSize(ByteBuffer block, int sizeClass){
+        return (sizeClass == OWN_SLAB) ? block.capacity() : MIN_BLOCK << sizeClass;
+    }
+
+    //smallest class whose blocks hold bytes
+    private static int sizeClass(int bytes){
+        int size = MIN_BLOCK;
+        int sizeClass = 0;
+        while (size < bytes){
+            size <<= 1;
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    private static long handle(int slab, int offset){
+        return ((long) slab << 32) | offset;
+    }
+
+    private static int slab(long handle){
+        return (int) (handle >>> 32);
+    }
+
+    private static int offset(long handle){
+        return (int) handle;
+    }
+
+    //the rows of one table, in the order they were added, kept in a store
+    static class TableRows implements RowSource {
+        private RowStore store;
+        private LinkedHashMap<String, Long> handles = new LinkedHashMap<>();
+
+        TableRows(RowStore store){
+            this.store = store;
+        }
+
+        //false if there is already a row with its key
+        public boolean put(Record row){
+            if (handles.containsKey(row.getPrimaryKey())){
+                return false;
+            }
+            handles.put(row.getPrimaryKey(), store.put(row));
+            return true;
+        }
+
+        public int rowCount(){
+            return handles.size();
+        }
+
+        public boolean containsKey(String primaryKey){
+            return handles.containsKey(primaryKey);
+        }
+
+        public List<String> getPrimaryKeys(){
+            return new ArrayList<>(handles.keySet());
+        }
+
+        public Record getRow(String primaryKey){
+            Long handle = handles.get(primaryKey);
+            return (handle == null) ? null : store.get(handle);
+        }
+
+        public String[] getValues(String primaryKey){
+            Long handle = handles.get(primaryKey);
+            return (handle == null) ? null : store.getValues(handle);
+        }
+
+        public List<Item> getCol(int colIndex){
+            List<Item> column = new ArrayList<>(handles.size());
+            for (long handle : handles.values()){
+                column.add(store.get(handle).getItemAt(colIndex));
+            }
+            return column;
+        }
+
+        public Iterator<Record> iterator(){
+            Iterator<Long> rows = handles.values().iterator();
+            return new Iterator<Record>(){
+                public boolean hasNext(){
+                    return rows.hasNext();
+                }
+                public Record next(){
+                    return store.get(rows.next());
+                }
+            };
+        }
+
+        //runs of size rows, each decoded by whichever thread asks for it
+        public List<Supplier<Record[]>> runs(int size){
+            long[] all = new long[handles.size()];
+            int i = 0;
+            for (long handle : handles.values()){
+                all[i++] = handle;
+            }
+            List<Supplier<Record[]>> runs = new ArrayList<>();
+            for (int from = 0; from < all.length; from += size){
+                long[] run = Arrays.copyOfRange(all, from, Math.min(all.length, from + size));
+                runs.add(() -> {
+                    Record[] rows = new Record[run.length];
+                    for (int j = 0; j < run.length; j++){
+                        rows[j] = store.decode(run[j]);
+                    }
+                    return rows;
+                });
+            }
+            return runs;
+        }
+
+        public int loadInto(Table table){
+            int loaded = 0;
+            for (long handle : handles.values()){
+                if (table.loadRow(store.get(handle))){
+                    loaded++;
+                }
+            }
+            return loaded;
+        }
+
+        //free every row
+        public void close(){
+            for (long handle : handles.values()){
+                store.free(handle);
+            }
+            handles.clear();
+        }
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        RowStore program = new RowStore(1024);
+        program.run();
+        program.test();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea RowStore");
+    }
+
+    private void test(){
+        testPutGet();
+        testFreeList();
+        testLargeRows();
+        testTableRows();
+        testOffHeapTable();
+        testHeapUsage();
+        System.out.println("RowStore: all tests passed");
+    }
+
+    private void testPutGet(){
+        RowStore store = new RowStore(1024);
+        long a = store.put(new Record("s%key1", "i%42", "s%hello world"));
+        long b = store.put(new Record("s%key2", "b%true", "s%"));
+        Record row = store.get(a);
+        assert(row.getValueAt(0).equals("key1"));
+        assert(row.getItemAt(1).getType() == Type.INT);
+        assert(row.getValueAt(2).equals("hello world"));
+        assert(Arrays.equals(store.getValues(b), new String[] {"key2", "true", ""}));
+        assert(store.getValue(a, 1).equals("42"));
+        assert(store.getValue(a, 3) == null);
+        assert(store.size() == 2);
+        assert(store.getReservedBytes() == 1024);
+        assert(store.getUsedBytes() == 2 * MIN_BLOCK * 2);
+
+        Record nulls = new Record("s%key3");
+        nulls.addItem(new Item(null));
+        long c = store.put(nulls);
+        assert(store.get(c).getValueAt(1) == null);
+        assert(store.getValues(c)[1] == null);
+    }
+
+    private void testFreeList(){
+        RowStore store = new RowStore(1024);
+        List<Long> handles = new ArrayList<>();
+        for (int i = 0; i < 16; i++){
+            handles.add(store.put(new Record("s%k" + i, "s%value" + i)));
+        }
+        long reserved = store.getReservedBytes();
+        //freed blocks are reused before the slab grows
+        for (int i = 0; i < 8; i++){
+            store.free(handles.get(i));
+        }
+        assert(store.size() == 8);
+        for (int i = 0; i < 8; i++){
+            long handle = store.put(new Record("s%n" + i, "s%again" + i));
+            assert(handles.subList(0, 8).contains(handle));
+            assert(store.getValue(handle, 1).equals("again" + i));
+        }
+        assert(store.getReservedBytes() == reserved);
+        assert(store.getValue(handles.get(15), 1).equals("value15"));
+
+        //a block of another size is not reused for a bigger row
+        store.free(handles.get(9));
+        long big = store.put(new Record("s%big", "s%" + String.join("", Collections.nCopies(200, "x"))));
+        assert(big != handles.get(9));
+        assert(store.getValue(big, 1).length() == 200);
+        store.clear();
+        assert(store.size() == 0 && store.getReservedBytes() == 0);
+    }
+
+    private void testLargeRows(){
+        RowStore store = new RowStore(1024);
+        String huge = String.join("", Collections.nCopies(5000, "y"));
+        long handle = store.put(new Record("s%huge", "s%" + huge));
+        assert(store.getValue(handle, 1).equals(huge));
+        assert(store.getReservedBytes() > 5000);
+        long small = store.put(new Record("s%small", "s%1"));
+        store.free(handle);
+        assert(store.getReservedBytes() == 1024);
+        assert(store.getValue(small, 0).equals("small"));
+    }
+
+    private void testTableRows(){
+        RowStore store = new RowStore(1024);
+        TableRows rows = new TableRows(store);
+        assert(rows.put(new Record("s%b", "i%2")));
+        assert(rows.put(new Record("s%a", "i%1")));
+        assert(!rows.put(new Record("s%a", "i%3")));
+        assert(rows.rowCount() == 2);
+        assert(rows.getPrimaryKeys().equals(Arrays.asList("b", "a")));
+        assert(rows.getRow("a").getValueAt(1).equals("1"));
+        assert(rows.getRow("c") == null);
+        assert(rows.getValues("b")[1].equals("2"));
+        assert(rows.getCol(1).get(1).getValue().equals("1"));
+        Iterator<Record> it = rows.iterator();
+        assert(it.next().getPrimaryKey().equals("b"));
+        assert(it.next().getPrimaryKey().equals("a"));
+        assert(!it.hasNext());
+        rows.close();
+        assert(store.size() == 0);
+    }
+
+    private void testOffHeapTable(){
+        RowStore store = new RowStore(4096);
+        Table t1 = new Table("offHeap", "s%id", "i%num", "s%name");
+        for (int i = 0; i < 500; i++){
+            t1.addRow("s%key" + i, "i%" + i, "s%name" + i);
+        }
+        t1.createIndex("num");
+        t1.moveOffHeap(store);
+        assert(t1.isOffHeap());
+        assert(store.size() == 500);
+        assert(t1.rowSize() == 501);
+        assert(t1.getRow("key250").getValueAt(2).equals("name250"));
+        assert(t1.getRowValues("key3")[1].equals("3"));
+        assert(t1.getRowValues("id")[0].equals("id"));
+        assert(t1.getCol("num").size() == 501);
+        assert(t1.containsKey("key499"));
+        assert(t1.lookup("num", "7").get(0).equals("key7"));
+
+        //written straight from the store
+        assert(TableFile.write(t1, "tests/offHeap.tbl"));
+        assert(t1.isOffHeap());
+        Table t2 = TableFile.read("tests/offHeap.tbl", new ArrayList<String>());
+        assert(t2.rowSize() == 501);
+        assert(t2.getPrimaryKeys().equals(t1.getPrimaryKeys()));
+        new java.io.File("tests/offHeap.tbl").delete();
+
+        //the first change brings the rows back and frees their blocks
+        assert(t1.updateItem("key1", "name", "renamed"));
+        assert(!t1.isOffHeap());
+        assert(store.size() == 0);
+        assert(t1.getRow("key1").getValueAt(2).equals("renamed"));
+        assert(t1.getCol("num").size() == 501);
+        assert(t1.lookup("num", "7").get(0).equals("key7"));
+        assert(t1.addRow("s%key500", "i%500", "s%name500"));
+    }
+
+    //heap used, and time spent in garbage collection scanning, by rows as Records and off the heap
+    private void testHeapUsage(){
+        int n = 200000;
+        Table onHeap = new Table("onHeap", "s%id", "i%num", "s%name");
+        for (int i = 0; i < n; i++){
+            onHeap.addRow("s%key" + i, "i%" + i, "s%name" + i);
+        }
+        long heapRows = heapUsed();
+        long gcRows = scanWithGc(onHeap);
+
+        RowStore store = new RowStore();
+        onHeap.moveOffHeap(store);
+        long heapOffHeap = heapUsed();
+        long gcOffHeap = scanWithGc(onHeap);
+        System.out.println("RowStore: " + n + " rows take " + heapRows / (1 << 20) + " MB of heap as Records ("
+            + gcRows + " ms of GC in a scan), " + heapOffHeap / (1 << 20) + " MB off the heap with "
+            + store.getReservedBytes() / (1 << 20) + " MB of slabs (" + gcOffHeap + " ms of GC in a scan)");
+        assert(heapOffHeap < heapRows);
+        assert(onHeap.rowSize() == n + 1);
+    }
+
+    private long heapUsed(){
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++){
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private long scanWithGc(Table table){
+        long before = gcMillis();
+        for (String key : table.getPrimaryKeys()){
+            table.getRowValues(key);
+        }
+        System.gc();
+        return gcMillis() - before;
+    }
+
+    private long gcMillis(){
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,250 @@
+/* A point-in-time view of tables, for multi-version concurrency control. Every change
+to a table that keeps row versions is stamped with the next time from a clock shared
+by all tables, and the new versions of the rows it changed are put in front of the
+ones they replace (see Table.View). A snapshot is given the time it was opened at,
+and reads each table as it was then - without taking any lock, so long scans and
+writes to file see one consistent state while rows keep being changed, and writers
+never wait for them. Tables start keeping versions when a snapshot is opened on them
+(tables read later through a database snapshot are versioned as they are read), and
+versions no open snapshot can see are dropped when versions are collected, or when
+the same row is next changed. Snapshots must be closed, or every version made while
+they are open is kept. */
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+class Snapshot implements AutoCloseable {
+
+    //the time the last change was stamped with, and how many snapshots are open at each time
+    private static long time = 0;
+    private static final TreeMap<Long, Integer> open = new TreeMap<>();
+
+    private long timestamp;
+    private boolean closed = false;
+    //finds tables not yet read when the snapshot was opened, which must be among names
+    private final Function<String, Table> resolve;
+    private final Set<String> names;
+    private final Map<String, Table.View> views = new HashMap<>();
+
+    private Snapshot(long timestamp, Collection<String> names, Function<String, Table> resolve){
+        this.timestamp = timestamp;
+        this.names = new HashSet<>(names);
+        this.resolve = resolve;
+    }
+
+    //a snapshot of a single table, as it is now
+    public static Snapshot of(Table table){
+        return begin(Collections.singleton(table.getName()), name -> table).start(Collections.singleton(table));
+    }
+
+    //register a snapshot that is being opened - versions from now on are kept for it.
+    //It must be started once the tables it is opened on are known
+    static Snapshot begin(Collection<String> names, Function<String, Table> resolve){
+        synchronized (Snapshot.class){
+            Snapshot snapshot = new Snapshot(time, names, resolve);
+            register(time);
+            return snapshot;
+        }
+    }
+
+    //version tables, then take the time - every change stamped up to then is seen, and
+    //any made to the tables before they were versioned is in their first versions
+    Snapshot start(Collection<Table> tables){
+        for (Table table : tables){
+            table.startVersioning();
+        }
+        synchronized (Snapshot.class){
+            unregister(timestamp);
+            timestamp = time;
+            register(timestamp);
+        }
+        for (Table table : tables){
+            views.put(table.getName(), table.viewAt(timestamp));
+        }
+        return this;
+    }
+
+    //stamp a change with the next time - publish puts its versions in place holding the
+    //clock, so a snapshot opened at that time sees all of them
+    static synchronized long stamp(LongConsumer publish){
+        time++;
+        publish.accept(time);
+        return time;
+    }
+
+    //the time of the oldest open snapshot - versions replaced before then can't be seen
+    static synchronized long oldestOpen(){
+        return open.isEmpty() ? Long.MAX_VALUE : open.firstKey();
+    }
+
+    static synchronized boolean anyOpen(){
+        return !open.isEmpty();
+    }
+
+    private static void register(long at){
+        open.merge(at, 1, Integer::sum);
+    }
+
+    private static void unregister(long at){
+        open.computeIfPresent(at, (t, count) -> (count == 1) ? null : count - 1);
+    }
+
+    public long getTimestamp(){
+        return timestamp;
+    }
+
+    //a table as it was when the snapshot was opened, or null if it did not exist then
+    public synchronized Table.View getTable(String tableName){
+        if (closed){
+            return null;
+        }
+        Table.View view = views.get(tableName);
+        if (view == null && names.contains(tableName)){
+            Table table = resolve.apply(tableName);
+            if (table != null){
+                view = table.viewAt(timestamp);
+                views.put(tableName, view);
+            }
+        }
+        return view;
+    }
+
+    public synchronized void close(){
+        if (closed){
+            return;
+        }
+        closed = true;
+        synchronized (Snapshot.class){
+            unregister(timestamp);
+        }
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        Snapshot program = new Snapshot(0, Collections.emptySet(), name -> null);
+        program.run();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea Snapshot");
+        test();
+    }
+
+    private void test(){
+        testPointInTime();
+        testSchemaChange();
+        testCollect();
+        testWritersDoNotWait();
+        System.out.println("Snapshot: all tests passed");
+    }
+
+    private void testPointInTime(){
+        Table t1 = new Table("ship", "s%id", "i%crew");
+        t1.addRow("s%a", "i%1");
+        t1.addRow("s%b", "i%2");
+        try (Snapshot snapshot = Snapshot.of(t1)){
+            Table.View view = snapshot.getTable("ship");
+            t1.addRow("s%c", "i%3");
+            t1.updateItem("a", "crew", "10");
+            t1.deleteRow("b");
+
+            //the view still sees the table as it was
+            assert(view.rowCount() == 2);
+            assert(view.getPrimaryKeys().equals(Arrays.asList("a", "b")));
+            assert(view.getRow("a").getValueAt(1).equals("1"));
+            assert(view.getRow("a").getItemAt(1).getType() == Type.INT);
+            assert(view.getRow("b") != null);
+            assert(!view.containsKey("c"));
+            assert(view.getColNames().getValueAt(1).equals("crew"));
+            Iterator<Record> rows = view.iterator();
+            assert(rows.next().getPrimaryKey().equals("a"));
+            assert(rows.next().getPrimaryKey().equals("b"));
+            assert(!rows.hasNext());
+
+            //a later snapshot sees the changes
+            try (Snapshot later = Snapshot.of(t1)){
+                Table.View now = later.getTable("ship");
+                assert(now.getPrimaryKeys().equals(Arrays.asList("a", "c")));
+                assert(now.getValues("a")[1].equals("10"));
+                assert(later.getTimestamp() > snapshot.getTimestamp());
+            }
+            //a row deleted and added again goes to the end
+            t1.addRow("s%b", "i%20");
+            assert(view.getValues("b")[1].equals("2"));
+            try (Snapshot later = Snapshot.of(t1)){
+                assert(later.getTable("ship").getPrimaryKeys().equals(Arrays.asList("a", "c", "b")));
+            }
+        }
+    }
+
+    private void testSchemaChange(){
+        Table t1 = new Table("robot", "s%id", "s%name");
+        t1.addRow("s%r1", "s%robbie");
+        try (Snapshot snapshot = Snapshot.of(t1)){
+            Table.View view = snapshot.getTable("robot");
+            t1.addCol("year");
+            t1.updateItem("r1", "year", "1999");
+            assert(view.getColNames().size() == 2);
+            assert(view.getRow("r1").size() == 2);
+            assert(t1.getItem("r1", "year").getValue().equals("1999"));
+            t1.clearTable();
+            assert(view.rowCount() == 1);
+            //a table that did not exist when the snapshot was opened is not in it
+            assert(snapshot.getTable("other") == null);
+        }
+    }
+
+    private void testCollect(){
+        Table t1 = new Table("counter", "s%id", "i%n");
+        t1.addRow("s%x", "i%0");
+        Snapshot first = Snapshot.of(t1);
+        for (int i = 1; i <= 100; i++){
+            t1.updateItem("x", "n", "" + i);
+        }
+        t1.addRow("s%y", "i%0");
+        t1.deleteRow("y");
+        //the first snapshot still needs the oldest version of x
+        assert(first.getTable("counter").getValues("x")[1].equals("0"));
+        assert(t1.versionCount() >= 3);
+        first.close();
+
+        //with a snapshot open, only what it can see is kept - the newest x, y's deletion is dropped
+        try (Snapshot second = Snapshot.of(t1)){
+            t1.collectVersions();
+            assert(t1.versionCount() == 2);
+            assert(second.getTable("counter").getValues("x")[1].equals("100"));
+            assert(!second.getTable("counter").containsKey("y"));
+        }
+        //with none open, versions are no longer kept at all
+        t1.collectVersions();
+        assert(t1.versionCount() == 0);
+        assert(first.getTable("counter") == null);
+    }
+
+    //a long scan of a snapshot does not hold up writers, and sees none of their rows
+    private void testWritersDoNotWait(){
+        Table t1 = new Table("log", "s%id", "i%n");
+        for (int i = 0; i < 1000; i++){
+            t1.addRow("s%k" + i, "i%" + i);
+        }
+        try (Snapshot snapshot = Snapshot.of(t1)){
+            Table.View view = snapshot.getTable("log");
+            Iterator<Record> rows = view.iterator();
+            int seen = 0;
+            while (rows.hasNext()){
+                Record row = rows.next();
+                assert(row.getValueAt(1).equals("" + seen));
+                //a writer changes the table in the middle of the scan
+                assert(t1.addRow("s%new" + seen, "i%0"));
+                assert(t1.updateItem("k" + seen, "n", "-1"));
+                seen++;
+            }
+            assert(seen == 1000);
+            assert(view.rowCount() == 1000);
+            assert(t1.rowSize() == 2001);
+        }
+    }
+}
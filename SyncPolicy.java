@@ -0,0 +1,4 @@
+//when the write-ahead log forces appended records to disk
+enum SyncPolicy {
+    PER_COMMIT, GROUP_COMMIT, INTERVAL; 
+}
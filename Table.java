@@ -7,8 +7,47 @@ duplication of data) and the data structure further assures that the column row
 are unique. This column structure, combined with the downward pointers in the Item 
 class, allow for a single column to be easily extracted from a table. The table also 
 stores if any of its columns are foreign key columns, and if so, stores the data needed 
-to easily check this information is accurate.*/
+to easily check this information is accurate. A table opened from a binary table 
+file answers reads straight from the mapped file (or through a buffer pool), and 
+only loads its rows into memory when it is first changed. Rows may also be moved 
+off the heap into a RowStore, and are read from there in the same way. Row changes 
+(addRow, deleteRow, updateRow and updateItem) and column changes (addCol, 
+addColBefore, removeCol, updateCol and clearTable) are recorded in the database's 
+write-ahead log, if it has one; other changes (key order and indexes) are only saved 
+when the database is written. A table is marked dirty when it is changed through its 
+own methods, so the database only rewrites tables that have changed since they were 
+last written (Items changed directly are not seen). Secondary indexes (see 
+ColumnIndex) may be created on any column, and are kept up to date by the methods 
+that change rows and columns. A table may also keep its primary keys in order 
+(numerically for INT keys), in a skip list alongside the hash map, which allows 
+range scans, floor/ceiling lookups and ordered cursors. Rows can be read a batch at 
+a time through a Cursor, without a list of the keys being made, in table order (or 
+key order, over a range of keys), or split into morsels worked on in parallel (see 
+Parallel). Once its database links a foreign key table to the table it refers to, 
+every insert and update checks the foreign key value exists in the referenced column, 
+and deleting or changing a referenced value is refused (RESTRICT) or deletes the 
+referring rows (CASCADE). These checks use hash indexes (see HashIndex) on the 
+referenced and foreign key columns, so each costs O(1). A table may be used by 
+many threads at once: reads share a read lock, and row changes and column changes 
+take the write lock (changes to one table are made one at a time, as rows are 
+chained down their columns, but different tables change in parallel). A table 
+whose foreign key is enforced read-locks the table it refers to before locking 
+itself, so locks are always taken from a referenced table down to the tables 
+referring to it, and never the other way. Once a snapshot is opened on it (see 
+Snapshot), a table also keeps versions of its rows: each change, as it lets go of 
+the write lock, puts new versions of the rows it changed in front of the ones they 
+replace, all stamped with one time, and only then writes the change to the log. A 
+View reads the rows as they were at a snapshot's time from these versions, without 
+locking the table.*/
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import javax.xml.crypto.KeySelector;
 
@@ -23,6 +62,112 @@ class Table {
     private HashMap<String, Item> cols = new HashMap<String, Item>(); 
     private boolean hasForeignKey = false;
     private String foreignKeyCol, primaryTable, primaryCol;
+    //mapped table file (or off-heap rows) that rows are read from until the table is first changed
+    private volatile RowSource source = null;
+    //database write-ahead log that row changes are recorded in
+    private WriteAheadLog log = null;
+    //changed since last written to file
+    private volatile boolean dirty = true;
+    //secondary indexes by column name
+    private HashMap<String, ColumnIndex> indexes = new HashMap<String, ColumnIndex>();
+    //rows in primary key order, if the table orders its keys (built when first used)
+    private Type keyType = null;
+    private volatile ConcurrentSkipListMap<String, Record> orderedRows = null;
+    //counts changes to the columns and indexes, so the database catalog can tell it is out of date
+    private volatile int schemaVersion = 0;
+    //foreign key constraint - the table this table's foreign key refers to, what deleting 
+    //a referenced row does to rows here, and the tables with foreign keys referring to this one
+    private volatile Table referencedTable = null;
+    private ForeignKeyAction onDelete = ForeignKeyAction.RESTRICT;
+    private List<Table> referencingTables = new CopyOnWriteArrayList<Table>();
+    //hash indexes on referenced and foreign key columns (built when first used, by readers too)
+    private ConcurrentHashMap<String, HashIndex> hashIndexes = new ConcurrentHashMap<String, HashIndex>();
+    //off while a batch of rows whose foreign keys have already been checked is added
+    private boolean checkReferences = true;
+    //shared by readers, held alone by changes
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    //row versions by primary key, newest first - kept while snapshots may read the table
+    private volatile ConcurrentHashMap<String, RowVersion> versions = null;
+    private long nextSeq = 0;
+    //place in table order of the next row added - rows in a table file or off the heap 
+    //are at 1, 2, 3... so they keep their places when they are loaded
+    private long nextPosition = 1;
+    //rows in memory by position, built when a cursor first has to find its place again 
+    //after a change, and kept up to date from then on
+    private volatile TreeMap<Long, Record> byPosition = null;
+    //time the last change was stamped with
+    private volatile long lastChanged = 0;
+    //what the change holding the write lock has done, published and logged as it lets go
+    private final Set<String> changedKeys = new LinkedHashSet<String>();
+    private boolean changedAllRows = false, changedTable = false;
+    private final List<LoggedChange> unlogged = new ArrayList<LoggedChange>();
+    //the referenced table a transaction read-locked along with this one
+    private Table transactionReferenced = null;
+
+    //one version of a row - never changed once published, apart from dropping older versions
+    private static class RowVersion {
+        //null once the row has been deleted
+        final String[] values;
+        final Type[] types;
+        //position in table order (the column names are 0)
+        final long seq;
+        //time the version was stamped with
+        final long begin;
+        volatile RowVersion older;
+
+        RowVersion(Record row, long seq, long begin, RowVersion older){
+            if (row == null){
+                values = null;
+                types = null;
+            } else {
+                values = new String[row.size()];
+                types = new Type[row.size()];
+                for (int i = 0; i < values.length; i++){
+                    values[i] = row.getValueAt(i);
+                    types[i] = row.getItemAt(i).getType();
+                }
+            }
+            this.seq = seq;
+            this.begin = begin;
+            this.older = older;
+        }
+
+        Record toRecord(){
+            Record row = new Record();
+            for (int i = 0; i < values.length; i++){
+                row.addItem((values[i] == null) ? new Item(null) : new Item(values[i], types[i]));
+            }
+            return row;
+        }
+
+        //drop the versions no snapshot opened at oldest or later can see, returning how many
+        int prune(long oldest){
+            RowVersion version = this;
+            while (version != null && version.begin > oldest){
+                version = version.older;
+            }
+            if (version == null || version.older == null){
+                return 0;
+            }
+            int dropped = 0;
+            for (RowVersion old = version.older; old != null; old = old.older){
+                dropped++;
+            }
+            version.older = null;
+            return dropped;
+        }
+    }
+
+    //a change waiting to be written to the log
+    private static class LoggedChange {
+        byte op;
+        String[] args;
+
+        LoggedChange(byte op, String[] args){
+            this.op = op;
+            this.args = args;
+        }
+    }
 
     Table(String name, String...columnNames){
         this.name = name; 
@@ -78,325 +223,1968 @@ class Table {
         }
     }
 
-    public String getName(){
-        return name;
+    public String getName(){
+        return name;
+    }
+
+    //run read holding the read lock
+    private <T> T reading(Supplier<T> read){
+        lock.readLock().lock();
+        try {
+            return read.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //run change holding the write lock - and the read lock of the table this table's 
+    //foreign key refers to, taken first, so its values can't change while they are checked
+    private <T> T writing(Supplier<T> change){
+        Table referenced = referencedTable;
+        if (referenced != null && referenced != this){
+            referenced.lock.readLock().lock();
+        }
+        lock.writeLock().lock();
+        boolean logged = true;
+        T result;
+        try {
+            result = change.get();
+        } finally {
+            if (lock.getWriteHoldCount() == 1){
+                logged = publishChanges();
+            }
+            lock.writeLock().unlock();
+            if (referenced != null && referenced != this){
+                referenced.lock.readLock().unlock();
+            }
+        }
+        return logged ? result : notLogged(result);
+    }
+
+    //a change that could not be logged is not durable, so one that would have returned 
+    //true returns false (it stays in memory, and is written with the table)
+    @SuppressWarnings("unchecked")
+    private static <T> T notLogged(T result){
+        return (result instanceof Boolean) ? (T)Boolean.FALSE : result;
+    }
+
+    //run read holding the read lock, with every row in memory
+    private <T> T readingLoaded(Supplier<T> read){
+        while (true){
+            loadForRead();
+            lock.readLock().lock();
+            try {
+                //unless the rows were moved out again before the read lock was taken
+                if (source == null){
+                    return read.get();
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    //reads that need every row in memory load them first, which takes the write lock
+    private void loadForRead(){
+        if (source == null){
+            return;
+        }
+        if (lock.getReadHoldCount() > 0 && !lock.isWriteLockedByCurrentThread()){
+            throw new IllegalStateException("table " + name + " must be loaded before it is read locked");
+        }
+        writing(() -> {
+            load();
+            return null;
+        });
+    }
+
+    //the rows at primaryKey, or all rows, or only the table (its key order) have changed
+    //(called holding the write lock)
+    private void changed(String primaryKey){
+        dirty = true;
+        changedKeys.add(primaryKey);
+    }
+
+    private void changedAll(){
+        dirty = true;
+        changedAllRows = true;
+    }
+
+    private void changed(){
+        dirty = true;
+        changedTable = true;
+    }
+
+    //record a row or column change in the log once it has been published - a transaction applying 
+    //on this thread logs it with the rest of its changes instead
+    private void logChange(byte op, String...args){
+        Transaction transaction = Transaction.applying();
+        if (transaction != null){
+            transaction.logged(new WriteAheadLog.Entry(op, name, args));
+            return;
+        }
+        if (log != null){
+            unlogged.add(new LoggedChange(op, args));
+        }
+    }
+
+    //stamp the versions of the rows the change made with one time, so a snapshot sees 
+    //all of it or none of it - then log it, so a write of the database from a snapshot 
+    //(see Database.writeDb) can't empty the log of a change the snapshot did not see - 
+    //returns false if the change could not be logged
+    private boolean publishChanges(){
+        if (versions != null && hasChanges()){
+            Snapshot.stamp(time -> publishVersions(time, Snapshot.oldestOpen()));
+        }
+        changedKeys.clear();
+        changedAllRows = false;
+        changedTable = false;
+        WriteAheadLog to = log;
+        boolean logged = true;
+        if (to != null && unlogged.size() == 1){
+            logged = to.write(unlogged.get(0).op, name, unlogged.get(0).args);
+        } else if (to != null && !unlogged.isEmpty()){
+            //the rows of one change (such as addRows, or a bulk load chunk) are one frame, forced once
+            List<WriteAheadLog.Entry> changes = new ArrayList<>(unlogged.size());
+            for (LoggedChange change : unlogged){
+                changes.add(new WriteAheadLog.Entry(change.op, name, change.args));
+            }
+            logged = to.write(changes);
+        }
+        unlogged.clear();
+        if (!logged){
+            System.out.println("ERROR: a change to " + name + " is not in the write-ahead log, and is lost if the database stops before it is written");
+        }
+        return logged;
+    }
+
+    //true if the change holding the write lock has changed anything
+    private boolean hasChanges(){
+        return changedAllRows || changedTable || !changedKeys.isEmpty();
+    }
+
+    //put new versions of the changed rows in front of the ones they replace, stamped with 
+    //time (called holding the write lock and the snapshot clock)
+    private void publishVersions(long time, long oldest){
+        ConcurrentHashMap<String, RowVersion> current = versions;
+        if (current != null && hasChanges()){
+            Collection<String> keys = changedKeys;
+            if (changedAllRows){
+                keys = new LinkedHashSet<>(rows.keySet());
+                keys.addAll(current.keySet());
+            }
+            for (String key : keys){
+                Record row = rows.get(key);
+                RowVersion older = current.get(key);
+                boolean existed = older != null && older.values != null;
+                if (row == null && !existed){
+                    continue;
+                }
+                RowVersion version = new RowVersion(row, existed ? older.seq : nextSeq++, time, older);
+                version.prune(oldest);
+                current.put(key, version);
+            }
+            lastChanged = time;
+        }
+        changedKeys.clear();
+        changedAllRows = false;
+        changedTable = false;
+    }
+
+    //hold the write lock (and the read lock of the table the foreign key refers to) until 
+    //unlockTransaction - the changes made meanwhile are published by the transaction
+    void lockTransaction(){
+        Table referenced = referencedTable;
+        if (referenced != null && referenced != this){
+            referenced.lock.readLock().lock();
+        }
+        lock.writeLock().lock();
+        transactionReferenced = referenced;
+    }
+
+    //publish the rows a transaction changed in the tables it locked, all with one time
+    static void publishTransaction(Collection<Table> tables){
+        Snapshot.stamp(time -> {
+            long oldest = Snapshot.oldestOpen();
+            for (Table table : tables){
+                table.publishVersions(time, oldest);
+            }
+        });
+    }
+
+    void unlockTransaction(){
+        Table referenced = transactionReferenced;
+        transactionReferenced = null;
+        if (lock.getWriteHoldCount() == 1){
+            publishChanges();
+        }
+        lock.writeLock().unlock();
+        if (referenced != null && referenced != this){
+            referenced.lock.readLock().unlock();
+        }
+    }
+
+    //tables with foreign keys referring to this one
+    List<Table> getReferencingTables(){
+        return Collections.unmodifiableList(referencingTables);
+    }
+
+    //a row is about to change - a transaction applying on this thread keeps it as it was, 
+    //to put it back if the transaction fails (called holding the write lock, table loaded)
+    private void beforeChange(String primaryKey){
+        Transaction transaction = Transaction.applying();
+        if (transaction != null){
+            Record row = rows.get(primaryKey);
+            transaction.saveRow(this, primaryKey, (row == null) ? null : copyOf(row));
+        }
+    }
+
+    //a row with the same values and types, not linked to any other row
+    private static Record copyOf(Record row){
+        Record copy = new Record();
+        for (Item item : row.getItems()){
+            copy.addItem((item.getValue() == null) ? new Item(null) : new Item(item.getValue(), item.getType()));
+        }
+        return copy;
+    }
+
+    //put a row back as it was before a transaction changed it (before is null if there was 
+    //no such row). Foreign keys are not checked, as the rows they refer to are put back too
+    void restoreRow(String primaryKey, Record before){
+        writing(() -> {
+            load();
+            Record row = rows.get(primaryKey);
+            if (row != null){
+                indexRow(row, primaryKey, false);
+                if (before == null){
+                    rows.remove(primaryKey);
+                    unplace(row);
+                    if (orderedRows != null){
+                        orderedRows.remove(primaryKey);
+                    }
+                } else {
+                    //values are set in place, as the row's items are linked down their columns
+                    for (int i = 0; i < before.size() && i < row.size(); i++){
+                        row.getItemAt(i).setValue(before.getValueAt(i));
+                    }
+                    indexRow(row, primaryKey, true);
+                }
+            } else if (before != null){
+                //a deleted row goes back at the end
+                Record restored = copyOf(before);
+                addRow(restored);
+                indexRow(restored, primaryKey, true);
+                if (orderedRows != null){
+                    orderedRows.put(primaryKey, restored);
+                }
+            }
+            changed(primaryKey);
+            return null;
+        });
+    }
+
+    //keep row versions from now on, starting from the rows as they are now
+    //(which every snapshot sees)
+    void startVersioning(){
+        if (versions != null){
+            return;
+        }
+        writing(() -> {
+            if (versions != null){
+                return null;
+            }
+            ConcurrentHashMap<String, RowVersion> start = new ConcurrentHashMap<>();
+            nextSeq = 0;
+            for (Map.Entry<String, Record> row : rows.entrySet()){
+                start.put(row.getKey(), new RowVersion(row.getValue(), nextSeq++, 0, null));
+            }
+            if (source != null){
+                Iterator<Record> it = source.iterator();
+                while (it.hasNext()){
+                    Record row = it.next();
+                    start.put(row.getPrimaryKey(), new RowVersion(row, nextSeq++, 0, null));
+                }
+            }
+            versions = start;
+            return null;
+        });
+    }
+
+    //drop the row versions no open snapshot can see - and stop keeping versions once 
+    //no snapshot is open. Returns the number of versions dropped
+    int collectVersions(){
+        ConcurrentHashMap<String, RowVersion> current = versions;
+        if (current == null){
+            return 0;
+        }
+        if (!Snapshot.anyOpen()){
+            return writing(() -> {
+                //unless a snapshot was opened meanwhile
+                if (versions == null || Snapshot.anyOpen()){
+                    return 0;
+                }
+                int count = versionCount();
+                versions = null;
+                return count;
+            });
+        }
+        long oldest = Snapshot.oldestOpen();
+        int dropped = 0;
+        for (Map.Entry<String, RowVersion> entry : current.entrySet()){
+            RowVersion version = entry.getValue();
+            dropped += version.prune(oldest);
+            //a deletion every snapshot sees
+            if (version.values == null && version.begin <= oldest && current.remove(entry.getKey(), version)){
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    //number of row versions kept
+    int versionCount(){
+        ConcurrentHashMap<String, RowVersion> current = versions;
+        int count = 0;
+        if (current != null){
+            for (RowVersion version : current.values()){
+                for (; version != null; version = version.older){
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    //true if a change was stamped after timestamp
+    boolean changedSince(long timestamp){
+        return lastChanged > timestamp;
+    }
+
+    //the rows as they were at timestamp - the table must have kept versions since then
+    View viewAt(long timestamp){
+        startVersioning();
+        return new View(versions, timestamp);
+    }
+
+    //run read holding the read lock (for callers that read several parts of the table that
+    //must agree, such as its indexes, or its rows and row count)
+    <T> T read(Supplier<T> read){
+        return reading(read);
+    }
+
+    //a table's rows as they were at a snapshot's time, read from the row versions 
+    //without locking the table. Key order is the table's order now
+    class View implements RowSource {
+        private final Map<String, RowVersion> versions;
+        private final long timestamp;
+
+        private View(Map<String, RowVersion> versions, long timestamp){
+            this.versions = versions;
+            this.timestamp = timestamp;
+        }
+
+        public String getName(){
+            return name;
+        }
+
+        public long getTimestamp(){
+            return timestamp;
+        }
+
+        public boolean hasOrderedKeys(){
+            return Table.this.hasOrderedKeys();
+        }
+
+        public Type getKeyType(){
+            return Table.this.getKeyType();
+        }
+
+        //the version of the row at primaryKey the view sees (null if there was no such row)
+        private RowVersion visible(RowVersion version){
+            while (version != null && version.begin > timestamp){
+                version = version.older;
+            }
+            return (version == null || version.values == null) ? null : version;
+        }
+
+        //every row the view sees in table order, the column names first
+        private List<RowVersion> visibleRows(){
+            List<RowVersion> found = new ArrayList<>();
+            for (RowVersion version : versions.values()){
+                RowVersion seen = visible(version);
+                if (seen != null){
+                    found.add(seen);
+                }
+            }
+            found.sort(Comparator.comparingLong(version -> version.seq));
+            return found;
+        }
+
+        public Record getColNames(){
+            RowVersion header = visible(versions.get(colNames.getPrimaryKey()));
+            if (header == null || header.seq != 0){
+                header = visibleRows().get(0);
+            }
+            return header.toRecord();
+        }
+
+        public int rowCount(){
+            return visibleRows().size() - 1;
+        }
+
+        public boolean containsKey(String primaryKey){
+            RowVersion version = visible(versions.get(primaryKey));
+            return version != null && version.seq != 0;
+        }
+
+        public List<String> getPrimaryKeys(){
+            List<RowVersion> found = visibleRows();
+            List<String> keys = new ArrayList<>(found.size());
+            for (int i = 1; i < found.size(); i++){
+                keys.add(found.get(i).values[0]);
+            }
+            return keys;
+        }
+
+        public Record getRow(String primaryKey){
+            RowVersion version = visible(versions.get(primaryKey));
+            return (version == null) ? null : version.toRecord();
+        }
+
+        public String[] getValues(String primaryKey){
+            RowVersion version = visible(versions.get(primaryKey));
+            return (version == null) ? null : version.values.clone();
+        }
+
+        public List<Item> getCol(int colIndex){
+            List<RowVersion> found = visibleRows();
+            List<Item> column = new ArrayList<>(found.size());
+            for (int i = 1; i < found.size(); i++){
+                RowVersion version = found.get(i);
+                String value = version.values[colIndex];
+                column.add((value == null) ? new Item(null) : new Item(value, version.types[colIndex]));
+            }
+            return column;
+        }
+
+        public Iterator<Record> iterator(){
+            List<RowVersion> found = visibleRows();
+            Iterator<RowVersion> it = found.subList(1, found.size()).iterator();
+            return new Iterator<Record>(){
+                public boolean hasNext(){
+                    return it.hasNext();
+                }
+                public Record next(){
+                    return it.next().toRecord();
+                }
+            };
+        }
+
+        public int loadInto(Table table){
+            int added = 0;
+            Iterator<Record> it = iterator();
+            while (it.hasNext()){
+                if (table.loadRow(it.next())){
+                    added++;
+                }
+            }
+            return added;
+        }
+
+        public void close(){
+        }
+    }
+
+    //serve reads from a mapped table file (used by TableFile.open)
+    void setSource(RowSource source){
+        this.source = source;
+    }
+
+    void setLog(WriteAheadLog log){
+        this.log = log;
+    }
+
+    public boolean isDirty(){
+        return dirty;
+    }
+
+    //the table file now matches the table (used after reading or writing it)
+    void markClean(){
+        dirty = false;
+    }
+
+    //the table file now matches the table as it was at timestamp - it stays dirty if it 
+    //has changed since. Returns true if it is clean
+    boolean markClean(long timestamp){
+        return writing(() -> {
+            if (lastChanged <= timestamp){
+                dirty = false;
+            }
+            return !dirty;
+        });
+    }
+
+    public int getSchemaVersion(){
+        return schemaVersion;
+    }
+
+    public boolean isMapped(){
+        return source != null;
+    }
+
+    public boolean isOffHeap(){
+        return source instanceof RowStore.TableRows;
+    }
+
+    //keep the rows in store rather than as Records on the heap - they are read from there 
+    //until the table is next changed. Indexes are kept as they are
+    public void moveOffHeap(RowStore store){
+        writing(() -> {
+            load();
+            RowStore.TableRows offHeap = new RowStore.TableRows(store);
+            for (Record row : rows.values()){
+                if (row != colNames){
+                    offHeap.put(row);
+                }
+            }
+            rows.clear();
+            rows.put(colNames.getPrimaryKey(), colNames);
+            lastAdded = colNames;
+            for (Item col : colNames.getItems()){
+                col.setDown(null);
+            }
+            orderedRows = null;
+            byPosition = null;
+            source = offHeap;
+            nextPosition = 1;
+            return null;
+        });
+    }
+
+    //decode all rows from the mapped file into memory, so the table can be changed
+    //(called holding the write lock)
+    private void load(){
+        if (source == null){
+            return;
+        }
+        RowSource from = source;
+        source = null;
+        from.loadInto(this);
+        from.close();
+    }
+
+    //stop reading from the table file (when the table leaves memory)
+    void release(){
+        writing(() -> {
+            if (source != null){
+                source.close();
+            }
+            return null;
+        });
+    }
+
+    public Item getItem(String primaryKey, String colName){
+        return reading(() -> {
+            //use colName to get index of col, then return that Item from Record
+            int colIndex = colNames.indexOf(colName);
+            if (colIndex < 0){
+                return null; 
+            }
+
+            //use primary key to get correct Record from rows
+            Record temp = getRow(primaryKey);
+            if (temp == null){
+                return null;
+            }
+        
+            return temp.getItemAt(colIndex);
+        });
+    }
+
+    public boolean updateItem(String primaryKey, String colName, String newItemString){
+        return writing(() -> {
+            load();
+            Item item = getItem(primaryKey, colName);
+            if (item == null){
+                return false;
+            }
+
+            String oldValue = item.getValue();
+            Record row = rows.get(primaryKey);
+            if (!canChange(row, colNames.indexOf(colName), newItemString)){
+                return false;
+            }
+            beforeChange(primaryKey);
+            item.setValue(newItemString);
+            if (!colNames.getPrimaryKey().equals(primaryKey)){
+                reindex(indexes.get(colName), primaryKey, oldValue, item.getValue());
+                HashIndex hashIndex = hashIndexes.get(colName);
+                if (hashIndex != null){
+                    hashIndex.remove(oldValue, primaryKey);
+                    hashIndex.insert(item.getValue(), primaryKey);
+                }
+            }
+            changed(primaryKey);
+            logChange(WriteAheadLog.UPDATE_ITEM, primaryKey, colName, newItemString);
+            return true;
+        });
+    }
+
+    public int colSize(){
+        return colNames.size();
+    }
+
+    public int rowSize(){
+        return reading(() -> {
+            if (source != null){
+                return source.rowCount() + 1;
+            }
+            return rows.size();
+        });
+    }
+
+    public List<Item> getColumnNames(){
+        return colNames.getItems();
+    }
+
+    public Record getColNames(){
+        return colNames;
+    }
+
+    public String getColNamesString(){
+        return colNames.getString();
+    }
+
+    public List<String> getPrimaryKeys(){
+        return reading(() -> {
+            List<String> keys = new ArrayList<>(rows.keySet());
+            if (source != null){
+                keys.addAll(source.getPrimaryKeys());
+            }
+            return keys;
+        });
+    }
+
+    public Collection<Record> getValues(){
+        return readingLoaded(() -> new ArrayList<>(rows.values()));
+    }
+
+    //give each row (not the column names) to action in table order, holding the read lock 
+    //throughout, so no list of the rows or keys is made - rows not in memory are decoded 
+    //one at a time, and the table is not loaded
+    public void forEachRow(Consumer<Record> action){
+        reading(() -> {
+            for (Record row : rows.values()){
+                if (row != colNames){
+                    action.accept(row);
+                }
+            }
+            if (source != null){
+                source.forEachRecord(action);
+            }
+            return null;
+        });
+    }
+
+    //split the rows (not the column names) into morsels, worked on by up to parallelism 
+    //threads, and merge their results in table order. The read lock is held until every 
+    //morsel is done, so work must not call this table's methods - rows not in memory are 
+    //split by where they are kept (pages of a file, or off the heap), each morsel decoded 
+    //by the thread working on it, and the table is not loaded
+    public <R> R parallelScan(int parallelism, Parallel.Morsel<R> work, BinaryOperator<R> merge){
+        return reading(() -> {
+            if (onlyInSource()){
+                return Parallel.scan(source.runs(Parallel.MORSEL), parallelism, work, merge);
+            }
+            return Parallel.scan(rowArray(), parallelism, work, merge);
+        });
+    }
+
+    //the same, giving each morsel's result to consume (in this thread) in table order
+    public <R> void parallelForEach(int parallelism, Parallel.Morsel<R> work, Consumer<R> consume){
+        reading(() -> {
+            if (onlyInSource()){
+                Parallel.forEachOrdered(source.runs(Parallel.MORSEL), parallelism, work, consume);
+            } else {
+                Parallel.forEachOrdered(rowArray(), parallelism, work, consume);
+            }
+            return null;
+        });
+    }
+
+    //every row is in the row source (called holding the read lock)
+    private boolean onlyInSource(){
+        return source != null && rows.size() == 1;
+    }
+
+    //the rows (not the column names) in table order, to be split among threads
+    //(called holding the read lock)
+    private Record[] rowArray(){
+        List<Record> all = new ArrayList<>(rows.size());
+        forEachRow(all::add);
+        return all.toArray(new Record[all.size()]);
+    }
+
+    //the values of a row (null if there is no such row) - a row that is not in memory 
+    //is decoded without building Items
+    public String[] getRowValues(String primaryKey){
+        return reading(() -> {
+            Record row = rows.get(primaryKey);
+            if (row == null){
+                return (source == null) ? null : source.getValues(primaryKey);
+            }
+            String[] values = new String[row.size()];
+            for (int i = 0; i < values.length; i++){
+                values[i] = row.getValueAt(i);
+            }
+            return values;
+        });
+    }
+
+    //select a row (perhaps by row number) -- will change to primary key
+    public Record getRow(String primaryKey){
+        return reading(() -> {
+            Record row = rows.get(primaryKey);
+            if (row == null && source != null){
+                //rows read from a mapped file are decoded copies
+                return source.getRow(primaryKey);
+            }
+            return row;
+        });
+    }
+
+    public boolean hasForeignKey(){
+        return hasForeignKey;
+    }
+
+    //insert a row to end ONLY IF new row length matches current number of columns
+    //point the items at the item added below it (to allow easy column-access)
+    public boolean addRow(String...itemStrings){
+        return writing(() -> {
+            load();
+
+            //check that primray key is unique
+            if (rows.containsKey(itemStrings[0])){
+                return false;
+            }
+
+            if (itemStrings.length != colNames.size()){
+                return false;
+            }
+
+            Item newItem; 
+            Record newRow = new Record();
+            for (String i : itemStrings){
+
+                //type check
+                newItem = Record.makeNewItem(i);
+
+                if (hasForeignKey){
+                    if (newItem.getValue().equals(foreignKeyCol)){
+                        //add additional foreign key info to item
+                        newItem.setForeignKeyTable(colNames.getItemAt(colNames.getIndex(foreignKeyCol)).getForeignKeyTable());
+                        newItem.setForeignKeyCol(colNames.getItemAt(colNames.getIndex(foreignKeyCol)).getForeignKeyCol());
+                    }
+                } 
+                newRow.addItem(newItem);
+            }
+            if (rows.containsKey(newRow.getPrimaryKey())){
+                return false;
+            }
+            if (checkReferences && referencedTable != null && 
+                !checkReference(newRow.getValueAt(colNames.indexOf(foreignKeyCol)))){
+                return false;
+            }
+            beforeChange(newRow.getPrimaryKey());
+            if (addRow(newRow)){
+                indexRow(newRow, newRow.getPrimaryKey(), true);
+                if (orderedRows != null){
+                    orderedRows.put(newRow.getPrimaryKey(), newRow);
+                }
+                changed(newRow.getPrimaryKey());
+                logChange(WriteAheadLog.ADD_ROW, itemStrings);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    public String getForeignKeyCol(){
+        return foreignKeyCol;
+    }
+
+    public String getPrimaryTable(){
+        return primaryTable;
+    }
+
+    public String getPrimaryCol(){
+        return primaryCol;
+    }
+
+    private boolean addRow(Record newRow){
+        if (newRow.size() == colNames.size()){
+            //link newRow to last record in rows
+            if (rows.keySet().size() != 0){
+                //skip linking if its the first row to be added
+                Record.link(lastAdded, newRow);
+                lastAdded = newRow;
+            }
+            if (rows.put(newRow.getPrimaryKey(), newRow) == null){
+                newRow.setPosition(nextPosition++);
+                if (byPosition != null){
+                    byPosition.put(newRow.getPosition(), newRow);
+                }
+                return true;
+            }
+        } 
+        return false;
+    }
+
+    //add a row that has already been built and type checked (used when loading tables from file)
+    boolean loadRow(Record newRow){
+        if (rows.containsKey(newRow.getPrimaryKey())){
+            return false;
+        }
+        return addRow(newRow);
+    }
+
+    public boolean deleteRow(String primaryKey){
+        return writing(() -> {
+            load();
+            //cannot delete column row
+            if (colNames.getPrimaryKey().equals(primaryKey)){
+                return false;
+            }
+            Record row = rows.get(primaryKey);
+            if (row == null){
+                return false;
+            }
+            //rows in other tables referring to this one must allow it to go
+            Map<Table, List<String>> cascades = new LinkedHashMap<>();
+            if (!referencingTables.isEmpty()){
+                if (!canDelete(row, Collections.newSetFromMap(new IdentityHashMap<>()))){
+                    return false;
+                }
+                for (Table t : referencingTables){
+                    Set<String> keys = referencesTo(t, row);
+                    if (!keys.isEmpty()){
+                        cascades.put(t, new ArrayList<>(keys));
+                    }
+                }
+            }
+            beforeChange(primaryKey);
+            Record removed = rows.remove(primaryKey);
+            if (removed != null){
+                unplace(removed);
+                indexRow(removed, primaryKey, false);
+                if (orderedRows != null){
+                    orderedRows.remove(primaryKey);
+                }
+                changed(primaryKey);
+                logChange(WriteAheadLog.DELETE_ROW, primaryKey);
+                for (Map.Entry<Table, List<String>> cascade : cascades.entrySet()){
+                    for (String key : cascade.getValue()){
+                        cascade.getKey().deleteRow(key);
+                    }
+                }
+                return true;
+            }
+    
+            return false;
+        });
+    }
+
+    //update a row - may only be done as a full unit (correct number of items)
+    //may update column names if enter index 0
+    public boolean updateRow(String primaryKey, String...itemStrings){
+        return writing(() -> {
+            load();
+            if ( !rows.containsKey(primaryKey) || itemStrings.length != colSize() ){
+                return false;
+            }
+
+            int cnt = 0;
+            Record row = rows.get(primaryKey);
+            for (int i = 0; i < itemStrings.length; i++){
+                if (!canChange(row, i, itemStrings[i])){
+                    return false;
+                }
+            }
+            beforeChange(primaryKey);
+            indexRow(row, primaryKey, false);
+            //update all values in row
+            for (String i : itemStrings) {
+                //get specific row and upate each element in it
+                row.updateItemAt(cnt++, i);
+            }
+            indexRow(row, primaryKey, true);
+            changed(primaryKey);
+            String[] args = new String[itemStrings.length + 1];
+            args[0] = primaryKey;
+            System.arraycopy(itemStrings, 0, args, 1, itemStrings.length);
+            logChange(WriteAheadLog.UPDATE_ROW, args);
+            return true;
+        });
+    }
+
+    public Record getCol(String colName){
+        return getCol(colName, 1);
+    }
+
+    //the same, with the rows split among up to parallelism threads, which take each row's 
+    //Item rather than walking down the column (the rows are listed first, so this only 
+    //pays when walking the column is slow)
+    public Record getCol(String colName, int parallelism){
+        return reading(() -> {
+            Record column = new Record();
+            Item top = cols.get(colName);
+            if (top == null){
+                return null;
+            }
+            column.addItem(top);
+            if (source != null){
+                for (Item item : source.getCol(colNames.indexOf(colName))){
+                    column.addItem(item);
+                }
+                return column;
+            }
+            if (parallelism > 1 && rows.size() > Parallel.MORSEL){
+                int colIndex = colNames.indexOf(colName);
+                //each thread fills in its own morsel's places
+                Item[] items = new Item[rows.size() - 1];
+                Parallel.scan(rowArray(), parallelism, (part, from, to) -> {
+                    for (int i = from; i < to; i++){
+                        items[i] = part[i].getItemAt(colIndex);
+                    }
+                    return null;
+                }, (a, b) -> null);
+                for (Item item : items){
+                    column.addItem(item);
+                }
+                return column;
+            }
+            while(top.getDown() != null){
+                column.addItem(top.getDown());
+                top = top.getDown();
+            }
+            return column;
+        });
+    }
+
+    //type of a column's values, taken from the first row with a value in that column
+    //(STRING if there are none), or null if there is no such column
+    public Type getColType(String colName){
+        return reading(() -> {
+            int colIndex = colNames.indexOf(colName);
+            if (colIndex < 0){
+                return null;
+            }
+            for (String key : getPrimaryKeys()){
+                Record row = getRow(key);
+                if (row == colNames || row == null){
+                    continue;
+                }
+                Item item = row.getItemAt(colIndex);
+                if (item != null && item.getValue() != null){
+                    return item.getType();
+                }
+            }
+            return Type.STRING;
+        });
+    }
+
+    //columnar copy of a column's values (not including the column name), built from the rows on each call
+    //INT and BOOL columns are stored as primitives, STRING columns are dictionary encoded - 
+    //the table itself keeps its rows as Records, and has no columnar storage
+    public ColumnVector getColVector(String colName){
+        return readingLoaded(() -> colVector(colName));
+    }
+
+    //(called with every row in memory, holding a lock)
+    private ColumnVector colVector(String colName){
+        int colIndex = colNames.indexOf(colName);
+        if (colIndex < 0){
+            return null;
+        }
+        List<Item> items = new ArrayList<>(rows.size());
+        for (Record r : rows.values()){
+            if (r != colNames){
+                items.add(r.getItemAt(colIndex));
+            }
+        }
+        return ColumnVector.fromItems(colName, items);
+    }
+
+    //the Items of a column in table order, taken from each row in memory - or only up to 
+    //the first with a value (called with every row in memory, holding a lock)
+    private Iterator<Item> colItems(int colIndex, boolean toFirstValue){
+        Iterator<Record> it = rows.values().iterator();
+        //skip the column names
+        it.next();
+        return new Iterator<Item>(){
+            private boolean found = false;
+            public boolean hasNext(){
+                return it.hasNext() && !(toFirstValue && found);
+            }
+            public Item next(){
+                Item item = it.next().getItemAt(colIndex);
+                found |= item != null && item.getValue() != null;
+                return item;
+            }
+        };
+    }
+
+    public boolean addCol(String colName){
+        return writing(() -> {
+            load();
+            //must be unique name
+            if (colNames.contains(colName)){
+                return false;
+            }
+
+            //add new column
+            Item newCol = new Item(colName);
+            colNames.addItem(newCol);
+
+            //add pointer to new column to cols hashMap
+            cols.put(colName, newCol);
+
+            //use ordered list of keys to link columns in same order as rest of table
+            List<String> keys = new ArrayList<>(rows.keySet());
+
+            //add an item (value null) all down the new column
+            for(int i = 1; i < rows.size(); i++){
+                Item nullItem = new Item(null);
+
+                //add new item to row under new column
+                rows.get(keys.get(i)).addItem(nullItem);
+
+                //link items (the last items added to row and Item above it in new col)
+                newCol.setDown(rows.get(keys.get(i)).getLast());
+
+                newCol = newCol.getDown();
+            }
+            schemaVersion++;
+            changedAll();
+            logChange(WriteAheadLog.ADD_COL, colName);
+            return true;
+        });
+    }
+
+    //add multiple columns at once
+    public void addCol(String...colNames){
+        for (String i : colNames){
+            addCol(i);
+        }
+    }
+
+    //add column name to row of column names
+    public boolean addColBefore(String beforeCol, String colName){
+        return writing(() -> {
+            load();
+
+            //get index of beforeCol
+            int index = colNames.getIndex(beforeCol);
+            if (index == -1){
+                return false;
+            }
+
+            //get ordered list of primary keys
+            List<String> keys = new ArrayList<>(rows.keySet());
+
+            colNames.insertItemAt(index, colName);
+
+            //add Items to new column, with value of null
+            for (int i = 1; i < rows.size(); i++){
+                rows.get(keys.get(i)).insertItemAt(index, null);
+            }
+            //link up new Items going down column
+            for (int i = 0; i < colSize() - 2; i++){
+                Record.linkItems(rows.get(keys.get(i)).getItemAt(index), rows.get(keys.get(i)).getItemAt(index+1) );
+            }
+
+            //add column to cols map
+            int newIndex = colNames.getIndex(colName);
+            cols.put(colName, colNames.getItemAt(newIndex));
+            schemaVersion++;
+            changedAll();
+            logChange(WriteAheadLog.ADD_COL_BEFORE, beforeCol, colName);
+            return true;
+        });
+    }
+
+    //update all values in a column at once (not including colName)
+    public boolean updateCol(String colName, String...newValues){
+        return writing(() -> {
+            load();
+            int colIndex = colNames.getIndex(colName);
+            if (colIndex < 0 || newValues.length != rowSize()-1){
+                return false;
+            }
+            if (!canChangeCol(colName, Arrays.asList(newValues))){
+                return false;
+            }
+
+            //start at first row of values and update values down the row
+            Item currItem = cols.get(colName);
+            for (String i : newValues){
+                currItem.setValue(i);
+                currItem = currItem.getDown();
+            }
+            if (indexes.containsKey(colName)){
+                createIndex(colName);
+            }
+            hashIndexes.remove(colName);
+            changedAll();
+            String[] args = new String[newValues.length + 1];
+            args[0] = colName;
+            System.arraycopy(newValues, 0, args, 1, newValues.length);
+            logChange(WriteAheadLog.UPDATE_COL, args);
+            return true;
+        });
+    }
+
+    public void clearTable(){
+        writing(() -> {
+            //deletes all records, but preserves column names and table name
+            load();
+            //rows in other tables referring to this one must allow it to be cleared
+            List<Table> cascades = new ArrayList<>();
+            for (Table t : referencingTables){
+                if (t == this || t.distinctValues(t.foreignKeyCol) == 0){
+                    continue;
+                }
+                if (t.onDelete == ForeignKeyAction.RESTRICT){
+                    System.out.println("ERROR: rows in " + t.name + " refer to rows in " + name);
+                    return null;
+                }
+                cascades.add(t);
+            }
+            List<String> keys = new ArrayList<>(rows.keySet());
+            int cnt = rows.size()-1;
+
+            while(rows.size() > 1){
+                rows.remove(keys.get(cnt--));
+            }
+            byPosition = null;
+            for (ColumnIndex index : indexes.values()){
+                index.clear();
+            }
+            for (HashIndex index : hashIndexes.values()){
+                index.clear();
+            }
+            if (orderedRows != null){
+                orderedRows.clear();
+            }
+            changedAll();
+            logChange(WriteAheadLog.CLEAR_TABLE);
+            for (Table t : cascades){
+                for (String key : t.getPrimaryKeys()){
+                    Record row = t.getRow(key);
+                    if (row != t.colNames && row.getValueAt(t.colNames.indexOf(t.foreignKeyCol)) != null){
+                        t.deleteRow(key);
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    public void updateTable(String[]...itemStringList){
+        //add a collection of lists - adding many rows of information at once
+        for (String[] itemString : itemStringList){
+            addRow(itemString);
+        }
+    }
+
+    public void clearUpdateTable(String[]...itemStringList){
+        writing(() -> {
+            //replaces all information with new collection 
+            //each row in list is added as a new row in table
+            clearTable();
+            updateTable(itemStringList);
+            return null;
+        });
+    }
+
+    //remove a specific column from a table
+    public boolean removeCol(String colName){
+        return writing(() -> {
+            load();
+            int index = colNames.indexOf(colName);
+            if(index == -1){
+                return false;
+            }
+            //foreign key columns, and columns foreign keys refer to, must stay
+            if (referencedTable != null && colName.equals(foreignKeyCol)){
+                return false;
+            }
+            for (Table t : referencingTables){
+                if (colName.equals(t.primaryCol)){
+                    return false;
+                }
+            }
+
+            //remove from cols, and drop any index on the column
+            cols.remove(colName);
+            indexes.remove(colName);
+            hashIndexes.remove(colName);
+
+            //remove all Items from rows down the column
+            List<String> keys = new ArrayList<>(rows.keySet());
+            for (int i = 0; i < rows.size(); i++){
+                rows.get(keys.get(i)).remove(index);
+            }
+            schemaVersion++;
+            changedAll();
+            logChange(WriteAheadLog.REMOVE_COL, colName);
+            return true;
+        });
+    }
+
+    //keep primary keys in order, compared as keyType
+    public void orderKeys(Type keyType){
+        writing(() -> {
+            if (keyType != this.keyType){
+                this.keyType = keyType;
+                orderedRows = null;
+                changed();
+            }
+            return null;
+        });
+    }
+
+    //go back to insertion order only
+    public void unorderKeys(){
+        writing(() -> {
+            if (keyType != null){
+                keyType = null;
+                orderedRows = null;
+                changed();
+            }
+            return null;
+        });
+    }
+
+    public boolean hasOrderedKeys(){
+        return keyType != null;
+    }
+
+    public Type getKeyType(){
+        return keyType;
+    }
+
+    //rows in key order - tables that don't order their keys are sorted as strings for each call
+    //(called with every row in memory, holding a lock)
+    private ConcurrentSkipListMap<String, Record> getOrderedRows(){
+        ConcurrentSkipListMap<String, Record> built = orderedRows;
+        if (built != null){
+            return built;
+        }
+        Type type = (keyType == null) ? Type.STRING : keyType;
+        ConcurrentSkipListMap<String, Record> ordered = new ConcurrentSkipListMap<>(new TypeComparator(type));
+        for (Map.Entry<String, Record> entry : rows.entrySet()){
+            if (entry.getValue() != colNames){
+                ordered.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (keyType != null){
+            //readers may build it at the same time - each builds the same rows
+            orderedRows = ordered;
+        }
+        return ordered;
+    }
+
+    //rows with from <= primary key <= to, in key order (null for an open end)
+    public List<Record> rangeScan(String from, String to){
+        return readingLoaded(() -> {
+            return new ArrayList<>(subMap(from, to).values());
+        });
+    }
+
+    //iterate over rows with from <= primary key <= to, in (or against) key order
+    public Iterator<Record> keyCursor(String from, String to, boolean descending){
+        return readingLoaded(() -> {
+            NavigableMap<String, Record> range = subMap(from, to);
+            if (descending){
+                range = range.descendingMap();
+            }
+            return range.values().iterator();
+        });
+    }
+
+    private void unplace(Record row){
+        if (byPosition != null){
+            byPosition.remove(row.getPosition());
+        }
+    }
+
+    //the rows in memory after position, in table order (called holding a lock)
+    private Iterator<Record> rowsAfter(long position){
+        TreeMap<Long, Record> built = byPosition;
+        if (built == null){
+            //readers may build it at the same time - each builds the same rows
+            built = new TreeMap<>();
+            for (Record row : rows.values()){
+                if (row != colNames){
+                    built.put(row.getPosition(), row);
+                }
+            }
+            byPosition = built;
+        }
+        return built.tailMap(position, false).values().iterator();
+    }
+
+    //a cursor over the rows (not the column names) in table order. Rows are read a batch 
+    //at a time, holding the read lock only while each batch is read, and no list of the 
+    //rows or keys is made - rows not in memory are decoded as they are reached, and the 
+    //table is not loaded. Every row in the table from when the cursor is opened until it 
+    //is reached is returned once; rows added or deleted meanwhile may or may not be
+    public Cursor<Record> cursor(){
+        return new Cursor<Record>(new RowCursor());
+    }
+
+    //rows with from <= primary key <= to (null for an open end), in or against key order - 
+    //tables that don't order their keys sort them when the cursor is opened
+    public Cursor<Record> rangeCursor(String from, String to, boolean descending){
+        return new Cursor<Record>(keyCursor(from, to, descending));
     }
 
-    public Item getItem(String primaryKey, String colName){
-        //use colName to get index of col, then return that Item from Record
-        int colIndex = colNames.indexOf(colName);
+    //the Items of a column in table order, or null if there is no such column
+    public Cursor<Item> columnCursor(String colName){
+        int colIndex = reading(() -> colNames.indexOf(colName));
         if (colIndex < 0){
-            return null; 
-        }
-
-        //use primary key to get correct Record from rows
-        Record temp = rows.get(primaryKey);
-        if (temp == null){
             return null;
         }
-        
-        return temp.getItemAt(colIndex);
+        return cursor().map(row -> row.getItemAt(colIndex));
     }
 
-    public boolean updateItem(String primaryKey, String colName, String newItemString){
-        Item item = getItem(primaryKey, colName);
-        if (item == null){
-            return false;
+    //reads rows in table order a batch at a time. Between batches the rows may change, or 
+    //move in or out of memory - the next batch then starts after the last row's position
+    private class RowCursor implements Iterator<Record> {
+        private static final int BATCH = 256;
+        private ArrayDeque<Record> batch = new ArrayDeque<>();
+        //what the rows were being read from (the row map or a row source), and where
+        private Object over = null;
+        private Iterator<Record> it = null;
+        private long position = 0;
+        private boolean done = false;
+
+        public boolean hasNext(){
+            if (batch.isEmpty() && !done){
+                reading(() -> {
+                    fill();
+                    return null;
+                });
+                done = batch.isEmpty();
+            }
+            return !batch.isEmpty();
         }
 
-        item.setValue(newItemString);
-        return true;
-    }
+        public Record next(){
+            if (!hasNext()){
+                throw new NoSuchElementException();
+            }
+            return batch.poll();
+        }
 
-    public int colSize(){
-        return colNames.size();
-    }
+        //called holding the read lock
+        private void fill(){
+            RowSource from = source;
+            if (from != null){
+                //rows in a source are at 1, 2, 3...
+                if (over != from){
+                    over = from;
+                    it = from.iterator();
+                    for (long skipped = 0; skipped < position && it.hasNext(); skipped++){
+                        it.next();
+                    }
+                }
+                while (batch.size() < BATCH && it.hasNext()){
+                    batch.add(it.next());
+                    position++;
+                }
+                return;
+            }
+            if (over != rows){
+                over = rows;
+                it = (position == 0) ? rows.values().iterator() : rowsAfter(position);
+            }
+            try {
+                take();
+            } catch (ConcurrentModificationException ex){
+                //rows were added or deleted since the last batch - carry on after the last 
+                //row's position, without going through the rows before it again
+                it = rowsAfter(position);
+                take();
+            }
+        }
 
-    public int rowSize(){
-        return rows.size(); 
+        private void take(){
+            while (batch.size() < BATCH && it.hasNext()){
+                Record row = it.next();
+                if (row != colNames && row.getPosition() > position){
+                    batch.add(row);
+                    position = row.getPosition();
+                }
+            }
+        }
     }
 
-    public List<Item> getColumnNames(){
-        return colNames.getItems();
+    private NavigableMap<String, Record> subMap(String from, String to){
+        NavigableMap<String, Record> range = getOrderedRows();
+        if (from != null){
+            range = range.tailMap(from, true);
+        }
+        if (to != null){
+            range = range.headMap(to, true);
+        }
+        return range;
     }
 
-    public Record getColNames(){
-        return colNames;
+    //greatest primary key <= key, or null
+    public String floorKey(String key){
+        return readingLoaded(() -> {
+            return getOrderedRows().floorKey(key);
+        });
     }
 
-    public String getColNamesString(){
-        return colNames.getString();
+    //least primary key >= key, or null
+    public String ceilingKey(String key){
+        return readingLoaded(() -> {
+            return getOrderedRows().ceilingKey(key);
+        });
     }
 
-    public List<String> getPrimaryKeys(){
-        List<String> keys = new ArrayList<>(rows.keySet());
-        return keys;
+    public String firstKey(){
+        return readingLoaded(() -> {
+            ConcurrentSkipListMap<String, Record> ordered = getOrderedRows();
+            return ordered.isEmpty() ? null : ordered.firstKey();
+        });
     }
 
-    public Collection<Record> getValues(){
-        return rows.values();
+    public String lastKey(){
+        return readingLoaded(() -> {
+            ConcurrentSkipListMap<String, Record> ordered = getOrderedRows();
+            return ordered.isEmpty() ? null : ordered.lastKey();
+        });
     }
 
-    //select a row (perhaps by row number) -- will change to primary key
-    public Record getRow(String primaryKey){    
-        return rows.get(primaryKey);
+    //build (or rebuild) a secondary index on a column
+    public boolean createIndex(String colName){
+        return writing(() -> {
+            load();
+            int colIndex = colNames.indexOf(colName);
+            if (colIndex < 0){
+                return false;
+            }
+            //index is ordered by the type shared by the column's values
+            ColumnIndex index = new ColumnIndex(name, colName, ColumnVector.typeOf(colItems(colIndex, false)));
+            for (Map.Entry<String, Record> entry : rows.entrySet()){
+                if (entry.getValue() != colNames){
+                    index.insert(entry.getValue().getValueAt(colIndex), entry.getKey());
+                }
+            }
+            indexes.put(colName, index);
+            schemaVersion++;
+            changed();
+            return true;
+        });
     }
 
-    public boolean hasForeignKey(){
-        return hasForeignKey;
+    public boolean dropIndex(String colName){
+        return writing(() -> {
+            if (indexes.remove(colName) == null){
+                return false;
+            }
+            schemaVersion++;
+            changed();
+            return true;
+        });
     }
 
-    //insert a row to end ONLY IF new row length matches current number of columns
-    //point the items at the item added below it (to allow easy column-access)
-    public boolean addRow(String...itemStrings){
-
-        //check that primray key is unique
-        if (rows.containsKey(itemStrings[0])){
-            return false;
-        }
-
-        if (itemStrings.length != colNames.size()){
-            return false;
-        }
-
-        Item newItem; 
-        Record newRow = new Record();
-        for (String i : itemStrings){
+    public boolean hasIndex(String colName){
+        return reading(() -> indexes.containsKey(colName));
+    }
 
-            //type check
-            newItem = Record.makeNewItem(i);
+    public Collection<ColumnIndex> getIndexes(){
+        return reading(() -> new ArrayList<>(indexes.values()));
+    }
 
-            if (hasForeignKey){
-                if (newItem.getValue().equals(foreignKeyCol)){
-                    //add additional foreign key info to item
-                    newItem.setForeignKeyTable(colNames.getItemAt(colNames.getIndex(foreignKeyCol)).getForeignKeyTable());
-                    newItem.setForeignKeyCol(colNames.getItemAt(colNames.getIndex(foreignKeyCol)).getForeignKeyCol());
-                }
-            } 
-            newRow.addItem(newItem);
-        }
-        if (addRow(newRow)){
-            return true;
-        }
-        return false;
+    //attach an index read from file (used when the database is opened)
+    void addIndex(ColumnIndex index){
+        writing(() -> {
+            indexes.put(index.getColName(), index);
+            schemaVersion++;
+            return null;
+        });
     }
 
-    public String getForeignKeyCol(){
-        return foreignKeyCol;
+    //primary keys of rows where colName equals value - uses an index if there is one
+    public List<String> lookup(String colName, String value){
+        List<String> found = reading(() -> {
+            ColumnIndex index = indexes.get(colName);
+            return (index == null) ? null : index.lookup(value);
+        });
+        return (found != null) ? found : readingLoaded(() -> scan(colName, value, value));
     }
 
-    public String getPrimaryTable(){
-        return primaryTable;
+    //primary keys of rows where from <= colName <= to (null for an open end)
+    //with an index the keys are in column order, otherwise in table order
+    public List<String> lookupRange(String colName, String from, String to){
+        List<String> found = reading(() -> {
+            ColumnIndex index = indexes.get(colName);
+            return (index == null) ? null : index.range(from, to);
+        });
+        return (found != null) ? found : readingLoaded(() -> scan(colName, from, to));
     }
 
-    public String getPrimaryCol(){
-        return primaryCol;
+    //(called with every row in memory, holding a lock)
+    private List<String> scan(String colName, String from, String to){
+        List<String> keys = new ArrayList<>();
+        int colIndex = colNames.indexOf(colName);
+        if (colIndex < 0){
+            return keys;
+        }
+        if (from != null && from.equals(to)){
+            //values of any type only compare equal as the same string
+            for (Map.Entry<String, Record> entry : rows.entrySet()){
+                if (entry.getValue() != colNames && from.equals(entry.getValue().getValueAt(colIndex))){
+                    keys.add(entry.getKey());
+                }
+            }
+            return keys;
+        }
+        //values compare as the column's type (as an index on it would), which is only 
+        //known once every row is seen - so they are compared as the type of the first 
+        //value, and again in the rare case the column turns out to mix types
+        ColumnVector.TypeOf type = new ColumnVector.TypeOf();
+        Type first = ColumnVector.typeOf(colItems(colIndex, true));
+        keys = scan(colIndex, from, to, new TypeComparator(first), type);
+        return (type.get() == first) ? keys : scan(colIndex, from, to, new TypeComparator(type.get()), null);
     }
 
-    private boolean addRow(Record newRow){
-        if (newRow.size() == colNames.size()){
-            //link newRow to last record in rows
-            if (rows.keySet().size() != 0){
-                //skip linking if its the first row to be added
-                Record.link(lastAdded, newRow);
-                lastAdded = newRow;
+    //keys of the rows with from <= value <= to in order, giving each Item to type on the way
+    private List<String> scan(int colIndex, String from, String to, TypeComparator order, ColumnVector.TypeOf type){
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, Record> entry : rows.entrySet()){
+            if (entry.getValue() == colNames){
+                continue;
             }
-            if (rows.put(newRow.getPrimaryKey(), newRow) == null){
-                return true;
+            Item item = entry.getValue().getItemAt(colIndex);
+            if (type != null){
+                type.add(item);
             }
-        } 
-        return false;
+            String value = (item == null) ? null : item.getValue();
+            if ((from == null || order.compare(value, from) >= 0) && (to == null || order.compare(value, to) <= 0)){
+                keys.add(entry.getKey());
+            }
+        }
+        return keys;
     }
 
-    public boolean deleteRow(String primaryKey){
-        //cannot delete column row
-        if (colNames.getPrimaryKey().equals(primaryKey)){
-            return false;
+    //add (or remove) a row's values in every index
+    private void indexRow(Record row, String primaryKey, boolean add){
+        for (ColumnIndex index : indexes.values()){
+            int colIndex = colNames.indexOf(index.getColName());
+            if (colIndex < 0){
+                continue;
+            }
+            if (add){
+                index.insert(row.getValueAt(colIndex), primaryKey);
+            } else {
+                index.remove(row.getValueAt(colIndex), primaryKey);
+            }
         }
-        if (rows.remove(primaryKey) != null){
-            return true;
+        for (HashIndex index : hashIndexes.values()){
+            int colIndex = colNames.indexOf(index.getColName());
+            if (colIndex < 0){
+                continue;
+            }
+            if (add){
+                index.insert(row.getValueAt(colIndex), primaryKey);
+            } else {
+                index.remove(row.getValueAt(colIndex), primaryKey);
+            }
         }
-    
-        return false;
     }
 
-    //update a row - may only be done as a full unit (correct number of items)
-    //may update column names if enter index 0
-    public boolean updateRow(String primaryKey, String...itemStrings){
-        if ( !rows.containsKey(primaryKey) || itemStrings.length != colSize() ){
-            return false;
-        }
-
-        int cnt = 0;
-        //update all values in row
-        for (String i : itemStrings) {
-            //get specific row and upate each element in it
-            rows.get(primaryKey).updateItemAt(cnt++, i);
+    private void reindex(ColumnIndex index, String primaryKey, String oldValue, String newValue){
+        if (index == null || Objects.equals(oldValue, newValue)){
+            return;
         }
-        return true;
+        index.remove(oldValue, primaryKey);
+        index.insert(newValue, primaryKey);
     }
 
-    public Record getCol(String colName){
-        Record column = new Record();
-        Item top = cols.get(colName);
-        if (top == null){
-            return null;
+    //enforce this table's foreign key against the table it refers to (set by the database)
+    void setReferencedTable(Table table){
+        if (referencedTable != null){
+            referencedTable.referencingTables.remove(this);
         }
-        column.addItem(top);
-        while(top.getDown() != null){
-            column.addItem(top.getDown());
-            top = top.getDown();
+        referencedTable = table;
+        if (table != null && !table.referencingTables.contains(this)){
+            table.referencingTables.add(this);
         }
-        return column;
     }
 
-    public boolean addCol(String colName){
-        //must be unique name
-        if (colNames.contains(colName)){
-            return false;
+    //stop enforcing foreign keys from and to this table (when it leaves its database)
+    void unlink(){
+        setReferencedTable(null);
+        for (Table t : new ArrayList<>(referencingTables)){
+            t.setReferencedTable(null);
         }
+    }
 
-        //add new column
-        Item newCol = new Item(colName);
-        colNames.addItem(newCol);
+    public Table getReferencedTable(){
+        return referencedTable;
+    }
 
-        //add pointer to new column to cols hashMap
-        cols.put(colName, newCol);
+    void setOnDelete(ForeignKeyAction onDelete){
+        this.onDelete = onDelete;
+    }
 
-        //use ordered list of keys to link columns in same order as rest of table
-        List<String> keys = new ArrayList<>(rows.keySet());
+    public ForeignKeyAction getOnDelete(){
+        return onDelete;
+    }
 
-        //add an item (value null) all down the new column
-        for(int i = 1; i < rows.size(); i++){
-            Item nullItem = new Item(null);
+    //true if a row (not the column names) holds value in colName
+    boolean hasValue(String colName, String value){
+        return reading(() -> {
+            if (value == null){
+                return false;
+            }
+            if (colName.equals(colNames.getPrimaryKey())){
+                return !value.equals(colName) && getRow(value) != null;
+            }
+            return getHashIndex(colName).contains(value);
+        });
+    }
 
-            //add new item to row under new column
-            rows.get(keys.get(i)).addItem(nullItem);
+    //(called holding a lock - rows not in memory are read from the table file, as 
+    //readers can't load them)
+    private HashIndex getHashIndex(String colName){
+        int colIndex = colNames.indexOf(colName);
+        if (colIndex < 0){
+            return new HashIndex(colName);
+        }
+        return hashIndexes.computeIfAbsent(colName, col -> {
+            HashIndex index = new HashIndex(col);
+            for (Map.Entry<String, Record> entry : rows.entrySet()){
+                if (entry.getValue() != colNames){
+                    index.insert(entry.getValue().getValueAt(colIndex), entry.getKey());
+                }
+            }
+            if (source != null){
+                List<String> keys = source.getPrimaryKeys();
+                List<Item> values = source.getCol(colIndex);
+                for (int i = 0; i < keys.size(); i++){
+                    index.insert(values.get(i).getValue(), keys.get(i));
+                }
+            }
+            return index;
+        });
+    }
 
-            //link items (the last items added to row and Item above it in new col)
-            newCol.setDown(rows.get(keys.get(i)).getLast());
-            rows.get(keys.get(i)).addItem(nullItem);
-            newCol.setDown(rows.get(keys.get(i)).getLast());
+    //primary keys of rows holding value in colName, from its hash index
+    private Set<String> keysWith(String colName, String value){
+        return reading(() -> new LinkedHashSet<>(getHashIndex(colName).get(value)));
+    }
 
-            newCol = newCol.getDown();
-        }
+    //number of distinct values in colName
+    private int distinctValues(String colName){
+        return reading(() -> getHashIndex(colName).size());
+    }
 
-        return true;
+    //a row held in memory (not a decoded copy), or null
+    private Record heapRow(String primaryKey){
+        return reading(() -> rows.get(primaryKey));
     }
 
-    //add multiple columns at once
-    public void addCol(String...colNames){
-        for (String i : colNames){
-            addCol(i);
+    //a foreign key value must be in the referenced column of the referenced table (null is allowed)
+    private boolean checkReference(String value){
+        if (referencedTable == null || value == null || referencedTable.hasValue(primaryCol, value)){
+            return true;
         }
+        System.out.println("ERROR: " + foreignKeyCol + " " + value + " is not in " + primaryTable + "." + primaryCol);
+        return false;
     }
 
-    //add column name to row of column names
-    public boolean addColBefore(String beforeCol, String colName){
-        
-        //get index of beforeCol
-        int index = colNames.getIndex(beforeCol);
-        if (index == -1){
-            return false;
+    //primary keys of the rows in table t whose foreign key refers to row
+    private Set<String> referencesTo(Table t, Record row){
+        int colIndex = colNames.indexOf(t.primaryCol);
+        String value = (colIndex < 0) ? null : row.getValueAt(colIndex);
+        if (value == null){
+            return Collections.emptySet();
         }
+        //while another row holds the same value, the references are still good
+        if (colIndex != 0 && getHashIndex(t.primaryCol).get(value).size() > 1){
+            return Collections.emptySet();
+        }
+        return t.keysWith(t.foreignKeyCol, value);
+    }
 
-        //get ordered list of primary keys
-        List<String> keys = new ArrayList<>(rows.keySet());
-
-        colNames.insertItemAt(index, colName);
-
-        //add Items to new column, with value of null
-        for (int i = 1; i < rows.size(); i++){
-            rows.get(keys.get(i)).insertItemAt(index, null);
+    //false if deleting row would leave rows in a RESTRICT table referring to nothing
+    private boolean canDelete(Record row, Set<Record> visiting){
+        if (!visiting.add(row)){
+            return true;
         }
-        //link up new Items going down column
-        for (int i = 0; i < colSize() - 2; i++){
-            Record.linkItems(rows.get(keys.get(i)).getItemAt(index), rows.get(keys.get(i)).getItemAt(index+1) );
+        for (Table t : referencingTables){
+            Set<String> keys = referencesTo(t, row);
+            if (keys.isEmpty()){
+                continue;
+            }
+            if (t.onDelete == ForeignKeyAction.RESTRICT){
+                System.out.println("ERROR: rows in " + t.name + " refer to " + row.getPrimaryKey() + " in " + name);
+                return false;
+            }
+            for (String key : keys){
+                Record referring = t.heapRow(key);
+                if (referring != null && !t.canDelete(referring, visiting)){
+                    return false;
+                }
+            }
         }
-
-        //add column to cols map
-        int newIndex = colNames.getIndex(colName);
-        cols.put(colName, colNames.getItemAt(newIndex));
         return true;
     }
 
-    //update all values in a column at once (not including colName)
-    public boolean updateCol(String colName, String...newValues){
-        int colIndex = colNames.getIndex(colName);
-        if (colIndex < 0 || newValues.length != rowSize()-1){
+    //a foreign key may only change to a value in the referenced table, and 
+    //a value that other tables refer to may not change
+    private boolean canChange(Record row, int colIndex, String newValue){
+        if (row == colNames || colIndex < 0){
+            return true;
+        }
+        String colName = colNames.getValueAt(colIndex);
+        if (Objects.equals(row.getValueAt(colIndex), newValue)){
+            return true;
+        }
+        if (checkReferences && referencedTable != null && colName.equals(foreignKeyCol) && !checkReference(newValue)){
             return false;
         }
+        for (Table t : referencingTables){
+            if (colName.equals(t.primaryCol) && !referencesTo(t, row).isEmpty()){
+                System.out.println("ERROR: rows in " + t.name + " refer to " + row.getValueAt(colIndex) + " in " + name);
+                return false;
+            }
+        }
+        return true;
+    }
 
-        //start at first row of values and update values down the row
-        Item currItem = cols.get(colName);
-        for (String i : newValues){
-            currItem.setValue(i);
-            currItem = currItem.getDown();
+    //the same checks for a whole new column of values
+    private boolean canChangeCol(String colName, List<String> newValues){
+        if (referencedTable != null && colName.equals(foreignKeyCol) && checkReferences){
+            for (String value : new HashSet<>(newValues)){
+                if (!checkReference(value)){
+                    return false;
+                }
+            }
+        }
+        for (Table t : referencingTables){
+            if (colName.equals(t.primaryCol) && t.distinctValues(t.foreignKeyCol) > 0){
+                System.out.println("ERROR: rows in " + t.name + " refer to " + colName + " in " + name);
+                return false;
+            }
         }
         return true;
     }
 
-    public void clearTable(){
-        //deletes all records, but preserves column names and table name
-        List<String> keys = new ArrayList<>(rows.keySet());
-        int cnt = rows.size()-1;
+    //add many rows, checking each distinct foreign key value once before any row is added
+    //returns false if a foreign key value is missing (and adds nothing), or if a row could not be added.
+    //The rows are one change, so they are logged as one frame, forced to disk once
+    public boolean addRows(List<String[]> newRows){
+        return writing(() -> {
+            List<String> missing = missingReferences(newRows);
+            if (!missing.isEmpty()){
+                System.out.println("ERROR: " + foreignKeyCol + " values " + missing + " are not in " + primaryTable + "." + primaryCol);
+                return false;
+            }
+            boolean allAdded = true;
+            boolean checking = checkReferences;
+            checkReferences = false;
+            try {
+                for (String[] itemStrings : newRows){
+                    allAdded &= addRow(itemStrings);
+                }
+            } finally {
+                checkReferences = checking;
+            }
+            return allAdded;
+        });
+    }
 
-        while(rows.size() > 1){
-            rows.remove(keys.get(cnt--));
-        }
-        
+    //true if every row could be added: each has a value for every column, its primary key 
+    //is in neither the table nor another of the rows, and its foreign key value is in the 
+    //referenced table
+    public boolean canAddRows(List<String[]> newRows){
+        return readingLoaded(() -> validRows(newRows));
     }
 
-    public void updateTable(String[]...itemStringList){
-        //add a collection of lists - adding many rows of information at once
-        for (String[] itemString : itemStringList){
-            addRow(itemString);
-        }
+    //add every row, or none of them if any could not be added
+    public boolean addAllRows(List<String[]> newRows){
+        return writing(() -> {
+            load();
+            return validRows(newRows) && addRows(newRows);
+        });
     }
 
-    public void clearUpdateTable(String[]...itemStringList){
-        //replaces all information with new collection 
-        //each row in list is added as a new row in table
-        clearTable();
-        updateTable(itemStringList);
+    //(called holding a lock, table loaded)
+    private boolean validRows(List<String[]> newRows){
+        Set<String> keys = new HashSet<>();
+        for (String[] itemStrings : newRows){
+            if (itemStrings.length != colNames.size()){
+                return false;
+            }
+            String key = Record.makeNewItem(itemStrings[0]).getValue();
+            if (key == null || rows.containsKey(key) || !keys.add(key)){
+                return false;
+            }
+        }
+        return missingReferences(newRows).isEmpty();
     }
 
-    //remove a specific column from a table
-    public boolean removeCol(String colName){
-        int index = colNames.indexOf(colName);
-        if(index == -1){
-            return false;
+    //the distinct foreign key values of the rows that are not in the referenced table
+    private List<String> missingReferences(List<String[]> newRows){
+        List<String> missing = new ArrayList<>();
+        if (referencedTable == null || !checkReferences){
+            return missing;
+        }
+        int colIndex = colNames.indexOf(foreignKeyCol);
+        Set<String> values = new HashSet<>();
+        for (String[] itemStrings : newRows){
+            if (itemStrings.length == colNames.size()){
+                values.add(Record.makeNewItem(itemStrings[colIndex]).getValue());
+            }
+        }
+        for (String value : values){
+            if (value != null && !referencedTable.hasValue(primaryCol, value)){
+                missing.add(value);
+            }
         }
+        return missing;
+    }
 
-        //remove from cols
-        cols.remove(colName);
+    //make room for rowCount rows before they are added, so the row map is not rebuilt 
+    //again and again as it grows (used by BulkLoader)
+    void ensureCapacity(int rowCount){
+        writing(() -> {
+            load();
+            if (rowCount > rows.size()){
+                LinkedHashMap<String, Record> bigger = new LinkedHashMap<String, Record>(rowCount / 3 * 4 + 16);
+                bigger.putAll(rows);
+                rows = bigger;
+            }
+            return null;
+        });
+    }
 
-        //remove all Items from rows down the column
-        List<String> keys = new ArrayList<>(rows.keySet());
-        for (int i = 0; i < rows.size(); i++){
-            rows.get(keys.get(i)).remove(index);
-        }
-        return true;
+    //add rows that have already been built and type checked (by BulkLoader), as one change. 
+    //Each foreign key value not in checked is looked up once, and added to checked if it is 
+    //in the referenced table. Rows with a missing foreign key value, a primary key already 
+    //in the table or the wrong number of items are left out - returns how many were added
+    int addRecords(List<Record> newRows, Set<String> checked){
+        return writing(() -> {
+            load();
+            int colIndex = (referencedTable != null && checkReferences) ? colNames.indexOf(foreignKeyCol) : -1;
+            int added = 0;
+            for (Record newRow : newRows){
+                String key = newRow.getPrimaryKey();
+                if (newRow.size() != colNames.size() || rows.containsKey(key)){
+                    continue;
+                }
+                if (colIndex >= 0){
+                    String value = newRow.getValueAt(colIndex);
+                    if (value != null && !checked.contains(value)){
+                        if (!referencedTable.hasValue(primaryCol, value)){
+                            continue;
+                        }
+                        checked.add(value);
+                    }
+                }
+                beforeChange(key);
+                if (addRow(newRow)){
+                    indexRow(newRow, key, true);
+                    if (orderedRows != null){
+                        orderedRows.put(key, newRow);
+                    }
+                    changed(key);
+                    if (log != null || Transaction.applying() != null){
+                        logChange(WriteAheadLog.ADD_ROW, newRow.getItemStrings());
+                    }
+                    added++;
+                }
+            }
+            return added;
+        });
+    }
+
+    //primary keys of rows whose foreign key value is not in the referenced table 
+    //(rows added before the foreign key was enforced)
+    public List<String> findOrphans(){
+        return reading(() -> {
+            List<String> orphans = new ArrayList<>();
+            if (referencedTable == null){
+                return orphans;
+            }
+            int colIndex = colNames.indexOf(foreignKeyCol);
+            for (String key : getPrimaryKeys()){
+                Record row = getRow(key);
+                if (row == colNames || row == null){
+                    continue;
+                }
+                String value = row.getValueAt(colIndex);
+                if (value != null && !referencedTable.hasValue(primaryCol, value)){
+                    orphans.add(key);
+                }
+            }
+            return orphans;
+        });
     }
 
     public boolean contains(String itemString){
-        //currently checks column names too
-        //go through all items in hashmap
-        Collection<Record> temp = rows.values();
+        return contains(itemString, 1);
+    }
 
-        for (Record r : temp){
-            if( r.contains(itemString) ){
-                return true;
+    //the same, with the rows split among up to parallelism threads, which stop once one 
+    //finds it (the rows are listed first, so this only pays for long searches)
+    public boolean contains(String itemString, int parallelism){
+        return readingLoaded(() -> {
+            //currently checks column names too
+            if (parallelism > 1 && rows.size() > Parallel.MORSEL){
+                if (colNames.contains(itemString)){
+                    return true;
+                }
+                AtomicBoolean found = new AtomicBoolean(false);
+                return Parallel.scan(rowArray(), parallelism, (part, from, to) -> {
+                    for (int i = from; i < to && !found.get(); i++){
+                        if (part[i].contains(itemString)){
+                            found.set(true);
+                        }
+                    }
+                    return found.get();
+                }, (a, b) -> a || b);
             }
-        }
-        return false;
+            //go through all items in hashmap
+            Collection<Record> temp = rows.values();
+
+            for (Record r : temp){
+                if( r.contains(itemString) ){
+                    return true;
+                }
+            }
+            return false;
+        });
     }
 
     public boolean containsKey(String keyString){
-        if (rows.containsKey(keyString)){
-            return true;
-        }
-        return false;
+        return reading(() -> {
+            if (rows.containsKey(keyString)){
+                return true;
+            }
+            if (source != null){
+                return source.containsKey(keyString);
+            }
+            return false;
+        });
     }
 
     // ---------- Testing -----------
@@ -425,6 +2213,13 @@ class Table {
         testClearTable();
         testUpdateTable();
         testForeignKeys();
+        testGetColVector();
+        testDirty();
+        testOrderedKeys();
+        testForeignKeyEnforcement();
+        testConcurrentAccess();
+        testReadScaling();
+        testOrderedKeyTiming();
         System.out.println("Table: all tests passed.");
     }
 
@@ -628,5 +2423,293 @@ class Table {
         assert(t1.getPrimaryCol().equals("id"));
         assert(t1.getForeignKeyCol().equals("product"));
     }
-    
-}
\ No newline at end of file
+
+    private void testGetColVector(){
+        Table t1 = new Table("t1", "s%id", "s%age", "s%active");
+        t1.addRow("s%a", "i%30", "b%1");
+        t1.addRow("s%b", "i%41", "b%0");
+        t1.addRow("s%c", "i%30", "b%1");
+
+        ColumnVector age = t1.getColVector("age");
+        assert(age.getType() == Type.INT);
+        assert(age.size() == 3);
+        assert(age.getLong(1) == 41);
+
+        ColumnVector active = t1.getColVector("active");
+        assert(active.getType() == Type.BOOL);
+        assert(active.getBool(0));
+        assert(active.getBool(1) == false);
+
+        ColumnVector id = t1.getColVector("id");
+        assert(id.getType() == Type.STRING);
+        assert(id.getValue(2).equals("c"));
+
+        //deleted rows are not included
+        t1.deleteRow("b");
+        assert(t1.getColVector("age").size() == 2);
+        assert(t1.getColVector("notACol") == null);
+
+        //unindexed lookups compare values as the column's type, as a vector of it would
+        t1.addRow("s%d", "i%9", "b%0");
+        assert(t1.lookupRange("age", "10", "35").equals(Arrays.asList("a", "c")));
+        assert(t1.lookup("age", "9").equals(Arrays.asList("d")));
+        //a column mixing types compares as strings
+        t1.addRow("s%e", "s%x", "b%0");
+        assert(t1.lookupRange("age", "10", "35").equals(Arrays.asList("a", "c")));
+        assert(t1.lookupRange("age", "5", null).equals(Arrays.asList("d", "e")));
+    }
+
+    private void testDirty(){
+        Table t1 = new Table("t1", "one", "two");
+        //new tables have never been written
+        assert(t1.isDirty());
+        t1.markClean();
+        assert(t1.isDirty() == false);
+
+        //failed changes leave the table clean
+        assert(t1.addRow("row1") == false);
+        assert(t1.deleteRow("notARow") == false);
+        assert(t1.isDirty() == false);
+
+        assert(t1.addRow("row1", "two"));
+        assert(t1.isDirty());
+        t1.markClean();
+        assert(t1.updateItem("row1", "two", "2"));
+        assert(t1.isDirty());
+        t1.markClean();
+        assert(t1.addCol("three"));
+        assert(t1.isDirty());
+    }
+
+    private void testOrderedKeys(){
+        Table t1 = new Table("Fleet", "s%ship-id", "s%shipType");
+        t1.addRow("i%513", "s%Cruiser");
+        t1.addRow("i%121", "s%ColonyShip");
+        t1.addRow("i%99", "s%Shuttle");
+        t1.orderKeys(Type.INT);
+        assert(t1.hasOrderedKeys());
+
+        //numeric order, not string order
+        assert(t1.firstKey().equals("99"));
+        assert(t1.lastKey().equals("513"));
+        t1.addRow("i%234", "s%Cargo");
+        List<Record> range = t1.rangeScan("100", "500");
+        assert(range.size() == 2);
+        assert(range.get(0).getPrimaryKey().equals("121"));
+        assert(range.get(1).getPrimaryKey().equals("234"));
+        assert(t1.floorKey("200").equals("121"));
+        assert(t1.ceilingKey("200").equals("234"));
+        assert(t1.ceilingKey("600") == null);
+
+        Iterator<Record> cursor = t1.keyCursor(null, null, true);
+        assert(cursor.next().getPrimaryKey().equals("513"));
+        assert(cursor.next().getPrimaryKey().equals("234"));
+
+        t1.deleteRow("234");
+        assert(t1.rangeScan("100", "500").size() == 1);
+
+        //the same number written differently is a different key, in both maps
+        assert(t1.addRow("i%007", "s%Probe"));
+        assert(t1.addRow("i%7", "s%Tug"));
+        assert(t1.rowSize() == 6);
+        assert(t1.rangeScan("0", "10").size() == 2);
+        assert(t1.firstKey().equals("007"));
+        assert(t1.deleteRow("7"));
+        assert(t1.rangeScan("0", "10").get(0).getPrimaryKey().equals("007"));
+
+        //tables without ordered keys still answer, sorting keys as strings
+        t1.unorderKeys();
+        assert(t1.firstKey().equals("007"));
+    }
+
+    //rows added and looked up per second, with keys in insertion order (the hash map 
+    //only) and with ordered keys - printed, as it depends on the machine
+    private void testOrderedKeyTiming(){
+        int rows = 100000;
+        StringBuilder report = new StringBuilder("Table: keys/sec");
+        for (boolean ordered : new boolean[] {false, true}){
+            Table t1 = new Table("timing", "i%id", "i%num");
+            if (ordered){
+                t1.orderKeys(Type.INT);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < rows; i++){
+                //not in key order
+                t1.addRow("i%" + (i * 7919L % rows), "i%" + i);
+            }
+            long insertNanos = Math.max(1, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < rows; i++){
+                String key = Integer.toString(i);
+                assert(ordered ? t1.ceilingKey(key).equals(key) : t1.getRow(key) != null);
+            }
+            long lookupNanos = Math.max(1, System.nanoTime() - start);
+            String layout = ordered ? "ordered" : "hash";
+            report.append(" - " + layout + " insert: " + (long) rows * 1000000000L / insertNanos);
+            report.append(" - " + layout + " lookup: " + (long) rows * 1000000000L / lookupNanos);
+        }
+        System.out.println(report);
+    }
+
+    private void testForeignKeyEnforcement(){
+        Table robot = new Table("Robot", "s%id", "s%model");
+        robot.addRow("s%1", "s%R2");
+        robot.addRow("s%2", "s%C3");
+        Table seller = new Table("Seller", "Robot", "id", "product", true, "s%id", "s%product");
+        seller.setReferencedTable(robot);
+
+        //inserts and updates must refer to a robot
+        assert(seller.addRow("s%34", "s%1"));
+        assert(seller.addRow("s%55", "s%2"));
+        assert(!seller.addRow("s%56", "s%9"));
+        assert(!seller.updateItem("34", "product", "9"));
+        assert(seller.updateItem("34", "product", "2"));
+        assert(!seller.updateRow("55", "55", "id"));
+        assert(seller.findOrphans().isEmpty());
+
+        //batches are checked before any row is added
+        List<String[]> batch = new ArrayList<>();
+        batch.add(new String[] {"s%60", "s%1"});
+        batch.add(new String[] {"s%61", "s%7"});
+        assert(!seller.addRows(batch));
+        assert(seller.getRow("60") == null);
+        batch.remove(1);
+        assert(seller.addRows(batch));
+        assert(seller.getRow("60") != null);
+
+        //referenced robots can't be deleted or changed by default
+        assert(!robot.deleteRow("1"));
+        assert(!robot.updateItem("2", "id", "3"));
+        robot.clearTable();
+        assert(robot.rowSize() == 3);
+        assert(!robot.removeCol("id"));
+        assert(!seller.removeCol("product"));
+
+        //...but may cascade
+        seller.setOnDelete(ForeignKeyAction.CASCADE);
+        assert(robot.deleteRow("1"));
+        assert(seller.getRow("60") == null);
+        assert(seller.getRow("34") != null);
+        robot.clearTable();
+        assert(seller.rowSize() == 1);
+
+        //a column that isn't the primary key may be referred to
+        Table model = new Table("Model", "s%code", "s%name");
+        model.addRow("s%a", "s%R2");
+        model.addRow("s%b", "s%R2");
+        Table part = new Table("Part", "Model", "name", "name", true, "s%id", "s%name");
+        part.setReferencedTable(model);
+        assert(part.addRow("s%p1", "s%R2"));
+        assert(!part.addRow("s%p2", "s%C3"));
+        //another model is still called R2
+        assert(model.deleteRow("a"));
+        assert(!model.deleteRow("b"));
+
+        part.unlink();
+        assert(part.addRow("s%p3", "s%C3"));
+        assert(model.deleteRow("b"));
+    }
+
+    //run each task on its own thread, and wait for them all
+    private void runThreads(List<Runnable> tasks){
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for (Runnable task : tasks){
+            Thread t = new Thread(task);
+            t.setUncaughtExceptionHandler((thread, ex) -> failures.add(ex));
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads){
+            try {
+                t.join();
+            } catch (InterruptedException ex){
+                throw new Error(ex);
+            }
+        }
+        assert(failures.isEmpty()) : failures.get(0);
+    }
+
+    private void testConcurrentAccess(){
+        Table ship = new Table("Ship", "s%id", "s%name");
+        for (int i = 0; i < 10; i++){
+            ship.addRow("s%s" + i, "s%ship" + i);
+        }
+        Table crew = new Table("Crew", "Ship", "id", "ship", true, "s%id", "s%ship", "i%age");
+        crew.setReferencedTable(ship);
+        crew.createIndex("age");
+        //every ship is referred to from the start, so none can be deleted
+        for (int i = 0; i < 10; i++){
+            crew.addRow("s%base" + i, "s%s" + i, "i%0");
+        }
+        int writers = 4, perWriter = 2000;
+
+        List<Runnable> tasks = new ArrayList<>();
+        for (int w = 0; w < writers; w++){
+            int writer = w;
+            tasks.add(() -> {
+                for (int i = 0; i < perWriter; i++){
+                    String key = "c" + writer + "_" + i;
+                    assert(crew.addRow("s%" + key, "s%s" + (i % 10), "i%" + i));
+                    if (i % 4 == 0){
+                        assert(crew.updateItem(key, "age", "" + (i + 1)));
+                    }
+                    if (i % 5 == 0){
+                        assert(crew.deleteRow(key));
+                    }
+                }
+            });
+        }
+        for (int r = 0; r < 4; r++){
+            tasks.add(() -> {
+                for (int i = 0; i < 200; i++){
+                    for (String key : crew.getPrimaryKeys()){
+                        crew.getRow(key);
+                    }
+                    crew.getCol("age");
+                    crew.lookup("age", "1");
+                    //the referenced table can't lose a row that is referred to
+                    if (i % 50 == 0){
+                        assert(!ship.deleteRow("s" + (i % 10)));
+                    }
+                }
+            });
+        }
+        runThreads(tasks);
+
+        int expected = writers * (perWriter - perWriter / 5) + 10;
+        assert(crew.rowSize() == expected + 1);
+        //no concurrent add lost its link - deleted rows stay in the column chain
+        assert(crew.getCol("age").size() == writers * perWriter + 10 + 1);
+        assert(crew.lookupRange("age", null, null).size() == expected);
+        assert(ship.rowSize() == 11);
+        assert(crew.getItem("c2_4", "age").getValue().equals("5"));
+        assert(crew.getRow("c3_5") == null);
+        assert(crew.findOrphans().isEmpty());
+    }
+
+    //point reads per second with more threads - printed, as it depends on the machine
+    private void testReadScaling(){
+        Table t1 = new Table("scaling", "s%id", "i%num");
+        for (int i = 0; i < 10000; i++){
+            t1.addRow("s%key" + i, "i%" + i);
+        }
+        int reads = 200000;
+        StringBuilder report = new StringBuilder("Table: point reads/sec");
+        for (int threads = 1; threads <= Math.min(4, Runtime.getRuntime().availableProcessors()); threads *= 2){
+            List<Runnable> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++){
+                tasks.add(() -> {
+                    for (int i = 0; i < reads; i++){
+                        assert(t1.getRow("key" + (i % 10000)) != null);
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            runThreads(tasks);
+            long nanos = Math.max(1, System.nanoTime() - start);
+            report.append(" - " + threads + " threads: " + (long) reads * threads * 1000000000L / nanos);
+        }
+        System.out.println(report);
+    }
+}
@@ -0,0 +1,510 @@
+/* Reads and writes tables in the binary table file format. A table file is a 
+sequence of fixed-size pages. The first page(s) hold the header: a magic number, 
+the format version, the page size, the number of rows, the primary key order 
+(version 2 on), the table name and the column names with their types. Every page 
+after the header starts with the number of rows it holds and the number of bytes 
+they use, followed by the rows. Each cell is stored as a type byte and a 
+length-prefixed UTF-8 value (length -1 for null), so values may contain whitespace. 
+A row never spans two pages, unless it is too large for a single page, in which case 
+it is given a run of pages of its own. Files are read through MappedTableFile, and 
+tables can be written in this format to any channel (see Exporter). Legacy text 
+table files are still read by ReadWrite, and are converted to this format the next 
+time the database is written. */
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Consumer;
+
+class TableFile {
+
+    public static final int MAGIC = 0x4A434442; //"JCDB"
+    public static final short VERSION = 2;
+    //primary key order byte when the table keeps its keys in insertion order
+    public static final byte UNORDERED = -1;
+    public static final int PAGE_SIZE = 4096;
+    //each data page starts with its row count and the number of bytes used by rows
+    public static final int PAGE_HEADER = 8;
+    public static final String EXTENSION = ".tbl";
+
+    private static final byte STRING = 0, INT = 1, BOOL = 2;
+
+    //true if the file starts with the table file magic number
+    public static boolean isTableFile(String path){
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")){
+            if (file.length() < 4){
+                return false;
+            }
+            return file.readInt() == MAGIC;
+        } catch (IOException ex){
+            return false;
+        }
+    }
+
+    //write the whole table, including the column names, to path
+    //the table is written to a temporary file first, which then replaces path in one step
+    public static boolean write(Table table, String path){
+        //the read lock is held throughout, and rows not in memory are decoded one at a time
+        return table.read(() -> {
+            byte keyOrder = table.hasOrderedKeys() ? typeByte(table.getKeyType()) : UNORDERED;
+            return write(table.getName(), table.getColNames(), keyOrder, table.rowSize() - 1, table::forEachRow, path);
+        });
+    }
+
+    //write a table as a snapshot sees it, while the table goes on changing
+    public static boolean write(Table.View view, String path){
+        byte keyOrder = view.hasOrderedKeys() ? typeByte(view.getKeyType()) : UNORDERED;
+        return write(view.getName(), view.getColNames(), keyOrder, view.rowCount(), view::forEachRecord, path);
+    }
+
+    private static boolean write(String name, Record colNames, byte keyOrder, int rowCount, 
+                                 Consumer<Consumer<Record>> forEachRow, String path){
+        Path target = Paths.get(path);
+        Path temp = Paths.get(path + ".tmp");
+        try (RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw")){
+            FileChannel channel = file.getChannel();
+            channel.truncate(0);
+            Writer writer = new Writer(channel, name, colNames, keyOrder, rowCount);
+            forEachRow.accept(row -> {
+                try {
+                    writer.add(row);
+                } catch (IOException ex){
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            writer.finish();
+            channel.force(false);
+        } catch (IOException | UncheckedIOException ex){
+            System.out.println("ERROR: failed to write table file " + path);
+            temp.toFile().delete();
+            return false;
+        }
+        return replace(temp, target);
+    }
+
+    //writes a table in this format to a channel (a file, or a stream being exported) - 
+    //the header, then rows as they are added, a page at a time
+    static class Writer {
+        private WritableByteChannel channel;
+        private ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+        private int rowsInPage = 0;
+
+        Writer(WritableByteChannel channel, String name, Record colNames, byte keyOrder, int rowCount) throws IOException {
+            this.channel = channel;
+            //header - padded out to a whole number of pages
+            ByteBuffer header = ByteBuffer.allocate(headerSize(name, colNames));
+            header.putInt(MAGIC);
+            header.putShort(VERSION);
+            header.putInt(PAGE_SIZE);
+            header.putInt(rowCount);
+            header.put(keyOrder);
+            putString(header, name);
+            putRecord(header, colNames);
+            header.position(header.capacity());
+            header.flip();
+            writeFully(channel, header);
+            page.position(PAGE_HEADER);
+        }
+
+        void add(Record row) throws IOException {
+            int size = recordSize(row);
+            if (page.remaining() < size && rowsInPage > 0){
+                writePage(channel, page, rowsInPage);
+                rowsInPage = 0;
+            }
+            if (page.remaining() < size){
+                //oversized row gets a run of pages to itself
+                ByteBuffer large = ByteBuffer.allocate(pages(PAGE_HEADER + size) * PAGE_SIZE);
+                large.position(PAGE_HEADER);
+                putRecord(large, row);
+                writePage(channel, large, 1);
+                return;
+            }
+            putRecord(page, row);
+            rowsInPage++;
+        }
+
+        //write the last page
+        void finish() throws IOException {
+            if (rowsInPage > 0){
+                writePage(channel, page, rowsInPage);
+                rowsInPage = 0;
+            }
+        }
+    }
+
+    //move temp over target - atomically where the file system allows it
+    static boolean replace(Path temp, Path target){
+        try {
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex){
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex){
+            System.out.println("ERROR: failed to replace file " + target);
+            temp.toFile().delete();
+            return false;
+        }
+        return true;
+    }
+
+    //read a whole table file into memory - FKIndex is used to restore the table's foreign key information
+    public static Table read(String path, ArrayList<String> FKIndex){
+        MappedTableFile source = MappedTableFile.open(path);
+        if (source == null){
+            return null;
+        }
+        Table table = makeTable(source, FKIndex);
+        source.loadInto(table);
+        table.markClean();
+        return table;
+    }
+
+    //open a table file without reading its rows - they are read from the mapped file
+    //until the table is first changed
+    public static Table open(String path, ArrayList<String> FKIndex){
+        return open(path, FKIndex, null);
+    }
+
+    //the same, with the rows read a page at a time through pool (mapped if pool is null)
+    public static Table open(String path, ArrayList<String> FKIndex, BufferPool pool){
+        MappedTableFile source = (pool == null) ? MappedTableFile.open(path) : MappedTableFile.open(path, pool);
+        if (source == null){
+            return null;
+        }
+        Table table = makeTable(source, FKIndex);
+        table.setSource(source);
+        table.markClean();
+        return table;
+    }
+
+    //an empty table with the name and columns from the file header
+    private static Table makeTable(MappedTableFile source, ArrayList<String> FKIndex){
+        Record colNames = source.getColNames();
+        String[] colStrings = new String[colNames.size()];
+        for (int i = 0; i < colNames.size(); i++){
+            Item col = colNames.getItemAt(i);
+            colStrings[i] = typeCode(col.getType()) + "%" + col.getValue();
+        }
+        String[] foreignKey = ReadWrite.findForeignKey(FKIndex, source.getName());
+        Table table;
+        if (foreignKey != null){
+            table = new Table(source.getName(), foreignKey[0], foreignKey[1], foreignKey[3], true, colStrings);
+        } else {
+            table = new Table(source.getName(), colStrings);
+        }
+        if (source.getKeyType() != null){
+            table.orderKeys(source.getKeyType());
+        }
+        return table;
+    }
+
+    private static void writePage(WritableByteChannel channel, ByteBuffer page, int rowsInPage) throws IOException {
+        int used = page.position() - PAGE_HEADER;
+        page.putInt(0, rowsInPage);
+        page.putInt(4, used);
+        //always write whole pages
+        page.position(0);
+        page.limit(page.capacity());
+        Arrays.fill(page.array(), PAGE_HEADER + used, page.capacity(), (byte)0);
+        writeFully(channel, page);
+        page.clear();
+        page.position(PAGE_HEADER);
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+    }
+
+    private static int pages(int bytes){
+        return (bytes + PAGE_SIZE - 1) / PAGE_SIZE;
+    }
+
+    private static int headerSize(String name, Record colNames){
+        int size = 4 + 2 + 4 + 4 + 1 + stringSize(name) + recordSize(colNames);
+        return pages(size) * PAGE_SIZE;
+    }
+
+    static int recordSize(Record row){
+        int size = 4;
+        for (int i = 0; i < row.size(); i++){
+            size += 1 + stringSize(row.getValueAt(i));
+        }
+        return size;
+    }
+
+    private static int stringSize(String value){
+        if (value == null){
+            return 4;
+        }
+        return 4 + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    static void putRecord(ByteBuffer buffer, Record row){
+        buffer.putInt(row.size());
+        for (int i = 0; i < row.size(); i++){
+            Item item = row.getItemAt(i);
+            buffer.put(typeByte(item.getType()));
+            putString(buffer, item.getValue());
+        }
+    }
+
+    static Record getRecord(ByteBuffer buffer){
+        Record row = new Record();
+        int size = buffer.getInt();
+        for (int i = 0; i < size; i++){
+            row.addItem(getItem(buffer));
+        }
+        return row;
+    }
+
+    static Item getItem(ByteBuffer buffer){
+        Type type = byteType(buffer.get());
+        String value = getString(buffer);
+        if (value == null){
+            return new Item(null);
+        }
+        return new Item(value, type);
+    }
+
+    //move past a cell without decoding it
+    static void skipItem(ByteBuffer buffer){
+        buffer.get();
+        int length = buffer.getInt();
+        if (length > 0){
+            buffer.position(buffer.position() + length);
+        }
+    }
+
+    private static void putString(ByteBuffer buffer, String value){
+        if (value == null){
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    static String getString(ByteBuffer buffer){
+        int length = buffer.getInt();
+        if (length < 0){
+            return null;
+        }
+        String value;
+        if (buffer.hasArray()){
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    static byte typeByte(Type type){
+        switch(type){
+            case INT: return INT;
+            case BOOL: return BOOL;
+            default: return STRING;
+        }
+    }
+
+    static Type byteType(byte b){
+        switch(b){
+            case INT: return Type.INT;
+            case BOOL: return Type.BOOL;
+            default: return Type.STRING;
+        }
+    }
+
+    private static String typeCode(Type type){
+        switch(type){
+            case INT: return "i";
+            case BOOL: return "b";
+            default: return "s";
+        }
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        TableFile program = new TableFile();
+        program.run();
+        program.test();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea TableFile");
+    }
+
+    private void test(){
+        testRoundTrip();
+        testWhitespaceAndNulls();
+        testManyPages();
+        testNotATableFile();
+        testRewriteMapped();
+        testOrderedKeys();
+        testSnapshotWrite();
+        testTiming();
+        System.out.println("TableFile: all tests passed");
+    }
+
+    private void testRoundTrip(){
+        ReadWrite rw = new ReadWrite();
+        Table test = rw.readTable("tests/", "testType.txt");
+        assert(write(test, "tests/testType.tbl"));
+        assert(isTableFile("tests/testType.tbl"));
+
+        Table test2 = read("tests/testType.tbl", new ArrayList<String>());
+        assert(test2.getName().equals("testType"));
+        assert(test2.colSize() == test.colSize());
+        assert(test2.rowSize() == test.rowSize());
+        assert(test2.getPrimaryKeys().equals(test.getPrimaryKeys()));
+        assert(test2.getItem("45", "bool").getType() == Type.BOOL);
+        assert(test2.getItem("9", "str").getValue().equals("anything"));
+        new java.io.File("tests/testType.tbl").delete();
+    }
+
+    private void testWhitespaceAndNulls(){
+        Table t1 = new Table("spaces", "id", "text");
+        t1.addRow("one", "two");
+        t1.addCol("extra");
+        assert(t1.updateItem("one", "text", "has some spaces"));
+        assert(write(t1, "tests/spaces.tbl"));
+
+        Table t2 = read("tests/spaces.tbl", new ArrayList<String>());
+        assert(t2.getItem("one", "text").getValue().equals("has some spaces"));
+        assert(t2.getItem("one", "extra").getValue() == null);
+        new java.io.File("tests/spaces.tbl").delete();
+    }
+
+    private void testManyPages(){
+        Table t1 = new Table("big", "id", "text");
+        String large = String.join("", Collections.nCopies(PAGE_SIZE, "x"));
+        for (int i = 0; i < 2000; i++){
+            t1.addRow("i%" + i, "row" + i);
+        }
+        t1.addRow("large", large);
+        assert(write(t1, "tests/big.tbl"));
+        assert(new java.io.File("tests/big.tbl").length() % PAGE_SIZE == 0);
+
+        Table t2 = read("tests/big.tbl", new ArrayList<String>());
+        assert(t2.rowSize() == t1.rowSize());
+        assert(t2.getItem("1999", "text").getValue().equals("row1999"));
+        assert(t2.getItem("large", "text").getValue().equals(large));
+        new java.io.File("tests/big.tbl").delete();
+    }
+
+    private void testNotATableFile(){
+        assert(isTableFile("tests/test.txt") == false);
+        assert(isTableFile("tests/notAFile") == false);
+    }
+
+    private void testRewriteMapped(){
+        Table t1 = new Table("mapped", "id", "text");
+        for (int i = 0; i < 500; i++){
+            t1.addRow("i%" + i, "row" + i);
+        }
+        assert(write(t1, "tests/mapped.tbl"));
+
+        //a table read from its file can be written back over it
+        Table t2 = open("tests/mapped.tbl", new ArrayList<String>());
+        assert(t2.isMapped());
+        assert(write(t2, "tests/mapped.tbl"));
+        Table t3 = read("tests/mapped.tbl", new ArrayList<String>());
+        assert(t3.rowSize() == t1.rowSize());
+        assert(t3.getItem("499", "text").getValue().equals("row499"));
+        new java.io.File("tests/mapped.tbl").delete();
+    }
+
+    private void testOrderedKeys(){
+        Table t1 = new Table("ordered", "id", "name");
+        t1.addRow("i%10", "ten");
+        t1.addRow("i%9", "nine");
+        t1.orderKeys(Type.INT);
+        assert(write(t1, "tests/ordered.tbl"));
+
+        //key order is kept in the file
+        Table t2 = open("tests/ordered.tbl", new ArrayList<String>());
+        assert(t2.hasOrderedKeys());
+        assert(t2.getKeyType() == Type.INT);
+        assert(t2.isMapped());
+        assert(t2.ceilingKey("0").equals("9"));
+        new java.io.File("tests/ordered.tbl").delete();
+    }
+
+    private void testSnapshotWrite(){
+        Table t1 = new Table("snap", "s%id", "i%num");
+        t1.addRow("s%a", "i%1");
+        t1.addRow("s%b", "i%2");
+        try (Snapshot snapshot = Snapshot.of(t1)){
+            t1.addRow("s%c", "i%3");
+            t1.updateItem("a", "num", "100");
+            assert(write(snapshot.getTable("snap"), "tests/snap.tbl"));
+        }
+        //the file holds the table as it was when the snapshot was opened
+        Table t2 = read("tests/snap.tbl", new ArrayList<String>());
+        assert(t2.rowSize() == 3);
+        assert(t2.getItem("a", "num").getValue().equals("1"));
+        assert(t2.getItem("a", "num").getType() == Type.INT);
+        assert(t2.getRow("c") == null);
+        new java.io.File("tests/snap.tbl").delete();
+    }
+
+    //rows written and read per second in this format and in the legacy text format
+    //- printed, as it depends on the machine and disk
+    private void testTiming(){
+        int rows = 100000;
+        Table t1 = new Table("timing", "i%id", "s%name", "i%crew", "b%active");
+        for (int i = 0; i < rows; i++){
+            t1.addRow("i%" + i, "s%ship" + i, "i%" + (i % 1000), "b%" + (i % 2));
+        }
+        ReadWrite rw = new ReadWrite();
+        long[] nanos = new long[4];
+        long start = System.nanoTime();
+        assert(write(t1, "tests/timing.tbl"));
+        nanos[0] = System.nanoTime() - start;
+        start = System.nanoTime();
+        rw.writeTable(t1, "tests/", "timing.txt", 1);
+        nanos[1] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        Table binary = read("tests/timing.tbl", new ArrayList<String>());
+        nanos[2] = System.nanoTime() - start;
+        start = System.nanoTime();
+        Table text = rw.readTable("tests/", "timing.txt", new ArrayList<String>());
+        nanos[3] = System.nanoTime() - start;
+        assert(binary.rowSize() == rows + 1);
+        assert(text.rowSize() == rows + 1);
+        assert(binary.getItem("99999", "name").getValue().equals("ship99999"));
+        assert(text.getItem("99999", "name").getValue().equals("ship99999"));
+        //every column type is timed
+        assert(binary.getItem("7", "active").getType() == Type.BOOL);
+        assert(text.getItem("7", "active").getType() == Type.BOOL);
+        new java.io.File("tests/timing.tbl").delete();
+        new java.io.File("tests/timing.txt").delete();
+
+        String[] labels = {"write binary", "write text", "read binary", "read text"};
+        StringBuilder report = new StringBuilder("TableFile: rows/sec");
+        for (int i = 0; i < labels.length; i++){
+            report.append(" - " + labels[i] + ": " + (long) rows * 1000000000L / Math.max(1, nanos[i]));
+        }
+        System.out.println(report);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,358 @@
+/* A set of row changes to a database's tables that is made all together or not at
+all. Changes are kept in the transaction (its redo log) until it is committed, and
+are not seen by anyone, the transaction included, until then. Commit takes the
+write lock of every table the changes may touch - the tables named and the tables
+whose foreign keys refer to them, where deletes may cascade - in one order (tables
+referred to first, then by name), so two transactions can't deadlock, then makes
+the changes. Before each row is first changed it is kept in an undo log, and if any
+change fails every row is put back and the transaction rolls back. Otherwise the new
+rows are published to snapshots with one time, and the changes made (cascades
+included) are appended to the write-ahead log as one record. The tables are let go
+before the log is forced to disk, so transactions committing at the same time share
+one sync (with the GROUP_COMMIT policy); commit returns once its record is on disk.
+A transaction is used by one thread at a time. */
+import java.util.*;
+
+class Transaction {
+
+    //the transaction making its changes on this thread, if any
+    private static final ThreadLocal<Transaction> applying = new ThreadLocal<>();
+
+    private Database db;
+    private boolean open = true;
+    //changes to make (redo log), and the changes made as they are to be logged
+    private List<WriteAheadLog.Entry> changes = new ArrayList<>();
+    private List<WriteAheadLog.Entry> logged = new ArrayList<>();
+    //rows as they were before the transaction first changed them (undo log), in that order
+    private List<Saved> undo = new ArrayList<>();
+    private Map<Table, Set<String>> saved = new HashMap<>();
+
+    //a row as it was - null if there was no such row
+    private static class Saved {
+        Table table;
+        String primaryKey;
+        Record row;
+
+        Saved(Table table, String primaryKey, Record row){
+            this.table = table;
+            this.primaryKey = primaryKey;
+            this.row = row;
+        }
+    }
+
+    Transaction(Database db){
+        this.db = db;
+    }
+
+    static Transaction applying(){
+        return applying.get();
+    }
+
+    public boolean isOpen(){
+        return open;
+    }
+
+    public boolean addTableRow(String tableName, String...row){
+        return add(WriteAheadLog.ADD_ROW, tableName, row);
+    }
+
+    public boolean updateRow(String tableName, String primaryKey, String...row){
+        String[] args = new String[row.length + 1];
+        args[0] = primaryKey;
+        System.arraycopy(row, 0, args, 1, row.length);
+        return add(WriteAheadLog.UPDATE_ROW, tableName, args);
+    }
+
+    public boolean updateItem(String tableName, String primaryKey, String colName, String newItemString){
+        return add(WriteAheadLog.UPDATE_ITEM, tableName, primaryKey, colName, newItemString);
+    }
+
+    public boolean deleteRow(String tableName, String primaryKey){
+        return add(WriteAheadLog.DELETE_ROW, tableName, primaryKey);
+    }
+
+    private boolean add(byte op, String tableName, String...args){
+        if (!open || db.getTable(tableName) == null){
+            return false;
+        }
+        changes.add(new WriteAheadLog.Entry(op, tableName, args));
+        return true;
+    }
+
+    //a table is about to change a row (called by Table, holding its write lock)
+    void saveRow(Table table, String primaryKey, Record row){
+        if (saved.computeIfAbsent(table, t -> new HashSet<>()).add(primaryKey)){
+            undo.add(new Saved(table, primaryKey, row));
+        }
+    }
+
+    //a change made, to go in the log (called by Table)
+    void logged(WriteAheadLog.Entry change){
+        logged.add(change);
+    }
+
+    //make every change, or none of them - false if one could not be made
+    public boolean commit(){
+        if (!open){
+            return false;
+        }
+        open = false;
+        List<Table> tables = lockOrder();
+        if (tables == null){
+            System.out.println("ERROR: a table in the transaction no longer exists");
+            return false;
+        }
+        for (Table table : tables){
+            table.lockTransaction();
+        }
+        boolean done = true;
+        long seq = -1;
+        WriteAheadLog log = db.getLog();
+        applying.set(this);
+        try {
+            for (WriteAheadLog.Entry change : changes){
+                if (!apply(change)){
+                    System.out.println("ERROR: transaction rolled back - change to " + change.table + " failed");
+                    done = false;
+                    break;
+                }
+            }
+            if (!done){
+                //put the rows back, most recently changed first
+                for (int i = undo.size() - 1; i >= 0; i--){
+                    Saved row = undo.get(i);
+                    row.table.restoreRow(row.primaryKey, row.row);
+                }
+            }
+            Table.publishTransaction(tables);
+            if (done && log != null && !logged.isEmpty()){
+                seq = log.appendTransaction(logged);
+            }
+        } finally {
+            applying.remove();
+            for (int i = tables.size() - 1; i >= 0; i--){
+                tables.get(i).unlockTransaction();
+            }
+        }
+        if (seq > 0 && log.syncsOnWrite()){
+            return log.sync(seq);
+        }
+        return done && !(log != null && !logged.isEmpty() && seq < 0);
+    }
+
+    //drop the changes without making them
+    public void rollback(){
+        open = false;
+        changes.clear();
+    }
+
+    private boolean apply(WriteAheadLog.Entry change){
+        Table table = db.getTable(change.table);
+        String[] args = change.args;
+        switch(change.op){
+            case WriteAheadLog.ADD_ROW:
+                return table.addRow(args);
+            case WriteAheadLog.DELETE_ROW:
+                return table.deleteRow(args[0]);
+            case WriteAheadLog.UPDATE_ROW:
+                return table.updateRow(args[0], Arrays.copyOfRange(args, 1, args.length));
+            case WriteAheadLog.UPDATE_ITEM:
+                return table.updateItem(args[0], args[1], args[2]);
+            default:
+                return false;
+        }
+    }
+
+    //the tables named in the changes, and every table referring to them (deletes may
+    //cascade), with tables referred to before the tables referring to them
+    private List<Table> lockOrder(){
+        Set<Table> found = new HashSet<>();
+        Deque<Table> todo = new ArrayDeque<>();
+        for (WriteAheadLog.Entry change : changes){
+            Table table = db.getTable(change.table);
+            if (table == null){
+                return null;
+            }
+            todo.add(table);
+        }
+        while (!todo.isEmpty()){
+            Table table = todo.poll();
+            if (found.add(table)){
+                todo.addAll(table.getReferencingTables());
+            }
+        }
+        List<Table> tables = new ArrayList<>(found);
+        tables.sort(Comparator.comparingInt(Transaction::depth).thenComparing(Table::getName));
+        return tables;
+    }
+
+    //number of foreign keys between a table and the table at the top of its chain
+    private static int depth(Table table){
+        int depth = 0;
+        Set<Table> seen = new HashSet<>();
+        for (Table t = table.getReferencedTable(); t != null && seen.add(t); t = t.getReferencedTable()){
+            depth++;
+        }
+        return depth;
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        Transaction program = new Transaction(null);
+        program.run();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea Transaction");
+        test();
+    }
+
+    private void test(){
+        testCommit();
+        testRollback();
+        testFailedCommit();
+        testRecovery();
+        testConcurrentCommits();
+        testThroughput();
+        System.out.println("Transaction: all tests passed");
+    }
+
+    private static Database spaceDb(String name, SyncPolicy policy){
+        Database db = new Database(name, policy);
+        db.addTable("Fleet", "id", "shipType");
+        db.addTable("Captains", "Fleet", "id", "ship", true, "id", "ship");
+        return db;
+    }
+
+    //a ship and its captain are added together
+    private void testCommit(){
+        Database db = spaceDb("testTransaction", SyncPolicy.PER_COMMIT);
+        Transaction tx = db.begin();
+        assert(tx.addTableRow("Fleet", "s1", "Cargo"));
+        assert(tx.addTableRow("Captains", "c1", "s1"));
+        assert(!tx.addTableRow("NotATable", "x"));
+        //nothing is seen until commit
+        assert(!db.getTable("Fleet").containsKey("s1"));
+        assert(db.commit(tx));
+        assert(db.getTable("Fleet").containsKey("s1"));
+        assert(db.getTable("Captains").getItem("c1", "ship").getValue().equals("s1"));
+        assert(!db.commit(tx));
+        assert(!tx.addTableRow("Fleet", "s2", "Cruiser"));
+        db.deleteDatabase();
+    }
+
+    private void testRollback(){
+        Database db = spaceDb("testTransaction", SyncPolicy.PER_COMMIT);
+        Transaction tx = db.begin();
+        tx.addTableRow("Fleet", "s1", "Cargo");
+        db.rollback(tx);
+        assert(!db.commit(tx));
+        assert(!db.getTable("Fleet").containsKey("s1"));
+        db.deleteDatabase();
+    }
+
+    //a change that fails undoes the ones made before it, cascades included
+    private void testFailedCommit(){
+        Database db = spaceDb("testTransaction", SyncPolicy.PER_COMMIT);
+        db.setOnDelete("Captains", ForeignKeyAction.CASCADE);
+        db.addTableRow("Fleet", "s1", "Cargo");
+        db.addTableRow("Fleet", "s2", "Cruiser");
+        db.addTableRow("Captains", "c1", "s1");
+        db.getTable("Fleet").createIndex("shipType");
+
+        Transaction tx = db.begin();
+        tx.updateItem("Fleet", "s2", "shipType", "Tanker");
+        tx.deleteRow("Fleet", "s1");
+        tx.addTableRow("Fleet", "s3", "Scout");
+        tx.updateRow("Captains", "c9", "c9", "s3");
+        try (Snapshot snapshot = db.snapshot()){
+            assert(!db.commit(tx));
+            Table fleet = db.getTable("Fleet");
+            assert(fleet.rowSize() == 3);
+            assert(fleet.getItem("s2", "shipType").getValue().equals("Cruiser"));
+            assert(fleet.lookup("shipType", "Tanker").isEmpty());
+            assert(fleet.lookup("shipType", "Cargo").equals(Arrays.asList("s1")));
+            assert(!fleet.containsKey("s3"));
+            assert(db.getTable("Captains").getItem("c1", "ship").getValue().equals("s1"));
+            assert(snapshot.getTable("Captains").containsKey("c1"));
+        }
+        //only committed changes are logged
+        db.close();
+        Database reopened = new Database("testTransaction");
+        assert(reopened.getTable("Fleet").containsKey("s1"));
+        assert(!reopened.getTable("Fleet").containsKey("s3"));
+        reopened.deleteDatabase();
+    }
+
+    private void testRecovery(){
+        Database db = spaceDb("testTransaction", SyncPolicy.GROUP_COMMIT);
+        db.writeDb();
+        Transaction tx = db.begin();
+        tx.addTableRow("Fleet", "s1", "Cargo");
+        tx.addTableRow("Captains", "c1", "s1");
+        tx.addTableRow("Fleet", "s2", "Cruiser");
+        tx.updateItem("Captains", "c1", "ship", "s2");
+        assert(db.commit(tx));
+        //simulate a crash - the transaction is only in the log
+        db.close();
+
+        Database recovered = new Database("testTransaction");
+        assert(recovered.getTable("Captains").getItem("c1", "ship").getValue().equals("s2"));
+        assert(recovered.getTable("Captains").findOrphans().isEmpty());
+        recovered.deleteDatabase();
+    }
+
+    //concurrent transactions on the same tables each commit whole
+    private void testConcurrentCommits(){
+        Database db = spaceDb("testTransaction", SyncPolicy.GROUP_COMMIT);
+        int threads = 4, each = 200;
+        runCommits(db, threads, each);
+        assert(db.getTable("Fleet").rowSize() == threads * each + 1);
+        assert(db.getTable("Captains").rowSize() == threads * each + 1);
+        assert(db.getTable("Captains").findOrphans().isEmpty());
+        db.deleteDatabase();
+    }
+
+    //each thread commits transactions adding a ship and its captain
+    private static void runCommits(Database db, int threads, int each){
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++){
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < each; i++){
+                    String ship = "s" + thread + "_" + i;
+                    Transaction tx = db.begin();
+                    tx.addTableRow("Fleet", ship, "Cargo");
+                    tx.addTableRow("Captains", "c" + thread + "_" + i, ship);
+                    assert(db.commit(tx));
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers){
+            try {
+                worker.join();
+            } catch (InterruptedException ex){
+                throw new Error(ex);
+            }
+        }
+    }
+
+    //committed transactions per second with more threads - printed, as it depends on the disk
+    private void testThroughput(){
+        StringBuilder report = new StringBuilder("Transaction: commits/sec (group commit)");
+        for (int threads = 1; threads <= 4; threads *= 2){
+            Database db = spaceDb("testTransaction", SyncPolicy.GROUP_COMMIT);
+            int each = 400 / threads;
+            long start = System.nanoTime();
+            runCommits(db, threads, each);
+            long nanos = Math.max(1, System.nanoTime() - start);
+            report.append(" - " + threads + " threads: " + (long) threads * each * 1000000000L / nanos);
+            db.deleteDatabase();
+        }
+        System.out.println(report);
+    }
+}
@@ -0,0 +1,109 @@
+/* Orders cell values by the type of their column. INT values are compared as 
+numbers (so "9" comes before "10"), BOOL and STRING values are compared as strings. 
+Null values come first. An INT value that is not a number comes after all numbers, 
+and equal numbers written differently ("007" and "7") are ordered as strings, so two 
+values only compare equal if they are the same string - as they are in a hash map. 
+Used by indexes to keep their keys in order. */
+import java.util.*;
+
+class TypeComparator implements Comparator<String> {
+
+    private Type type;
+
+    TypeComparator(Type type){
+        this.type = type;
+    }
+
+    public Type getType(){
+        return type;
+    }
+
+    @Override
+    public int compare(String a, String b){
+        if (a == null || b == null){
+            if (a == b){
+                return 0;
+            }
+            return (a == null) ? -1 : 1;
+        }
+        if (type == Type.INT){
+            boolean aNum = isLong(a);
+            boolean bNum = isLong(b);
+            if (aNum && bNum){
+                int order = Long.compare(Long.parseLong(a), Long.parseLong(b));
+                if (order != 0){
+                    return order;
+                }
+            } else if (aNum != bNum){
+                return aNum ? -1 : 1;
+            }
+        }
+        return a.compareTo(b);
+    }
+
+    //checks the characters first, so that compare doesn't rely on exceptions
+    static boolean isLong(String value){
+        int start = (value.length() > 1 && value.charAt(0) == '-') ? 1 : 0;
+        if (value.length() == start || value.length() - start > 18){
+            return false;
+        }
+        for (int i = start; i < value.length(); i++){
+            char c = value.charAt(i);
+            if (c < '0' || c > '9'){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //a number written as Long.toString writes it (no leading zeros or "-0"), so two of 
+    //them compare as numbers the way they compare here
+    static boolean isPlainLong(String value){
+        if (!isLong(value)){
+            return false;
+        }
+        int start = (value.charAt(0) == '-') ? 1 : 0;
+        return value.charAt(start) != '0' || value.length() == 1;
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        TypeComparator program = new TypeComparator(Type.INT);
+        program.run();
+        program.test();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea TypeComparator");
+    }
+
+    private void test(){
+        TypeComparator ints = new TypeComparator(Type.INT);
+        assert(ints.compare("9", "10") < 0);
+        assert(ints.compare("-5", "3") < 0);
+        assert(ints.compare("100", "100") == 0);
+        //the same number written differently is a different key
+        assert(ints.compare("007", "7") < 0);
+        assert(ints.compare("7", "007") > 0);
+        assert(ints.compare("007", "8") < 0);
+        assert(ints.compare("12", "abc") < 0);
+        assert(ints.compare(null, "1") < 0);
+        assert(ints.compare(null, null) == 0);
+
+        TypeComparator strings = new TypeComparator(Type.STRING);
+        assert(strings.compare("9", "10") > 0);
+        assert(strings.compare("apple", "banana") < 0);
+
+        assert(isLong("-12"));
+        assert(isLong("-") == false);
+        assert(isLong("1a") == false);
+        assert(isPlainLong("-12"));
+        assert(isPlainLong("0"));
+        assert(isPlainLong("007") == false);
+        assert(isPlainLong("-0") == false);
+        System.out.println("TypeComparator: all tests passed");
+    }
+}
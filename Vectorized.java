@@ -0,0 +1,629 @@
+/* Vectorized execution of single-table scans, filters and aggregates. Rows are read
+from the table's cursor a batch (BATCH_SIZE rows) at a time, and the columns a query
+uses are copied out of the batch into arrays: their values, and the values as
+numbers (parsed once for the batch) when every value in the batch is a plainly
+written number (see TypeComparator.isPlainLong). A condition is applied to a whole
+column at a time, narrowing a selection vector (the positions in the batch of the
+rows still matching), and a column is only copied out for the rows still selected
+when it is needed, so aggregates are computed over the selected positions of columns
+holding just those rows. The loops over the arrays are kept short, without calls or
+allocation, so that the JIT can unroll them and compile the numeric ones to SIMD
+instructions. The results are the same as those of Operator's Scan, Filter and
+Aggregate, which Query uses unless a query asks for USING VECTORIZED. */
+import java.util.*;
+
+class Vectorized {
+
+    public static final int BATCH_SIZE = 1024;
+
+    //the columns a query uses, for a batch of rows
+    static class Batch {
+        int size = 0;
+        Record[] rows = new Record[BATCH_SIZE];
+        //for each slot: the table column, its values, the values as numbers (0 for null),
+        //which values are null, whether every value that isn't null is a number, and
+        //whether any value is null
+        int[] cols = new int[0];
+        String[][] values = new String[0][];
+        long[][] numbers = new long[0][];
+        boolean[][] nulls = new boolean[0][];
+        boolean[] numeric = new boolean[0];
+        boolean[] hasNulls = new boolean[0];
+        //whether a slot has been loaded for this batch
+        boolean[] loaded = new boolean[0];
+
+        //slot of a table column, added if the batch doesn't have it yet
+        int slot(int col){
+            for (int s = 0; s < cols.length; s++){
+                if (cols[s] == col){
+                    return s;
+                }
+            }
+            int s = cols.length;
+            cols = Arrays.copyOf(cols, s + 1);
+            cols[s] = col;
+            values = Arrays.copyOf(values, s + 1);
+            values[s] = new String[BATCH_SIZE];
+            numbers = Arrays.copyOf(numbers, s + 1);
+            numbers[s] = new long[BATCH_SIZE];
+            nulls = Arrays.copyOf(nulls, s + 1);
+            nulls[s] = new boolean[BATCH_SIZE];
+            numeric = Arrays.copyOf(numeric, s + 1);
+            hasNulls = Arrays.copyOf(hasNulls, s + 1);
+            loaded = Arrays.copyOf(loaded, s + 1);
+            return s;
+        }
+
+        //read up to BATCH_SIZE more rows - false when there are no more
+        //the columns are loaded as they are needed, and only for the rows still selected
+        boolean fill(Cursor<Record> cursor){
+            size = 0;
+            while (size < BATCH_SIZE && cursor.hasNext()){
+                rows[size++] = cursor.next();
+            }
+            Arrays.fill(rows, size, BATCH_SIZE, null);
+            Arrays.fill(loaded, false);
+            return size > 0;
+        }
+
+        //load a slot for the first n positions in sel, unless it is loaded already
+        void load(int s, int[] sel, int n){
+            if (loaded[s]){
+                return;
+            }
+            loaded[s] = true;
+            int col = cols[s];
+            String[] v = values[s];
+            long[] num = numbers[s];
+            boolean[] isNull = nulls[s];
+            boolean allNumbers = true;
+            boolean anyNull = false;
+            for (int k = 0; k < n; k++){
+                int i = sel[k];
+                String value = rows[i].getValueAt(col);
+                v[i] = value;
+                num[i] = 0;
+                isNull[i] = (value == null);
+                if (value == null){
+                    anyNull = true;
+                } else if (allNumbers && TypeComparator.isPlainLong(value)){
+                    num[i] = Long.parseLong(value);
+                } else {
+                    allNumbers = false;
+                }
+            }
+            numeric[s] = allNumbers;
+            hasNulls[s] = anyNull;
+        }
+    }
+
+    //every data row of a table matching every condition, in table order
+    static class Scan extends Operator {
+        private String[] cols;
+        private Cursor<Record> cursor;
+        private Batch batch = new Batch();
+        private Query.Condition[] conditions;
+        private int[] slots;
+        //whether each condition compares numbers, and its value as a number
+        private boolean[] byNumber;
+        private long[] numbers;
+        //positions in the batch of the matching rows, how many there are, and how many were returned
+        private int[] selected = new int[BATCH_SIZE];
+        private int count = 0;
+        private int pos = 0;
+        private boolean done = false;
+
+        Scan(Table table, List<Query.Condition> conditions){
+            this(colNames(table), conditions, table.cursor());
+        }
+
+        //rows with the given columns read from a cursor (closed once it is read to the end)
+        Scan(String[] cols, List<Query.Condition> conditions, Cursor<Record> cursor){
+            this.cols = cols;
+            this.cursor = cursor;
+            int n = conditions.size();
+            this.conditions = conditions.toArray(new Query.Condition[n]);
+            slots = new int[n];
+            byNumber = new boolean[n];
+            numbers = new long[n];
+            for (int i = 0; i < n; i++){
+                Query.Condition c = this.conditions[i];
+                slots[i] = slot(c.colName);
+                //INT columns (and conditions not planned for a type) compare numbers as numbers
+                boolean intCompare = !(c.comparator instanceof TypeComparator)
+                                     || ((TypeComparator)c.comparator).getType() == Type.INT;
+                if (intCompare && c.value != null && TypeComparator.isPlainLong(c.value)){
+                    byNumber[i] = true;
+                    numbers[i] = Long.parseLong(c.value);
+                }
+            }
+        }
+
+        public String[] columns(){
+            return cols;
+        }
+
+        public void close(){
+            cursor.close();
+        }
+
+        //slot in the batch of a column - for an aggregate reading the batches
+        int slot(String colName){
+            int col = indexOf(colName);
+            if (col < 0){
+                throw new IllegalArgumentException("no column " + colName);
+            }
+            return batch.slot(col);
+        }
+
+        //read batches until one has a matching row - false when there are no more rows
+        boolean nextBatch(){
+            while (!done){
+                if (!batch.fill(cursor)){
+                    done = true;
+                    cursor.close();
+                    break;
+                }
+                count = select();
+                pos = 0;
+                if (count > 0){
+                    for (int s = 0; s < batch.cols.length; s++){
+                        batch.load(s, selected, count);
+                    }
+                    return true;
+                }
+            }
+            count = 0;
+            pos = 0;
+            return false;
+        }
+
+        Batch batch(){
+            return batch;
+        }
+
+        int[] selected(){
+            return selected;
+        }
+
+        int count(){
+            return count;
+        }
+
+        public String[] next(){
+            while (pos >= count){
+                if (!nextBatch()){
+                    return null;
+                }
+            }
+            return Operator.Scan.values(batch.rows[selected[pos++]]);
+        }
+
+        //select the rows of the batch matching every condition, a condition at a time
+        private int select(){
+            int n = batch.size;
+            for (int i = 0; i < n; i++){
+                selected[i] = i;
+            }
+            for (int c = 0; c < conditions.length && n > 0; c++){
+                int s = slots[c];
+                batch.load(s, selected, n);
+                if (byNumber[c] && batch.numeric[s]){
+                    n = selectNumbers(conditions[c].op, batch.numbers[s], batch.nulls[s], numbers[c], selected, n);
+                } else {
+                    n = selectValues(conditions[c], batch.values[s], selected, n);
+                }
+            }
+            return n;
+        }
+    }
+
+    //keep the first n positions in sel whose number matches - returns how many are kept
+    //every position is written, and kept by moving on past it, so the loops don't branch
+    static int selectNumbers(String op, long[] v, boolean[] nulls, long x, int[] sel, int n){
+        int m = 0;
+        switch(op){
+            case "=":
+                for (int k = 0; k < n; k++){
+                    int i = sel[k];
+                    sel[m] = i;
+                    m += (!nulls[i] & v[i] == x) ? 1 : 0;
+                }
+                break;
+            case "!=":
+                for (int k = 0; k < n; k++){
+                    int i = sel[k];
+                    sel[m] = i;
+                    m += (nulls[i] | v[i] != x) ? 1 : 0;
+                }
+                break;
+            case "<":
+                for (int k = 0; k < n; k++){
+                    int i = sel[k];
+                    sel[m] = i;
+                    m += (!nulls[i] & v[i] < x) ? 1 : 0;
+                }
+                break;
+            case "<=":
+                for (int k = 0; k < n; k++){
+                    int i = sel[k];
+                    sel[m] = i;
+                    m += (!nulls[i] & v[i] <= x) ? 1 : 0;
+                }
+                break;
+            case ">":
+                for (int k = 0; k < n; k++){
+                    int i = sel[k];
+                    sel[m] = i;
+                    m += (!nulls[i] & v[i] > x) ? 1 : 0;
+                }
+                break;
+            default:
+                for (int k = 0; k < n; k++){
+                    int i = sel[k];
+                    sel[m] = i;
+                    m += (!nulls[i] & v[i] >= x) ? 1 : 0;
+                }
+        }
+        return m;
+    }
+
+    //keep the first n positions in sel whose value matches - returns how many are kept
+    static int selectValues(Query.Condition c, String[] v, int[] sel, int n){
+        int m = 0;
+        for (int k = 0; k < n; k++){
+            int i = sel[k];
+            sel[m] = i;
+            m += c.matches(v[i]) ? 1 : 0;
+        }
+        return m;
+    }
+
+    //groups the rows of a scan by one column (or all rows into one group) and computes
+    //aggregates, a batch at a time
+    static class Aggregate extends Operator {
+        private Vectorized.Scan scan;
+        private String groupBy;
+        private List<Query.Aggregate> aggregates;
+        private String[] cols;
+        private int groupSlot;
+        //slot of each aggregate's column, -1 for COUNT(*)
+        private int[] slots;
+        private Iterator<String[]> results = null;
+
+        Aggregate(Vectorized.Scan scan, String groupBy, List<Query.Aggregate> aggregates){
+            this.scan = scan;
+            this.groupBy = groupBy;
+            this.aggregates = aggregates;
+            int offset = (groupBy == null) ? 0 : 1;
+            cols = new String[aggregates.size() + offset];
+            groupSlot = -1;
+            if (groupBy != null){
+                groupSlot = scan.slot(groupBy);
+                cols[0] = groupBy;
+            }
+            slots = new int[aggregates.size()];
+            for (int i = 0; i < slots.length; i++){
+                Query.Aggregate agg = aggregates.get(i);
+                slots[i] = (agg.colName == null) ? -1 : scan.slot(agg.colName);
+                cols[i + offset] = agg.toString();
+            }
+        }
+
+        public String[] columns(){
+            return cols;
+        }
+
+        public String[] next(){
+            if (results == null){
+                results = Operator.Aggregate.results(accumulate(), groupBy, aggregates).iterator();
+            }
+            return results.hasNext() ? results.next() : null;
+        }
+
+        public void close(){
+            scan.close();
+        }
+
+        //group value -> running state for each aggregate, over every row of the scan
+        LinkedHashMap<String, Operator.Accumulator[]> accumulate(){
+            LinkedHashMap<String, Operator.Accumulator[]> groups = new LinkedHashMap<>();
+            Operator.Accumulator[] all = null;
+            Operator.Accumulator[][] rowGroups = null;
+            if (groupBy == null){
+                all = newAccumulators();
+                groups.put(null, all);
+            } else {
+                rowGroups = new Operator.Accumulator[BATCH_SIZE][];
+            }
+            while (scan.nextBatch()){
+                Batch batch = scan.batch();
+                int[] sel = scan.selected();
+                int n = scan.count();
+                if (groupBy == null){
+                    for (int a = 0; a < slots.length; a++){
+                        add(all[a], batch, slots[a], sel, n);
+                    }
+                    continue;
+                }
+                //the group of each selected row - rows of a group often come together
+                String[] groupValues = batch.values[groupSlot];
+                String last = null;
+                Operator.Accumulator[] lastAccs = null;
+                for (int k = 0; k < n; k++){
+                    String group = groupValues[sel[k]];
+                    if (lastAccs == null || !Objects.equals(group, last)){
+                        lastAccs = groups.get(group);
+                        if (lastAccs == null){
+                            lastAccs = newAccumulators();
+                            groups.put(group, lastAccs);
+                        }
+                        last = group;
+                    }
+                    rowGroups[k] = lastAccs;
+                }
+                for (int a = 0; a < slots.length; a++){
+                    addGrouped(rowGroups, a, batch, slots[a], sel, n);
+                }
+            }
+            return groups;
+        }
+
+        private Operator.Accumulator[] newAccumulators(){
+            Operator.Accumulator[] accs = new Operator.Accumulator[aggregates.size()];
+            for (int i = 0; i < accs.length; i++){
+                accs[i] = new Operator.Accumulator(aggregates.get(i).order);
+            }
+            return accs;
+        }
+    }
+
+    //add the selected values of a slot (or, for -1, count the selected rows) to one accumulator
+    static void add(Operator.Accumulator acc, Batch batch, int slot, int[] sel, int n){
+        if (slot < 0){
+            acc.count += n;
+            return;
+        }
+        String[] values = batch.values[slot];
+        if (!batch.numeric[slot] || !acc.numbersOnly()){
+            for (int k = 0; k < n; k++){
+                acc.add(values[sel[k]]);
+            }
+            return;
+        }
+        long[] v = batch.numbers[slot];
+        boolean[] nulls = batch.nulls[slot];
+        long count = 0;
+        long sum = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        if (batch.hasNulls[slot]){
+            for (int k = 0; k < n; k++){
+                int i = sel[k];
+                if (!nulls[i]){
+                    long x = v[i];
+                    count++;
+                    sum += x;
+                    min = Math.min(min, x);
+                    max = Math.max(max, x);
+                }
+            }
+        } else if (n == batch.size){
+            //every row is selected, so the positions are 0 to n-1
+            for (int i = 0; i < n; i++){
+                long x = v[i];
+                sum += x;
+                min = Math.min(min, x);
+                max = Math.max(max, x);
+            }
+            count = n;
+        } else {
+            for (int k = 0; k < n; k++){
+                long x = v[sel[k]];
+                sum += x;
+                min = Math.min(min, x);
+                max = Math.max(max, x);
+            }
+            count = n;
+        }
+        if (count == 0){
+            return;
+        }
+        acc.count += count;
+        acc.numbers += count;
+        acc.sum += sum;
+        //the first of the least and greatest values in the batch, as the row at a time Accumulator keeps
+        if (acc.min == null || min < acc.minNumber){
+            acc.min = values[first(v, nulls, min, sel, n)];
+            acc.minNumber = min;
+            acc.minIsNumber = true;
+        }
+        if (acc.max == null || max > acc.maxNumber){
+            acc.max = values[first(v, nulls, max, sel, n)];
+            acc.maxNumber = max;
+            acc.maxIsNumber = true;
+        }
+    }
+
+    //first selected position with the number x
+    private static int first(long[] v, boolean[] nulls, long x, int[] sel, int n){
+        for (int k = 0; k < n; k++){
+            int i = sel[k];
+            if (!nulls[i] && v[i] == x){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //add the selected values of a slot to the accumulators of each row's group
+    static void addGrouped(Operator.Accumulator[][] rowGroups, int a, Batch batch, int slot, int[] sel, int n){
+        if (slot < 0){
+            for (int k = 0; k < n; k++){
+                rowGroups[k][a].count++;
+            }
+            return;
+        }
+        String[] values = batch.values[slot];
+        if (!batch.numeric[slot]){
+            for (int k = 0; k < n; k++){
+                rowGroups[k][a].add(values[sel[k]]);
+            }
+            return;
+        }
+        long[] v = batch.numbers[slot];
+        boolean[] nulls = batch.nulls[slot];
+        for (int k = 0; k < n; k++){
+            int i = sel[k];
+            if (!nulls[i]){
+                rowGroups[k][a].addNumber(v[i], values[i]);
+            }
+        }
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea Vectorized");
+        testSelect();
+        testNumbers();
+        testSameResults();
+        benchmark();
+        System.out.println("Vectorized: all tests passed");
+    }
+
+    private static List<String[]> run(Database db, String sql, boolean vectorized){
+        Query q = Query.parse(sql);
+        q.vectorized = vectorized;
+        return q.plan(db).toList();
+    }
+
+    private static boolean same(List<String[]> a, List<String[]> b){
+        if (a.size() != b.size()){
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++){
+            if (!Arrays.equals(a.get(i), b.get(i))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void testSelect(){
+        long[] v = {5, 0, 7, 3, 9};
+        boolean[] nulls = {false, true, false, false, false};
+        int[] sel = {0, 1, 2, 3, 4};
+        assert(selectNumbers(">", v, nulls, 4, sel, 5) == 3);
+        assert(sel[0] == 0 && sel[1] == 2 && sel[2] == 4);
+        //a null matches only !=
+        sel = new int[] {0, 1, 2, 3, 4};
+        assert(selectNumbers("!=", v, nulls, 7, sel, 5) == 4);
+        assert(sel[1] == 1);
+        sel = new int[] {0, 1, 2, 3, 4};
+        assert(selectNumbers("<=", v, nulls, 0, sel, 5) == 0);
+
+        Query.Condition c = new Query.Condition("name", "=", "b");
+        String[] names = {"a", "b", null, "b"};
+        sel = new int[] {0, 1, 2, 3};
+        assert(selectValues(c, names, sel, 4) == 2);
+        assert(sel[0] == 1 && sel[1] == 3);
+    }
+
+    //an INT column holding a value that isn't a number, over more than one batch
+    private static void testNumbers(){
+        Database db = new Database("testVectorized");
+        db.addTable("Parts", "s%id", "s%kind", "i%weight");
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < 3000; i++){
+            String weight = (i == 2500) ? "s%heavy" : "i%" + (i % 100);
+            rows.add(new String[] {"s%p" + i, "s%k" + (i % 3), weight});
+        }
+        assert(db.addTableRows("Parts", rows));
+        String[] queries = {
+            "SELECT COUNT(*), COUNT(weight), SUM(weight), MIN(weight), MAX(weight), AVG(weight) FROM Parts",
+            "SELECT kind, COUNT(weight), SUM(weight), MIN(weight), MAX(weight) FROM Parts GROUP BY kind",
+            "SELECT id FROM Parts WHERE weight >= 95",
+            "SELECT id FROM Parts WHERE weight != 3 AND kind = k1",
+            "SELECT id FROM Parts WHERE weight < heavy",
+            "SELECT MAX(weight) FROM Parts WHERE kind = nothing",
+            "SELECT * FROM Parts WHERE weight > 90 ORDER BY weight LIMIT 5"
+        };
+        for (String sql : queries){
+            assert(same(run(db, sql, false), run(db, sql, true))) : sql;
+        }
+        List<String[]> found = run(db, "SELECT COUNT(*), MAX(weight) FROM Parts WHERE weight < 99", true);
+        assert(found.get(0)[1].equals("98"));
+        //an INT value that isn't a number comes after all numbers
+        found = run(db, "SELECT MAX(weight) FROM Parts", true);
+        assert(found.get(0)[0].equals("heavy"));
+
+        Query q = Query.parse("SELECT id FROM Parts WHERE colour = red");
+        q.vectorized = true;
+        boolean failed = false;
+        try {
+            q.plan(db);
+        } catch (IllegalArgumentException ex){
+            failed = true;
+        }
+        assert(failed);
+        db.deleteDatabase();
+    }
+
+    //a primary key or index condition is still answered by reading only the matching rows
+    private static void testSameResults(){
+        Database db = new Database("testVectorized");
+        db.addTable("Crew", "s%id", "s%name", "i%years");
+        db.addTableRow("Crew", "s%1", "s%Laika", "i%1");
+        db.addTableRow("Crew", "s%2", "s%Buzz", "i%10");
+        db.addTableRow("Crew", "s%3", "s%Ona", "i%5");
+        db.getTable("Crew").createIndex("years");
+        Query q = Query.parse("SELECT name FROM Crew WHERE years = 10");
+        q.vectorized = true;
+        Operator op = q.plan(db);
+        List<String[]> rows = op.toList();
+        assert(rows.size() == 1);
+        assert(rows.get(0)[0].equals("Buzz"));
+        q = Query.parse("SELECT name FROM Crew WHERE name != Ona");
+        q.vectorized = true;
+        assert(q.plan(db).toList().size() == 2);
+        db.deleteDatabase();
+    }
+
+    //analytic queries over a larger table, a row at a time and vectorized
+    private static void benchmark(){
+        Database db = new Database("testVectorized");
+        db.addTable("Ships", "s%id", "s%class", "i%crew", "i%tonnage");
+        String[] classes = {"cargo", "cruiser", "shuttle", "tug", "liner", "probe", "frigate", "yacht"};
+        Random random = new Random(7);
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < 100000; i++){
+            rows.add(new String[] {"s%ship" + i, "s%" + classes[random.nextInt(classes.length)],
+                                   "i%" + random.nextInt(1000), "i%" + random.nextInt(100000)});
+            if (rows.size() == 10000){
+                assert(db.addTableRows("Ships", rows));
+                rows.clear();
+            }
+        }
+        String[] queries = {
+            "SELECT COUNT(*), SUM(tonnage), MIN(tonnage), MAX(tonnage), AVG(crew) FROM Ships",
+            "SELECT COUNT(*), SUM(tonnage) FROM Ships WHERE crew >= 500 AND tonnage < 50000",
+            "SELECT class, COUNT(*), SUM(crew), MAX(tonnage) FROM Ships GROUP BY class",
+            "SELECT id, crew FROM Ships WHERE crew > 990 AND class = probe"
+        };
+        for (String sql : queries){
+            assert(same(run(db, sql, false), run(db, sql, true))) : sql;
+            long[] millis = new long[2];
+            for (int round = 0; round < 5; round++){
+                for (int mode = 0; mode < 2; mode++){
+                    long start = System.nanoTime();
+                    run(db, sql, mode == 1);
+                    millis[mode] += (System.nanoTime() - start) / 1000000;
+                }
+            }
+            System.out.println(sql + "\n    row at a time " + millis[0] / 5 + " ms, vectorized " + millis[1] / 5 + " ms");
+        }
+        db.deleteDatabase();
+    }
+}
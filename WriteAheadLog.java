@@ -0,0 +1,576 @@
+/* An append-only log of changes made to a database since its tables were last 
+written to file. Each change is written as a frame: the payload length, a CRC32 
+checksum of the payload, then the payload (the operation, the table name and the 
+operation's arguments as length-prefixed strings). When to force the log to disk 
+is set by a SyncPolicy: after every change (PER_COMMIT - no change is appended while 
+the last one is being forced, so each has an fsync of its own), once for all changes 
+waiting at the same time (GROUP_COMMIT - concurrent writers share one fsync), or every 
+intervalMillis on a background thread (INTERVAL). A change already covered by another 
+writer's fsync is never forced again. When a database is opened, the log is read back 
+a frame at a time and every complete frame with a valid checksum is replayed; a torn 
+or corrupt tail is cut off. Writing the database (a checkpoint) empties the log, 
+so recovery only has to replay the changes made since then - or, when the database 
+was written from a snapshot while changes went on, keeps the changes made after the 
+point the snapshot was opened at, copying them to a new log that replaces this one. 
+The changes a transaction commits, and the rows of a change to many at once (such as 
+a chunk of a bulk load), are written as a single frame, so recovery replays all of 
+them or none of them, and they are forced to disk once. */
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+class WriteAheadLog {
+
+    public static final String FILE_NAME = "wal.log";
+    //operations
+    public static final byte ADD_ROW = 1, DELETE_ROW = 2, UPDATE_ROW = 3, UPDATE_ITEM = 4, 
+                             ADD_TABLE = 5, ADD_FK_TABLE = 6, REMOVE_TABLE = 7, TRANSACTION = 8,
+                             ADD_COL = 9, ADD_COL_BEFORE = 10, REMOVE_COL = 11, UPDATE_COL = 12,
+                             CLEAR_TABLE = 13;
+    private static final int FRAME_HEADER = 8;
+
+    private String path;
+    private volatile FileChannel channel;
+    private SyncPolicy policy;
+    private ScheduledExecutorService syncer = null;
+    //sequence number of the last record appended, and the last one forced to disk
+    private volatile long appended = 0;
+    private long synced = 0;
+    //fsyncs made
+    private long forces = 0;
+    private final Object syncLock = new Object();
+
+    //a change read back from the log
+    static class Entry {
+        byte op;
+        String table;
+        String[] args;
+
+        Entry(byte op, String table, String[] args){
+            this.op = op;
+            this.table = table;
+            this.args = args;
+        }
+    }
+
+    WriteAheadLog(String path, SyncPolicy policy, long intervalMillis) throws IOException {
+        this.policy = policy;
+        this.path = path;
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, 
+                                   StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (policy == SyncPolicy.INTERVAL){
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "wal-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            syncer.scheduleAtFixedRate(() -> sync(appended), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    WriteAheadLog(String path, SyncPolicy policy) throws IOException {
+        this(path, policy, 100);
+    }
+
+    public SyncPolicy getPolicy(){
+        return policy;
+    }
+
+    //read all complete, valid records, and cut the log off after the last one - the log 
+    //is read a frame at a time, so it may be any size
+    public List<Entry> replay() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long size = channel.size();
+        channel.position(0);
+        //not closed, as that would close the channel
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        CRC32 crc = new CRC32();
+        long valid = 0;
+        while (size - valid >= FRAME_HEADER){
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 0 || length > size - valid - FRAME_HEADER){
+                break;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int)crc.getValue() != checksum){
+                break;
+            }
+            entries.add(decode(ByteBuffer.wrap(payload)));
+            valid += FRAME_HEADER + length;
+        }
+        if (valid < size){
+            System.out.println("ERROR: write-ahead log has a damaged tail, " + (size - valid) + " bytes dropped");
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        return entries;
+    }
+
+    //append a change and force it to disk as the sync policy requires
+    public boolean write(byte op, String table, String...args){
+        if (policy == SyncPolicy.PER_COMMIT){
+            //nothing else is appended until this change is forced
+            synchronized (this){
+                return appendAndSync(op, table, args);
+            }
+        }
+        return appendAndSync(op, table, args);
+    }
+
+    private boolean appendAndSync(byte op, String table, String...args){
+        long seq;
+        try {
+            seq = append(op, table, args);
+        } catch (IOException ex){
+            System.out.println("ERROR: could not append to write-ahead log");
+            return false;
+        }
+        if (policy != SyncPolicy.INTERVAL){
+            return sync(seq);
+        }
+        return true;
+    }
+
+    //append changes made together (such as the rows of one bulk load chunk) as one record, 
+    //forced to disk once as the sync policy requires - recovery replays all of them or none
+    public boolean write(List<Entry> changes){
+        if (policy == SyncPolicy.PER_COMMIT){
+            synchronized (this){
+                return appendAndSync(changes);
+            }
+        }
+        return appendAndSync(changes);
+    }
+
+    private boolean appendAndSync(List<Entry> changes){
+        long seq = appendTransaction(changes);
+        if (seq < 0){
+            return false;
+        }
+        if (policy != SyncPolicy.INTERVAL){
+            return sync(seq);
+        }
+        return true;
+    }
+
+    //fsyncs made so far
+    long forces(){
+        return forces;
+    }
+
+    //append the changes of a transaction as one record - returns its sequence number, to 
+    //sync once the transaction has let go of its tables, or -1 if it could not be written
+    public long appendTransaction(List<Entry> changes){
+        List<String> args = new ArrayList<>();
+        for (Entry change : changes){
+            args.add(Byte.toString(change.op));
+            args.add(change.table);
+            args.add(Integer.toString(change.args.length));
+            args.addAll(Arrays.asList(change.args));
+        }
+        try {
+            return append(TRANSACTION, "", args.toArray(new String[0]));
+        } catch (IOException ex){
+            System.out.println("ERROR: could not append to write-ahead log");
+            return -1;
+        }
+    }
+
+    //the changes in a transaction record
+    public static List<Entry> unpack(Entry transaction){
+        List<Entry> changes = new ArrayList<>();
+        String[] args = transaction.args;
+        for (int i = 0; i < args.length; ){
+            byte op = Byte.parseByte(args[i]);
+            String table = args[i + 1];
+            int argc = Integer.parseInt(args[i + 2]);
+            changes.add(new Entry(op, table, Arrays.copyOfRange(args, i + 3, i + 3 + argc)));
+            i += 3 + argc;
+        }
+        return changes;
+    }
+
+    //true if writes are forced to disk when they are made, rather than on a timer
+    public boolean syncsOnWrite(){
+        return policy != SyncPolicy.INTERVAL;
+    }
+
+    private synchronized long append(byte op, String table, String...args) throws IOException {
+        ByteBuffer frame = encode(op, table, args);
+        while (frame.hasRemaining()){
+            channel.write(frame);
+        }
+        return ++appended;
+    }
+
+    //force everything up to seq to disk, unless an fsync has already covered it - with 
+    //GROUP_COMMIT appends go on during the fsync, so one covers all waiting writers, with 
+    //PER_COMMIT the log is locked throughout, so each change is forced on its own
+    public boolean sync(long seq){
+        if (policy == SyncPolicy.PER_COMMIT){
+            synchronized (this){
+                return force(seq);
+            }
+        }
+        synchronized (syncLock){
+            return force(seq);
+        }
+    }
+
+    private boolean force(long seq){
+        if (synced >= seq){
+            return true;
+        }
+        long target;
+        FileChannel forced;
+        synchronized (this){
+            target = appended;
+            forced = channel;
+        }
+        try {
+            forced.force(false);
+            forces++;
+        } catch (ClosedChannelException ex){
+            //replaced by a checkpoint, which forced the changes it kept
+            if (forced == channel){
+                System.out.println("ERROR: could not sync write-ahead log");
+                return false;
+            }
+        } catch (IOException ex){
+            System.out.println("ERROR: could not sync write-ahead log");
+            return false;
+        }
+        synced = target;
+        return true;
+    }
+
+    //all changes are now in the table files, so the log can be emptied
+    public synchronized boolean checkpoint(){
+        try {
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+        } catch (IOException ex){
+            System.out.println("ERROR: could not checkpoint write-ahead log");
+            return false;
+        }
+        return true;
+    }
+
+    //the changes up to position (a size() taken earlier) are now in the table files, 
+    //so only the ones after it are kept
+    public synchronized boolean checkpoint(long position){
+        Path temp = Paths.get(path + ".tmp");
+        try {
+            long size = channel.size();
+            if (position >= size){
+                return checkpoint();
+            }
+            try (FileChannel kept = FileChannel.open(temp, StandardOpenOption.CREATE, 
+                                                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+                for (long from = position; from < size; ){
+                    from += channel.transferTo(from, size - from, kept);
+                }
+                kept.force(true);
+            }
+            channel.close();
+        } catch (IOException ex){
+            System.out.println("ERROR: could not checkpoint write-ahead log");
+            temp.toFile().delete();
+            return false;
+        }
+        boolean replaced = TableFile.replace(temp, Paths.get(path));
+        try {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, 
+                                       StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        } catch (IOException ex){
+            System.out.println("ERROR: could not reopen write-ahead log");
+            return false;
+        }
+        return replaced;
+    }
+
+    //bytes in the log - always the end of a whole change
+    public synchronized long size(){
+        try {
+            return channel.size();
+        } catch (IOException ex){
+            return 0;
+        }
+    }
+
+    public void close(){
+        if (syncer != null){
+            syncer.shutdown();
+        }
+        sync(appended);
+        try {
+            channel.close();
+        } catch (IOException ex){
+            System.out.println("ERROR: could not close write-ahead log");
+        }
+    }
+
+    private static ByteBuffer encode(byte op, String table, String...args){
+        byte[][] strings = new byte[args.length + 1][];
+        int length = 1 + 4;
+        for (int i = 0; i <= args.length; i++){
+            String s = (i == 0) ? table : args[i-1];
+            strings[i] = (s == null) ? null : s.getBytes(StandardCharsets.UTF_8);
+            length += 4 + ((strings[i] == null) ? 0 : strings[i].length);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + length);
+        frame.position(FRAME_HEADER);
+        frame.put(op);
+        frame.putInt(args.length);
+        for (byte[] s : strings){
+            if (s == null){
+                frame.putInt(-1);
+            } else {
+                frame.putInt(s.length);
+                frame.put(s);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(frame.array(), FRAME_HEADER, length);
+        frame.putInt(0, length);
+        frame.putInt(4, (int)crc.getValue());
+        frame.flip();
+        return frame;
+    }
+
+    private static Entry decode(ByteBuffer log){
+        byte op = log.get();
+        int argc = log.getInt();
+        String table = getString(log);
+        String[] args = new String[argc];
+        for (int i = 0; i < argc; i++){
+            args[i] = getString(log);
+        }
+        return new Entry(op, table, args);
+    }
+
+    private static String getString(ByteBuffer log){
+        int length = log.getInt();
+        if (length < 0){
+            return null;
+        }
+        String s = new String(log.array(), log.position(), length, StandardCharsets.UTF_8);
+        log.position(log.position() + length);
+        return s;
+    }
+
+    // ---------- Testing -----------
+    public static void main(String[] args) throws IOException {
+        WriteAheadLog program = new WriteAheadLog("tests/wal.log", SyncPolicy.PER_COMMIT);
+        program.run();
+        program.close();
+        program.test();
+        new java.io.File("tests/wal.log").delete();
+    }
+
+    // Run the tests
+    private void run() {
+        boolean testing = false;
+        assert(testing = true);
+        if (! testing) throw new Error("Use java -ea WriteAheadLog");
+    }
+
+    private void test() throws IOException {
+        testAppendReplay();
+        testTornTail();
+        testCheckpoint();
+        testPartialCheckpoint();
+        testTransaction();
+        testGroupCommit();
+        testPerCommit();
+        System.out.println("WriteAheadLog: all tests passed");
+    }
+
+    private void testAppendReplay() throws IOException {
+        new java.io.File("tests/wal.log").delete();
+        WriteAheadLog log = new WriteAheadLog("tests/wal.log", SyncPolicy.PER_COMMIT);
+        assert(log.replay().isEmpty());
+        assert(log.write(ADD_ROW, "Crew", "455", "Sally Ride", null));
+        assert(log.write(DELETE_ROW, "Crew", "001"));
+        log.close();
+
+        log = new WriteAheadLog("tests/wal.log", SyncPolicy.INTERVAL, 10);
+        List<Entry> entries = log.replay();
+        assert(entries.size() == 2);
+        assert(entries.get(0).op == ADD_ROW);
+        assert(entries.get(0).table.equals("Crew"));
+        assert(entries.get(0).args[1].equals("Sally Ride"));
+        assert(entries.get(0).args[2] == null);
+        assert(entries.get(1).op == DELETE_ROW);
+        assert(entries.get(1).args[0].equals("001"));
+
+        //new records go after the replayed ones
+        assert(log.write(UPDATE_ITEM, "Crew", "455", "name", "Sally"));
+        log.close();
+        log = new WriteAheadLog("tests/wal.log", SyncPolicy.PER_COMMIT);
+        assert(log.replay().size() == 3);
+        log.close();
+    }
+
+    private void testTornTail() throws IOException {
+        WriteAheadLog log = new WriteAheadLog("tests/wal.log", SyncPolicy.PER_COMMIT);
+        log.replay();
+        long goodSize = log.size();
+        //simulate a crash part way through a write
+        log.channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 40, 1, 2}));
+        log.close();
+
+        log = new WriteAheadLog("tests/wal.log", SyncPolicy.PER_COMMIT);
+        assert(log.replay().size() == 3);
+        assert(log.size() == goodSize);
+
+        //a corrupted record is dropped, along with everything after it
+        log.channel.write(ByteBuffer.wrap(new byte[]{9}), 20);
+        assert(log.replay().size() == 0);
+        assert(log.size() == 0);
+        log.close();
+    }
+
+    private void testCheckpoint() throws IOException {
+        WriteAheadLog log = new WriteAheadLog("tests/wal.log", SyncPolicy.PER_COMMIT);
+        log.replay();
+        log.write(ADD_TABLE, "t1", "col1", "col2");
+        assert(log.size() > 0);
+        assert(log.checkpoint());
+        assert(log.size() == 0);
+        assert(log.replay().isEmpty());
+        log.close();
+    }
+
+    private void testPartialCheckpoint() throws IOException {
+        WriteAheadLog log = new WriteAheadLog("tests/wal.log", SyncPolicy.PER_COMMIT);
+        log.replay();
+        log.write(ADD_ROW, "t1", "a");
+        long position = log.size();
+        log.write(ADD_ROW, "t1", "b");
+        log.write(DELETE_ROW, "t1", "a");
+        //only the changes after position are kept, and new ones go after them
+        assert(log.checkpoint(position));
+        assert(log.write(ADD_ROW, "t1", "c"));
+        log.close();
+
+        log = new WriteAheadLog("tests/wal.log", SyncPolicy.PER_COMMIT);
+        List<Entry> entries = log.replay();
+        assert(entries.size() == 3);
+        assert(entries.get(0).args[0].equals("b"));
+        assert(entries.get(1).op == DELETE_ROW);
+        assert(entries.get(2).args[0].equals("c"));
+        assert(log.checkpoint(log.size()));
+        assert(log.size() == 0);
+        log.close();
+    }
+
+    private void testTransaction() throws IOException {
+        WriteAheadLog log = new WriteAheadLog("tests/wal.log", SyncPolicy.PER_COMMIT);
+        log.replay();
+        log.checkpoint();
+        List<Entry> changes = new ArrayList<>();
+        changes.add(new Entry(ADD_ROW, "Fleet", new String[] {"s1", "Cargo"}));
+        changes.add(new Entry(ADD_ROW, "Captains", new String[] {"c1", null, "s1"}));
+        changes.add(new Entry(DELETE_ROW, "Fleet", new String[] {"s0"}));
+        long seq = log.appendTransaction(changes);
+        assert(seq > 0);
+        assert(log.sync(seq));
+        log.close();
+
+        log = new WriteAheadLog("tests/wal.log", SyncPolicy.PER_COMMIT);
+        List<Entry> entries = log.replay();
+        assert(entries.size() == 1);
+        assert(entries.get(0).op == TRANSACTION);
+        List<Entry> unpacked = unpack(entries.get(0));
+        assert(unpacked.size() == 3);
+        assert(unpacked.get(1).table.equals("Captains"));
+        assert(unpacked.get(1).args[1] == null);
+        assert(unpacked.get(2).op == DELETE_ROW);
+        assert(unpacked.get(2).args[0].equals("s0"));
+        log.checkpoint();
+        log.close();
+    }
+
+    private void testGroupCommit() throws IOException {
+        WriteAheadLog log = new WriteAheadLog("tests/wal.log", SyncPolicy.GROUP_COMMIT);
+        log.replay();
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++){
+            final int n = i;
+            writers[i] = new Thread(() -> {
+                for (int j = 0; j < 50; j++){
+                    log.write(ADD_ROW, "t" + n, Integer.toString(j));
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread t : writers){
+            try {
+                t.join();
+            } catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+        }
+        assert(log.synced == 200);
+        log.close();
+
+        WriteAheadLog log2 = new WriteAheadLog("tests/wal.log", SyncPolicy.GROUP_COMMIT);
+        assert(log2.replay().size() == 200);
+        log2.checkpoint();
+        log2.close();
+    }
+
+    private void testPerCommit() throws IOException {
+        WriteAheadLog log = new WriteAheadLog("tests/wal.log", SyncPolicy.PER_COMMIT);
+        log.replay();
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++){
+            final int n = i;
+            writers[i] = new Thread(() -> {
+                for (int j = 0; j < 50; j++){
+                    log.write(ADD_ROW, "t" + n, Integer.toString(j));
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread t : writers){
+            try {
+                t.join();
+            } catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+        }
+        //no writer's change is covered by another's fsync
+        assert(log.forces == 200);
+        assert(log.synced == 200);
+
+        //a change an earlier fsync covered is not forced again
+        long first = log.appendTransaction(Arrays.asList(new Entry(ADD_ROW, "t", new String[] {"a"})));
+        long second = log.appendTransaction(Arrays.asList(new Entry(ADD_ROW, "t", new String[] {"b"})));
+        assert(log.sync(second));
+        assert(log.sync(first));
+        assert(log.forces == 201);
+        log.checkpoint();
+        log.close();
+    }
+}